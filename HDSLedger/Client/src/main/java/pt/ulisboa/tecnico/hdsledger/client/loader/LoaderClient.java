@@ -24,14 +24,16 @@ public class LoaderClient {
     private static final CustomLogger LOGGER = new CustomLogger(LoaderClient.class.getName());
 
     private static void printUsage() {
-        System.out.println("LoaderClient <clientId> <txsCount>");
+        System.out.println("LoaderClient <clientId> <txsCount> [lastRequestId]");
         System.out.println("     txsCount: number of transactions to submit");
+        System.out.println("     lastRequestId: id of the last request of a previous run (after a restart)");
     }
 
     public static void main(String[] args) {
 
         final int clientId = Integer.parseInt(args[0]);
         final int txCount = Integer.parseInt(args[1]);
+        final int lastRequestId = args.length > 2 ? Integer.parseInt(args[2]) : 0;
 
         if (txCount <= COOLDOWN + WARMUP) {
             throw new RuntimeException("transaction count should be at least COOLDOWN+WARMUP");
@@ -65,7 +67,10 @@ public class LoaderClient {
 
         ProcessConfig config = clientConfig.get();
 
-        ClientStub stub = new ClientStub(n, config, configs);
+        // Time to the first committed transfer includes setting up the
+        // links (see benchmarks/restart-benchmark.sh)
+        long processStart = System.nanoTime();
+        ClientStub stub = new ClientStub(n, config, configs, lastRequestId);
         stub.listen();
 
         int txCompleted = 0;
@@ -94,6 +99,10 @@ public class LoaderClient {
                 throw new RuntimeException("Failed to get transfer through. Make sure you started with sufficient inital credit");
             } else {
                 latency = (end - start) / 1_000_000; // nanos to millis
+                if (txCompleted == 0) {
+                    System.out.println(MessageFormat.format("First Transfer: {0} ms after start",
+                            (end - processStart) / 1_000_000));
+                }
                 System.out.println(MessageFormat.format("Transfer request sent. Slot: {0} - took {1} ms", slotOpt.get(), latency));
                 if (txCompleted >= WARMUP && txCompleted <= txCount - COOLDOWN) {
                     latencies.add(latency);
@@ -7,14 +7,19 @@ import pt.ulisboa.tecnico.hdsledger.communication.ledger.AppendRequest;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.BalanceRequest;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.BalanceReply;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferBundle;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferRequest;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferReply;
 import pt.ulisboa.tecnico.hdsledger.communication.Message;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry;
+import pt.ulisboa.tecnico.hdsledger.pki.PrivateIdentity;
 
 import com.google.gson.Gson;
 
 import java.io.IOException;
+import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.IntStream;
 import java.util.logging.Level;
 
@@ -26,6 +31,10 @@ public class ClientStub {
     // Client identifier (self)
     private final ProcessConfig config;
 
+    // The client, with its private key (resolved once, see
+    // IdentityRegistry.self)
+    private final PrivateIdentity identity;
+
     // Configs for everyone (replicas and clients)
     ProcessConfig[] others;
 
@@ -37,55 +46,118 @@ public class ClientStub {
 
     private final int n;
 
-    private ReceivedMessages receivedMessages;
+    // Replies to the requests being waited for (request id -> replies)
+    private final Map<Integer, ReceivedMessages> waiting = new ConcurrentHashMap<>();
 
     public ClientStub(int n, ProcessConfig clientConfig, ProcessConfig[] nodeConfigs) throws HDSSException {
+        this(n, clientConfig, nodeConfigs, 0);
+    }
+
+    /*
+     * @param lastRequestId Id of the last request sent by the client (the
+     * replicas ignore requests whose id they already executed, so a
+     * restarted client must carry on from where it stopped)
+     */
+    public ClientStub(int n, ProcessConfig clientConfig, ProcessConfig[] nodeConfigs, int lastRequestId)
+            throws HDSSException {
         this.config = clientConfig;
+        this.requestId = lastRequestId;
         this.others = nodeConfigs;
         this.n = n;
-        this.link = new HMACLink(clientConfig,
+        IdentityRegistry identities = IdentityRegistry.of(nodeConfigs);
+        this.identity = identities.self(clientConfig);
+        this.link = clientConfig.getTransport() == ProcessConfig.Transport.TCP
+                ? new TcpLink(clientConfig, clientConfig.getPort(), nodeConfigs, LedgerMessage.class,
+                        false, MessageCodec.of(clientConfig), identities)
+                : new HMACLink(clientConfig,
 						clientConfig.getPort(),
 						nodeConfigs,
-						LedgerMessage.class);
-        this.receivedMessages = new ReceivedMessages(n);
+						LedgerMessage.class,
+						false, 200, false, MessageCodec.of(clientConfig), false, identities);
     }
 
-    private LedgerMessage createLedgerMessage(int id, Message.Type type, String message, int sequenceNumber) {
+    private LedgerMessage createLedgerMessage(int id, Message.Type type, int sequenceNumber) {
         LedgerMessage ledgerMessage = new LedgerMessage(id, type);
         ledgerMessage.setSequenceNumber(sequenceNumber);
-        ledgerMessage.setMessage(message);
         return ledgerMessage;
     }
 
     public Optional<Integer> transfer(int source, int destination, int amount) {
         int currentRequestId = ++this.requestId; // nonce
         TransferRequest transferRequest = new TransferRequest(source, destination, amount);
-        LedgerMessage request = createLedgerMessage(config.getId(), Message.Type.TRANSFER_REQUEST, new Gson().toJson(transferRequest), currentRequestId);
-        request.signSelf(this.config.getPrivateKey());
+        LedgerMessage request = createLedgerMessage(config.getId(), Message.Type.TRANSFER_REQUEST, currentRequestId);
+        request.setMessage(transferRequest);
+        request.signSelf(this.identity);
         LOGGER.log(Level.INFO, "Sending transfer request: " + new Gson().toJson(request));
 
         return sendRequest(request, false);
     }
 
+    /*
+     * Sends the transfers in a single request, signed once (each transfer
+     * still gets a request id, and is confirmed on its own)
+     *
+     * @return the slot of each transfer (empty if it failed), in order
+     */
+    public List<Optional<Integer>> transfer(List<TransferRequest> transfers) {
+        // Bundles carry the Merkle root of at least one transfer, and one
+        // transfer is cheaper sent on its own
+        if (transfers.isEmpty()) {
+            return List.of();
+        }
+        if (transfers.size() == 1) {
+            TransferRequest transfer = transfers.get(0);
+            return List.of(transfer(transfer.getSource(), transfer.getDestination(), transfer.getAmount()));
+        }
+
+        int firstRequestId = this.requestId + 1;
+        this.requestId += transfers.size();
+        LedgerMessage request = createLedgerMessage(config.getId(), Message.Type.TRANSFER_BUNDLE, firstRequestId);
+        request.setMessage(new TransferBundle(transfers));
+        request.signSelf(this.identity);
+        LOGGER.log(Level.INFO, MessageFormat.format("Sending bundle of {0} transfers (request ids {1} to {2})",
+                transfers.size(), firstRequestId, this.requestId));
+
+        return sendRequest(request, IntStream.rangeClosed(firstRequestId, this.requestId).boxed().toList(), false);
+    }
+
     public Optional<Integer> checkBalance(int id) {
         int currentRequestId = ++this.requestId; // nonce
         BalanceRequest balanceRequest = new BalanceRequest(id);
-        LedgerMessage request = createLedgerMessage(config.getId(), Message.Type.BALANCE_REQUEST, new Gson().toJson(balanceRequest), currentRequestId);
+        LedgerMessage request = createLedgerMessage(config.getId(), Message.Type.BALANCE_REQUEST, currentRequestId);
+        request.setMessage(balanceRequest);
         LOGGER.log(Level.INFO, "Sending balance request: " + new Gson().toJson(request));
 
         return sendRequest(request, true);
     }
 
+    private Optional<Integer> sendRequest(LedgerMessage request, boolean canDiverge) {
+        return sendRequest(request, List.of(request.getSequenceNumber()), canDiverge).get(0);
+    }
+
     /**
-     * Sends request and waits for f+1 consistent replies.
+     * Sends request and waits for f+1 consistent replies to each of its
+     * request ids (one per transfer of a bundle).
      * @param request request to send
+     * @param requestIds request ids the replies refer to
      * @param canDiverge wheter it's possible for f+1 consistent not to appear
      */
-    private Optional<Integer> sendRequest(LedgerMessage request, boolean canDiverge) {
+    private List<Optional<Integer>> sendRequest(LedgerMessage request, List<Integer> requestIds, boolean canDiverge) {
+        // Registered before sending, so no reply is missed
+        requestIds.forEach(id -> waiting.put(id, new ReceivedMessages(n)));
+
         IntStream.range(0, n).forEach(i -> this.link.send(i, request));
 
-        receivedMessages = new ReceivedMessages(n);
+        List<Optional<Integer>> values = new ArrayList<>(requestIds.size());
+        for (int id : requestIds) {
+            values.add(awaitReplies(request, waiting.get(id), canDiverge));
+            waiting.remove(id);
+        }
+        return values;
+    }
 
+    private Optional<Integer> awaitReplies(LedgerMessage request, ReceivedMessages receivedMessages,
+            boolean canDiverge) {
         while (!receivedMessages.hasDecided()) {
             try {
                 if (receivedMessages.quorumReplied()) {
@@ -122,9 +194,10 @@ public class ClientStub {
 
     public void handleTransferReply(LedgerMessage message) {
         LOGGER.log(Level.INFO, "Received Transfer reply");
-        TransferReply transferReply = message.deserializeTransferReply();
+        TransferReply transferReply = message.getTransferReply();
 
-        if (transferReply.getSequenceNumber() != this.requestId) {
+        ReceivedMessages receivedMessages = waiting.get(transferReply.getSequenceNumber());
+        if (receivedMessages == null) {
             LOGGER.log(Level.INFO, "Stale message received. Dropping");
             return;
         }
@@ -140,9 +213,10 @@ public class ClientStub {
 
     public void handleBalanceReply(LedgerMessage message) {
         LOGGER.log(Level.INFO, "Received Balance reply");
-        BalanceReply balanceReply = message.deserializeBalanceReply();
+        BalanceReply balanceReply = message.getBalanceReply();
 
-        if (balanceReply.getSequenceNumber() != this.requestId) {
+        ReceivedMessages receivedMessages = waiting.get(balanceReply.getSequenceNumber());
+        if (receivedMessages == null) {
             LOGGER.log(Level.INFO, "Stale message received. Dropping");
             return;
         }
@@ -0,0 +1,99 @@
+package pt.ulisboa.tecnico.hdsledger.clientLibrary;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryCodec;
+import pt.ulisboa.tecnico.hdsledger.communication.HMACLink;
+import pt.ulisboa.tecnico.hdsledger.communication.Link;
+import pt.ulisboa.tecnico.hdsledger.communication.Message;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferReply;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferRequest;
+import pt.ulisboa.tecnico.hdsledger.pki.RSAKeyGenerator;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Client against a single replica (f = 0, so one reply confirms), played by
+ * the test
+ */
+public class ClientStubTest {
+
+    private static final int SLOT = 7;
+
+    private static ProcessConfig replicaConfig;
+    private static ProcessConfig clientConfig;
+
+    @BeforeAll
+    public static void genKeys() throws Exception {
+        RSAKeyGenerator.write("/tmp/client_stub_replica.priv", "/tmp/client_stub_replica.pub");
+        RSAKeyGenerator.write("/tmp/client_stub_client.priv", "/tmp/client_stub_client.pub");
+        replicaConfig = new ProcessConfig("localhost", 0, 8190, -1, 1,
+                "/tmp/client_stub_replica.pub", "/tmp/client_stub_replica.priv");
+        clientConfig = new ProcessConfig("localhost", 1, 8191, -1, 1,
+                "/tmp/client_stub_client.pub", "/tmp/client_stub_client.priv");
+    }
+
+    /**
+     * Empty bundles aren't sent (and use no request id), bundles of one
+     * transfer are sent as a transfer
+     */
+    @Test
+    public void emptyAndSingleBundles() throws InterruptedException {
+        ProcessConfig[] configs = {replicaConfig, clientConfig};
+        Link replica = new HMACLink(replicaConfig, replicaConfig.getPort(), configs, LedgerMessage.class,
+                false, 200, false, new BinaryCodec());
+        BlockingQueue<LedgerMessage> requests = replyToTransfers(replica);
+
+        ClientStub stub = new ClientStub(1, clientConfig, configs);
+        stub.listen();
+
+        assertEquals(List.of(), stub.transfer(List.of()));
+
+        List<Optional<Integer>> slots = stub.transfer(List.of(new TransferRequest(1, 0, 5)));
+        assertEquals(List.of(Optional.of(SLOT)), slots);
+
+        LedgerMessage request = requests.poll(5, TimeUnit.SECONDS);
+        assertNotNull(request);
+        assertEquals(Message.Type.TRANSFER_REQUEST, request.getType());
+        assertEquals(1, request.getSequenceNumber());
+        assertEquals(5, request.getTransferRequest().getAmount());
+    }
+
+    /*
+     * Replies to every transfer request with SLOT, and returns the requests
+     */
+    private static BlockingQueue<LedgerMessage> replyToTransfers(Link replica) {
+        BlockingQueue<LedgerMessage> requests = new LinkedBlockingQueue<>();
+        new Thread(() -> {
+            try {
+                while (true) {
+                    Message message = replica.receive();
+                    if (message.getType() != Message.Type.TRANSFER_REQUEST
+                            && message.getType() != Message.Type.TRANSFER_BUNDLE) {
+                        continue;
+                    }
+                    LedgerMessage request = (LedgerMessage) message;
+                    requests.add(request);
+
+                    LedgerMessage reply = new LedgerMessage(replicaConfig.getId(), Message.Type.TRANSFER_REPLY);
+                    reply.setMessage(new TransferReply(request.getSequenceNumber(), Optional.of(SLOT)));
+                    replica.send(request.getSenderId(), reply);
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                e.printStackTrace();
+            }
+        }).start();
+        return requests;
+    }
+}
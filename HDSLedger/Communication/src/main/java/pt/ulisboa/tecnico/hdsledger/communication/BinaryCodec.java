@@ -0,0 +1,485 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.CommitMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrePrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ValueReplyMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ValueRequestMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.RoundChangeMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.AppendMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.BalanceReply;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.BalanceRequest;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.BundleProof;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferBundle;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferReply;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferRequest;
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Compact binary codec.
+ *
+ * Frame layout:
+ *   version (1 byte) | class tag (1 byte) | type (varint) |
+ *   sender, receiver, message id, ACK floor (zigzag varints) |
+ *   ACK bitmap (varlong) | class fields
+ *
+ * Class fields follow the declaration order of each class, ints as zigzag
+ * varints and strings/byte arrays length-prefixed (see BinaryWriter).
+ * Payloads of consensus and ledger messages are written in place (tag of
+ * the payload, then its fields), including the messages they carry.
+ * Frames starting with '{' are JSON and are decoded by JsonCodec, so links
+ * using this codec still understand peers that use JSON. Messages of
+ * classes this codec doesn't know are also sent as JSON.
+ * Stateless (thread-safe).
+ */
+public class BinaryCodec implements MessageCodec {
+
+    // Bump when the layout changes
+    public static final int VERSION = 7;
+
+    private static final JsonCodec JSON = new JsonCodec();
+
+    private static final Format<?>[] FORMATS = {
+        new Format<>(Message.class) {
+            @Override
+            Message create(int senderId, Message.Type type) {
+                return new Message(senderId, type);
+            }
+        },
+        new Format<>(ConsensusMessage.class) {
+            @Override
+            ConsensusMessage create(int senderId, Message.Type type) {
+                return new ConsensusMessage(senderId, type);
+            }
+
+            @Override
+            void write(ConsensusMessage m, BinaryWriter w) {
+                writeConsensusFields(m, w);
+            }
+
+            @Override
+            void read(ConsensusMessage m, BinaryReader r) {
+                readConsensusFields(m, r);
+            }
+        },
+        new Format<>(LedgerMessage.class) {
+            @Override
+            LedgerMessage create(int senderId, Message.Type type) {
+                return new LedgerMessage(senderId, type);
+            }
+
+            @Override
+            void write(LedgerMessage m, BinaryWriter w) {
+                writeLedgerPayload(m, w);
+                w.writeString(m.getSignature().orElse(null))
+                        .writeSignedVarInt(m.getReplyTo())
+                        .writeSignedVarInt(m.getReplyToMessageId())
+                        .writeSignedVarInt(m.getSequenceNumber());
+                writeBundleProof(m.getBundleProof().orElse(null), w);
+            }
+
+            @Override
+            void read(LedgerMessage m, BinaryReader r) {
+                readLedgerPayload(m, r);
+                m.setSignature(r.readString());
+                m.setReplyTo(r.readSignedVarInt());
+                m.setReplyToMessageId(r.readSignedVarInt());
+                m.setSequenceNumber(r.readSignedVarInt());
+                m.setBundleProof(readBundleProof(r));
+            }
+        },
+        new Format<>(AppendMessage.class) {
+            @Override
+            AppendMessage create(int senderId, Message.Type type) {
+                return new AppendMessage(senderId, type, 0);
+            }
+
+            @Override
+            void write(AppendMessage m, BinaryWriter w) {
+                w.writeString(m.getMessage())
+                        .writeString(m.getSignature().orElse(null))
+                        .writeSignedVarInt(m.getReplyTo())
+                        .writeSignedVarInt(m.getReplyToMessageId());
+            }
+
+            @Override
+            void read(AppendMessage m, BinaryReader r) {
+                m.setMessage(r.readString());
+                m.setSignature(r.readString());
+                m.setReplyTo(r.readSignedVarInt());
+                m.setReplyToMessageId(r.readSignedVarInt());
+            }
+        },
+        new Format<>(HMACMessage.class) {
+            @Override
+            HMACMessage create(int senderId, Message.Type type) {
+                return new HMACMessage(senderId, type, null, null);
+            }
+
+            @Override
+            void write(HMACMessage m, BinaryWriter w) {
+                w.writeBytes(m.getHmac())
+                        .writeBytes(m.getMessage())
+                        .writeByte((m.isFrame() ? FRAME : 0) | (m.isEncrypted() ? ENCRYPTED : 0))
+                        .writeVarInt(m.getFragmentIndex())
+                        .writeVarInt(m.getFragmentCount())
+                        .writeSignedVarInt(m.getReplyTo())
+                        .writeSignedVarInt(m.getReplyToMessageId());
+            }
+
+            @Override
+            void read(HMACMessage m, BinaryReader r) {
+                m.setHmac(r.readBytes());
+                m.setMessage(r.readBytes());
+                int flags = r.readByte();
+                m.setFrame((flags & FRAME) != 0);
+                m.setEncrypted((flags & ENCRYPTED) != 0);
+                m.setFragmentIndex(r.readVarInt());
+                m.setFragmentCount(r.readVarInt());
+                m.setReplyTo(r.readSignedVarInt());
+                m.setReplyToMessageId(r.readSignedVarInt());
+            }
+        },
+        new Format<>(KeyProposal.class) {
+            @Override
+            KeyProposal create(int senderId, Message.Type type) {
+                KeyProposal proposal = new KeyProposal(senderId, null, null);
+                proposal.setType(type);
+                return proposal;
+            }
+
+            @Override
+            void write(KeyProposal m, BinaryWriter w) {
+                w.writeBytes(m.getKey())
+                        .writeString(m.getSignature())
+                        .writeSignedVarInt(m.getReplyTo())
+                        .writeSignedVarInt(m.getReplyToMessageId());
+            }
+
+            @Override
+            void read(KeyProposal m, BinaryReader r) {
+                m.setKey(r.readBytes());
+                m.setSignature(r.readString());
+                m.setReplyTo(r.readSignedVarInt());
+                m.setReplyToMessageId(r.readSignedVarInt());
+            }
+        },
+    };
+
+    // Class -> tag (index in FORMATS)
+    private static final Map<Class<?>, Integer> TAGS = new HashMap<>();
+
+    static {
+        for (int tag = 0; tag < FORMATS.length; tag++) {
+            TAGS.put(FORMATS[tag].type, tag);
+        }
+    }
+
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    // Payload tags (which of the payload fields of a message is set)
+    private static final int NO_PAYLOAD = 0;
+    private static final int PRE_PREPARE = 1;
+    private static final int PREPARE = 2;
+    private static final int COMMIT = 3;
+    private static final int ROUND_CHANGE = 4;
+    private static final int VALUE_REQUEST = 5;
+    private static final int VALUE_REPLY = 6;
+    private static final int TRANSFER_REQUEST = 1;
+    private static final int TRANSFER_REPLY = 2;
+    private static final int BALANCE_REQUEST = 3;
+    private static final int BALANCE_REPLY = 4;
+    private static final int TRANSFER_BUNDLE = 5;
+
+    // Flags of HMAC messages
+    private static final int FRAME = 1;
+    private static final int ENCRYPTED = 2;
+
+    @Override
+    public byte[] encode(Message message) {
+        Integer tag = TAGS.get(message.getClass());
+        if (tag == null) {
+            return JSON.encode(message);
+        }
+
+        BinaryWriter w = new BinaryWriter()
+                .writeByte(VERSION)
+                .writeByte(tag)
+                .writeVarInt(message.getType().ordinal())
+                .writeSignedVarInt(message.getSenderId())
+                .writeSignedVarInt(message.getReceiver())
+                .writeSignedVarInt(message.getMessageId())
+                .writeSignedVarInt(message.getAckFloor())
+                .writeVarLong(message.getAckBitmap());
+        FORMATS[tag].writeFields(message, w);
+
+        return w.toByteArray();
+    }
+
+    @Override
+    public Message decode(Datagram datagram, Class<? extends Message> targetClass) {
+        if (datagram.size() > 0 && datagram.getPayload().get(datagram.getPayload().position()) == '{') {
+            return JSON.decode(datagram, targetClass);
+        }
+
+        BinaryReader r = new BinaryReader(datagram.getPayload().duplicate());
+        if (r.readByte() != VERSION) {
+            throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+
+        int tag = r.readByte();
+        int type = r.readVarInt();
+        if (tag >= FORMATS.length || type >= TYPES.length) {
+            throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+        Format<?> sent = FORMATS[tag];
+
+        // Same as JSON: a message sent as a superclass of the target class
+        // (e.g. an ACK) is decoded as the target class
+        Format<?> format = sent;
+        Integer targetTag = TAGS.get(targetClass);
+        if (targetTag != null && sent.type.isAssignableFrom(targetClass)) {
+            format = FORMATS[targetTag];
+        }
+
+        Message message = format.create(r.readSignedVarInt(), TYPES[type]);
+        message.setReceiver(r.readSignedVarInt());
+        message.setMessageId(r.readSignedVarInt());
+        message.setAckFloor(r.readSignedVarInt());
+        message.setAckBitmap(r.readVarLong());
+        sent.readFields(message, r);
+
+        return message;
+    }
+
+    /*
+     * Consensus message fields, the payload (tag of the set payload and its
+     * fields) and the messages in justifications are written in place,
+     * nothing is nested as a string
+     */
+    private static void writeConsensusFields(ConsensusMessage m, BinaryWriter w) {
+        w.writeSignedVarInt(m.getConsensusInstance())
+                .writeSignedVarInt(m.getRound())
+                .writeSignedVarInt(m.getReplyTo())
+                .writeSignedVarInt(m.getReplyToMessageId());
+
+        if (m.getPrePrepareMessage() != null) {
+            PrePrepareMessage prePrepare = m.getPrePrepareMessage();
+            w.writeByte(PRE_PREPARE).writeString(prePrepare.getValue());
+            writeConsensusList(prePrepare.getJustificationPrepares().orElse(null), w);
+            writeConsensusList(prePrepare.getJustificationRoundChanges().orElse(null), w);
+        } else if (m.getPrepareMessage() != null) {
+            w.writeByte(PREPARE).writeString(m.getPrepareMessage().getDigest());
+        } else if (m.getCommitMessage() != null) {
+            w.writeByte(COMMIT).writeString(m.getCommitMessage().getDigest());
+        } else if (m.getRoundChangeMessage() != null) {
+            RoundChangeMessage roundChange = m.getRoundChangeMessage();
+            w.writeByte(ROUND_CHANGE)
+                    .writeByte(roundChange.getPvi().isPresent() ? 1 : 0)
+                    .writeString(roundChange.getPvi().orElse(null))
+                    .writeSignedVarInt(roundChange.getPri().orElse(0));
+            writeConsensusList(roundChange.getJustification().orElse(null), w);
+        } else if (m.getValueRequestMessage() != null) {
+            w.writeByte(VALUE_REQUEST).writeString(m.getValueRequestMessage().getDigest());
+        } else if (m.getValueReplyMessage() != null) {
+            w.writeByte(VALUE_REPLY).writeString(m.getValueReplyMessage().getValue());
+        } else {
+            w.writeByte(NO_PAYLOAD);
+        }
+
+        w.writeString(m.getSignature().orElse(null));
+    }
+
+    private static void readConsensusFields(ConsensusMessage m, BinaryReader r) {
+        m.setConsensusInstance(r.readSignedVarInt());
+        m.setRound(r.readSignedVarInt());
+        m.setReplyTo(r.readSignedVarInt());
+        m.setReplyToMessageId(r.readSignedVarInt());
+
+        switch (r.readByte()) {
+            case NO_PAYLOAD -> {}
+            case PRE_PREPARE -> {
+                String value = r.readString();
+                Optional<List<ConsensusMessage>> prepares = readConsensusList(r);
+                Optional<List<ConsensusMessage>> roundChanges = readConsensusList(r);
+                m.setMessage(new PrePrepareMessage(value, prepares, roundChanges));
+            }
+            case PREPARE -> m.setMessage(new PrepareMessage(r.readString()));
+            case COMMIT -> m.setMessage(new CommitMessage(r.readString()));
+            case ROUND_CHANGE -> {
+                boolean present = r.readByte() == 1;
+                String pvi = r.readString();
+                int pri = r.readSignedVarInt();
+                RoundChangeMessage roundChange = present
+                        ? new RoundChangeMessage(Optional.of(pvi), Optional.of(pri))
+                        : new RoundChangeMessage(Optional.empty(), Optional.empty());
+                roundChange.setJustification(readConsensusList(r));
+                m.setMessage(roundChange);
+            }
+            case VALUE_REQUEST -> m.setMessage(new ValueRequestMessage(r.readString()));
+            case VALUE_REPLY -> m.setMessage(new ValueReplyMessage(r.readString()));
+            default -> throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+
+        m.setSignature(r.readString());
+    }
+
+    // Justifications: count + 1 (0 means none), then each message (with its header)
+    private static void writeConsensusList(List<ConsensusMessage> messages, BinaryWriter w) {
+        if (messages == null) {
+            w.writeVarInt(0);
+            return;
+        }
+        w.writeVarInt(messages.size() + 1);
+        for (ConsensusMessage m : messages) {
+            w.writeVarInt(m.getType().ordinal())
+                    .writeSignedVarInt(m.getSenderId())
+                    .writeSignedVarInt(m.getReceiver())
+                    .writeSignedVarInt(m.getMessageId());
+            writeConsensusFields(m, w);
+        }
+    }
+
+    private static Optional<List<ConsensusMessage>> readConsensusList(BinaryReader r) {
+        int count = r.readVarInt() - 1;
+        if (count == -1) {
+            return Optional.empty();
+        }
+        if (count < 0 || count > r.remaining()) {
+            throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+
+        List<ConsensusMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int type = r.readVarInt();
+            if (type >= TYPES.length) {
+                throw new HDSSException(ErrorMessage.CannotParseMessage);
+            }
+            ConsensusMessage m = new ConsensusMessage(0, TYPES[type]);
+            m.setSenderId(r.readSignedVarInt());
+            m.setReceiver(r.readSignedVarInt());
+            m.setMessageId(r.readSignedVarInt());
+            readConsensusFields(m, r);
+            messages.add(m);
+        }
+        return Optional.of(messages);
+    }
+
+    private static void writeLedgerPayload(LedgerMessage m, BinaryWriter w) {
+        if (m.getTransferRequest() != null) {
+            w.writeByte(TRANSFER_REQUEST);
+            m.getTransferRequest().writeTo(w);
+        } else if (m.getTransferReply() != null) {
+            w.writeByte(TRANSFER_REPLY);
+            m.getTransferReply().writeTo(w);
+        } else if (m.getBalanceRequest() != null) {
+            w.writeByte(BALANCE_REQUEST);
+            m.getBalanceRequest().writeTo(w);
+        } else if (m.getBalanceReply() != null) {
+            w.writeByte(BALANCE_REPLY);
+            m.getBalanceReply().writeTo(w);
+        } else if (m.getTransferBundle() != null) {
+            w.writeByte(TRANSFER_BUNDLE).writeVarInt(m.getTransferBundle().size());
+            m.getTransferBundle().getTransfers().forEach(transfer -> transfer.writeTo(w));
+        } else {
+            w.writeByte(NO_PAYLOAD);
+        }
+    }
+
+    private static void readLedgerPayload(LedgerMessage m, BinaryReader r) {
+        switch (r.readByte()) {
+            case NO_PAYLOAD -> {}
+            case TRANSFER_REQUEST -> m.setMessage(
+                    new TransferRequest(r.readSignedVarInt(), r.readSignedVarInt(), r.readSignedVarInt()));
+            case TRANSFER_REPLY -> {
+                int sequenceNumber = r.readSignedVarInt();
+                int slot = r.readSignedVarInt();
+                boolean success = r.readByte() == 1;
+                m.setMessage(new TransferReply(sequenceNumber, success ? Optional.of(slot) : Optional.empty()));
+            }
+            case BALANCE_REQUEST -> m.setMessage(new BalanceRequest(r.readSignedVarInt()));
+            case BALANCE_REPLY -> {
+                int value = r.readSignedVarInt();
+                boolean success = r.readByte() == 1;
+                int sequenceNumber = r.readSignedVarInt();
+                m.setMessage(new BalanceReply(success ? Optional.of(value) : Optional.empty(), sequenceNumber));
+            }
+            case TRANSFER_BUNDLE -> {
+                int count = r.readVarInt();
+                if (count < 0 || count > r.remaining()) {
+                    throw new HDSSException(ErrorMessage.CannotParseMessage);
+                }
+                List<TransferRequest> transfers = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    transfers.add(new TransferRequest(r.readSignedVarInt(), r.readSignedVarInt(), r.readSignedVarInt()));
+                }
+                m.setMessage(new TransferBundle(transfers));
+            }
+            default -> throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+    }
+
+    // Proof of a transfer taken out of a bundle: path size + 1 (0 means none),
+    // then index, count and the path
+    private static void writeBundleProof(BundleProof proof, BinaryWriter w) {
+        if (proof == null) {
+            w.writeVarInt(0);
+            return;
+        }
+        w.writeVarInt(proof.getPath().size() + 1)
+                .writeVarInt(proof.getIndex())
+                .writeVarInt(proof.getCount());
+        proof.getPath().forEach(w::writeString);
+    }
+
+    private static BundleProof readBundleProof(BinaryReader r) {
+        int size = r.readVarInt() - 1;
+        if (size == -1) {
+            return null;
+        }
+        if (size < 0 || size > r.remaining()) {
+            throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+        int index = r.readVarInt();
+        int count = r.readVarInt();
+        List<String> path = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            path.add(r.readString());
+        }
+        return new BundleProof(index, count, path);
+    }
+
+    /**
+     * How to build, write and read the fields of a message class
+     */
+    private abstract static class Format<T extends Message> {
+        private final Class<T> type;
+
+        Format(Class<T> type) {
+            this.type = type;
+        }
+
+        abstract T create(int senderId, Message.Type type);
+
+        void write(T message, BinaryWriter w) {}
+
+        void read(T message, BinaryReader r) {}
+
+        void writeFields(Message message, BinaryWriter w) {
+            write(type.cast(message), w);
+        }
+
+        void readFields(Message message, BinaryReader r) {
+            read(type.cast(message), r);
+        }
+    }
+}
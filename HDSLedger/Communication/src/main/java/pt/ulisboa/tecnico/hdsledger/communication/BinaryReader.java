@@ -0,0 +1,91 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads what BinaryWriter wrote.
+ * Malformed input results in a HDSSException (CannotParseMessage).
+ * Not thread-safe.
+ */
+public class BinaryReader {
+
+    private final ByteBuffer buf;
+
+    public BinaryReader(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    public BinaryReader(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    public int readByte() {
+        try {
+            return buf.get() & 0xFF;
+        } catch (BufferUnderflowException e) {
+            throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+    }
+
+    public int readVarInt() {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        // More than 5 bytes can't be an int
+        throw new HDSSException(ErrorMessage.CannotParseMessage);
+    }
+
+    public long readVarLong() {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        // More than 10 bytes can't be a long
+        throw new HDSSException(ErrorMessage.CannotParseMessage);
+    }
+
+    public int readSignedVarInt() {
+        int v = readVarInt();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public byte[] readBytes() {
+        int length = readVarInt() - 1;
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buf.remaining()) {
+            throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    public String readString() {
+        byte[] bytes = readBytes();
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int remaining() {
+        return buf.remaining();
+    }
+
+    public boolean hasRemaining() {
+        return buf.hasRemaining();
+    }
+}
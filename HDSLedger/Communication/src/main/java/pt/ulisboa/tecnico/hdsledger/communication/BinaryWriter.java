@@ -0,0 +1,92 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable buffer to write the binary wire format.
+ * Integers are written as varints (LEB128), byte arrays and strings are
+ * length-prefixed (length + 1, so that 0 means null).
+ * Not thread-safe.
+ */
+public class BinaryWriter {
+
+    private byte[] buf;
+    private int size = 0;
+
+    public BinaryWriter() {
+        this(256);
+    }
+
+    public BinaryWriter(int capacity) {
+        this.buf = new byte[capacity];
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+        }
+    }
+
+    public BinaryWriter writeByte(int b) {
+        ensureCapacity(1);
+        buf[size++] = (byte) b;
+        return this;
+    }
+
+    /*
+     * Writes the 32 bits of v as an unsigned varint (1 to 5 bytes)
+     */
+    public BinaryWriter writeVarInt(int v) {
+        ensureCapacity(5);
+        while ((v & ~0x7F) != 0) {
+            buf[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[size++] = (byte) v;
+        return this;
+    }
+
+    /*
+     * Writes the 64 bits of v as an unsigned varint (1 to 10 bytes)
+     */
+    public BinaryWriter writeVarLong(long v) {
+        ensureCapacity(10);
+        while ((v & ~0x7FL) != 0) {
+            buf[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[size++] = (byte) v;
+        return this;
+    }
+
+    /*
+     * Writes v zigzag encoded, so that small negative numbers are also short
+     */
+    public BinaryWriter writeSignedVarInt(int v) {
+        return writeVarInt((v << 1) ^ (v >> 31));
+    }
+
+    public BinaryWriter writeBytes(byte[] bytes) {
+        if (bytes == null) {
+            return writeVarInt(0);
+        }
+        writeVarInt(bytes.length + 1);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, size, bytes.length);
+        size += bytes.length;
+        return this;
+    }
+
+    public BinaryWriter writeString(String s) {
+        return writeBytes(s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+}
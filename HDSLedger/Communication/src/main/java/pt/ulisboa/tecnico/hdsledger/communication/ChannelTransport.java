@@ -0,0 +1,115 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transport over a non-blocking DatagramChannel.
+ * Datagrams are received (in a selector loop) into a pool of reusable direct
+ * buffers and sent from the same pool, so steady state traffic doesn't
+ * allocate buffers.
+ */
+public class ChannelTransport implements DatagramTransport {
+
+    // Buffers kept around once released (more can be in use at a time)
+    private static final int MAX_POOLED_BUFFERS = 16;
+    // Time to wait before retrying a send when the socket buffer is full
+    private static final long SEND_RETRY_NANOS = 50_000;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    // Released datagrams, ready to receive into
+    private final Queue<Datagram> receivePool = new ConcurrentLinkedQueue<>();
+    // Released buffers, ready to send from
+    private final Queue<ByteBuffer> sendPool = new ConcurrentLinkedQueue<>();
+
+    public ChannelTransport(InetSocketAddress address) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        this.channel.bind(address);
+        this.channel.configureBlocking(false);
+
+        this.selector = Selector.open();
+        this.channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void send(InetSocketAddress destination, byte[] data) throws IOException {
+        ByteBuffer buf = sendPool.poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        }
+
+        try {
+            buf.clear();
+            buf.put(data);
+            buf.flip();
+            // The channel is non-blocking: wait for room in the socket buffer
+            // (like a blocking socket would) instead of dropping the datagram
+            while (channel.send(buf, destination) == 0) {
+                LockSupport.parkNanos(SEND_RETRY_NANOS);
+            }
+        } finally {
+            if (sendPool.size() < MAX_POOLED_BUFFERS) {
+                sendPool.add(buf);
+            }
+        }
+    }
+
+    @Override
+    public synchronized Datagram receive() throws IOException {
+        Datagram datagram = receivePool.poll();
+        if (datagram == null) {
+            datagram = new Datagram(ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE), this::recycle);
+        }
+
+        ByteBuffer buf = datagram.getPayload();
+        buf.clear();
+
+        for (;;) {
+            SocketAddress source = channel.receive(buf);
+            if (source != null) {
+                buf.flip();
+                datagram.setSource((InetSocketAddress) source);
+                return datagram;
+            }
+
+            // Nothing to read, wait until there is (interrupts wake the
+            // selector up, and so does close)
+            try {
+                selector.select();
+            } catch (ClosedSelectorException e) {
+                throw new ClosedChannelException();
+            }
+            selector.selectedKeys().clear();
+            if (Thread.currentThread().isInterrupted()) {
+                recycle(datagram);
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        selector.close();
+    }
+
+    private void recycle(Datagram datagram) {
+        if (receivePool.size() < MAX_POOLED_BUFFERS) {
+            receivePool.add(datagram);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Datagram received by a DatagramTransport.
+ * The payload may live in a pooled buffer, so the datagram must be released
+ * (and not used again) once it's decoded.
+ */
+public class Datagram {
+
+    // Received bytes (between position and limit)
+    private final ByteBuffer payload;
+    // Gives the datagram back to its pool (if any)
+    private final Consumer<Datagram> recycler;
+    // Reused to decode the payload as text
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars;
+    private final PayloadReader reader = new PayloadReader();
+    // Address the datagram came from
+    private InetSocketAddress source;
+
+    public Datagram(ByteBuffer payload, Consumer<Datagram> recycler) {
+        this.payload = payload;
+        this.recycler = recycler;
+    }
+
+    public Datagram(ByteBuffer payload, InetSocketAddress source) {
+        this(payload, (Consumer<Datagram>) null);
+        this.source = source;
+    }
+
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    public InetSocketAddress getSource() {
+        return source;
+    }
+
+    public void setSource(InetSocketAddress source) {
+        this.source = source;
+    }
+
+    public int size() {
+        return payload.remaining();
+    }
+
+    /*
+     * Returns a reader over the payload decoded as UTF-8
+     * Can be called more than once, every call reads from the start
+     */
+    public Reader reader() {
+        // UTF-8 never decodes to more chars than bytes
+        // Pooled datagrams are sized for any payload they may hold later
+        if (chars == null || chars.capacity() < payload.remaining()) {
+            chars = CharBuffer.allocate(recycler != null ? payload.capacity() : payload.remaining());
+        }
+
+        chars.clear();
+        decoder.reset();
+        payload.mark();
+        decoder.decode(payload, chars, true);
+        decoder.flush(chars);
+        payload.reset();
+        chars.flip();
+
+        return reader;
+    }
+
+    /*
+     * Gives the datagram back to the transport
+     */
+    public void release() {
+        if (recycler != null) {
+            recycler.accept(this);
+        }
+    }
+
+    /**
+     * Reader over the decoded chars (avoids copying them into a String)
+     */
+    private class PayloadReader extends Reader {
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (!chars.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, chars.remaining());
+            chars.get(cbuf, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,31 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Unreliable datagram transport used by PerfectLink.
+ */
+public interface DatagramTransport {
+
+    // Largest payload of a UDP datagram
+    int MAX_DATAGRAM_SIZE = 65535;
+
+    // Requested socket receive buffer, so bursts aren't dropped by the kernel
+    // while the receive loop is busy (the OS may cap it)
+    int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    void send(InetSocketAddress destination, byte[] data) throws IOException;
+
+    /*
+     * Receives a datagram from the network (blocking)
+     * The returned datagram must be released once it's no longer needed
+     * Throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    Datagram receive() throws IOException;
+
+    /*
+     * Releases the socket (a blocked receive throws IOException)
+     */
+    void close() throws IOException;
+}
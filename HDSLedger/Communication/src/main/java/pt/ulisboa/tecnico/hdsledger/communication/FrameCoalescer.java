@@ -0,0 +1,183 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Packs (encoded) messages going to the same node into frames, so that
+ * several small messages share one datagram, one HMAC and one ACK.
+ * A frame is sent when the next message doesn't fit in the size budget, or
+ * when its first message has waited for the flush deadline.
+ *
+ * Frame layout:
+ *   message count (varint) | messages (length-prefixed, in the order they
+ *   were added)
+ *
+ * Thread-safe.
+ */
+public class FrameCoalescer {
+
+    // Bytes of messages per frame, so that a frame (inside its HMAC message
+    // and the IP/UDP headers) fits in an Ethernet MTU
+    public static final int DEFAULT_BUDGET = 1400;
+
+    // Milliseconds a message waits for others to fill its frame
+    public static final int DEFAULT_DEADLINE = 2;
+
+    private final int budget;
+    private final int deadline;
+    // Sends a frame to a node
+    private final BiConsumer<Integer, byte[]> sender;
+    // Frame being filled for each node
+    private final Map<Integer, Frame> frames = new ConcurrentHashMap<>();
+    private final AtomicLong framesSent = new AtomicLong(0);
+    private final AtomicLong messagesSent = new AtomicLong(0);
+
+    public FrameCoalescer(BiConsumer<Integer, byte[]> sender) {
+        this(sender, DEFAULT_BUDGET, DEFAULT_DEADLINE);
+    }
+
+    public FrameCoalescer(BiConsumer<Integer, byte[]> sender, int budget, int deadline) {
+        this.sender = sender;
+        this.budget = budget;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Adds a message to the frame going to nodeId (messages bigger than the
+     * budget are sent in a frame of their own)
+     */
+    public void add(int nodeId, byte[] message) {
+        frames.computeIfAbsent(nodeId, Frame::new).add(message);
+    }
+
+    /**
+     * Sends the frame going to nodeId right away (if there's one)
+     */
+    public void flush(int nodeId) {
+        Frame frame = frames.get(nodeId);
+        if (frame != null) {
+            frame.flush();
+        }
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    /**
+     * Average number of messages per frame sent so far
+     */
+    public double getMessagesPerFrame() {
+        long frames = framesSent.get();
+        return frames == 0 ? 0 : (double) messagesSent.get() / frames;
+    }
+
+    /**
+     * Splits a frame into the messages it carries (in order)
+     */
+    public static List<byte[]> unpack(byte[] frame) {
+        BinaryReader r = new BinaryReader(frame);
+        int count = r.readVarInt();
+        // Each message takes at least one byte
+        if (count > r.remaining()) {
+            throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+
+        List<byte[]> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] message = r.readBytes();
+            if (message == null) {
+                throw new HDSSException(ErrorMessage.CannotParseMessage);
+            }
+            messages.add(message);
+        }
+        if (r.hasRemaining()) {
+            throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+        return messages;
+    }
+
+    private static byte[] pack(List<byte[]> messages, int size) {
+        BinaryWriter w = new BinaryWriter(size + 5).writeVarInt(messages.size());
+        messages.forEach(w::writeBytes);
+        return w.toByteArray();
+    }
+
+    // Space a message takes in a frame (length prefix included)
+    private static int entrySize(byte[] message) {
+        int prefix = 1;
+        for (int v = (message.length + 1) >>> 7; v != 0; v >>>= 7) {
+            prefix++;
+        }
+        return prefix + message.length;
+    }
+
+    /**
+     * Frame being filled for a node
+     */
+    private class Frame {
+        private final int nodeId;
+        private final List<byte[]> messages = new ArrayList<>();
+        private int size = 0;
+        // Incremented every time the frame is sent, so that the deadline of
+        // a frame that was already sent doesn't cut the next one short
+        private long generation = 0;
+
+        Frame(int nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        synchronized void add(byte[] message) {
+            int entry = entrySize(message);
+            if (!messages.isEmpty() && size + entry > budget) {
+                send();
+            }
+
+            messages.add(message);
+            size += entry;
+
+            if (size >= budget) {
+                send();
+            } else if (messages.size() == 1) {
+                long current = generation;
+                RetransmissionScheduler.executeLater(() -> flush(current), deadline);
+            }
+        }
+
+        synchronized void flush() {
+            if (!messages.isEmpty()) {
+                send();
+            }
+        }
+
+        private synchronized void flush(long expected) {
+            if (generation == expected) {
+                flush();
+            }
+        }
+
+        private void send() {
+            byte[] frame = pack(messages, size);
+            framesSent.incrementAndGet();
+            messagesSent.addAndGet(messages.size());
+
+            messages.clear();
+            size = 0;
+            generation++;
+
+            sender.accept(nodeId, frame);
+        }
+    }
+}
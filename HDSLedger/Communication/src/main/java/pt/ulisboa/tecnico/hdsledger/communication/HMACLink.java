@@ -1,51 +1,110 @@
 package pt.ulisboa.tecnico.hdsledger.communication;
 
-import com.google.gson.Gson;
-
+import pt.ulisboa.tecnico.hdsledger.pki.ChannelCipher;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry.Identity;
+import pt.ulisboa.tecnico.hdsledger.pki.PrivateIdentity;
 import pt.ulisboa.tecnico.hdsledger.pki.SigningUtils;
 import pt.ulisboa.tecnico.hdsledger.communication.Message.Type;
 import pt.ulisboa.tecnico.hdsledger.utilities.*;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 
 import java.net.*;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.Key;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Authenticated point to point link.
+ * Messages are authenticated with HMAC-SHA256 or, if the channel mode of
+ * the process is AES_GCM (see ProcessConfig.ChannelMode), encrypted and
+ * authenticated with AES-GCM, with the key shared with each node. Either
+ * way, what's received is authenticated before the messages in it are
+ * decoded, and both modes are understood when received.
+ * Keys are proposed (signed and encrypted with the receiver's public key)
+ * by the node with the lower id. If the process has a ticket directory
+ * (see SessionTickets), a restarted process resumes its sessions with a
+ * key derived from the one kept in its ticket (nothing to sign or verify),
+ * and proposes new keys to the nodes it has no ticket for. Either way, the
+ * other node starts a new session: message ids start over on both sides.
  */
 public class HMACLink implements Link {
 
     private static final CustomLogger LOGGER = new CustomLogger(PerfectLink.class.getName());
+    // Random bytes of a session resumption
+    private static final int RESUMPTION_NONCE_SIZE = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
     // Time to wait for an ACK before resending the message
     private final Map<Integer, ProcessConfig> nodes = new ConcurrentHashMap<>();
     // Reference to the node itself
     private final ProcessConfig config;
+    // Public identities of the nodes, by id
+    private final IdentityRegistry identities;
+    // The node itself, with its private key (resolved once, when the link
+    // is created)
+    private final PrivateIdentity identity;
     // Class to deserialize messages to
     private final Class<? extends Message> messageClass;
-    // Send messages to self by pushing to queue instead of through the network
-    private final Map<Integer, Key> sharedKeys = new ConcurrentHashMap<>();
+    // Session with each node (the key shared with it and what goes with it)
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    // Keys of the sessions, kept to resume them after a restart (null if the
+    // process has no ticket directory)
+    private final SessionTickets tickets;
     // PerfectLink reference
     private final PerfectLink perfectLink;
-    // Send messages to self by pushing to queue instead of through the network
-    private final Queue<Message> localhostQueue = new ConcurrentLinkedQueue<>();
     // Message counter
     private final AtomicInteger messageCounter = new AtomicInteger(0);
+    // Encodes the messages carried inside HMAC messages
+    private final MessageCodec codec;
+    // Packs messages to the same node into frames (null if coalescing is off)
+    private final FrameCoalescer coalescer;
+    // Messages unpacked from received HMAC messages (and sent to self),
+    // waiting to be returned. Fed by PerfectLink's reader thread and by send,
+    // so messages to self don't wait for network traffic
+    private final BlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
+    // HMAC messages received from each node, acknowledged with SACKs once
+    // authenticated
+    private final ReceiveWindow receiveWindow;
+    // Messages received in fragments, being put back together
+    private final Reassembler reassembler = new Reassembler();
+    // Whether messages are encrypted with AES-GCM instead of HMAC'd
+    private final boolean encrypt;
+
+    /*
+     * Session with a node. Its key, the ids of the messages sent in it and
+     * their retransmissions change together, under the session's lock.
+     */
+    private static class Session {
+        // Key shared with the node (null until it's set up)
+        private volatile Key key;
+        // When the key stops being resumable
+        private long expiresAt;
+        // Nonces used so far with the key (AES-GCM)
+        private long nonces = 0;
+        // Whether we started the session and the node hasn't used it yet
+        private volatile boolean pending = false;
+        // Key of the previous session, if we started this one by resuming it
+        private Key resumedFrom;
+        // Messages waiting for the key to be set up
+        private final List<Message> waiting = new ArrayList<>();
+        // Signatures of the key proposals (and proofs of the resumptions)
+        // accepted from the node, so that their retransmissions and replays
+        // aren't taken for new sessions
+        private final Set<String> accepted = new HashSet<>();
+    }
 
     public HMACLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass) {
         this(self, port, nodes, messageClass, false, 200);
@@ -53,18 +112,61 @@ public class HMACLink implements Link {
 
     public HMACLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
                     boolean activateLogs, int baseSleepTime) {
-        this.perfectLink = new PerfectLink(self, port, nodes, HMACMessage.class, activateLogs, baseSleepTime);
+        this(self, port, nodes, messageClass, activateLogs, baseSleepTime, false);
+    }
+
+    public HMACLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
+                    boolean activateLogs, int baseSleepTime, boolean useChannel) {
+        this(self, port, nodes, messageClass, activateLogs, baseSleepTime, useChannel, new JsonCodec());
+    }
+
+    public HMACLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
+                    boolean activateLogs, int baseSleepTime, boolean useChannel, MessageCodec codec) {
+        this(self, port, nodes, messageClass, activateLogs, baseSleepTime, useChannel, codec, false);
+    }
+
+    /*
+     * @param coalesce Whether to pack messages to the same node into frames
+     * (see FrameCoalescer). Frames are always understood when received.
+     */
+    public HMACLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
+                    boolean activateLogs, int baseSleepTime, boolean useChannel, MessageCodec codec,
+                    boolean coalesce) {
+        this(self, port, nodes, messageClass, activateLogs, baseSleepTime, useChannel, codec, coalesce,
+                IdentityRegistry.of(nodes));
+    }
+
+    /*
+     * @param identities Identities of (at least) the nodes, e.g. the ones the
+     * rest of the process uses
+     */
+    public HMACLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
+                    boolean activateLogs, int baseSleepTime, boolean useChannel, MessageCodec codec,
+                    boolean coalesce, IdentityRegistry identities) {
+        this.perfectLink = new PerfectLink(self, port, nodes, HMACMessage.class, activateLogs, baseSleepTime,
+                useChannel, codec, false);
+        this.codec = codec;
+        this.coalescer = coalesce ? new FrameCoalescer(this::sendFrame) : null;
         this.config = self;
         this.messageClass = messageClass;
+        this.encrypt = self.getChannelMode() == ProcessConfig.ChannelMode.AES_GCM;
+        this.identities = identities;
+        PrivateIdentity identity = identities.self(self);
+        this.identity = identity;
 
         Arrays.stream(nodes).forEach(node -> {
             int id = node.getId();
             this.nodes.put(id, node);
+            this.sessions.put(id, new Session());
         });
+        this.receiveWindow = new ReceiveWindow(this.nodes.keySet(), this::sendAck);
+        this.tickets = self.getTicketDirectory().map(directory -> SessionTickets.in(directory, identity, port))
+                .orElse(null);
 
         if (!activateLogs) {
             LogManager.getLogManager().reset();
         }
+        perfectLink.listen(this::handle);
         setupChannelKeys(self, nodes);
     }
 
@@ -91,7 +193,7 @@ public class HMACLink implements Link {
     public void send(int nodeId, Message data) {
         // Send message to local queue instead of using network if destination in self
         if (nodeId == this.config.getId()) {
-            this.localhostQueue.add(data);
+            this.inbox.add(data);
 
             // LOGGER.log(Level.INFO,
             //         MessageFormat.format("{0} - Message {1} (locally) sent (id={2}) successfully",
@@ -103,246 +205,540 @@ public class HMACLink implements Link {
         int messageId = messageCounter.getAndIncrement();
         data.setMessageId(messageId);
 
-        if (sharedKeys.get(nodeId) == null) {
-            new Thread(() -> {
-                int backoff = 10;
-                while (sharedKeys.get(nodeId) == null) {
-                    try {
-                        // LOGGER.log(Level.INFO, MessageFormat.format(
-                        //         "Failed to send message to {0}:{1} (replica={4}) with message ID {2} -" +
-                        //                 "shared key is not ready yet. Waiting {3}ms to retry.",
-                        //         nodes.get(nodeId).getHostname(), nodes.get(nodeId).getPort(),
-                        //         data.getMessageId(), backoff, nodeId));
-                        // exponential backoff
-                        Thread.sleep(backoff);
-                        backoff *= 2;
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                sendWhenKeyIsReady(nodeId, data);
-            }).start();
-        } else {
-            // LOGGER.log(Level.INFO, MessageFormat.format(
-            //         "Key is ready, sending message to {0}:{1} with message ID {2}",
-            //         nodes.get(nodeId).getHostname(), nodes.get(nodeId).getPort(), data.getMessageId()
-            // ));
-            sendWhenKeyIsReady(nodeId, data);
+        Session session = sessions.get(nodeId);
+        if (session == null) {
+            LOGGER.log(Level.WARNING,
+                    MessageFormat.format("{0} - No node {1}. Failed while sending",
+                            config.getId(), nodeId));
+            return;
+        }
+
+        // Messages to a node we don't share a key with yet are sent as soon
+        // as the key is set up (see setKey)
+        synchronized (session) {
+            if (session.key == null) {
+                session.waiting.add(data);
+                return;
+            }
         }
+        sendWhenKeyIsReady(nodeId, data);
     }
 
     private void sendWhenKeyIsReady(int nodeId, Message data) {
-        sendWhenKeyIsReady(nodeId, data, true);
+        data.setReceiver(nodeId);
+        byte[] encoded = codec.encode(data);
+        if (coalescer != null) {
+            coalescer.add(nodeId, encoded);
+            return;
+        }
+        sendAuthenticated(nodeId, encoded, false);
     }
 
-    private void sendWhenKeyIsReady(int nodeId, Message data, boolean reliable) {
-        data.setReceiver(nodeId);
-        String dataString = new Gson().toJson(data);
-        Key sharedKey = sharedKeys.get(nodeId);
-        byte[] hmac = SigningUtils.generateHMAC(dataString.getBytes(), sharedKey);
-        HMACMessage hmacMessage = new HMACMessage(data.getSenderId(), Type.HMAC, hmac, dataString);
+    private void sendFrame(int nodeId, byte[] frame) {
+        sendAuthenticated(nodeId, frame, true);
+    }
+
+    /*
+     * Sends encoded message(s) to a node in a HMAC message, which also
+     * acknowledges what was received from it
+     */
+    private void sendAuthenticated(int nodeId, byte[] encoded, boolean frame) {
+        // The ids, the key and the nonces must all be of the same session
+        synchronized (sessions.get(nodeId)) {
+            if (Reassembler.needsSplit(encoded)) {
+                sendFragments(nodeId, encoded, frame);
+                return;
+            }
+            sendAuthenticated(nodeId, encoded, frame, perfectLink.nextMessageId(nodeId), 0, 0);
+        }
+    }
+
+    /*
+     * Sends encoded message(s) too big for a datagram, each fragment in a
+     * HMAC message of its own (see Reassembler)
+     */
+    private void sendFragments(int nodeId, byte[] encoded, boolean frame) {
+        List<byte[]> fragments = Reassembler.split(encoded);
+        int firstId = perfectLink.nextMessageIds(nodeId, fragments.size());
+        for (int i = 0; i < fragments.size(); i++) {
+            sendAuthenticated(nodeId, fragments.get(i), frame, firstId + i, i, fragments.size());
+        }
+    }
+
+    private void sendAuthenticated(int nodeId, byte[] encoded, boolean frame, int messageId,
+                                   int fragmentIndex, int fragmentCount) {
+        HMACMessage hmacMessage = new HMACMessage(config.getId(), Type.HMAC, null, encoded);
+        hmacMessage.setFrame(frame);
+        hmacMessage.setFragmentIndex(fragmentIndex);
+        hmacMessage.setFragmentCount(fragmentCount);
+        hmacMessage.setReceiver(nodeId);
+        // The id must be known before computing the HMAC
+        hmacMessage.setMessageId(messageId);
+        receiveWindow.stamp(nodeId, hmacMessage);
+        protect(hmacMessage, sessions.get(nodeId));
         // LOGGER.log(Level.INFO, MessageFormat.format(
         //             "Sending message of type {0} to {1}:{2} with message ID {3} -" +
         //             "with HMAC: {4}",
         //             hmacMessage.getType(), nodes.get(nodeId).getHostname(),
         //             nodes.get(nodeId).getPort(), hmacMessage.getMessageId(),
         //             hmacMessage.getHmac()));
-        hmacMessage.setReceiver(nodeId);
-        hmacMessage.setMessageId(data.getMessageId());
-        if (reliable) {
-            perfectLink.send(nodeId, hmacMessage);
-        } else {
-            ProcessConfig node = nodes.get(nodeId);
-            try {
-                InetAddress destAddress = InetAddress.getByName(node.getHostname());
-                int destPort = node.getPort();
-                perfectLink.unreliableSend(destAddress, destPort, hmacMessage);
-            } catch (UnknownHostException e) {
-                e.printStackTrace();
-            }
+        perfectLink.send(nodeId, hmacMessage, messageId);
+    }
+
+    // Standalone ACK, when there's no message to piggyback the SACK on
+    private void sendAck(int nodeId) {
+        // ACKs are only owed to nodes we share a key with
+        HMACMessage ack = new HMACMessage(config.getId(), Type.HMAC, null, null);
+        ack.setReceiver(nodeId);
+        Session session = sessions.get(nodeId);
+        synchronized (session) {
+            receiveWindow.stamp(nodeId, ack);
+            protect(ack, session);
+        }
+        perfectLink.unreliableSend(nodeId, ack);
+    }
+
+    /*
+     * Authenticates a HMAC message with the key of the session with its
+     * receiver (and encrypts the message(s) in it, in AES-GCM mode)
+     * Must hold the lock of the session
+     */
+    private void protect(HMACMessage message, Session session) {
+        Key key = session.key;
+        if (!encrypt) {
+            message.setHmac(hmacOf(message, key));
+            return;
+        }
+
+        message.setEncrypted(true);
+        byte[] nonce = nextNonce(session);
+        byte[] plaintext = message.getMessage() == null ? new byte[0] : message.getMessage();
+        message.setMessage(ChannelCipher.seal(key, nonce, headerOf(message).toByteArray(), plaintext));
+        message.setHmac(nonce);
+    }
+
+    /*
+     * Whether a HMAC message was sent by the node that shares key with us
+     * (an encrypted message is decrypted in place)
+     */
+    private static boolean authenticate(HMACMessage message, Key key) {
+        if (!message.isEncrypted()) {
+            return MessageDigest.isEqual(message.getHmac(), hmacOf(message, key));
+        }
+
+        byte[] plaintext = ChannelCipher.open(key, message.getHmac(), headerOf(message).toByteArray(),
+                message.getMessage());
+        if (plaintext == null) {
+            return false;
         }
+        message.setMessage(plaintext.length == 0 ? null : plaintext);
+        return true;
+    }
+
+    // Id of self followed by a counter, so the two nodes sharing a key
+    // never use the same nonce (every session has a new key)
+    private byte[] nextNonce(Session session) {
+        long counter = session.nonces++;
+        return ByteBuffer.allocate(ChannelCipher.NONCE_SIZE).putInt(config.getId()).putLong(counter).array();
+    }
+
+    /*
+     * Everything the receiver of a HMAC message relies on, other than the
+     * message(s): sender and receiver (so it can't be reflected back to the
+     * sender), id, acknowledgements, mode and fragment position
+     */
+    private static BinaryWriter headerOf(HMACMessage message) {
+        return new BinaryWriter()
+                .writeSignedVarInt(message.getSenderId())
+                .writeSignedVarInt(message.getReceiver())
+                .writeSignedVarInt(message.getMessageId())
+                .writeSignedVarInt(message.getAckFloor())
+                .writeVarLong(message.getAckBitmap())
+                .writeByte((message.isFrame() ? 1 : 0) | (message.isEncrypted() ? 2 : 0))
+                .writeVarInt(message.getFragmentIndex())
+                .writeVarInt(message.getFragmentCount());
+    }
+
+    /*
+     * HMAC of the header and the message(s) of a HMAC message
+     */
+    static byte[] hmacOf(HMACMessage message, Key key) {
+        BinaryWriter w = headerOf(message).writeBytes(message.getMessage());
+        return SigningUtils.generateHMAC(w.toByteArray(), key);
+    }
+
+    /**
+     * Returns number of HMAC messages (and key proposals) sent by this link
+     * still waiting for an ACK
+     * Mostly for testing purposes
+     */
+    public int pendingAcks() {
+        return perfectLink.pendingAcks();
+    }
+
+    /**
+     * Returns the current retransmission timeout (in milliseconds) of
+     * messages to a node
+     */
+    public int retransmissionTimeout(int nodeId) {
+        return perfectLink.retransmissionTimeout(nodeId);
+    }
+
+    /**
+     * Average number of messages per frame sent by this link (0 if
+     * coalescing is off)
+     */
+    public double messagesPerFrame() {
+        return coalescer == null ? 0 : coalescer.getMessagesPerFrame();
+    }
+
+    /*
+     * Stops sending and receiving, and releases the port (e.g. to simulate
+     * a crash)
+     */
+    public void close() {
+        perfectLink.close();
     }
 
     /*
      * Receives a message from any node in the network (blocking)
      */
     public Message receive() throws IOException, ClassNotFoundException {
-        Message message;
-        while (true) {
-
-            if (!this.localhostQueue.isEmpty()) {
-                message = this.localhostQueue.poll();
-                // LOGGER.log(Level.INFO, MessageFormat.format(
-                //         "Received message of type {0} from local queue",
-                //             message.getType()));
-                break;
+        try {
+            return inbox.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /*
+     * Handles a message received by PerfectLink (in its reader thread):
+     * key proposals set up shared keys, and the messages in HMAC messages
+     * are queued to be returned
+     */
+    private void handle(Message message) {
+        if (message.getType().equals(Type.IGNORE)) {
+            return;
+        }
+
+        Session session = sessions.get(message.getSenderId());
+        if (session.key != null && message.getType().equals(Type.HMAC)) {
+            processHMACMessage((HMACMessage) message, session);
+        } else if (message.getType().equals(Type.KEY_PROPOSAL) || message.getType().equals(Type.KEY_RESUMPTION)) {
+            processKeyProposal((KeyProposal) message, session);
+        }
+    }
+
+    /*
+     * Queues the message(s) in a valid HMAC message to be returned
+     *
+     * @return the HMAC message, as an IGNORE message if it's invalid or a
+     * duplicate and as an ACK if it only carries acknowledgements
+     */
+    private Message processHMACMessage(HMACMessage message, Session session) {
+        // If we already have the key than it is probably a HMACMessage, it is unlikely that we receive a KeyProposal
+        // if it is an HMAC Message, but we do not have the key, we ignore the message as there's nothing we can do
+        // verify hmac
+        int senderId = message.getSenderId();
+        if (!authenticate(message, session.key)) {
+            // if the hmac is invalid, we ignore the message as it is not valid
+            message.setType(Message.Type.IGNORE);
+            // LOGGER.log(Level.WARNING, MessageFormat.format(
+            //         "WARNING: Invalid message HMAC received from {0}:{1}",
+            //         InetAddress.getByName(nodes.get(senderId).getHostname()),
+            //         nodes.get(senderId).getPort()));
+            return message;
+        }
+
+        if (session.pending) {
+            // The sender took the session we started
+            synchronized (session) {
+                session.pending = false;
+                session.resumedFrom = null;
             }
+        }
+
+        // What the sender received from us (piggybacked or in a standalone ACK)
+        perfectLink.acknowledge(senderId, message.getAckFloor(), message.getAckBitmap());
+        if (message.getMessage() == null) {
+            message.setType(Type.ACK);
+            return message;
+        }
 
-            message = perfectLink.receiveAndDeserializeWith(HMACMessage.class, sharedKeys.keySet());
-            if (!message.getType().equals(Message.Type.IGNORE)) {
-
-                if (sharedKeys.containsKey(message.getSenderId()) && message.getType().equals(Type.HMAC)) {
-                        message = processHMACMessage((HMACMessage) message);
-                } else if (!sharedKeys.containsKey(message.getSenderId()) && message.getType().equals(Type.KEY_PROPOSAL)) {  // if we do not have a sharedKey than the message probably is a Key Proposal
-                    // when key proposal is received, we don't yet have a message to return
-                    message = processKeyProposal(message);
-                } else {
-                    // LOGGER.log(Level.INFO, MessageFormat.format(
-                    //         "Received message of type {0} - ignoring",
-                    //             message.getType()));
-                    message.setType(Message.Type.IGNORE);
-                }
+        byte[] content = message.getMessage();
+        if (message.isFragment()) {
+            content = reassemble(message);
+            if (content == null) {
+                message.setType(Message.Type.IGNORE);
+                return message;
             }
+        }
+
+        List<byte[]> encoded = message.isFrame() ? FrameCoalescer.unpack(content) : List.of(content);
+        List<Message> innerMessages = new ArrayList<>(encoded.size());
+        for (byte[] bytes : encoded) {
+            Message innerMessage = codec.decode(bytes, messageClass);
+            innerMessage.setReceiver(message.getReceiver());
+            innerMessages.add(innerMessage);
+        }
+
+        // Retransmissions are acknowledged again, but only returned once
+        // (fragments were already registered by reassemble)
+        if (!message.isFragment() && !receiveWindow.receive(senderId, message.getMessageId())) {
+            message.setType(Message.Type.IGNORE);
+            return message;
+        }
+        // LOGGER.log(Level.INFO, MessageFormat.format(
+        //         "Received message from {0}:{1} with hmac {2}, and hmac is correct",
+        //         InetAddress.getByName(nodes.get(senderId).getHostname()),
+        //         nodes.get(senderId).getPort(), message.getHmac()));
+
+        inbox.addAll(innerMessages);
+        return message;
+    }
 
-            if (!message.getType().equals(Type.IGNORE) && !message.getType().equals(Type.ACK)) {
-                // LOGGER.log(Level.INFO, MessageFormat.format(
-                //         "Sending ACK to message of type {0} with message ID {1}",
-                //             message.getType(), message.getMessageId()));
+    /*
+     * Keeps an authenticated fragment until the rest of its message arrives
+     * Fragments are only acknowledged once kept, so the ones without room
+     * are retransmitted later
+     *
+     * @return the whole message if this was its last missing fragment,
+     * otherwise null
+     */
+    private byte[] reassemble(HMACMessage fragment) {
+        int senderId = fragment.getSenderId();
+        if (receiveWindow.contains(senderId, fragment.getMessageId())) {
+            // Retransmission (our ACK may have been lost)
+            receiveWindow.owe(senderId);
+            return null;
+        }
 
-                // If we did not set the message to IGNORE, we send an ACK
-                // this is done because sometimes we might not have the necessary key to check the hmac,
-                // so we want to ignore the message in order to force the sending node to resend the message
+        int firstId = fragment.getMessageId() - fragment.getFragmentIndex();
+        if (!reassembler.add(senderId, firstId, fragment.getFragmentIndex(), fragment.getFragmentCount(),
+                fragment.getMessage())) {
+            return null;
+        }
+        receiveWindow.receive(senderId, fragment.getMessageId());
+        return reassembler.complete(senderId, firstId);
+    }
 
-                Message responseMessage = new Message(this.config.getId(), Message.Type.ACK);
-                responseMessage.setMessageId(message.getMessageId());
-                responseMessage.setReceiver(message.getSenderId());
+    /*
+     * Sets up the key proposed by a node, or the session it resumed. If we
+     * already shared a key with it, it restarted: a new session starts, and
+     * what was sent to it in the previous one is lost with it.
+     */
+    private void processKeyProposal(KeyProposal proposal, Session session) {
+        int senderId = proposal.getSenderId();
+        boolean resumption = proposal.getType().equals(Type.KEY_RESUMPTION);
+        List<Message> waiting;
+
+        synchronized (session) {
+            if (session.accepted.contains(proposal.getSignature())) {
+                // Retransmission (our ACK may have been lost)
+                receiveWindow.owe(senderId);
+                return;
+            }
 
-                // ACK must also be sent using authenticated channel (but not perfectLink, because we don't want to ack ACKs)
-                sendWhenKeyIsReady(message.getSenderId(), responseMessage, false);
-                // perfectLink.unreliableSend(address, port, responseMessage);
+            // We both started a new session: a proposal beats a resumption
+            // (the node that proposes has no key to resume), otherwise the
+            // session of the lower id wins
+            if (session.pending && senderId > config.getId()
+                    && (resumption || session.resumedFrom == null)) {
+                return;
             }
 
-            // I don't want to return these messages
-            if (message.getType().equals(Type.KEY_PROPOSAL) ||
-                    message.getType().equals(Type.ACK) ||
-                    message.getType().equals(Type.IGNORE)) {
-                continue;
+            Key key;
+            if (resumption) {
+                Key previous = session.pending ? session.resumedFrom : session.key;
+                boolean resumable = previous != null && System.currentTimeMillis() < session.expiresAt;
+                key = resumable ? acceptResumption(proposal, previous, config) : null;
+            } else {
+                key = identities.get(senderId).map(sender -> acceptKey(proposal, identity, sender)).orElse(null);
             }
+            if (key == null) {
+                // if the key can't be decrypted or the signature (or proof) is
+                // invalid, we ignore the message as it is not valid
+                proposal.setType(Message.Type.IGNORE);
+                return;
+            }
+            session.accepted.add(proposal.getSignature());
 
-            break;
+            if (session.key != null) {
+                perfectLink.resetSession(senderId);
+                receiveWindow.reset(senderId);
+                reassembler.forget(senderId);
+            }
+            // A resumed session expires with the one it resumes
+            long expiresAt = resumption ? session.expiresAt
+                    : System.currentTimeMillis() + SessionTickets.DEFAULT_LIFETIME;
+            waiting = setKey(senderId, session, key, expiresAt);
+            session.pending = false;
+            session.resumedFrom = null;
         }
-        return message;
+
+        receiveWindow.receive(senderId, proposal.getMessageId());
+        waiting.forEach(message -> sendWhenKeyIsReady(senderId, message));
     }
 
-    private Message processHMACMessage(HMACMessage message) throws UnknownHostException {
-        // If we already have the key than it is probably a HMACMessage, it is unlikely that we receive a KeyProposal
-        // if it is an HMAC Message, but we do not have the key, we ignore the message as there's nothing we can do
-        // verify hmac
-        byte[] hmac = message.getHmac();
-        String messageString = message.getMessage();
-        Message innerMessage = new Gson().fromJson(messageString, messageClass);
-        innerMessage.setReceiver(message.getReceiver());
-        Key sharedKey = sharedKeys.get(message.getSenderId());
-
-        // If it's an ACK, I need to tell AP link that I just received a valid ACK
-        if (innerMessage.getType().equals(Type.ACK)) {
-            perfectLink.ackSingle(innerMessage.getMessageId());
-            // perfectLink.ackSingle(message.getMessageId());
+    /*
+     * Sets the key of the session with a node (and keeps it in its ticket)
+     * Must hold the lock of the session
+     *
+     * @return the messages that were waiting for it, to be sent
+     */
+    private List<Message> setKey(int nodeId, Session session, Key key, long expiresAt) {
+        session.key = key;
+        session.expiresAt = expiresAt;
+        session.nonces = 0;
+        if (tickets != null) {
+            tickets.put(nodeId, key, expiresAt);
         }
 
-        if (!Arrays.equals(hmac, SigningUtils.generateHMAC(messageString.getBytes(), sharedKey))) {
-            // if the hmac is invalid, we ignore the message as it is not valid
-            innerMessage.setType(Message.Type.IGNORE);
-            // LOGGER.log(Level.WARNING, MessageFormat.format(
-            //         "WARNING: Invalid message HMAC received from {0}:{1}",
-            //         InetAddress.getByName(nodes.get(innerMessage.getSenderId()).getHostname()),
-            //         nodes.get(innerMessage.getSenderId()).getPort()));
-            return innerMessage;
+        List<Message> waiting = new ArrayList<>(session.waiting);
+        session.waiting.clear();
+        return waiting;
+    }
+
+    /*
+     * Starts a session with a node, with a key we proposed or resumed. The
+     * key is used right away: messages that reach the node before the
+     * proposal are retransmitted until it has the key.
+     */
+    private void startSession(int nodeId, KeyProposal proposal, Key key, long expiresAt, Key resumedFrom) {
+        Session session = sessions.get(nodeId);
+        List<Message> waiting;
+
+        synchronized (session) {
+            if (session.key != null) {
+                // The node started one in the meantime
+                return;
+            }
+            perfectLink.send(nodeId, proposal);
+            waiting = setKey(nodeId, session, key, expiresAt);
+            session.pending = true;
+            session.resumedFrom = resumedFrom;
         }
-        // LOGGER.log(Level.INFO, MessageFormat.format(
-        //         "Received message from {0}:{1} of type {2} with hmac {3}, and hmac is correct",
-        //         InetAddress.getByName(nodes.get(message.getSenderId()).getHostname()),
-        //         nodes.get(innerMessage.getSenderId()).getPort(), innerMessage.getType(), hmac));
-        // LOGGER.log(Level.INFO, MessageFormat.format(
-        //         "Message inside HMAC Message is of type {0} (idInner={1}, idOuter={2})",
-                // innerMessage.getType(), innerMessage.getMessageId(), message.getMessageId()));
 
-        return innerMessage;
+        waiting.forEach(message -> sendWhenKeyIsReady(nodeId, message));
     }
 
-    private Message processKeyProposal(Message message) throws UnknownHostException {
+    private void proposeSession(ProcessConfig dest) {
         try {
-            byte[] encryptedKey = ((KeyProposal) message).getKey();
-            byte[] decryptedKey = SigningUtils.decryptWithPrivate(encryptedKey, this.config.getPrivateKey());
+            Key aesKey = SigningUtils.generateSimKey();
+            Identity destIdentity = identities.get(dest.getId())
+                    .orElseThrow(() -> new HDSSException(ErrorMessage.NoSuchNode));
+            KeyProposal keyProposal = proposeKey(this.identity, destIdentity, aesKey);
+            startSession(dest.getId(), keyProposal, aesKey,
+                    System.currentTimeMillis() + SessionTickets.DEFAULT_LIFETIME, null);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new HDSSException(ErrorMessage.GeneratingKeyError);
+        }
+    }
+
+    private void resumeSession(ProcessConfig dest, SessionTickets.Ticket ticket) {
+        byte[] nonce = new byte[RESUMPTION_NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+        Key key = resumedKey(ticket.key(), config.getId(), dest.getId(), nonce);
+
+        KeyProposal resumption = new KeyProposal(config.getId(), nonce, proofOf(key, nonce));
+        resumption.setType(Type.KEY_RESUMPTION);
+        resumption.setReceiver(dest.getId());
+        startSession(dest.getId(), resumption, key, ticket.expiresAt(), ticket.key());
+    }
+
+    /*
+     * Key proposal of a new shared key to dest (encrypted with its public
+     * key and signed by self)
+     */
+    static KeyProposal proposeKey(PrivateIdentity self, Identity dest, Key aesKey) {
+        String signature = self.sign(aesKey.getEncoded());
+
+        KeyProposal keyProposal = new KeyProposal(self.getId(), aesKey, signature, dest.getPublicKey());
+        keyProposal.setReceiver(dest.getId());
+        return keyProposal;
+    }
+
+    /*
+     * Returns the key proposed by sender to self, or null if it can't be
+     * decrypted or isn't signed by sender
+     */
+    static Key acceptKey(KeyProposal proposal, PrivateIdentity self, Identity sender) {
+        if (proposal.getKey() == null) {
+            return null;
+        }
+        try {
+            byte[] decryptedKey = self.unwrap(proposal.getKey());
             Key aesKey = new SecretKeySpec(decryptedKey, 0, decryptedKey.length, "AES");
-            String aesKeyString = Base64.getEncoder().encodeToString(aesKey.getEncoded());
             // verify signature
-            if (!SigningUtils.verifySignature(aesKeyString,
-                    ((KeyProposal) message).getSignature(),
-                    this.nodes.get(message.getSenderId()).getPublicKey())) {
-                // if the signature is invalid, we ignore the message as it is not valid
-                message.setType(Message.Type.IGNORE);
-                // LOGGER.log(Level.WARNING, MessageFormat.format(
-                //         "WARNING: Invalid message signature received from {0}:{1}",
-                //         InetAddress.getByName(nodes.get(message.getSenderId()).getHostname()),
-                //         nodes.get(message.getSenderId()).getPort()));
-                return message;
+            if (!sender.verify(aesKey.getEncoded(), proposal.getSignature())) {
+                return null;
             }
-            sharedKeys.put(message.getSenderId(), aesKey);
-            // LOGGER.log(Level.INFO, MessageFormat.format(
-            //         "Received key proposal from {0}:{1} with key {2} and signature {3}. Signature is valid and " +
-            //                 "key is stored",
-            //         InetAddress.getByName(nodes.get(message.getSenderId()).getHostname()),
-            //         nodes.get(message.getSenderId()).getPort(), aesKey, ((KeyProposal) message).getSignature()));
-
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException |
-                 NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException |
-                 BadPaddingException | InvalidAlgorithmParameterException e) {
-            // if we cannot decrypt the message, we ignore the message as it is not valid
-            // it can be either a KeyProposal or a HMACMessage
-            // if it is a KeyProposal and we cannot decrypt it, it probably is because the message is corrupted
+            return aesKey;
+        } catch (GeneralSecurityException e) {
+            // if we cannot decrypt the key, it probably is because the message is corrupted
             // or the sender is not using the correct public key to encrypt the message, so there's nothing we can do
+            return null;
+        }
+    }
 
-            // if it is a HMACMessage we cannot decrypt something that is not encrypted
-            // so an exception is thrown, and we ignore the message as we do not have the key to check the hmac
-            // LOGGER.log(Level.WARNING, MessageFormat.format(
-            //         "WARNING: Error decrypting message received from {0}:{1}",
-            //         InetAddress.getByName(nodes.get(message.getSenderId()).getHostname()),
-            //         nodes.get(message.getSenderId()).getPort()));
-            message.setType(Message.Type.IGNORE);
-            return message;
+    /*
+     * Key of a session resumed by node from (with the random nonce) from
+     * the key it shared with node to
+     */
+    static Key resumedKey(Key previous, int from, int to, byte[] nonce) {
+        byte[] derived = SigningUtils.generateHMAC(new BinaryWriter()
+                .writeString("resumption")
+                .writeSignedVarInt(from)
+                .writeSignedVarInt(to)
+                .writeBytes(nonce)
+                .toByteArray(), previous);
+        return new SecretKeySpec(derived, 0, Math.min(derived.length, previous.getEncoded().length), "AES");
+    }
+
+    // Proves that the sender of a resumption has the resumed key
+    private static String proofOf(Key key, byte[] nonce) {
+        return Base64.getEncoder().encodeToString(SigningUtils.generateHMAC(nonce, key));
+    }
+
+    /*
+     * Returns the key of the session resumed by the sender of resumption
+     * (to self) from previous, or null if it doesn't have previous
+     */
+    static Key acceptResumption(KeyProposal resumption, Key previous, ProcessConfig self) {
+        byte[] nonce = resumption.getKey();
+        if (nonce == null || nonce.length != RESUMPTION_NONCE_SIZE || resumption.getSignature() == null) {
+            return null;
         }
-        return message;
+
+        Key key = resumedKey(previous, resumption.getSenderId(), self.getId(), nonce);
+        boolean valid = MessageDigest.isEqual(proofOf(key, nonce).getBytes(),
+                resumption.getSignature().getBytes());
+        return valid ? key : null;
     }
 
+    /*
+     * Sets up the keys shared with the other nodes: sessions kept in a
+     * ticket are resumed, and new keys are proposed to the nodes with a
+     * higher id (or to every node without a ticket, if the process ran
+     * before, as they may still have sessions with it). Handshakes are
+     * independent and most of their time goes to RSA, so they run in
+     * parallel.
+     */
     public void setupChannelKeys(ProcessConfig self, ProcessConfig[] nodes) {
-        // setup shared keys between channels
-        for (ProcessConfig dest : nodes) {
-            if (dest.getId() <= self.getId()) {
-                // only send key proposal to nodes with higher id
-                continue;
+        boolean restarted = tickets != null && tickets.isRestarted();
+        Arrays.stream(nodes).parallel().forEach(dest -> {
+            if (dest.getId() == self.getId()) {
+                return;
             }
 
-            // LOGGER.log(Level.INFO, MessageFormat.format("Sending key proposal to {0}:{1}",
-            //         dest.getHostname(), dest.getPort()));
-
-            try {
-                Key aesKey = SigningUtils.generateSimKey();
-                // store key in sharedKeys
-                sharedKeys.put(dest.getId(), aesKey);
-
-                String aesKeyString = Base64.getEncoder().encodeToString(aesKey.getEncoded());
-
-                Optional<String> signature;
-                // Sign message
-                try {
-                    // serialize keyProposal
-                    signature = Optional.of(SigningUtils.sign(aesKeyString, this.config.getPrivateKey()));
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw new HDSSException(ErrorMessage.SigningError);
-                }
-
-                KeyProposal keyProposal = new KeyProposal(this.config.getId(), aesKey, signature.get(), dest.getPublicKey());
-                keyProposal.setReceiver(dest.getId());
-                // LOGGER.log(Level.INFO, MessageFormat.format(
-                //         "Sending key proposal to {0}:{1} with key: {2} and signature: {3}",
-                //         dest.getHostname(), dest.getPort(), keyProposal.getKey(), keyProposal.getSignature()));
-                perfectLink.send(dest.getId(), keyProposal, messageCounter.getAndIncrement());
-            } catch (RuntimeException e) {
-                e.printStackTrace();
-                throw new HDSSException(ErrorMessage.GeneratingKeyError);
+            Optional<SessionTickets.Ticket> ticket = tickets == null ? Optional.empty() : tickets.get(dest.getId());
+            if (ticket.isPresent()) {
+                resumeSession(dest, ticket.get());
+            } else if (dest.getId() > self.getId() || restarted) {
+                proposeSession(dest);
             }
-        }
+        });
     }
 }
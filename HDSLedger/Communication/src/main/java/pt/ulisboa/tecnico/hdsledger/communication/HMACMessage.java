@@ -6,8 +6,20 @@ public class HMACMessage extends Message implements Serializable {
     // Message hmac
     private byte[] hmac;
 
-    // String serialized message
-    private String message;
+    // Message encoded with the link codec (the HMAC is over these bytes)
+    private byte[] message;
+
+    // Whether message is encrypted with AES-GCM (then hmac is the nonce and
+    // message ends with the GCM tag)
+    private boolean encrypted = false;
+
+    // Whether message is a frame with several messages (see FrameCoalescer)
+    private boolean frame = false;
+
+    // Position of this fragment and number of fragments, when message is a
+    // piece of a bigger one (see Reassembler), otherwise 0
+    private int fragmentIndex = 0;
+    private int fragmentCount = 0;
 
     // Who sent the previous message
     private int replyTo;
@@ -16,7 +28,7 @@ public class HMACMessage extends Message implements Serializable {
     private int replyToMessageId;
 
 
-    public HMACMessage(int nodeID, Type type, byte[] hmac, String message) {
+    public HMACMessage(int nodeID, Type type, byte[] hmac, byte[] message) {
         super(nodeID, type);
         this.hmac = hmac;
         this.message = message;
@@ -26,9 +38,27 @@ public class HMACMessage extends Message implements Serializable {
 
     public void setHmac(byte[] hmac) { this.hmac = hmac; }
 
-    public String getMessage() { return message; }
+    public byte[] getMessage() { return message; }
+
+    public void setMessage(byte[] message) { this.message = message; }
+
+    public boolean isEncrypted() { return encrypted; }
+
+    public void setEncrypted(boolean encrypted) { this.encrypted = encrypted; }
+
+    public boolean isFrame() { return frame; }
+
+    public void setFrame(boolean frame) { this.frame = frame; }
+
+    public boolean isFragment() { return fragmentCount > 0; }
+
+    public int getFragmentIndex() { return fragmentIndex; }
+
+    public void setFragmentIndex(int fragmentIndex) { this.fragmentIndex = fragmentIndex; }
+
+    public int getFragmentCount() { return fragmentCount; }
 
-    public void setMessage(String message) { this.message = message; }
+    public void setFragmentCount(int fragmentCount) { this.fragmentCount = fragmentCount; }
 
     public int getReplyTo() {
         return replyTo;
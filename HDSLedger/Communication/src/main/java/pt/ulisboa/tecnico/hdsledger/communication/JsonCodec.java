@@ -0,0 +1,77 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Gson based codec (the original wire format).
+ * The datagram is parsed once into a tree, then mapped to the right class
+ * according to its type.
+ */
+public class JsonCodec implements MessageCodec {
+
+    // Byte arrays (keys, HMACs and the messages inside HMAC messages) as
+    // base64 strings instead of arrays of numbers
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(byte[].class, new Base64Adapter().nullSafe())
+            .create();
+
+    @Override
+    public byte[] encode(Message message) {
+        return GSON.toJson(message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Message decode(Datagram datagram, Class<? extends Message> targetClass) {
+        try {
+            JsonObject tree = JsonParser.parseReader(datagram.reader()).getAsJsonObject();
+            return GSON.fromJson(tree, classOf(tree, targetClass));
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+    }
+
+    private static class Base64Adapter extends TypeAdapter<byte[]> {
+        @Override
+        public void write(JsonWriter out, byte[] value) throws IOException {
+            out.value(Base64.getEncoder().encodeToString(value));
+        }
+
+        @Override
+        public byte[] read(JsonReader in) throws IOException {
+            try {
+                return Base64.getDecoder().decode(in.nextString());
+            } catch (IllegalArgumentException e) {
+                throw new JsonParseException(e);
+            }
+        }
+    }
+
+    private static Class<? extends Message> classOf(JsonObject tree, Class<? extends Message> targetClass) {
+        JsonElement type = tree.get("type");
+        if (type == null || type.isJsonNull()) {
+            return targetClass;
+        }
+
+        // Link level messages are never sent as anything else
+        return switch (type.getAsString()) {
+            case "KEY_PROPOSAL", "KEY_RESUMPTION" -> KeyProposal.class;
+            case "HMAC" -> HMACMessage.class;
+            default -> targetClass;
+        };
+    }
+}
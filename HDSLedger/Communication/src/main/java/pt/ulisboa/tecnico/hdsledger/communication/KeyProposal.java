@@ -7,12 +7,11 @@ import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import java.io.IOException;
 import java.io.Serializable;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
+import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 
 public class KeyProposal extends Message implements Serializable {
@@ -27,12 +26,21 @@ public class KeyProposal extends Message implements Serializable {
     // Id of the previous message
     private int replyToMessageId;
 
-    public KeyProposal(int nodeID, Key key, String signature, String receiverPublicKey) {
+    public KeyProposal(int nodeID, Key key, String signature, PublicKey receiverPublicKey) {
         super(nodeID, Type.KEY_PROPOSAL);
         this.key = encrypt(key, receiverPublicKey);
         this.signature = signature;
     }
 
+    /*
+     * Key proposal whose key is already encrypted (e.g. when decoding one)
+     */
+    public KeyProposal(int nodeID, byte[] encryptedKey, String signature) {
+        super(nodeID, Type.KEY_PROPOSAL);
+        this.key = encryptedKey;
+        this.signature = signature;
+    }
+
     public byte[] getKey() { return key; }
 
     public void setKey(byte[] key) { this.key = key; }
@@ -58,14 +66,14 @@ public class KeyProposal extends Message implements Serializable {
 
     public void setSignature(String signature) { this.signature = signature; }
 
-    private byte[] encrypt(Key key, String publicKey) {
+    private byte[] encrypt(Key key, PublicKey publicKey) {
         // encrypt message with receiver's public key
         byte[] encryptedData;
         try {
             encryptedData = SigningUtils.encryptWithPublic(key, publicKey);
             return encryptedData;
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException | NoSuchPaddingException |
-                 InvalidKeyException | IllegalBlockSizeException | BadPaddingException | NoSuchProviderException e) {
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException |
+                 InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
             e.printStackTrace();
             throw new HDSSException(ErrorMessage.EncryptionError);
         }
@@ -16,9 +16,15 @@ public class Message implements Serializable {
     // Message type
     private Type type;
 
+    // Acknowledgements of the messages received from the receiver (see
+    // ReceiveWindow): every message up to ackFloor, plus the ones in ackBitmap
+    private int ackFloor = -1;
+    private long ackBitmap = 0;
+
     public enum Type {
         APPEND_REQUEST, APPEND_REPLY, PRE_PREPARE, PREPARE, COMMIT, ROUND_CHANGE, ACK, IGNORE, KEY_PROPOSAL, HMAC,
-        TRANSFER_REQUEST, TRANSFER_REPLY, BALANCE_REQUEST, BALANCE_REPLY
+        TRANSFER_REQUEST, TRANSFER_REPLY, BALANCE_REQUEST, BALANCE_REPLY, KEY_RESUMPTION, TRANSFER_BUNDLE,
+        VALUE_REQUEST, VALUE_REPLY
     }
 
     public Message(int senderId, Type type) {
@@ -57,4 +63,20 @@ public class Message implements Serializable {
     public void setType(Type type) {
         this.type = type;
     }
+
+    public int getAckFloor() {
+        return ackFloor;
+    }
+
+    public void setAckFloor(int ackFloor) {
+        this.ackFloor = ackFloor;
+    }
+
+    public long getAckBitmap() {
+        return ackBitmap;
+    }
+
+    public void setAckBitmap(long ackBitmap) {
+        this.ackBitmap = ackBitmap;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns messages into bytes to be sent through the network and back.
+ */
+public interface MessageCodec {
+
+    /*
+     * Codec chosen in the config of the process (see ProcessConfig.getCodec)
+     */
+    static MessageCodec of(ProcessConfig config) {
+        return config.getCodec() == ProcessConfig.Codec.JSON ? new JsonCodec() : new BinaryCodec();
+    }
+
+    byte[] encode(Message message);
+
+    /*
+     * Decodes a message
+     * The message is decoded as targetClass, unless it was sent as a class
+     * that doesn't extend it (e.g. KeyProposal in a HMACMessage link), in
+     * which case it's decoded as the class it was sent as.
+     */
+    Message decode(Datagram datagram, Class<? extends Message> targetClass);
+
+    default Message decode(byte[] data, Class<? extends Message> targetClass) {
+        return decode(new Datagram(ByteBuffer.wrap(data), (InetSocketAddress) null), targetClass);
+    }
+}
@@ -9,6 +9,7 @@ import pt.ulisboa.tecnico.hdsledger.communication.consensus.builder.ConsensusMes
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.AppendMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.AppendRequest;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferBundle;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferRequest;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferReply;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.BalanceRequest;
@@ -19,24 +20,28 @@ import java.util.Optional;
 
 public class MessageCreator {
 
-    public static ConsensusMessage createPrepareMessage(int id, String value, int instance, int round, int receiver) {
-        PrepareMessage prepareMessage = new PrepareMessage(value);
+    /*
+     * PREPAREs, COMMITs and ROUND-CHANGEs take the digest of the value (see
+     * PrePrepareMessage.digestOf)
+     */
+    public static ConsensusMessage createPrepareMessage(int id, String digest, int instance, int round, int receiver) {
+        PrepareMessage prepareMessage = new PrepareMessage(digest);
 
         return new ConsensusMessageBuilder(id, Message.Type.PREPARE)
                 .setConsensusInstance(instance)
                 .setRound(round)
-                .setMessage(prepareMessage.toJson())
+                .setMessage(prepareMessage)
                 .setReceiver(receiver)
                 .build();
     }
 
-    public static ConsensusMessage createCommitMessage(int id, String value, int instance, int round, int receiver) {
-        CommitMessage commitMessage = new CommitMessage(value);
+    public static ConsensusMessage createCommitMessage(int id, String digest, int instance, int round, int receiver) {
+        CommitMessage commitMessage = new CommitMessage(digest);
 
         return new ConsensusMessageBuilder(id, Message.Type.COMMIT)
                 .setConsensusInstance(instance)
                 .setRound(round)
-                .setMessage(commitMessage.toJson())
+                .setMessage(commitMessage)
                 .setReceiver(receiver)
                 .build();
     }
@@ -47,7 +52,7 @@ public class MessageCreator {
         return new ConsensusMessageBuilder(id, Message.Type.ROUND_CHANGE)
                 .setConsensusInstance(instance)
                 .setRound(round)
-                .setMessage(roundChangeMessage.toJson())
+                .setMessage(roundChangeMessage)
                 .setReceiver(receiver)
                 .build();
     }
@@ -59,17 +64,30 @@ public class MessageCreator {
         TransferRequest transferRequest = new TransferRequest(source, destination, amount);
 
         LedgerMessage ledgerMessage = new LedgerMessage(source, Message.Type.TRANSFER_REQUEST);
-        ledgerMessage.setMessage(new Gson().toJson(transferRequest));
+        ledgerMessage.setMessage(transferRequest);
         ledgerMessage.setSequenceNumber(requestId);
         ledgerMessage.signSelf(String.format("/tmp/priv_%d.key", source));
 
         return ledgerMessage;
     }
 
+    /*
+     * Bundle of transfers signed once, the transfer at index i gets sequence
+     * number firstRequestId + i
+     */
+    public static LedgerMessage createTransferBundle(int firstRequestId, int source, List<TransferRequest> transfers) {
+        LedgerMessage ledgerMessage = new LedgerMessage(source, Message.Type.TRANSFER_BUNDLE);
+        ledgerMessage.setMessage(new TransferBundle(transfers));
+        ledgerMessage.setSequenceNumber(firstRequestId);
+        ledgerMessage.signSelf(String.format("/tmp/priv_%d.key", source));
+
+        return ledgerMessage;
+    }
+
     public static LedgerMessage createTransferReply(int source ,int seq, Optional<Integer> slotId) {
         TransferReply transferReply = new TransferReply(seq, slotId);
         LedgerMessage ledgerMessage = new LedgerMessage(source, Message.Type.TRANSFER_REPLY);
-        ledgerMessage.setMessage(new Gson().toJson(transferReply));
+        ledgerMessage.setMessage(transferReply);
         return ledgerMessage;
     }
     
@@ -78,7 +96,7 @@ public class MessageCreator {
         BalanceRequest balanceRequest = new BalanceRequest(source);
 
         LedgerMessage ledgerMessage = new LedgerMessage(source, Message.Type.BALANCE_REQUEST);
-        ledgerMessage.setMessage(new Gson().toJson(balanceRequest));
+        ledgerMessage.setMessage(balanceRequest);
         ledgerMessage.setSequenceNumber(requestId);
         ledgerMessage.signSelf(String.format("/tmp/priv_%d.key", source));
 
@@ -88,7 +106,7 @@ public class MessageCreator {
     public static LedgerMessage createBalanceReply(int source ,int seq, Optional<Integer> balance) {
         BalanceReply transferReply = new BalanceReply(balance, seq);
         LedgerMessage ledgerMessage = new LedgerMessage(source, Message.Type.BALANCE_REPLY);
-        ledgerMessage.setMessage(new Gson().toJson(transferReply));
+        ledgerMessage.setMessage(transferReply);
         return ledgerMessage;
     }
     
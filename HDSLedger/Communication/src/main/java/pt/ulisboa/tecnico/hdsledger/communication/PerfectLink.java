@@ -2,18 +2,18 @@ package pt.ulisboa.tecnico.hdsledger.communication;
 
 import com.google.gson.Gson;
 
-import pt.ulisboa.tecnico.hdsledger.communication.ledger.AppendMessage;
-import pt.ulisboa.tecnico.hdsledger.communication.Message.Type;
-import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
 import pt.ulisboa.tecnico.hdsledger.utilities.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.*;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 
@@ -23,24 +23,42 @@ import java.util.logging.LogManager;
 public class PerfectLink implements Link {
 
     private static final CustomLogger LOGGER = new CustomLogger(PerfectLink.class.getName());
-    // Time to wait for an ACK before resending the message
-    private final int BASE_SLEEP_TIME;
-    // UDP Socket
-    private final DatagramSocket socket;
+    // Gson instances are thread-safe and expensive to create
+    private static final Gson GSON = new Gson();
+    // UDP transport (socket or channel based)
+    private final DatagramTransport transport;
+    // Wire format of messages
+    private final MessageCodec codec;
     // Map of all nodes in the network
     private final Map<Integer, ProcessConfig> nodes = new ConcurrentHashMap<>();
+    // Addresses of all nodes in the network (resolved once)
+    private final Map<Integer, InetSocketAddress> addresses = new ConcurrentHashMap<>();
     // Reference to the node itself
     private final ProcessConfig config;
     // Class to deserialize messages to
     private final Class<? extends Message> messageClass;
-    // Set of received messages from specific node (prevent duplicates)
-    private final Map<Integer, CollapsingSet> receivedMessages = new ConcurrentHashMap<>();
-    // Set of received ACKs from specific node
+    // Messages received from each node, acknowledged with SACKs (null if the
+    // link above acknowledges them instead, as HMACLink does once they're
+    // authenticated)
+    private final ReceiveWindow receiveWindow;
+    // ACKs registered without destination (see ackAll)
     private final CollapsingSet receivedAcks = new CollapsingSet();
-    // Message counter
-    private final AtomicInteger messageCounter = new AtomicInteger(0);
-    // Send messages to self by pushing to queue instead of through the network
-    private final Queue<Message> localhostQueue = new ConcurrentLinkedQueue<>();
+    // Next message id for each node (ids are sequential per destination, so
+    // that SACKs can acknowledge them cumulatively)
+    private final Map<Integer, AtomicInteger> messageCounters = new ConcurrentHashMap<>();
+    // Messages received (and sent to self), waiting to be returned. Fed by
+    // the reader thread and by send, so messages to self don't wait for
+    // network traffic
+    private final BlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
+    // Where received messages go (the inbox, unless the link above handles
+    // them itself, as HMACLink does)
+    private volatile Consumer<Message> handler = inbox::add;
+    // Messages waiting for ACK (retransmitted by a shared timer)
+    private final RetransmissionScheduler retransmissions;
+    // Whether close was called
+    private volatile boolean closed = false;
+    // Thread reading from the network (null until listen)
+    private Thread reader;
 
     public PerfectLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass) {
         this(self, port, nodes, messageClass, false, 200);
@@ -48,31 +66,132 @@ public class PerfectLink implements Link {
 
     public PerfectLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
             boolean activateLogs, int baseSleepTime) {
+        this(self, port, nodes, messageClass, activateLogs, baseSleepTime, false);
+    }
+
+    /*
+     * @param useChannel Whether to use the NIO DatagramChannel transport
+     * (pooled buffers) instead of the DatagramSocket one
+     */
+    public PerfectLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
+            boolean activateLogs, int baseSleepTime, boolean useChannel) {
+        this(self, port, nodes, messageClass, activateLogs, baseSleepTime, useChannel, new JsonCodec());
+    }
+
+    /*
+     * @param codec Wire format used to send messages (received messages can
+     * be in any format the codec understands)
+     */
+    public PerfectLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
+            boolean activateLogs, int baseSleepTime, boolean useChannel, MessageCodec codec) {
+        this(self, port, nodes, messageClass, activateLogs, baseSleepTime, useChannel, codec, true);
+    }
+
+    /*
+     * @param listen Whether to start reading from the network right away
+     * (otherwise, see listen)
+     */
+    PerfectLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
+            boolean activateLogs, int baseSleepTime, boolean useChannel, MessageCodec codec, boolean listen) {
 
         this.config = self;
+        this.codec = codec;
         this.messageClass = messageClass;
-        this.BASE_SLEEP_TIME = baseSleepTime;
+        // Time to wait for an ACK before resending a message, until the RTT
+        // to the destination is known
+        this.retransmissions = new RetransmissionScheduler(receivedAcks::contains, baseSleepTime);
 
         Arrays.stream(nodes).forEach(node -> {
             int id = node.getId();
             this.nodes.put(id, node);
-            receivedMessages.put(id, new CollapsingSet());
+            messageCounters.put(id, new AtomicInteger(0));
+            addresses.put(id, new InetSocketAddress(node.getHostname(), node.getPort()));
         });
 
         try {
-            this.socket = new DatagramSocket(port, InetAddress.getByName(config.getHostname()));
-        } catch (UnknownHostException | SocketException e) {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(config.getHostname()), port);
+            this.transport = useChannel ? new ChannelTransport(address) : new SocketTransport(address);
+        } catch (IOException e) {
             throw new HDSSException(ErrorMessage.CannotOpenSocket);
         }
+        this.receiveWindow = messageClass.equals(HMACMessage.class) ? null
+                : new ReceiveWindow(this.nodes.keySet(), this::sendAck);
         if (!activateLogs) {
             LogManager.getLogManager().reset();
         }
+        if (listen) {
+            listen(inbox::add);
+        }
+    }
+
+    /*
+     * Starts the thread that reads messages from the network and hands them
+     * to handler (once their ACKs and duplicates are handled). Messages sent
+     * to self are handed to it too.
+     */
+    void listen(Consumer<Message> handler) {
+        this.handler = handler;
+        this.reader = new Thread(this::read, "link-reader-" + config.getId());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Standalone ACK, when there's no message to piggyback the SACK on
+    private void sendAck(int nodeId) {
+        Message ack = new Message(config.getId(), Message.Type.ACK);
+        ack.setReceiver(nodeId);
+        receiveWindow.stamp(nodeId, ack);
+        unreliableSend(nodeId, ack);
     }
 
     public void ackSingle(Integer messageId) {
         receivedAcks.add(messageId);
     }
 
+    /*
+     * Registers a SACK from senderId (see ReceiveWindow)
+     */
+    public void acknowledge(int senderId, int floor, long bitmap) {
+        retransmissions.acknowledge(senderId, floor, bitmap);
+    }
+
+    /*
+     * Returns the id to give to the next message sent to nodeId
+     */
+    public int nextMessageId(int nodeId) {
+        return nextMessageIds(nodeId, 1);
+    }
+
+    /*
+     * Reserves count consecutive ids for messages to nodeId
+     *
+     * @return the first of them
+     */
+    public int nextMessageIds(int nodeId, int count) {
+        AtomicInteger counter = messageCounters.get(nodeId);
+        if (counter == null) {
+            throw new HDSSException(ErrorMessage.NoSuchNode);
+        }
+        return counter.getAndAdd(count);
+    }
+
+    /*
+     * Starts a new session with nodeId: ids of messages to it start over and
+     * the messages of the previous session are no longer retransmitted
+     * (used when nodeId restarted)
+     */
+    public void resetSession(int nodeId) {
+        AtomicInteger counter = messageCounters.get(nodeId);
+        if (counter == null) {
+            throw new HDSSException(ErrorMessage.NoSuchNode);
+        }
+        retransmissions.cancel(nodeId);
+        counter.set(0);
+        if (receiveWindow != null) {
+            receiveWindow.reset(nodeId);
+        }
+    }
+
     public void ackAll(List<Integer> messageIds) {
         receivedAcks.addAll(messageIds);
     }
@@ -83,8 +202,7 @@ public class PerfectLink implements Link {
      * @param data The message to be broadcast
      */
     public void broadcast(Message data) {
-        Gson gson = new Gson();
-        nodes.forEach((destId, dest) -> send(destId, gson.fromJson(gson.toJson(data), data.getClass())));
+        nodes.forEach((destId, dest) -> send(destId, GSON.fromJson(GSON.toJson(data), data.getClass())));
     }
 
     /*
@@ -95,72 +213,48 @@ public class PerfectLink implements Link {
      * @param data The message to be sent
      */
     public void send(int nodeId, Message data) {
-        int messageId = messageCounter.getAndIncrement();
-        send(nodeId, data, messageId);
+        if (!nodes.containsKey(nodeId)) {
+            LOGGER.log(Level.WARNING,
+                    MessageFormat.format("{0} - No node {1}. Failed while sending",
+                            config.getId(), nodeId));
+            return;
+        }
+        send(nodeId, data, nextMessageId(nodeId));
     }
 
     public void send(int nodeId, Message data, int messageId) {
+        if (closed) {
+            return;
+        }
+        ProcessConfig node = nodes.get(nodeId);
+        if (node == null) {
+            LOGGER.log(Level.WARNING,
+                    MessageFormat.format("{0} - No node {1}. Failed while sending",
+                            config.getId(), nodeId));
+            return;
+        }
 
-        // Spawn a new thread to send the message
-        // To avoid blocking while waiting for ACK
-        new Thread(() -> {
-            try {
-                ProcessConfig node = nodes.get(nodeId);
-                if (node == null) {
-                    // LOGGER.log(Level.WARNING,
-                    //         MessageFormat.format("{0} - No node {1}. Failed while sending",
-                    //                 config.getId(), nodeId));
-                    //
-                    throw new HDSSException(ErrorMessage.NoSuchNode);
-                }
-
-                // FIXME (dsa): fixme
-                data.setMessageId(messageId);
-
-                // If the message is not ACK, it will be resent
-                InetAddress destAddress = InetAddress.getByName(node.getHostname());
-                int destPort = node.getPort();
-                int count = 1;
-                int sleepTime = BASE_SLEEP_TIME;
-
-                // Send message to local queue instead of using network if destination in self
-                if (nodeId == this.config.getId()) {
-                    this.localhostQueue.add(data);
-
-                    // LOGGER.log(Level.INFO,
-                    //         MessageFormat.format("{0} - Message {1} (locally) sent to {2}:{3} (id={4}) successfully",
-                    //                 config.getId(), data.getType(), destAddress, destPort, nodeId));
-
-                    return;
-                }
-
-                for (;;) {
-                    // LOGGER.log(Level.INFO, MessageFormat.format(
-                    //         "{0} - Sending {1} message to {2}:{3} with message ID {4} (id={6}) - Attempt #{5}", config.getId(),
-                    //         data.getType(), destAddress, destPort, messageId, count++, nodeId));
-
-                    unreliableSend(destAddress, destPort, data);
+        // FIXME (dsa): fixme
+        data.setMessageId(messageId);
 
-                    // Wait (using exponential back-off), then look for ACK
-                    Thread.sleep(sleepTime);
+        // Send message to local queue instead of using network if destination in self
+        if (nodeId == this.config.getId()) {
+            this.handler.accept(data);
 
-                    // Receive method will set receivedAcks when sees corresponding ACK
-                    if (receivedAcks.contains(messageId))
-                        break;
+            // LOGGER.log(Level.INFO,
+            //         MessageFormat.format("{0} - Message {1} (locally) sent to {2}:{3} (id={4}) successfully",
+            //                 config.getId(), data.getType(), destAddress, destPort, nodeId));
 
-                    // LOGGER.log(Level.INFO, MessageFormat.format(
-                    //         "{0} - Didnt reply to message from {1} to {2}:{3} with message ID {4} (id={6}) - Attempt #{5}", config.getId(),
-                    //         data.getType(), destAddress, destPort, messageId, count++, nodeId));
+            return;
+        }
 
-                    sleepTime <<= 1;
-                }
+        // The message is serialized once (by the first transmission) and the
+        // same bytes are used in every retransmission
+        OutgoingPacket packet = new OutgoingPacket(nodeId, messageId, data);
 
-                // LOGGER.log(Level.INFO, MessageFormat.format("{0} - Message {1} sent to {2}:{3} (id={4}) successfully",
-                //         config.getId(), data.getType(), destAddress, destPort, nodeId));
-            } catch (InterruptedException | UnknownHostException e) {
-                e.printStackTrace();
-            }
-        }).start();
+        // If the message is not ACK, it will be resent (using exponential
+        // back-off) until the receive method sees the corresponding ACK
+        retransmissions.schedule(nodeId, messageId, packet::transmit);
     }
 
     /*
@@ -175,137 +269,177 @@ public class PerfectLink implements Link {
      * @param data The message to be sent
      */
     public void unreliableSend(InetAddress hostname, int port, Message data) {
-        new Thread(() -> {
-            try {
-                String serialized = new Gson().toJson(data);
-                byte[] buf = serialized.getBytes();
-
-                DatagramPacket packet = new DatagramPacket(buf, buf.length, hostname, port);
-                socket.send(packet);
-            } catch (IOException e) {
-                e.printStackTrace();
-                throw new HDSSException(ErrorMessage.SocketSendingError);
-            }
-
-        }).start();
+        unreliableSend(new InetSocketAddress(hostname, port), data);
+    }
 
+    public void unreliableSend(int nodeId, Message data) {
+        InetSocketAddress address = addresses.get(nodeId);
+        if (address == null) {
+            throw new HDSSException(ErrorMessage.NoSuchNode);
+        }
+        unreliableSend(address, data);
     }
 
-    public <T extends Message> Message receiveAndDeserializeWith(Class<T> targetClass, Set<Integer> disallowDuplicates) throws IOException {
+    public void unreliableSend(InetSocketAddress address, Message data) {
+        retransmissions.execute(() -> sendBytes(address, codec.encode(data)));
+    }
 
-        Message message;
-        String serialized = "";
-        boolean local = false;
-        DatagramPacket response = null;
+    private void sendBytes(InetSocketAddress address, byte[] buf) {
+        try {
+            transport.send(address, buf);
+        } catch (IOException e) {
+            // Running in the sender pool: there's no caller to propagate to,
+            // retransmissions will take care of it
+            LOGGER.log(Level.WARNING, MessageFormat.format("{0} - {1}",
+                    config.getId(), ErrorMessage.SocketSendingError.getMessage()));
+        }
+    }
 
-        if (!this.localhostQueue.isEmpty()) {
-            message = this.localhostQueue.poll();
-            local = true;
-            this.receivedAcks.add(message.getMessageId());
-        } else {
-            byte[] buf = new byte[65535];
-            response = new DatagramPacket(buf, buf.length);
+    /**
+     * Returns number of messages sent by this link still waiting for an ACK
+     * Mostly for testing purposes
+     */
+    public int pendingAcks() {
+        return retransmissions.pendingCount();
+    }
 
-            socket.receive(response);
+    /**
+     * Returns the current retransmission timeout (in milliseconds) of
+     * messages to a node, adapted to the RTT measured to it
+     */
+    public int retransmissionTimeout(int nodeId) {
+        return retransmissions.getRto(nodeId);
+    }
 
-            byte[] buffer = Arrays.copyOfRange(response.getData(), 0, response.getLength());
-            serialized = new String(buffer);
-            message = new Gson().fromJson(serialized, targetClass);
+    /**
+     * Message to be (re)transmitted to a node
+     */
+    private class OutgoingPacket {
+        private final int nodeId;
+        private final int messageId;
+        private final Message data;
+        private byte[] buf;
+
+        OutgoingPacket(int nodeId, int messageId, Message data) {
+            this.nodeId = nodeId;
+            this.messageId = messageId;
+            this.data = data;
         }
 
-        int senderId = message.getSenderId();
-        int messageId = message.getMessageId();
+        // Only called from the sender pool
+        synchronized void transmit() {
+            if (buf == null) {
+                // The same message object may be being sent to other nodes
+                synchronized (data) {
+                    data.setMessageId(messageId);
+                    if (receiveWindow != null) {
+                        receiveWindow.stamp(nodeId, data);
+                    }
+                    buf = codec.encode(data);
+                }
+            }
 
-        if (!nodes.containsKey(senderId))
-            throw new HDSSException(ErrorMessage.NoSuchNode);
+            // LOGGER.log(Level.INFO, MessageFormat.format(
+            //         "{0} - Sending {1} message to {2} with message ID {3}", config.getId(),
+            //         data.getType(), address, data.getMessageId()));
 
-        // Handle ACKS, since it's possible to receive multiple acks from the same
-        // message
-        if (message.getType().equals(Message.Type.ACK)) {
-            receivedAcks.add(messageId);
-            return message;
+            sendBytes(addresses.get(nodeId), buf);
         }
+    }
 
-        // It's not an ACK -> Deserialize for the correct type
-        if (!local)
-            message = new Gson().fromJson(serialized, targetClass);
+    // Reader thread: runs until the link is closed
+    private void read() {
+        while (!closed) {
+            Datagram datagram;
+            try {
+                datagram = transport.receive();
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                LOGGER.log(Level.WARNING, MessageFormat.format("{0} - Error while receiving message: {1}",
+                        config.getId(), e.getMessage()));
+                continue;
+            }
 
-        Type originalType = message.getType();
-        if (disallowDuplicates.contains(senderId)) {
-            boolean isRepeated = !receivedMessages.get(message.getSenderId()).add(messageId);
-            // Message already received (add returns false if already exists) => Discard
-            if (isRepeated && !targetClass.equals(HMACMessage.class)){
-                message.setType(Message.Type.IGNORE);
+            // The datagram's buffer is given back to the transport once the
+            // message is handled
+            try {
+                handler.accept(handleReceived(codec.decode(datagram, messageClass)));
+            } catch (HDSSException e) {
+                // Malformed, or from an unknown node
+                LOGGER.log(Level.WARNING, MessageFormat.format("{0} - Dropped message: {1}",
+                        config.getId(), e.getMessage()));
+            } catch (RuntimeException e) {
+                // Anything else the handler fails on (e.g. a key proposal
+                // without a key) only loses that datagram, the reader
+                // carries on
+                LOGGER.log(Level.WARNING, MessageFormat.format("{0} - Dropped message that failed to be handled: {1}",
+                        config.getId(), e));
+            } finally {
+                datagram.release();
             }
         }
+    }
 
-        switch (message.getType()) {
-            case APPEND_REQUEST, APPEND_REPLY -> {
-                AppendMessage request = (AppendMessage) message;
-                //TODO (cfc)
-                if (request.getReplyTo() == config.getId())
-                    receivedAcks.add(request.getReplyToMessageId());
-                return message;
-            }
-            case PRE_PREPARE -> {
-                return message;
-            }
-            case IGNORE -> {
-                if (!originalType.equals(Type.COMMIT))
-                    return message;
-            }
-            case PREPARE -> {
-                ConsensusMessage consensusMessage = (ConsensusMessage) message;
-                if (consensusMessage.getReplyTo() == config.getId())
-                    receivedAcks.add(consensusMessage.getReplyToMessageId());
+    /*
+     * Handles ACKs and duplicates of a message received from the network
+     */
+    private Message handleReceived(Message message) {
+        int senderId = message.getSenderId();
 
-                return message;
-            }
-            case COMMIT -> {
-                ConsensusMessage consensusMessage = (ConsensusMessage) message;
-                if (consensusMessage.getReplyTo() == config.getId())
-                    receivedAcks.add(consensusMessage.getReplyToMessageId());
-                return consensusMessage;
-            }
-            case KEY_PROPOSAL -> {
-                LOGGER.log(Level.INFO, "Received Key Proposal");
-                KeyProposal keyProposalMessage = new Gson().fromJson(serialized, KeyProposal.class);
-                if (keyProposalMessage.getReplyTo() == config.getId())
-                    receivedAcks.add(keyProposalMessage.getReplyToMessageId());
-                return keyProposalMessage;
-            }
+        if (!nodes.containsKey(senderId))
+            throw new HDSSException(ErrorMessage.NoSuchNode);
 
-            case HMAC -> {
-                // LOGGER.log(Level.INFO, "Received HMAC");
-                HMACMessage hmacMessage = new Gson().fromJson(serialized, HMACMessage.class);
-                if (hmacMessage.getReplyTo() == config.getId())
-                    receivedAcks.add(hmacMessage.getReplyToMessageId());
-                return hmacMessage;
-            }
-            default -> {}
+        // Messages to HMACLink are only acknowledged once authenticated
+        if (receiveWindow == null) {
+            return message;
         }
 
-        if (!local && !targetClass.equals(HMACMessage.class)) {
-            InetAddress address = InetAddress.getByName(response.getAddress().getHostAddress());
-            int port = response.getPort();
-
-            Message responseMessage = new Message(this.config.getId(), Message.Type.ACK);
-            responseMessage.setMessageId(messageId);
-            responseMessage.setReceiver(senderId);
+        // Every message acknowledges what the sender received from us
+        retransmissions.acknowledge(senderId, message.getAckFloor(), message.getAckBitmap());
+        if (message.getType().equals(Message.Type.ACK)) {
+            return message;
+        }
 
-            // ACK is sent without needing for another ACK because
-            // we're assuming an eventually synchronous network
-            // Even if a node receives the message multiple times,
-            // it will discard duplicates
-            unreliableSend(address, port, responseMessage);
+        // Duplicates are acknowledged again (the previous ACK may have been
+        // lost), but not delivered
+        boolean isRepeated = !receiveWindow.receive(senderId, message.getMessageId());
+        if (isRepeated) {
+            message.setType(Message.Type.IGNORE);
         }
         return message;
     }
 
+    /*
+     * Stops sending and receiving, and releases the port (e.g. to simulate
+     * a crash). Messages still waiting for an ACK are dropped.
+     */
+    public void close() {
+        closed = true;
+        nodes.keySet().forEach(retransmissions::cancel);
+        try {
+            transport.close();
+            // The socket is only released once the reader leaves it
+            if (reader != null && reader != Thread.currentThread()) {
+                reader.join();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /*
      * Receives a message from any node in the network (blocking)
      */
     public Message receive() throws IOException {
-        return receiveAndDeserializeWith(messageClass, nodes.keySet());
+        try {
+            return inbox.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
     }
 }
@@ -0,0 +1,213 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits (encoded) messages too big for one datagram into fragments, and
+ * puts them back together on the receiving side.
+ * Every fragment travels in a HMAC message of its own (own id, HMAC and
+ * ACK), so only the fragments that were lost are retransmitted. The
+ * fragments of a message have consecutive ids, and the id of the first one
+ * identifies the message.
+ * When the first fragment of a message arrives, room for the whole message
+ * (count * FRAGMENT_SIZE) is reserved, up to a maximum per sender. Fragments
+ * of new messages that don't fit are dropped without being acknowledged, so
+ * the sender retransmits them later. Messages that don't get any fragment
+ * for a while (the sender crashed) are discarded.
+ * Thread-safe.
+ */
+public class Reassembler {
+
+    // Bytes of a message per fragment: well below the datagram limit even
+    // after JSON's base64, while messages that always fit in a datagram
+    // aren't split
+    public static final int FRAGMENT_SIZE = 16 * 1024;
+
+    // Bytes reserved for the messages being reassembled from each node
+    // (also the biggest message that can be sent)
+    public static final int DEFAULT_MAX_BUFFERED = 16 * 1024 * 1024;
+
+    // Milliseconds without fragments before a message is discarded (several
+    // times the maximum retransmission timeout)
+    public static final int DEFAULT_TIMEOUT = 10000;
+
+    private final long maxBuffered;
+    private final long timeout;
+    // sender -> id of the first fragment -> message being reassembled
+    private final Map<Integer, Map<Integer, Partial>> partials = new HashMap<>();
+    // sender -> bytes reserved for its messages
+    private final Map<Integer, Long> reserved = new HashMap<>();
+
+    public Reassembler() {
+        this(DEFAULT_MAX_BUFFERED, DEFAULT_TIMEOUT);
+    }
+
+    public Reassembler(long maxBuffered, int timeout) {
+        this.maxBuffered = maxBuffered;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Whether a message has to be split to be sent
+     */
+    public static boolean needsSplit(byte[] message) {
+        return message.length > FRAGMENT_SIZE;
+    }
+
+    /**
+     * Splits a message into fragments of FRAGMENT_SIZE bytes (the last one
+     * may be smaller)
+     */
+    public static List<byte[]> split(byte[] message) {
+        if (message.length > DEFAULT_MAX_BUFFERED) {
+            throw new HDSSException(ErrorMessage.MessageTooLarge);
+        }
+
+        List<byte[]> fragments = new ArrayList<>();
+        for (int from = 0; from < message.length; from += FRAGMENT_SIZE) {
+            int to = Math.min(message.length, from + FRAGMENT_SIZE);
+            byte[] fragment = new byte[to - from];
+            System.arraycopy(message, from, fragment, 0, fragment.length);
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+
+    /**
+     * Keeps a fragment of a message from senderId (fragments received
+     * again are kept once)
+     *
+     * @param firstId id of the first fragment of the message
+     * @return whether the fragment was kept (false if it's malformed, or
+     * there's no room to start a new message)
+     */
+    public synchronized boolean add(int senderId, int firstId, int index, int count, byte[] fragment) {
+        if (count < 1 || index < 0 || index >= count || fragment == null || fragment.length > FRAGMENT_SIZE) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        expire(now);
+
+        Map<Integer, Partial> fromSender = partials.computeIfAbsent(senderId, id -> new HashMap<>());
+        Partial partial = fromSender.get(firstId);
+        if (partial == null) {
+            long size = (long) count * FRAGMENT_SIZE;
+            long used = reserved.getOrDefault(senderId, 0L);
+            if (used + size > maxBuffered) {
+                return false;
+            }
+            reserved.put(senderId, used + size);
+            partial = new Partial(count);
+            fromSender.put(firstId, partial);
+        } else if (partial.fragments.length != count) {
+            return false;
+        }
+
+        partial.add(index, fragment, now);
+        return true;
+    }
+
+    /**
+     * Returns (and forgets) a message from senderId if all its fragments
+     * arrived, otherwise null
+     *
+     * @param firstId id of the first fragment of the message
+     */
+    public synchronized byte[] complete(int senderId, int firstId) {
+        Map<Integer, Partial> fromSender = partials.get(senderId);
+        Partial partial = fromSender == null ? null : fromSender.get(firstId);
+        if (partial == null || partial.missing > 0) {
+            return null;
+        }
+
+        fromSender.remove(firstId);
+        release(senderId, partial);
+        return partial.join();
+    }
+
+    /**
+     * Drops the messages being reassembled from senderId (it restarted, so
+     * the rest of their fragments won't come)
+     */
+    public synchronized void forget(int senderId) {
+        Map<Integer, Partial> fromSender = partials.remove(senderId);
+        if (fromSender != null) {
+            fromSender.values().forEach(partial -> release(senderId, partial));
+        }
+    }
+
+    /**
+     * Returns number of messages being reassembled
+     */
+    public synchronized int pendingCount() {
+        return partials.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /**
+     * Returns bytes reserved for the messages being reassembled from
+     * senderId
+     */
+    public synchronized long reservedBytes(int senderId) {
+        return reserved.getOrDefault(senderId, 0L);
+    }
+
+    private void expire(long now) {
+        for (Map.Entry<Integer, Map<Integer, Partial>> entry : partials.entrySet()) {
+            Iterator<Partial> it = entry.getValue().values().iterator();
+            while (it.hasNext()) {
+                Partial partial = it.next();
+                if ((now - partial.lastUpdate) / 1000000 >= timeout) {
+                    it.remove();
+                    release(entry.getKey(), partial);
+                }
+            }
+        }
+    }
+
+    private void release(int senderId, Partial partial) {
+        reserved.merge(senderId, -(long) partial.fragments.length * FRAGMENT_SIZE, Long::sum);
+    }
+
+    /**
+     * Message being reassembled
+     */
+    private static class Partial {
+        private final byte[][] fragments;
+        private int missing;
+        private int size = 0;
+        // When the last fragment arrived
+        private long lastUpdate;
+
+        Partial(int count) {
+            this.fragments = new byte[count][];
+            this.missing = count;
+        }
+
+        void add(int index, byte[] fragment, long now) {
+            lastUpdate = now;
+            if (fragments[index] == null) {
+                fragments[index] = fragment;
+                size += fragment.length;
+                missing--;
+            }
+        }
+
+        byte[] join() {
+            byte[] message = new byte[size];
+            int offset = 0;
+            for (byte[] fragment : fragments) {
+                System.arraycopy(fragment, 0, message, offset, fragment.length);
+                offset += fragment.length;
+            }
+            return message;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.CollapsingSet;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Messages received from each node, and the acknowledgements owed to them.
+ * What was received from a node is acknowledged with a SACK: a cumulative
+ * floor (every message up to it was received) plus a bitmap of the ids after
+ * it (bit i set means message floor + 1 + i was received).
+ * SACKs are piggybacked on every message sent to the node. If nothing is
+ * sent to it within ACK_DELAY of receiving a message, a standalone ACK is
+ * sent instead.
+ * Message ids must be sequential per (sender, receiver) pair, otherwise the
+ * floor doesn't move.
+ * Thread-safe.
+ */
+public class ReceiveWindow {
+
+    // Ids after the floor that a SACK can acknowledge
+    public static final int BITMAP_SIZE = Long.SIZE;
+
+    // Milliseconds to wait for a message to piggyback an ACK on
+    public static final int ACK_DELAY = 20;
+
+    // Ids received from each node
+    private final Map<Integer, CollapsingSet> received = new ConcurrentHashMap<>();
+    // Nodes owed an ACK (nothing was sent to them since their last message)
+    private final Set<Integer> owed = ConcurrentHashMap.newKeySet();
+    // Sends a standalone ACK to a node
+    private final IntConsumer sendAck;
+
+    public ReceiveWindow(Collection<Integer> nodeIds, IntConsumer sendAck) {
+        nodeIds.forEach(id -> received.put(id, new CollapsingSet()));
+        this.sendAck = sendAck;
+    }
+
+    /**
+     * Registers a message from nodeId and makes sure it's acknowledged
+     * (duplicates are acknowledged again, in case the previous ACK was lost)
+     *
+     * @return whether it's the first time the message is received
+     */
+    public boolean receive(int nodeId, int messageId) {
+        boolean first = received.get(nodeId).add(messageId);
+        owe(nodeId);
+        return first;
+    }
+
+    /**
+     * Forgets what was received from nodeId (it restarted, so its ids start
+     * over)
+     */
+    public void reset(int nodeId) {
+        received.put(nodeId, new CollapsingSet());
+    }
+
+    /**
+     * Whether a message from nodeId was already received
+     */
+    public boolean contains(int nodeId, int messageId) {
+        return received.get(nodeId).contains(messageId);
+    }
+
+    /**
+     * Makes sure nodeId gets an ACK soon (piggybacked or standalone)
+     */
+    public void owe(int nodeId) {
+        if (owed.add(nodeId)) {
+            RetransmissionScheduler.executeLater(() -> {
+                if (owed.remove(nodeId)) {
+                    sendAck.accept(nodeId);
+                }
+            }, ACK_DELAY);
+        }
+    }
+
+    /**
+     * Writes the SACK of the messages received from nodeId in a message
+     * going to it
+     */
+    public void stamp(int nodeId, Message message) {
+        owed.remove(nodeId);
+
+        CollapsingSet ids = received.get(nodeId);
+        int floor = ids.getFloor();
+        long bitmap = 0;
+        for (int i = 1; i < BITMAP_SIZE; i++) {
+            if (ids.contains(floor + 1 + i)) {
+                bitmap |= 1L << i;
+            }
+        }
+
+        message.setAckFloor(floor);
+        message.setAckBitmap(bitmap);
+    }
+}
@@ -0,0 +1,236 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+/**
+ * Retransmission engine used by PerfectLink.
+ * Messages waiting for an ACK are kept in a table per destination, sorted
+ * by message id. A single timer thread (shared by every link of the process)
+ * wakes them up when their timeout expires, and the actual socket writes are
+ * done by a bounded pool of sender threads (also shared).
+ * The first timeout of a message is the RTO of its destination, estimated
+ * from the ACKs of previous messages (see RttEstimator), and it doubles on
+ * every retransmission up to RttEstimator.MAX_RTO.
+ * Thread-safe.
+ */
+public class RetransmissionScheduler {
+
+    // Number of threads writing to sockets (shared by all links)
+    private static final int SENDER_POOL_SIZE = 4;
+
+    // Timer that drives retransmissions of all links
+    private static final ScheduledThreadPoolExecutor TIMER = newTimer();
+
+    // Pool of threads that serialize and write messages to the network
+    private static final ExecutorService SENDERS = Executors.newFixedThreadPool(SENDER_POOL_SIZE,
+            daemonFactory("link-sender"));
+
+    // destination -> message id -> message waiting for ACK
+    private final Map<Integer, ConcurrentNavigableMap<Integer, Pending>> pending = new ConcurrentHashMap<>();
+
+    // RTO estimation of each destination
+    private final Map<Integer, RttEstimator> estimators = new ConcurrentHashMap<>();
+
+    // Whether an ACK was already registered for a message id
+    private final IntPredicate isAcked;
+
+    // RTO of destinations without samples yet
+    private final int initialTimeout;
+
+    // Whether the RTO follows the measured RTTs (otherwise it's always the
+    // initial timeout)
+    private final boolean adaptive;
+
+    public RetransmissionScheduler(IntPredicate isAcked, int initialTimeout) {
+        this(isAcked, initialTimeout, true);
+    }
+
+    public RetransmissionScheduler(IntPredicate isAcked, int initialTimeout, boolean adaptive) {
+        this.isAcked = isAcked;
+        this.initialTimeout = initialTimeout;
+        this.adaptive = adaptive;
+    }
+
+    private static ScheduledThreadPoolExecutor newTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, daemonFactory("retransmission-timer"));
+        // Cancelled retransmissions are dropped right away instead of
+        // lingering in the queue until their deadline
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    private static ThreadFactory daemonFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger(0);
+        return runnable -> {
+            Thread t = new Thread(runnable, prefix + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Runs task in the sender pool
+     */
+    public void execute(Runnable task) {
+        SENDERS.execute(task);
+    }
+
+    /**
+     * Runs task in the sender pool once delay milliseconds have passed
+     */
+    public static void executeLater(Runnable task, int delay) {
+        TIMER.schedule(() -> SENDERS.execute(task), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Transmits a message and keeps retransmitting it (with exponential
+     * back-off) until it's acknowledged
+     *
+     * @param destination destination node id
+     * @param messageId id of the message
+     * @param transmit action that puts the message in the network
+     */
+    public void schedule(int destination, int messageId, Runnable transmit) {
+        Pending entry = new Pending(destination, messageId, transmit, getRto(destination));
+        waitingFor(destination).put(messageId, entry);
+
+        execute(transmit);
+        entry.arm();
+    }
+
+    /**
+     * Stops retransmitting a message (if it's still pending)
+     */
+    public void acknowledge(int destination, int messageId) {
+        Pending entry = waitingFor(destination).remove(messageId);
+        if (entry != null) {
+            entry.acknowledged();
+        }
+    }
+
+    /**
+     * Stops retransmitting the messages covered by a SACK (see ReceiveWindow)
+     *
+     * @param floor every message up to this id was received
+     * @param bitmap bit i set means message floor + 1 + i was received
+     */
+    public void acknowledge(int destination, int floor, long bitmap) {
+        Map<Integer, Pending> acked = waitingFor(destination).headMap(floor, true);
+        acked.values().forEach(Pending::acknowledged);
+        acked.clear();
+
+        for (long bits = bitmap; bits != 0; bits &= bits - 1) {
+            acknowledge(destination, floor + 1 + Long.numberOfTrailingZeros(bits));
+        }
+    }
+
+    /**
+     * Stops retransmitting every message to a destination (e.g. when it
+     * restarted and won't acknowledge them)
+     */
+    public void cancel(int destination) {
+        Map<Integer, Pending> dropped = pending.remove(destination);
+        if (dropped != null) {
+            dropped.values().forEach(Pending::cancel);
+        }
+    }
+
+    /**
+     * Returns number of messages still waiting for an ACK
+     */
+    public int pendingCount() {
+        return pending.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /**
+     * Returns the current retransmission timeout of a destination, in
+     * milliseconds
+     */
+    public int getRto(int destination) {
+        return adaptive ? estimator(destination).getRto() : initialTimeout;
+    }
+
+    private RttEstimator estimator(int destination) {
+        return estimators.computeIfAbsent(destination, d -> new RttEstimator(initialTimeout));
+    }
+
+    private ConcurrentNavigableMap<Integer, Pending> waitingFor(int destination) {
+        return pending.computeIfAbsent(destination, d -> new ConcurrentSkipListMap<>());
+    }
+
+    /**
+     * Message waiting for an ACK
+     */
+    private class Pending {
+        private final int destination;
+        private final int messageId;
+        private final Runnable transmit;
+        private int timeout;
+        private ScheduledFuture<?> future;
+        private boolean cancelled = false;
+        // When it was first transmitted (for RTT samples)
+        private final long sentAt = System.nanoTime();
+        private boolean retransmitted = false;
+
+        Pending(int destination, int messageId, Runnable transmit, int timeout) {
+            this.destination = destination;
+            this.messageId = messageId;
+            this.transmit = transmit;
+            this.timeout = timeout;
+        }
+
+        synchronized void arm() {
+            if (!cancelled) {
+                future = TIMER.schedule(this::expire, timeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void acknowledged() {
+            // Karn's rule: a retransmitted message doesn't say which copy
+            // was acknowledged
+            if (!cancelled && !retransmitted && adaptive) {
+                estimator(destination).sample((System.nanoTime() - sentAt) / 1e6);
+            }
+            cancel();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        private synchronized void expire() {
+            if (cancelled) {
+                return;
+            }
+
+            // ACKs registered without destination (e.g. Link.ackAll) are
+            // only noticed here
+            if (isAcked.test(messageId)) {
+                waitingFor(destination).remove(messageId, this);
+                return;
+            }
+
+            execute(transmit);
+            retransmitted = true;
+
+            // Exponential back-off, bounded so that a stalled peer isn't
+            // left waiting for minutes once it recovers
+            timeout = Math.max(timeout, RttEstimator.bound(2L * timeout));
+            arm();
+        }
+    }
+}
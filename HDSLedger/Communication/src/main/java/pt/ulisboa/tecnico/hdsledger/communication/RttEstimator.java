@@ -0,0 +1,63 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+/**
+ * Retransmission timeout (RTO) of a peer, estimated from how long its ACKs
+ * take (as in RFC 6298): RTO = SRTT + 4 * RTTVAR, kept within
+ * [MIN_RTO, MAX_RTO].
+ * Only messages that were transmitted once should be sampled (Karn's rule):
+ * the ACK of a retransmitted message may be for any of its copies.
+ * Thread-safe.
+ */
+public class RttEstimator {
+
+    // Bounds of the RTO in milliseconds. The floor is above the delay of
+    // standalone ACKs (see ReceiveWindow), which is part of the RTT when
+    // there's no reverse traffic
+    public static final int MIN_RTO = 30;
+    public static final int MAX_RTO = 3000;
+
+    // Gains of the smoothed RTT and of its variance
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    // Smoothed RTT and RTT variance in milliseconds (no samples while srtt < 0)
+    private double srtt = -1;
+    private double rttvar = 0;
+    private int rto;
+
+    /*
+     * @param initialRto RTO until the first sample
+     */
+    public RttEstimator(int initialRto) {
+        this.rto = bound(initialRto);
+    }
+
+    public static int bound(long rto) {
+        return (int) Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+    }
+
+    /*
+     * Registers the time between sending a message and receiving its ACK
+     */
+    public synchronized void sample(double rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        rto = bound((long) Math.ceil(srtt + 4 * rttvar));
+    }
+
+    public synchronized int getRto() {
+        return rto;
+    }
+
+    /*
+     * Smoothed RTT in milliseconds (negative before the first sample)
+     */
+    public synchronized double getSrtt() {
+        return srtt;
+    }
+}
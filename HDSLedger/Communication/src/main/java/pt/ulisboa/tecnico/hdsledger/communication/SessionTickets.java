@@ -0,0 +1,141 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import pt.ulisboa.tecnico.hdsledger.pki.PrivateIdentity;
+import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.text.MessageFormat;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+
+/**
+ * Session keys shared by a link with each node, kept on disk so that the
+ * link can resume its sessions after a restart instead of setting up new
+ * keys (see HMACLink).
+ * Keys are stored encrypted with the public key of the process, one file
+ * per (process, port), and a ticket is only used until it expires.
+ * Thread-safe.
+ */
+public class SessionTickets {
+
+    private static final CustomLogger LOGGER = new CustomLogger(SessionTickets.class.getName());
+
+    // Milliseconds a session can be resumed for, counted from when its key
+    // was proposed (resuming it doesn't extend it)
+    public static final long DEFAULT_LIFETIME = 60 * 60 * 1000;
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Key shared with a node and when it stops being resumable
+     */
+    public record Ticket(Key key, long expiresAt) {
+        public boolean isValid() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+    }
+
+    // As written to the file (key encrypted with the public key of self)
+    private record Stored(String key, long expiresAt) {
+    }
+
+    private final Path path;
+    private final PrivateIdentity self;
+
+    // Guarded by this
+    private final Map<Integer, Stored> tickets = new HashMap<>();
+
+    // Whether the file existed when the link started (i.e. the process ran
+    // before)
+    private final boolean restarted;
+
+    public SessionTickets(Path path, PrivateIdentity self) {
+        this.path = path;
+        this.self = self;
+        this.restarted = Files.exists(path);
+        if (restarted) {
+            load();
+        }
+    }
+
+    /*
+     * Tickets of the link of self listening on port, in directory
+     */
+    public static SessionTickets in(String directory, PrivateIdentity self, int port) {
+        return new SessionTickets(Path.of(directory, MessageFormat.format("tickets-{0}-{1}.json",
+                String.valueOf(self.getId()), String.valueOf(port))), self);
+    }
+
+    public boolean isRestarted() {
+        return restarted;
+    }
+
+    /**
+     * Returns the ticket of the session with nodeId, if it can still be
+     * resumed
+     */
+    public synchronized Optional<Ticket> get(int nodeId) {
+        Stored stored = tickets.get(nodeId);
+        if (stored == null || System.currentTimeMillis() >= stored.expiresAt()) {
+            return Optional.empty();
+        }
+
+        try {
+            byte[] key = self.unwrap(Base64.getDecoder().decode(stored.key()));
+            return Optional.of(new Ticket(new SecretKeySpec(key, "AES"), stored.expiresAt()));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            // E.g. the keys of the process changed since it was written
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Keeps the key of a new (or resumed) session with nodeId
+     */
+    public synchronized void put(int nodeId, Key key, long expiresAt) {
+        try {
+            String encrypted = Base64.getEncoder().encodeToString(self.wrap(key));
+            tickets.put(nodeId, new Stored(encrypted, expiresAt));
+            save();
+        } catch (GeneralSecurityException | IOException e) {
+            // Sessions still work, they just can't be resumed
+            LOGGER.log(Level.WARNING, MessageFormat.format("{0} - Can't save session ticket: {1}",
+                    self.getId(), e.getMessage()));
+        }
+    }
+
+    private void load() {
+        try {
+            Map<Integer, Stored> stored = GSON.fromJson(Files.readString(path, StandardCharsets.UTF_8),
+                    new TypeToken<Map<Integer, Stored>>() {}.getType());
+            if (stored != null) {
+                tickets.putAll(stored);
+            }
+        } catch (IOException | JsonParseException e) {
+            LOGGER.log(Level.WARNING, MessageFormat.format("{0} - Ignoring session tickets: {1}",
+                    self.getId(), e.getMessage()));
+        }
+    }
+
+    // Written to a temporary file first, so a crash never leaves half a file
+    private void save() throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.writeString(temporary, GSON.toJson(tickets), StandardCharsets.UTF_8);
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
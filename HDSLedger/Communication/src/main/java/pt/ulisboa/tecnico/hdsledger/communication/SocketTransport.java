@@ -0,0 +1,60 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport over a blocking DatagramSocket.
+ * Every received datagram gets its own buffer.
+ */
+public class SocketTransport implements DatagramTransport {
+
+    // How often a blocked receive checks whether its thread was interrupted
+    // (socket reads can't be interrupted)
+    private static final int INTERRUPT_CHECK_MILLIS = 100;
+
+    private final DatagramSocket socket;
+
+    public SocketTransport(InetSocketAddress address) throws SocketException {
+        this.socket = new DatagramSocket(null);
+        this.socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+        this.socket.bind(address);
+        this.socket.setSoTimeout(INTERRUPT_CHECK_MILLIS);
+    }
+
+    @Override
+    public void send(InetSocketAddress destination, byte[] data) throws IOException {
+        socket.send(new DatagramPacket(data, data.length, destination));
+    }
+
+    @Override
+    public Datagram receive() throws IOException {
+        byte[] buf = new byte[MAX_DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+
+        for (;;) {
+            try {
+                socket.receive(packet);
+                break;
+            } catch (SocketTimeoutException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        return new Datagram(ByteBuffer.wrap(buf, 0, packet.getLength()),
+                (InetSocketAddress) packet.getSocketAddress());
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,516 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry.Identity;
+import pt.ulisboa.tecnico.hdsledger.pki.PrivateIdentity;
+import pt.ulisboa.tecnico.hdsledger.pki.SigningUtils;
+import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.Key;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+
+/**
+ * Authenticated point to point link over TCP.
+ * Every process keeps one long-lived connection to each peer it sends to
+ * (and accepts the connections of the peers that send to it), reconnecting
+ * when it breaks. Messages are sent as length-prefixed frames:
+ *   length (4 bytes) | message encoded with the link codec
+ * The first frame of a connection is a key proposal (as in HMACLink) with a
+ * new shared key, every other frame is a HMAC message authenticated with it.
+ * The second frame carries the incarnation of the sender (when its link was
+ * created): message ids start over when a process restarts, so the
+ * receiver forgets what it delivered from an older incarnation, and
+ * ignores connections of older incarnations (e.g. replayed ones).
+ * The receiver acknowledges (cumulatively, once per burst of frames read)
+ * what it delivered, so that messages written to a connection that broke
+ * are written again to the next one. There are no timers: loss and
+ * ordering within a connection are left to TCP.
+ * Every process must use the same transport (see ProcessConfig).
+ */
+public class TcpLink implements Link {
+
+    private static final CustomLogger LOGGER = new CustomLogger(TcpLink.class.getName());
+
+    // Biggest frame accepted (the connection is closed otherwise)
+    private static final int MAX_FRAME_SIZE = Reassembler.DEFAULT_MAX_BUFFERED;
+
+    // Milliseconds to wait for a connection to be established
+    private static final int CONNECT_TIMEOUT = 1000;
+
+    // Milliseconds between attempts to reconnect to a peer (doubled on
+    // every failure, up to MAX_RECONNECT_DELAY)
+    private static final int RECONNECT_DELAY = 10;
+    private static final int MAX_RECONNECT_DELAY = 1000;
+
+    // Reference to the node itself
+    private final ProcessConfig config;
+    // Public identities of the nodes, by id
+    private final IdentityRegistry identities;
+    // The node itself, with its private key (resolved once, when the link
+    // is created)
+    private final PrivateIdentity identity;
+    // Map of all nodes in the network
+    private final Map<Integer, ProcessConfig> nodes = new ConcurrentHashMap<>();
+    // Class to deserialize messages to
+    private final Class<? extends Message> messageClass;
+    // Wire format of messages
+    private final MessageCodec codec;
+    // Accepts the connections of the other nodes
+    private final ServerSocket serverSocket;
+    // Connection to each node (created when the first message is sent)
+    private final Map<Integer, Peer> peers = new ConcurrentHashMap<>();
+    // Incarnations of the links of this process (increasing even if two are
+    // created within the same millisecond)
+    private static final AtomicLong LAST_INCARNATION = new AtomicLong();
+
+    // When this link was created (see above)
+    private final long incarnation =
+            LAST_INCARNATION.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+    // Id of the next message expected from each node (messages before it
+    // were delivered already), in its latest incarnation
+    // Guarded by expected
+    private final Map<Integer, Integer> expected = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> incarnations = new ConcurrentHashMap<>();
+    // Connections accepted and not closed yet
+    private final Set<Socket> accepted = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+    // Messages received (and sent to self), waiting to be returned
+    private final BlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
+
+    public TcpLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass) {
+        this(self, port, nodes, messageClass, false, new BinaryCodec());
+    }
+
+    public TcpLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
+                   boolean activateLogs, MessageCodec codec) {
+        this(self, port, nodes, messageClass, activateLogs, codec, IdentityRegistry.of(nodes));
+    }
+
+    /*
+     * @param identities Identities of (at least) the nodes, e.g. the ones the
+     * rest of the process uses
+     */
+    public TcpLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
+                   boolean activateLogs, MessageCodec codec, IdentityRegistry identities) {
+        this.config = self;
+        this.identities = identities;
+        this.identity = identities.self(self);
+        this.messageClass = messageClass;
+        this.codec = codec;
+        Arrays.stream(nodes).forEach(node -> this.nodes.put(node.getId(), node));
+
+        try {
+            this.serverSocket = new ServerSocket();
+            this.serverSocket.setReuseAddress(true);
+            this.serverSocket.bind(new InetSocketAddress(InetAddress.getByName(self.getHostname()), port));
+        } catch (IOException e) {
+            throw new HDSSException(ErrorMessage.CannotOpenSocket);
+        }
+        if (!activateLogs) {
+            LogManager.getLogManager().reset();
+        }
+
+        startThread("tcp-accept-" + self.getId(), this::accept);
+    }
+
+    // TCP acknowledges messages itself
+    public void ackAll(List<Integer> messageIds) {
+    }
+
+    /*
+     * Broadcasts a message to all nodes in the network
+     *
+     * @param data The message to be broadcast
+     */
+    public void broadcast(Message data) {
+        nodes.keySet().forEach(nodeId -> send(nodeId, data));
+    }
+
+    /*
+     * Sends a message to a specific node with guarantee of delivery (as long
+     * as both processes are running)
+     *
+     * @param nodeId The node identifier
+     *
+     * @param data The message to be sent
+     */
+    public void send(int nodeId, Message data) {
+        ProcessConfig node = nodes.get(nodeId);
+        if (node == null) {
+            LOGGER.log(Level.WARNING,
+                    MessageFormat.format("{0} - No node {1}. Failed while sending",
+                            config.getId(), nodeId));
+            return;
+        }
+
+        // Send message to local queue instead of using network if destination in self
+        if (nodeId == config.getId()) {
+            inbox.add(data);
+            return;
+        }
+
+        peers.computeIfAbsent(nodeId, id -> new Peer(node, identities.get(id)
+                .orElseThrow(() -> new HDSSException(ErrorMessage.NoSuchNode)))).enqueue(data);
+    }
+
+    /*
+     * Receives a message from any node in the network (blocking)
+     */
+    public Message receive() throws IOException {
+        try {
+            return inbox.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /*
+     * Stops sending and receiving, and releases the port (e.g. to simulate
+     * a crash). Messages still waiting for an ACK are dropped.
+     */
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        accepted.forEach(TcpLink::closeQuietly);
+        peers.values().forEach(Peer::close);
+    }
+
+    /**
+     * Returns number of messages sent by this link still waiting for an ACK
+     * Mostly for testing purposes
+     */
+    public int pendingAcks() {
+        return peers.values().stream().mapToInt(Peer::unackedCount).sum();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                accepted.add(socket);
+                if (closed) {
+                    closeQuietly(socket);
+                    return;
+                }
+                startThread("tcp-reader-" + config.getId(), () -> serve(socket));
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                LOGGER.log(Level.WARNING, MessageFormat.format("{0} - Error accepting connection: {1}",
+                        config.getId(), e.getMessage()));
+            }
+        }
+    }
+
+    /*
+     * Reads the frames of a connection accepted from another node, until it
+     * breaks
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            // Handshake
+            Message first = codec.decode(readFrame(in), HMACMessage.class);
+            Identity sender = nodes.containsKey(first.getSenderId())
+                    ? identities.get(first.getSenderId()).orElse(null) : null;
+            if (!(first instanceof KeyProposal) || sender == null || first.getReceiver() != config.getId()) {
+                return;
+            }
+            Key key = HMACLink.acceptKey((KeyProposal) first, identity, sender);
+            if (key == null) {
+                return;
+            }
+            int senderId = sender.getId();
+
+            Message hello = codec.decode(readFrame(in), HMACMessage.class);
+            if (!(hello instanceof HMACMessage) || !isAuthentic((HMACMessage) hello, senderId, key)
+                    || ((HMACMessage) hello).getMessage() == null) {
+                return;
+            }
+            long senderIncarnation = new BinaryReader(((HMACMessage) hello).getMessage()).readVarLong();
+            if (!startIncarnation(senderId, senderIncarnation)) {
+                return;
+            }
+
+            while (true) {
+                Message frame = codec.decode(readFrame(in), HMACMessage.class);
+                if (!(frame instanceof HMACMessage) || !isAuthentic((HMACMessage) frame, senderId, key)) {
+                    return;
+                }
+
+                // A newer incarnation connected in the meantime
+                int next = deliver(senderId, senderIncarnation, (HMACMessage) frame);
+                if (next < 0) {
+                    return;
+                }
+
+                // Acknowledge once the burst of frames was read
+                if (in.available() == 0) {
+                    HMACMessage ack = new HMACMessage(config.getId(), Message.Type.ACK, null, null);
+                    ack.setReceiver(senderId);
+                    ack.setAckFloor(next - 1);
+                    ack.setHmac(HMACLink.hmacOf(ack, key));
+                    writeFrame(out, codec.encode(ack));
+                    out.flush();
+                }
+            }
+        } catch (IOException | HDSSException e) {
+            // Connection closed or corrupted, the sender reconnects
+        } finally {
+            accepted.remove(socket);
+        }
+    }
+
+    /*
+     * Whether a connection of the given incarnation of sender may deliver
+     * (the messages of older incarnations are forgotten)
+     */
+    private boolean startIncarnation(int senderId, long senderIncarnation) {
+        synchronized (expected) {
+            long current = incarnations.getOrDefault(senderId, Long.MIN_VALUE);
+            if (senderIncarnation < current) {
+                return false;
+            }
+            if (senderIncarnation > current) {
+                incarnations.put(senderId, senderIncarnation);
+                expected.remove(senderId);
+            }
+            return true;
+        }
+    }
+
+    private boolean isAuthentic(HMACMessage message, int senderId, Key key) {
+        return message.getSenderId() == senderId && message.getReceiver() == config.getId()
+                && Arrays.equals(message.getHmac(), HMACLink.hmacOf(message, key));
+    }
+
+    // Queues the message in a frame unless it was delivered before (it was
+    // written again after a reconnection), returning the id of the next
+    // message expected (or -1 if the sender's incarnation is no longer the
+    // latest)
+    private int deliver(int senderId, long senderIncarnation, HMACMessage frame) {
+        int next;
+        synchronized (expected) {
+            if (incarnations.get(senderId) != senderIncarnation) {
+                return -1;
+            }
+            next = expected.getOrDefault(senderId, 0);
+            if (frame.getMessageId() < next) {
+                return next;
+            }
+            next = frame.getMessageId() + 1;
+            expected.put(senderId, next);
+        }
+
+        Message message = codec.decode(frame.getMessage(), messageClass);
+        message.setReceiver(frame.getReceiver());
+        inbox.add(message);
+        return next;
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new HDSSException(ErrorMessage.CannotParseMessage);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+        if (frame.length > MAX_FRAME_SIZE) {
+            throw new HDSSException(ErrorMessage.MessageTooLarge);
+        }
+        out.writeInt(frame.length);
+        out.write(frame);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Connection to a node, and the messages sent to it that weren't
+     * acknowledged yet
+     */
+    private class Peer {
+        private final ProcessConfig node;
+        private final Identity nodeIdentity;
+        // id -> encoded message, until acknowledged
+        private final TreeMap<Integer, byte[]> unacked = new TreeMap<>();
+        private int nextId = 0;
+        // Current connection (null between connections)
+        private Socket socket;
+        private final Thread writer;
+
+        Peer(ProcessConfig node, Identity nodeIdentity) {
+            this.node = node;
+            this.nodeIdentity = nodeIdentity;
+            this.writer = new Thread(this::run, "tcp-writer-" + config.getId() + "-" + node.getId());
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+
+        synchronized void close() {
+            if (socket != null) {
+                closeQuietly(socket);
+            }
+            writer.interrupt();
+        }
+
+        // Messages are encoded right away, so the caller may reuse them
+        synchronized void enqueue(Message data) {
+            data.setReceiver(node.getId());
+            data.setMessageId(nextId);
+            unacked.put(nextId++, codec.encode(data));
+            notifyAll();
+        }
+
+        synchronized int unackedCount() {
+            return unacked.size();
+        }
+
+        synchronized void acknowledge(int floor) {
+            unacked.headMap(floor, true).clear();
+        }
+
+        // Waits for messages with id >= from (or for the connection to break)
+        private synchronized List<Map.Entry<Integer, byte[]>> waitFrom(int from, Socket socket)
+                throws InterruptedException, IOException {
+            while (unacked.ceilingKey(from) == null && !socket.isClosed()) {
+                wait();
+            }
+            if (socket.isClosed()) {
+                throw new IOException("connection closed");
+            }
+            return new ArrayList<>(unacked.tailMap(from, true).entrySet());
+        }
+
+        private synchronized int firstUnacked() {
+            return unacked.isEmpty() ? nextId : unacked.firstKey();
+        }
+
+        private void run() {
+            int delay = RECONNECT_DELAY;
+            while (!closed) {
+                try (Socket socket = new Socket()) {
+                    synchronized (this) {
+                        if (closed) {
+                            return;
+                        }
+                        this.socket = socket;
+                    }
+                    socket.connect(new InetSocketAddress(node.getHostname(), node.getPort()), CONNECT_TIMEOUT);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    delay = RECONNECT_DELAY;
+
+                    // New key for every connection
+                    Key key = SigningUtils.generateSimKey();
+                    writeFrame(out, codec.encode(HMACLink.proposeKey(identity, nodeIdentity, key)));
+                    HMACMessage hello = new HMACMessage(config.getId(), Message.Type.IGNORE, null,
+                            new BinaryWriter().writeVarLong(incarnation).toByteArray());
+                    hello.setReceiver(node.getId());
+                    hello.setHmac(HMACLink.hmacOf(hello, key));
+                    writeFrame(out, codec.encode(hello));
+                    startThread("tcp-acks-" + config.getId() + "-" + node.getId(), () -> readAcks(socket, key));
+
+                    // Whatever wasn't acknowledged may have been lost with
+                    // the previous connection
+                    int next = firstUnacked();
+                    while (true) {
+                        out.flush();
+                        for (Map.Entry<Integer, byte[]> entry : waitFrom(next, socket)) {
+                            HMACMessage frame = new HMACMessage(config.getId(), Message.Type.HMAC, null,
+                                    entry.getValue());
+                            frame.setReceiver(node.getId());
+                            frame.setMessageId(entry.getKey());
+                            frame.setHmac(HMACLink.hmacOf(frame, key));
+                            writeFrame(out, codec.encode(frame));
+                            next = entry.getKey() + 1;
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.INFO, MessageFormat.format("{0} - Connection to {1} failed: {2}",
+                            config.getId(), node.getId(), e.getMessage()));
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                delay = Math.min(2 * delay, MAX_RECONNECT_DELAY);
+            }
+        }
+
+        // Reads the ACKs sent back on a connection until it breaks, then
+        // wakes the writer up so that it reconnects
+        private void readAcks(Socket socket, Key key) {
+            try (socket) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    Message ack = codec.decode(readFrame(in), HMACMessage.class);
+                    if (!(ack instanceof HMACMessage) || ack.getSenderId() != node.getId()
+                            || !Arrays.equals(((HMACMessage) ack).getHmac(), HMACLink.hmacOf((HMACMessage) ack, key))) {
+                        return;
+                    }
+                    acknowledge(ack.getAckFloor());
+                }
+            } catch (IOException | HDSSException e) {
+                // Connection closed or corrupted
+            } finally {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
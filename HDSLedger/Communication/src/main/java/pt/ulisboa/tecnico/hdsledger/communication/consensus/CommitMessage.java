@@ -2,17 +2,24 @@ package pt.ulisboa.tecnico.hdsledger.communication.consensus;
 
 import com.google.gson.Gson;
 
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
+
 public class CommitMessage {
 
-    // Value
-    private String value;
+    // Digest of the value (see PrePrepareMessage.digestOf), the value
+    // itself only goes in the PRE-PREPARE
+    private String digest;
+
+    public CommitMessage(String digest) {
+        this.digest = digest;
+    }
 
-    public CommitMessage(String value) {
-        this.value = value;
+    public String getDigest() {
+        return digest;
     }
 
-    public String getValue() {
-        return value;
+    public void writeTo(BinaryWriter w) {
+        w.writeString(digest);
     }
 
     public String toJson() {
@@ -1,20 +1,14 @@
 package pt.ulisboa.tecnico.hdsledger.communication.consensus;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
-import java.security.NoSuchAlgorithmException;
-import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.spec.InvalidKeySpecException;
-import java.util.logging.Level;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-
-import com.google.gson.Gson;
 
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
 import pt.ulisboa.tecnico.hdsledger.communication.Message;
-import pt.ulisboa.tecnico.hdsledger.pki.SigningUtils;;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry.Identity;
+import pt.ulisboa.tecnico.hdsledger.pki.PrivateIdentity;
+import pt.ulisboa.tecnico.hdsledger.pki.SignatureEngine;
 
 public class ConsensusMessage extends Message {
 
@@ -26,39 +20,79 @@ public class ConsensusMessage extends Message {
     private int replyTo;
     // Id of the previous message
     private int replyToMessageId;
-    // Message (PREPREPARE, PREPARE, COMMIT)
-    private String message;
+    // Message (PREPREPARE, PREPARE, COMMIT, ROUND-CHANGE, VALUE-REQUEST,
+    // VALUE-REPLY), only the one matching the type is set
+    private PrePrepareMessage prePrepareMessage;
+    private PrepareMessage prepareMessage;
+    private CommitMessage commitMessage;
+    private RoundChangeMessage roundChangeMessage;
+    private ValueRequestMessage valueRequestMessage;
+    private ValueReplyMessage valueReplyMessage;
 
     // Signature of current message (with signature = null)
     // The usage is - message is created, then signed and then signature set
     private String signature;
 
+    // Signed content (see writeSignedContent), encoded on first use and
+    // shared by signing, verification and the signature cache
+    private transient volatile byte[] signedContent;
+
     public ConsensusMessage(int senderId, Type type) {
         super(senderId, type);
     }
 
-    public PrePrepareMessage deserializePrePrepareMessage() {
-        return new Gson().fromJson(this.message, PrePrepareMessage.class);
+    public PrePrepareMessage getPrePrepareMessage() {
+        return prePrepareMessage;
+    }
+
+    public PrepareMessage getPrepareMessage() {
+        return prepareMessage;
+    }
+
+    public CommitMessage getCommitMessage() {
+        return commitMessage;
+    }
+
+    public RoundChangeMessage getRoundChangeMessage() {
+        return roundChangeMessage;
+    }
+
+    public ValueRequestMessage getValueRequestMessage() {
+        return valueRequestMessage;
+    }
+
+    public ValueReplyMessage getValueReplyMessage() {
+        return valueReplyMessage;
+    }
+
+    public void setMessage(PrePrepareMessage message) {
+        this.prePrepareMessage = message;
+        this.signedContent = null;
     }
 
-    public PrepareMessage deserializePrepareMessage() {
-        return new Gson().fromJson(this.message, PrepareMessage.class);
+    public void setMessage(PrepareMessage message) {
+        this.prepareMessage = message;
+        this.signedContent = null;
     }
 
-    public CommitMessage deserializeCommitMessage() {
-        return new Gson().fromJson(this.message, CommitMessage.class);
+    public void setMessage(CommitMessage message) {
+        this.commitMessage = message;
+        this.signedContent = null;
     }
 
-    public RoundChangeMessage deserializeRoundChangeMessage() {
-        return new Gson().fromJson(this.message, RoundChangeMessage.class);
+    public void setMessage(RoundChangeMessage message) {
+        this.roundChangeMessage = message;
+        this.signedContent = null;
     }
 
-    public String getMessage() {
-        return message;
+    public void setMessage(ValueRequestMessage message) {
+        this.valueRequestMessage = message;
+        this.signedContent = null;
     }
 
-    public void setMessage(String message) {
-        this.message = message;
+    public void setMessage(ValueReplyMessage message) {
+        this.valueReplyMessage = message;
+        this.signedContent = null;
     }
 
     public int getConsensusInstance() {
@@ -67,6 +101,7 @@ public class ConsensusMessage extends Message {
 
     public void setConsensusInstance(int consensusInstance) {
         this.consensusInstance = consensusInstance;
+        this.signedContent = null;
     }
 
     public int getRound() {
@@ -75,6 +110,13 @@ public class ConsensusMessage extends Message {
 
     public void setRound(int round) {
         this.round = round;
+        this.signedContent = null;
+    }
+
+    @Override
+    public void setType(Type type) {
+        super.setType(type);
+        this.signedContent = null;
     }
 
     public int getReplyTo() {
@@ -93,8 +135,63 @@ public class ConsensusMessage extends Message {
         this.replyToMessageId = replyToMessageId;
     }
 
-    private Signable getToSign() {
-        return new Signable(this.consensusInstance, this.round, this.message);
+    /*
+     * Canonical encoding of the signed content of the message
+     * (instance, round, type and payload, without justifications of
+     * ROUND-CHANGEs, so they can be dropped or checked without
+     * touching the message)
+     */
+    public void writeSignedContent(BinaryWriter w) {
+        w.writeSignedVarInt(this.consensusInstance)
+                .writeSignedVarInt(this.round)
+                .writeVarInt(getType().ordinal());
+
+        if (prePrepareMessage != null) {
+            prePrepareMessage.writeTo(w);
+        } else if (prepareMessage != null) {
+            prepareMessage.writeTo(w);
+        } else if (commitMessage != null) {
+            commitMessage.writeTo(w);
+        } else if (roundChangeMessage != null) {
+            roundChangeMessage.writeTo(w);
+        } else if (valueRequestMessage != null) {
+            valueRequestMessage.writeTo(w);
+        } else if (valueReplyMessage != null) {
+            valueReplyMessage.writeTo(w);
+        }
+    }
+
+    /*
+     * Canonical encoding of the message as part of other message
+     * (e.g. justification): sender, signed content and signature
+     */
+    public void writeTo(BinaryWriter w) {
+        w.writeSignedVarInt(getSenderId());
+        writeSignedContent(w);
+        w.writeString(this.signature);
+    }
+
+    /*
+     * Canonical encoding of a list of messages (count + 1, 0 means null)
+     */
+    static void writeList(BinaryWriter w, List<ConsensusMessage> messages) {
+        if (messages == null) {
+            w.writeVarInt(0);
+            return;
+        }
+        w.writeVarInt(messages.size() + 1);
+        messages.forEach(m -> m.writeTo(w));
+    }
+
+    private byte[] getToSign() {
+        byte[] content = this.signedContent;
+        if (content == null) {
+            BinaryWriter w = new BinaryWriter();
+            writeSignedContent(w);
+            content = w.toByteArray();
+            this.signedContent = content;
+        }
+        return content;
     }
 
     /**
@@ -104,21 +201,36 @@ public class ConsensusMessage extends Message {
         // serialize myself with null signature
         this.signature = null;
 
-        Signable toSign = this.getToSign();
-        String serialized = new Gson().toJson(toSign);
-        try {
-            this.signature = SigningUtils.sign(serialized, pathToPrivateKey);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidKeySpecException |
-            NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException | IOException  e) {
-            throw new RuntimeException(e);
+        this.signature = SignatureEngine.signToString(this.getToSign(), pathToPrivateKey);
+    }
+
+    /**
+     * Signs itself as self and stores signature
+     */
+    public void signSelf(PrivateIdentity self) {
+        this.signature = null;
+
+        this.signature = self.sign(this.getToSign());
+    }
+
+    /**
+     * Takes the signature of other if it signed the same content (e.g. the
+     * copies of a broadcast, which only differ in the receiver)
+     * @return whether the signature was taken
+     */
+    public boolean signLike(ConsensusMessage other) {
+        if (other.signature == null || !Arrays.equals(this.getToSign(), other.getToSign())) {
+            return false;
         }
+
+        this.signature = other.signature;
+        return true;
     }
 
     /*
      * Checks if signature matches message content
+     * (signatures already verified are remembered, see SignatureCache)
      * @param pathToPublicKey path to public key of sender
-     *
-     * Not thread-safe.
      **/
     public boolean checkConsistentSig(String pathToPublicKey) {
         if (this.signature == null) {
@@ -126,15 +238,28 @@ public class ConsensusMessage extends Message {
         }
 
         // Check signature
-        String serialized = new Gson().toJson(this.getToSign());
-        boolean result = SigningUtils.verifySignature(serialized, this.signature, pathToPublicKey);
+        boolean result = SignatureCache.getDefault()
+                .verify(this.consensusInstance, this.getToSign(), this.signature, pathToPublicKey);
 
         return result;
     }
 
+    /*
+     * Same as checkConsistentSig(String), with the identity of the sender
+     * (see IdentityRegistry)
+     **/
+    public boolean checkConsistentSig(Identity sender) {
+        if (this.signature == null) {
+            return false;
+        }
+
+        return SignatureCache.getDefault()
+                .verify(this.consensusInstance, this.getToSign(), this.signature, sender);
+    }
+
     public Optional<String> getSignature() {
         if (this.signature == null) {
-            Optional.empty();
+            return Optional.empty();
         }
         return Optional.of(this.signature);
     }
@@ -142,19 +267,4 @@ public class ConsensusMessage extends Message {
     public void setSignature(String signature) {
         this.signature = signature;
     }
-
-    // Class that encapsulates what is important to be signed
-    private class Signable {
-        private int lambda;
-
-        private int round;
-
-        private String message;
-
-        Signable(int lambda, int round, String message) {
-            this.lambda = lambda;
-            this.round = round;
-            this.message = message;
-        }
-    }
 }
@@ -1,10 +1,15 @@
 package pt.ulisboa.tecnico.hdsledger.communication.consensus;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.List;
 import java.util.Optional;
 
 import com.google.gson.Gson;
 
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
+import pt.ulisboa.tecnico.hdsledger.pki.SignatureEngine;
+
 public class PrePrepareMessage {
     
     // Value
@@ -17,6 +22,9 @@ public class PrePrepareMessage {
     // otherwise QBFT goes O(n3))
     private List<ConsensusMessage> justificationPrepares = null;
 
+    // Digest of the value, computed on first use
+    private transient volatile String digest;
+
     public PrePrepareMessage(String value, Optional<List<ConsensusMessage>> justificationPrepares, Optional<List<ConsensusMessage>> justificationRoundChanges) {
         this.value = value;
 
@@ -30,6 +38,24 @@ public class PrePrepareMessage {
         return value;
     }
 
+    public String getDigest() {
+        String d = this.digest;
+        if (d == null) {
+            d = digestOf(value);
+            this.digest = d;
+        }
+        return d;
+    }
+
+    /*
+     * Digest (SHA-256, base64) standing for a value in PREPAREs, COMMITs and
+     * ROUND-CHANGEs, so only the PRE-PREPARE carries the value itself
+     */
+    public static String digestOf(String value) {
+        return Base64.getEncoder().encodeToString(
+                SignatureEngine.digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
     public Optional<List<ConsensusMessage>> getJustificationPrepares() {
         if (justificationPrepares == null) {
             return Optional.empty();
@@ -46,6 +72,12 @@ public class PrePrepareMessage {
         return Optional.of(justificationRoundChanges);
     }
 
+    public void writeTo(BinaryWriter w) {
+        w.writeString(value);
+        ConsensusMessage.writeList(w, justificationRoundChanges);
+        ConsensusMessage.writeList(w, justificationPrepares);
+    }
+
     public String toJson() {
         return new Gson().toJson(this);
     }
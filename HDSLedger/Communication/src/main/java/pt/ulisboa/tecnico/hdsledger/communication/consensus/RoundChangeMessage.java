@@ -2,12 +2,14 @@ package pt.ulisboa.tecnico.hdsledger.communication.consensus;
 
 import com.google.gson.Gson;
 
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
+
 import java.util.Optional;
 import java.util.List;
 
 public class RoundChangeMessage {
 
-    // Prepare value
+    // Digest of the prepared value (see PrePrepareMessage.digestOf)
     private String pvi;
     
     // Prepare round
@@ -72,6 +74,16 @@ public class RoundChangeMessage {
         return Optional.empty();
     }
 
+    /*
+     * Signed content (the justification isn't signed, its PREPAREs are
+     * signed by their senders)
+     */
+    public void writeTo(BinaryWriter w) {
+        w.writeByte(present ? 1 : 0)
+                .writeString(pvi)
+                .writeSignedVarInt(pri);
+    }
+
     public String toJson() {
         return new Gson().toJson(this);
     }
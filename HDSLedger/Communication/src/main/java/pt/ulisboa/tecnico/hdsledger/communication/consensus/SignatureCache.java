@@ -0,0 +1,143 @@
+package pt.ulisboa.tecnico.hdsledger.communication.consensus;
+
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry.Identity;
+import pt.ulisboa.tecnico.hdsledger.pki.SignatureEngine;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signatures already verified, so that a message that is checked many times
+ * (e.g. a PREPARE when received, then inside every ROUND-CHANGE and
+ * PRE-PREPARE that justifies with it) is only verified once.
+ * Entries are (signer, digest of the signed bytes, signature), where the
+ * signer is its Identity or the path of its key file, and only
+ * successful verifications are kept. They're grouped by consensus instance
+ * and dropped when the instance is decided (see forgetUpTo), or when there
+ * are more than maxEntries (oldest instances first).
+ * Thread-safe.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1 << 16;
+
+    // Cache used by ConsensusMessage.checkConsistentSig
+    private static final SignatureCache DEFAULT = new SignatureCache(DEFAULT_MAX_ENTRIES);
+
+    private record Entry(Object signer, ByteBuffer digest, String signature) {
+    }
+
+    private final int maxEntries;
+
+    // Verified entries -> their instance
+    private final Map<Entry, Integer> entries = new ConcurrentHashMap<>();
+    // Instance -> its entries
+    private final NavigableMap<Integer, Set<Entry>> instances = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SignatureCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public static SignatureCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Whether signature (Base64) is a signature of data by the owner of the
+     * public key in pathToPublicKey, verifying it only if it wasn't before
+     *
+     * @param instance consensus instance of the signed message
+     */
+    public boolean verify(int instance, byte[] data, String signature, String pathToPublicKey) {
+        if (signature == null) {
+            return false;
+        }
+
+        Entry entry = new Entry(pathToPublicKey, ByteBuffer.wrap(SignatureEngine.digest(data)), signature);
+        if (isVerified(entry)) {
+            return true;
+        }
+        if (!SignatureEngine.verify(data, signature, pathToPublicKey)) {
+            return false;
+        }
+        add(instance, entry);
+        return true;
+    }
+
+    /**
+     * Same as verify, with the decoded key of the signer
+     */
+    public boolean verify(int instance, byte[] data, String signature, Identity signer) {
+        if (signature == null) {
+            return false;
+        }
+
+        Entry entry = new Entry(signer, ByteBuffer.wrap(SignatureEngine.digest(data)), signature);
+        if (isVerified(entry)) {
+            return true;
+        }
+        if (!signer.verify(data, signature)) {
+            return false;
+        }
+        add(instance, entry);
+        return true;
+    }
+
+    private boolean isVerified(Entry entry) {
+        if (entries.containsKey(entry)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    // Only on misses, next to an expensive verification, so a lock is fine
+    // (and keeps entries and instances consistent with eviction)
+    private synchronized void add(int instance, Entry entry) {
+        if (entries.putIfAbsent(entry, instance) != null) {
+            return;
+        }
+        instances.computeIfAbsent(instance, i -> ConcurrentHashMap.newKeySet()).add(entry);
+
+        while (entries.size() > maxEntries) {
+            Map.Entry<Integer, Set<Entry>> oldest = instances.pollFirstEntry();
+            oldest.getValue().forEach(entries::remove);
+        }
+    }
+
+    /**
+     * Drops the signatures of every instance up to (and including) instance
+     */
+    public synchronized void forgetUpTo(int instance) {
+        Map<Integer, Set<Entry>> done = instances.headMap(instance, true);
+        done.values().forEach(set -> set.forEach(entries::remove));
+        done.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Verifications avoided
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Verifications done
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
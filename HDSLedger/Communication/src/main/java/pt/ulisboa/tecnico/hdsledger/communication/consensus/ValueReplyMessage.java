@@ -0,0 +1,31 @@
+package pt.ulisboa.tecnico.hdsledger.communication.consensus;
+
+import com.google.gson.Gson;
+
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
+
+/**
+ * Value asked for with a ValueRequestMessage. Not signed, the receiver
+ * checks it against the digest it asked for
+ */
+public class ValueReplyMessage {
+
+    // Value
+    private String value;
+
+    public ValueReplyMessage(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public void writeTo(BinaryWriter w) {
+        w.writeString(value);
+    }
+
+    public String toJson() {
+        return new Gson().toJson(this);
+    }
+}
@@ -0,0 +1,31 @@
+package pt.ulisboa.tecnico.hdsledger.communication.consensus;
+
+import com.google.gson.Gson;
+
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
+
+/**
+ * Asks a replica for the value with a given digest, when there's a quorum
+ * for a digest whose PRE-PREPARE wasn't received
+ */
+public class ValueRequestMessage {
+
+    // Digest of the value (see PrePrepareMessage.digestOf)
+    private String digest;
+
+    public ValueRequestMessage(String digest) {
+        this.digest = digest;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void writeTo(BinaryWriter w) {
+        w.writeString(digest);
+    }
+
+    public String toJson() {
+        return new Gson().toJson(this);
+    }
+}
@@ -1,7 +1,13 @@
 package pt.ulisboa.tecnico.hdsledger.communication.consensus.builder;
 
 import pt.ulisboa.tecnico.hdsledger.communication.Message;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.CommitMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrePrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.RoundChangeMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ValueReplyMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ValueRequestMessage;
 
 public class ConsensusMessageBuilder {
     private final ConsensusMessage instance;
@@ -10,7 +16,32 @@ public class ConsensusMessageBuilder {
         instance = new ConsensusMessage(sender, type);
     }
 
-    public ConsensusMessageBuilder setMessage(String message) {
+    public ConsensusMessageBuilder setMessage(PrePrepareMessage message) {
+        instance.setMessage(message);
+        return this;
+    }
+
+    public ConsensusMessageBuilder setMessage(PrepareMessage message) {
+        instance.setMessage(message);
+        return this;
+    }
+
+    public ConsensusMessageBuilder setMessage(CommitMessage message) {
+        instance.setMessage(message);
+        return this;
+    }
+
+    public ConsensusMessageBuilder setMessage(RoundChangeMessage message) {
+        instance.setMessage(message);
+        return this;
+    }
+
+    public ConsensusMessageBuilder setMessage(ValueRequestMessage message) {
+        instance.setMessage(message);
+        return this;
+    }
+
+    public ConsensusMessageBuilder setMessage(ValueReplyMessage message) {
         instance.setMessage(message);
         return this;
     }
@@ -1,20 +1,13 @@
 package pt.ulisboa.tecnico.hdsledger.communication.ledger;
 
 import java.util.Optional;
-import java.security.NoSuchAlgorithmException;
-import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.spec.InvalidKeySpecException;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 
 import com.google.gson.Gson;
 
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
 import pt.ulisboa.tecnico.hdsledger.communication.Message;
 import pt.ulisboa.tecnico.hdsledger.communication.Message.Type;
-import pt.ulisboa.tecnico.hdsledger.pki.SigningUtils;
+import pt.ulisboa.tecnico.hdsledger.pki.SignatureEngine;
 
 public class AppendMessage extends Message {
 
@@ -53,8 +46,11 @@ public class AppendMessage extends Message {
         this.message = message;
     }
 
-    private Signable getToSign() {
-        return new Signable(this.message);
+    /*
+     * Canonical encoding of the signed content of the message
+     */
+    private byte[] getToSign() {
+        return new BinaryWriter().writeString(this.message).toByteArray();
     }
 
     public int getReplyTo() {
@@ -81,40 +77,25 @@ public class AppendMessage extends Message {
         // serialize myself with null signature
         this.signature = null;
 
-        Signable toSign = this.getToSign();
-        String serialized = new Gson().toJson(toSign);
-        System.out.printf("signSelf - signing %s\n", serialized);
-        try {
-            this.signature = SigningUtils.sign(serialized, pathToPrivateKey);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidKeySpecException |
-            NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException | IOException  e) {
-            throw new RuntimeException(e);
-        }
+        this.signature = SignatureEngine.signToString(this.getToSign(), pathToPrivateKey);
     }
 
     /*
      * Checks if signature matches message content
      * @param pathToPublicKey path to public key of sender
-     *
-     * Not thread-safe.
      **/
     public boolean checkConsistentSig(String pathToPublicKey) {
         if (this.signature == null) {
-            System.out.println("checkConsistentSig - bad signature because is null");
             return false;
         }
 
         // Check signature
-        String serialized = new Gson().toJson(this.getToSign());
-        System.out.printf("checkConsistentSig - checking signature for %s\n", serialized);
-        boolean result = SigningUtils.verifySignature(serialized, this.signature, pathToPublicKey);
-
-        return result;
+        return SignatureEngine.verify(this.getToSign(), this.signature, pathToPublicKey);
     }
 
     public Optional<String> getSignature() {
         if (this.signature == null) {
-            Optional.empty();
+            return Optional.empty();
         }
         return Optional.of(this.signature);
     }
@@ -122,13 +103,4 @@ public class AppendMessage extends Message {
     public void setSignature(String signature) {
         this.signature = signature;
     }
-
-    // Class that encapsulates what is important to be signed
-    private class Signable {
-        private String message;
-
-        Signable(String message) {
-            this.message = message;
-        }
-    }
 }
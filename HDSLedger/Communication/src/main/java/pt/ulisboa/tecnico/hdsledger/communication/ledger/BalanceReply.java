@@ -1,5 +1,7 @@
 package pt.ulisboa.tecnico.hdsledger.communication.ledger;
 
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
+
 import java.util.Optional;
 
 public class BalanceReply {
@@ -33,4 +35,10 @@ public class BalanceReply {
     public void setValue(int value) {
         this.value = value;
     }
+
+    public void writeTo(BinaryWriter w) {
+        w.writeSignedVarInt(value)
+                .writeByte(success ? 1 : 0)
+                .writeSignedVarInt(sequenceNumber);
+    }
 }
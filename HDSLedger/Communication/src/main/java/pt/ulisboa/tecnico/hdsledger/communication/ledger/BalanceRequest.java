@@ -1,5 +1,7 @@
 package pt.ulisboa.tecnico.hdsledger.communication.ledger;
 
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
+
 public class BalanceRequest {
     private int source;
 
@@ -10,4 +12,8 @@ public class BalanceRequest {
     public int getSource() {
         return source;
     }
+
+    public void writeTo(BinaryWriter w) {
+        w.writeSignedVarInt(source);
+    }
 }
@@ -0,0 +1,38 @@
+package pt.ulisboa.tecnico.hdsledger.communication.ledger;
+
+import java.util.List;
+
+/**
+ * Where a transfer is in the bundle it was signed in: with it, the
+ * signature of the bundle can be checked against the transfer alone,
+ * without the rest of the bundle
+ */
+public class BundleProof {
+
+    // Position of the transfer in the bundle
+    private int index;
+
+    // Transfers in the bundle
+    private int count;
+
+    // Merkle path of the transfer (Base64 hashes, see MerkleTree.pathOf)
+    private List<String> path;
+
+    public BundleProof(int index, int count, List<String> path) {
+        this.index = index;
+        this.count = count;
+        this.path = path;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public List<String> getPath() {
+        return path;
+    }
+}
@@ -1,28 +1,40 @@
 package pt.ulisboa.tecnico.hdsledger.communication.ledger;
 
-import com.google.gson.Gson;
-
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
 import pt.ulisboa.tecnico.hdsledger.communication.Message;
-import pt.ulisboa.tecnico.hdsledger.pki.SigningUtils;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry.Identity;
+import pt.ulisboa.tecnico.hdsledger.pki.PrivateIdentity;
+import pt.ulisboa.tecnico.hdsledger.pki.MerkleTree;
+import pt.ulisboa.tecnico.hdsledger.pki.SignatureEngine;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Optional;
 
 public class LedgerMessage extends Message {
 
-    // Message (REQUEST, REPLY) - serialized version
-    private String message;
+    // Message (REQUEST, REPLY), only the one matching the type is set
+    private TransferRequest transferRequest;
+    private TransferReply transferReply;
+    private BalanceRequest balanceRequest;
+    private BalanceReply balanceReply;
+    private TransferBundle transferBundle;
+
+    // Set on a transfer taken out of a bundle (see unbundle): the signature
+    // is the one of the bundle
+    private BundleProof bundleProof;
 
     // Signature of current message (with signature = null)
     // The usage is - message is created, then signed and then signature set
     private String signature;
 
+    // Signed content (see getToSign), encoded on first use
+    private transient volatile byte[] signedContent;
+
+    // Merkle tree over the transfers of the bundle, built on first use
+    private transient volatile MerkleTree bundleTree;
+
     // Who sent the previous message
     private int replyTo;
     // Id of the previous message
@@ -34,32 +46,172 @@ public class LedgerMessage extends Message {
         super(senderId, type);
     }
 
-    public BalanceRequest deserializeBalanceRequest() {
-        return new Gson().fromJson(this.message, BalanceRequest.class);
+    public BalanceRequest getBalanceRequest() {
+        return balanceRequest;
+    }
+
+    public BalanceReply getBalanceReply() {
+        return balanceReply;
+    }
+
+    public TransferRequest getTransferRequest() {
+        return transferRequest;
+    }
+
+    public TransferReply getTransferReply() {
+        return transferReply;
+    }
+
+    public TransferBundle getTransferBundle() {
+        return transferBundle;
+    }
+
+    public Optional<BundleProof> getBundleProof() {
+        return Optional.ofNullable(bundleProof);
+    }
+
+    public void setBundleProof(BundleProof bundleProof) {
+        this.bundleProof = bundleProof;
     }
 
-    public BalanceReply deserializeBalanceReply() {
-        return new Gson().fromJson(this.message, BalanceReply.class);
+    public void setMessage(BalanceRequest message) {
+        this.balanceRequest = message;
+        this.signedContent = null;
     }
 
-    public TransferRequest deserializeTransferRequest() {
-        return new Gson().fromJson(this.message, TransferRequest.class);
+    public void setMessage(BalanceReply message) {
+        this.balanceReply = message;
+        this.signedContent = null;
     }
 
-    public TransferReply deserializeTransferReply() {
-        return new Gson().fromJson(this.message, TransferReply.class);
+    public void setMessage(TransferRequest message) {
+        this.transferRequest = message;
+        this.signedContent = null;
     }
 
-    public String getMessage() {
-        return message;
+    public void setMessage(TransferReply message) {
+        this.transferReply = message;
+        this.signedContent = null;
     }
 
-    public void setMessage(String message) {
-        this.message = message;
+    public void setMessage(TransferBundle message) {
+        this.transferBundle = message;
+        this.signedContent = null;
+        this.bundleTree = null;
     }
 
-    private LedgerMessage.Signable getToSign() {
-        return new LedgerMessage.Signable(this.message, sequenceNumber);
+    /*
+     * Canonical encoding of the signed content of the message
+     * (sequence number, type and payload, or the number of transfers and
+     * their Merkle root for a bundle)
+     */
+    private byte[] getToSign() {
+        byte[] content = this.signedContent;
+        if (content != null) {
+            return content;
+        }
+
+        BinaryWriter w = new BinaryWriter()
+                .writeSignedVarInt(sequenceNumber)
+                .writeVarInt(getType().ordinal());
+
+        if (transferRequest != null) {
+            transferRequest.writeTo(w);
+        } else if (transferReply != null) {
+            transferReply.writeTo(w);
+        } else if (balanceRequest != null) {
+            balanceRequest.writeTo(w);
+        } else if (balanceReply != null) {
+            balanceReply.writeTo(w);
+        } else if (transferBundle != null) {
+            w.writeVarInt(transferBundle.size()).writeBytes(getBundleTree().getRoot());
+        }
+
+        content = w.toByteArray();
+        this.signedContent = content;
+        return content;
+    }
+
+    /*
+     * Leaf of a transfer in the Merkle tree of its bundle: the same as the
+     * signed content of a TRANSFER_REQUEST for it
+     */
+    private static byte[] transferContent(int sequenceNumber, TransferRequest transfer) {
+        BinaryWriter w = new BinaryWriter()
+                .writeSignedVarInt(sequenceNumber)
+                .writeVarInt(Message.Type.TRANSFER_REQUEST.ordinal());
+        transfer.writeTo(w);
+        return w.toByteArray();
+    }
+
+    private MerkleTree getBundleTree() {
+        MerkleTree tree = this.bundleTree;
+        if (tree == null) {
+            List<byte[]> leaves = new ArrayList<>();
+            List<TransferRequest> transfers = transferBundle.getTransfers();
+            for (int i = 0; i < transfers.size(); i++) {
+                leaves.add(transferContent(sequenceNumber + i, transfers.get(i)));
+            }
+            tree = new MerkleTree(leaves);
+            this.bundleTree = tree;
+        }
+        return tree;
+    }
+
+    /*
+     * Content the signature covers: the signed content of the message or,
+     * for a transfer taken out of a bundle, the one of the bundle (empty if
+     * its proof is malformed)
+     */
+    public Optional<byte[]> getSignedContent() {
+        if (bundleProof == null) {
+            return Optional.of(getToSign());
+        }
+
+        List<byte[]> path = new ArrayList<>();
+        try {
+            for (String hash : bundleProof.getPath()) {
+                path.add(Base64.getDecoder().decode(hash));
+            }
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return Optional.empty();
+        }
+
+        int index = bundleProof.getIndex();
+        return MerkleTree.rootOf(getToSign(), index, bundleProof.getCount(), path)
+                .map(root -> new BinaryWriter()
+                        .writeSignedVarInt(sequenceNumber - index)
+                        .writeVarInt(Message.Type.TRANSFER_BUNDLE.ordinal())
+                        .writeVarInt(bundleProof.getCount())
+                        .writeBytes(root)
+                        .toByteArray());
+    }
+
+    /**
+     * One TRANSFER_REQUEST per transfer of a bundle, each with the signature
+     * of the bundle and its proof (so it can be checked on its own)
+     */
+    public List<LedgerMessage> unbundle() {
+        MerkleTree tree = getBundleTree();
+        List<TransferRequest> transfers = transferBundle.getTransfers();
+        List<LedgerMessage> messages = new ArrayList<>(transfers.size());
+        for (int i = 0; i < transfers.size(); i++) {
+            List<String> path = new ArrayList<>();
+            for (byte[] hash : tree.pathOf(i)) {
+                path.add(Base64.getEncoder().encodeToString(hash));
+            }
+
+            LedgerMessage message = new LedgerMessage(getSenderId(), Message.Type.TRANSFER_REQUEST);
+            message.setSequenceNumber(sequenceNumber + i);
+            // Copied, the messages outlive the bundle (e.g. as proofs of commands)
+            TransferRequest transfer = transfers.get(i);
+            message.setMessage(new TransferRequest(transfer.getSource(), transfer.getDestination(),
+                    transfer.getAmount()));
+            message.setSignature(signature);
+            message.setBundleProof(new BundleProof(i, transfers.size(), path));
+            messages.add(message);
+        }
+        return messages;
     }
 
     public int getReplyTo() {
@@ -84,6 +236,14 @@ public class LedgerMessage extends Message {
 
     public void setSequenceNumber(int sequenceNumber) {
         this.sequenceNumber = sequenceNumber;
+        this.signedContent = null;
+        this.bundleTree = null;
+    }
+
+    @Override
+    public void setType(Type type) {
+        super.setType(type);
+        this.signedContent = null;
     }
 
     /**
@@ -93,37 +253,48 @@ public class LedgerMessage extends Message {
         // serialize myself with null signature
         this.signature = null;
 
-        pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage.Signable toSign = this.getToSign();
-        String serialized = new Gson().toJson(toSign);
-        try {
-            this.signature = SigningUtils.sign(serialized, pathToPrivateKey);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidKeySpecException |
-                 NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException | IOException e) {
-            throw new RuntimeException(e);
-        }
+        this.signature = SignatureEngine.signToString(this.getToSign(), pathToPrivateKey);
+    }
+
+    /**
+     * Signs itself as self and stores signature
+     */
+    public void signSelf(PrivateIdentity self) {
+        this.signature = null;
+
+        this.signature = self.sign(this.getToSign());
     }
 
     /*
      * Checks if signature matches message content
      * @param pathToPublicKey path to public key of sender
-     *
-     * Not thread-safe.
      **/
     public boolean checkConsistentSig(String pathToPublicKey) {
         if (this.signature == null) {
             return false;
         }
 
-        // Check signature
-        String serialized = new Gson().toJson(this.getToSign());
-        boolean result = SigningUtils.verifySignature(serialized, this.signature, pathToPublicKey);
+        // Check signature (of the bundle, if the message came out of one)
+        Optional<byte[]> content = this.getSignedContent();
+        return content.isPresent() && SignatureEngine.verify(content.get(), this.signature, pathToPublicKey);
+    }
+
+    /*
+     * Same as checkConsistentSig(String), with the identity of the sender
+     * (see IdentityRegistry)
+     **/
+    public boolean checkConsistentSig(Identity sender) {
+        if (this.signature == null) {
+            return false;
+        }
 
-        return result;
+        Optional<byte[]> content = this.getSignedContent();
+        return content.isPresent() && sender.verify(content.get(), this.signature);
     }
 
     public Optional<String> getSignature() {
         if (this.signature == null) {
-            Optional.empty();
+            return Optional.empty();
         }
         return Optional.of(this.signature);
     }
@@ -131,15 +302,4 @@ public class LedgerMessage extends Message {
     public void setSignature(String signature) {
         this.signature = signature;
     }
-
-    // Class that encapsulates what is important to be signed
-    private class Signable {
-        private String message;
-        private int seq;
-
-        Signable(String message, int seq) {
-            this.message = message;
-            this.seq = seq;
-        }
-    }
 }
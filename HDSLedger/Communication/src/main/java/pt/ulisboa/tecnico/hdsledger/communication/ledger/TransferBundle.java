@@ -0,0 +1,26 @@
+package pt.ulisboa.tecnico.hdsledger.communication.ledger;
+
+import java.util.List;
+
+/**
+ * Transfers requested together under one signature (see LedgerMessage).
+ * The transfer at index i has the sequence number of the message plus i,
+ * and the signature covers the root of a Merkle tree over the transfers,
+ * so each one can later be checked on its own (see BundleProof).
+ */
+public class TransferBundle {
+
+    private List<TransferRequest> transfers;
+
+    public TransferBundle(List<TransferRequest> transfers) {
+        this.transfers = transfers;
+    }
+
+    public List<TransferRequest> getTransfers() {
+        return transfers;
+    }
+
+    public int size() {
+        return transfers.size();
+    }
+}
@@ -1,5 +1,7 @@
 package pt.ulisboa.tecnico.hdsledger.communication.ledger;
 
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
+
 import java.util.Optional;
 
 public class TransferReply {
@@ -27,4 +29,10 @@ public class TransferReply {
         }
         return Optional.empty();
     }
+
+    public void writeTo(BinaryWriter w) {
+        w.writeSignedVarInt(sequenceNumber)
+                .writeSignedVarInt(slot)
+                .writeByte(success ? 1 : 0);
+    }
 }
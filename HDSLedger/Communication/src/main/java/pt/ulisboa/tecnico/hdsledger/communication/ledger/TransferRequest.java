@@ -1,5 +1,7 @@
 package pt.ulisboa.tecnico.hdsledger.communication.ledger;
 
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryWriter;
+
 public class TransferRequest {
 
     private int source;
@@ -29,4 +31,10 @@ public class TransferRequest {
     public void setAmount(int amount) {
         this.amount = amount;
     }
+
+    public void writeTo(BinaryWriter w) {
+        w.writeSignedVarInt(source)
+                .writeSignedVarInt(destination)
+                .writeSignedVarInt(amount);
+    }
 }
@@ -0,0 +1,121 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FrameCoalescerTest {
+
+    // Deadline long enough to never be hit by the tests that flush by hand
+    private static final int NO_DEADLINE = 60000;
+
+    private final BlockingQueue<byte[]> sent = new LinkedBlockingQueue<>();
+
+    @Test
+    public void packsMessagesInOrder() {
+        FrameCoalescer coalescer = new FrameCoalescer((nodeId, frame) -> sent.add(frame), 1400, NO_DEADLINE);
+        List<byte[]> messages = messages(5, 40);
+
+        messages.forEach(m -> coalescer.add(1, m));
+        assertTrue(sent.isEmpty());
+        coalescer.flush(1);
+
+        assertEquals(1, sent.size());
+        assertFrames(messages, new ArrayList<>(sent));
+        assertEquals(5.0, coalescer.getMessagesPerFrame());
+    }
+
+    @Test
+    public void framesAreSentPerNode() {
+        List<Integer> destinations = new ArrayList<>();
+        FrameCoalescer coalescer = new FrameCoalescer((nodeId, frame) -> destinations.add(nodeId), 1400,
+                NO_DEADLINE);
+
+        coalescer.add(1, new byte[10]);
+        coalescer.add(2, new byte[10]);
+        coalescer.add(1, new byte[10]);
+        coalescer.flush(1);
+        coalescer.flush(2);
+
+        assertEquals(List.of(1, 2), destinations);
+        assertEquals(1.5, coalescer.getMessagesPerFrame());
+    }
+
+    @Test
+    public void framesStayWithinBudget() {
+        FrameCoalescer coalescer = new FrameCoalescer((nodeId, frame) -> sent.add(frame), 100, NO_DEADLINE);
+        List<byte[]> messages = messages(10, 30);
+        // Doesn't fit in any frame, goes alone
+        messages.add(new byte[500]);
+        messages.addAll(messages(3, 30));
+
+        messages.forEach(m -> coalescer.add(1, m));
+        coalescer.flush(1);
+
+        List<byte[]> frames = new ArrayList<>(sent);
+        assertFrames(messages, frames);
+        for (byte[] frame : frames) {
+            List<byte[]> unpacked = FrameCoalescer.unpack(frame);
+            assertTrue(unpacked.size() == 1 || frame.length <= 100 + 1, "frame over budget: " + frame.length);
+        }
+        assertEquals(messages.size(), coalescer.getMessagesSent());
+    }
+
+    @Test
+    public void deadlineFlushesFrame() throws InterruptedException {
+        FrameCoalescer coalescer = new FrameCoalescer((nodeId, frame) -> sent.add(frame), 1400, 5);
+        byte[] message = {1, 2, 3};
+
+        coalescer.add(1, message);
+
+        byte[] frame = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(frame);
+        assertFrames(List.of(message), List.of(frame));
+    }
+
+    @Test
+    public void rejectsMalformedFrames() {
+        FrameCoalescer coalescer = new FrameCoalescer((nodeId, frame) -> sent.add(frame), 1400, NO_DEADLINE);
+        coalescer.add(1, new byte[20]);
+        coalescer.flush(1);
+        byte[] frame = sent.poll();
+
+        assertThrows(HDSSException.class, () -> FrameCoalescer.unpack(Arrays.copyOf(frame, frame.length - 1)));
+        assertThrows(HDSSException.class, () -> FrameCoalescer.unpack(Arrays.copyOf(frame, frame.length + 1)));
+        assertThrows(HDSSException.class, () -> FrameCoalescer.unpack(new byte[] {100}));
+    }
+
+    private List<byte[]> messages(int count, int size) {
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] message = new byte[size];
+            Arrays.fill(message, (byte) messages.size());
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    // The frames carry exactly the messages, in order
+    private void assertFrames(List<byte[]> messages, List<byte[]> frames) {
+        List<byte[]> unpacked = new ArrayList<>();
+        frames.forEach(frame -> unpacked.addAll(FrameCoalescer.unpack(frame)));
+
+        assertEquals(messages.size(), unpacked.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertArrayEquals(messages.get(i), unpacked.get(i));
+        }
+    }
+}
@@ -4,12 +4,34 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry;
+import pt.ulisboa.tecnico.hdsledger.pki.PrivateIdentity;
 import pt.ulisboa.tecnico.hdsledger.pki.RSAKeyGenerator;
+import pt.ulisboa.tecnico.hdsledger.pki.SigningUtils;
 import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.text.MessageFormat;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class HMACLinkTest {
     @Test
@@ -58,6 +80,512 @@ public class HMACLinkTest {
         }
     }
 
+    @Test
+    public void testHMACLinkBinaryCodec() throws GeneralSecurityException, IOException, InterruptedException {
+        // Keys generated by testHMACLink (if it didn't run first, generate them)
+        String[] privKeyPaths = {"/tmp/node1.priv", "/tmp/node2.priv"};
+        String[] pubKeyPaths = {"/tmp/node1.pub", "/tmp/node2.pub"};
+        for (int i = 0; i < 2; i++) {
+            try {
+                RSAKeyGenerator.read(privKeyPaths[i], "priv");
+                RSAKeyGenerator.read(pubKeyPaths[i], "pub");
+            } catch (Exception e) {
+                RSAKeyGenerator.write(privKeyPaths[i], pubKeyPaths[i]);
+            }
+        }
+
+        ProcessConfig processConfig1 = new ProcessConfig("localhost", 1, 8082, -1, 4, pubKeyPaths[0], privKeyPaths[0]);
+        ProcessConfig processConfig2 = new ProcessConfig("localhost", 2, 8083, -1, 4, pubKeyPaths[1], privKeyPaths[1]);
+        ProcessConfig[] processConfigs = {processConfig1, processConfig2};
+
+        HMACLink hmacLink1 = new HMACLink(processConfig1, 8082, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec());
+        HMACLink hmacLink2 = new HMACLink(processConfig2, 8083, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec());
+
+        BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        listen(hmacLink1);
+        new Thread(() -> {
+            try {
+                while (true) {
+                    received.add(hmacLink2.receive());
+                }
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+
+        ConsensusMessage message = new ConsensusMessage(processConfig1.getId(), Message.Type.PREPARE);
+        message.setConsensusInstance(3);
+        message.setMessage(new PrepareMessage("value"));
+        hmacLink1.send(processConfig2.getId(), message);
+
+        Message delivered = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(delivered);
+        assertEquals(Message.Type.PREPARE, delivered.getType());
+        assertEquals(3, ((ConsensusMessage) delivered).getConsensusInstance());
+        assertEquals("value", ((ConsensusMessage) delivered).getPrepareMessage().getDigest());
+    }
+
+    @Test
+    public void testHMACLinkCoalescing() throws GeneralSecurityException, IOException, InterruptedException {
+        String[] privKeyPaths = {"/tmp/node1.priv", "/tmp/node2.priv"};
+        String[] pubKeyPaths = {"/tmp/node1.pub", "/tmp/node2.pub"};
+        for (int i = 0; i < 2; i++) {
+            try {
+                RSAKeyGenerator.read(privKeyPaths[i], "priv");
+                RSAKeyGenerator.read(pubKeyPaths[i], "pub");
+            } catch (Exception e) {
+                RSAKeyGenerator.write(privKeyPaths[i], pubKeyPaths[i]);
+            }
+        }
+
+        ProcessConfig processConfig1 = new ProcessConfig("localhost", 1, 8084, -1, 4, pubKeyPaths[0], privKeyPaths[0]);
+        ProcessConfig processConfig2 = new ProcessConfig("localhost", 2, 8085, -1, 4, pubKeyPaths[1], privKeyPaths[1]);
+        ProcessConfig[] processConfigs = {processConfig1, processConfig2};
+
+        HMACLink hmacLink1 = new HMACLink(processConfig1, 8084, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec(), true);
+        HMACLink hmacLink2 = new HMACLink(processConfig2, 8085, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec(), true);
+
+        BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        listen(hmacLink1);
+        new Thread(() -> {
+            try {
+                while (true) {
+                    received.add(hmacLink2.receive());
+                }
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+
+        int count = 20;
+        for (int i = 0; i < count; i++) {
+            ConsensusMessage message = new ConsensusMessage(processConfig1.getId(), Message.Type.PREPARE);
+            message.setConsensusInstance(i);
+            message.setMessage(new PrepareMessage("value"));
+            hmacLink1.send(processConfig2.getId(), message);
+        }
+
+        // Every message is delivered once, and they shared frames
+        Set<Integer> instances = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            Message delivered = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(delivered);
+            assertTrue(instances.add(((ConsensusMessage) delivered).getConsensusInstance()));
+        }
+        assertTrue(hmacLink1.messagesPerFrame() > 1);
+
+        // Frames and key proposals are acknowledged (the receiver has nothing
+        // to send back, so with standalone ACKs)
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hmacLink1.pendingAcks() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, hmacLink1.pendingAcks());
+    }
+
+    @Test
+    public void testHMACLinkFragmentation() throws GeneralSecurityException, IOException, InterruptedException {
+        String[] privKeyPaths = {"/tmp/node1.priv", "/tmp/node2.priv"};
+        String[] pubKeyPaths = {"/tmp/node1.pub", "/tmp/node2.pub"};
+        for (int i = 0; i < 2; i++) {
+            try {
+                RSAKeyGenerator.read(privKeyPaths[i], "priv");
+                RSAKeyGenerator.read(pubKeyPaths[i], "pub");
+            } catch (Exception e) {
+                RSAKeyGenerator.write(privKeyPaths[i], pubKeyPaths[i]);
+            }
+        }
+
+        ProcessConfig processConfig1 = new ProcessConfig("localhost", 1, 8086, -1, 4, pubKeyPaths[0], privKeyPaths[0]);
+        ProcessConfig processConfig2 = new ProcessConfig("localhost", 2, 8087, -1, 4, pubKeyPaths[1], privKeyPaths[1]);
+        ProcessConfig[] processConfigs = {processConfig1, processConfig2};
+
+        HMACLink hmacLink1 = new HMACLink(processConfig1, 8086, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec(), true);
+        HMACLink hmacLink2 = new HMACLink(processConfig2, 8087, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec(), true);
+
+        BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        listen(hmacLink1);
+        new Thread(() -> {
+            try {
+                while (true) {
+                    received.add(hmacLink2.receive());
+                }
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+
+        // Bigger than a datagram
+        String value = "v".repeat(200 * 1024);
+        for (int i = 0; i < 3; i++) {
+            ConsensusMessage message = new ConsensusMessage(processConfig1.getId(), Message.Type.PREPARE);
+            message.setConsensusInstance(i);
+            message.setMessage(new PrepareMessage(value));
+            hmacLink1.send(processConfig2.getId(), message);
+        }
+
+        Set<Integer> instances = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            Message delivered = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(delivered);
+            assertEquals(value, ((ConsensusMessage) delivered).getPrepareMessage().getDigest());
+            assertTrue(instances.add(((ConsensusMessage) delivered).getConsensusInstance()));
+        }
+
+        // Every fragment is acknowledged
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hmacLink1.pendingAcks() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, hmacLink1.pendingAcks());
+    }
+
+    @Test
+    public void testHMACLinkEd25519() throws GeneralSecurityException, IOException, InterruptedException {
+        // Node 1 has RSA keys and node 2 Ed25519 keys: node 1's key proposal
+        // is wrapped to an Ed25519 key, and signed with RSA
+        String[] privKeyPaths = {"/tmp/node1.priv", "/tmp/node2_ed25519.priv"};
+        String[] pubKeyPaths = {"/tmp/node1.pub", "/tmp/node2_ed25519.pub"};
+        try {
+            RSAKeyGenerator.read(privKeyPaths[0], "priv");
+            RSAKeyGenerator.read(pubKeyPaths[0], "pub");
+        } catch (Exception e) {
+            RSAKeyGenerator.write(privKeyPaths[0], pubKeyPaths[0]);
+        }
+        RSAKeyGenerator.write(privKeyPaths[1], pubKeyPaths[1], ProcessConfig.SignatureScheme.ED25519);
+
+        ProcessConfig processConfig1 = new ProcessConfig("localhost", 1, 8100, -1, 4, pubKeyPaths[0], privKeyPaths[0]);
+        ProcessConfig processConfig2 = new ProcessConfig("localhost", 2, 8101, -1, 4, pubKeyPaths[1], privKeyPaths[1]);
+        processConfig2.setSignatureScheme(ProcessConfig.SignatureScheme.ED25519);
+        ProcessConfig[] processConfigs = {processConfig1, processConfig2};
+
+        HMACLink hmacLink1 = new HMACLink(processConfig1, 8100, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec());
+        HMACLink hmacLink2 = new HMACLink(processConfig2, 8101, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec());
+
+        BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        listen(hmacLink1);
+        new Thread(() -> {
+            try {
+                while (true) {
+                    received.add(hmacLink2.receive());
+                }
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+
+        ConsensusMessage message = new ConsensusMessage(processConfig1.getId(), Message.Type.PREPARE);
+        message.setMessage(new PrepareMessage("value"));
+        message.signSelf(processConfig1.getPrivateKey());
+        hmacLink1.send(processConfig2.getId(), message);
+
+        ConsensusMessage reply = new ConsensusMessage(processConfig2.getId(), Message.Type.COMMIT);
+        reply.signSelf(processConfig2.getPrivateKey());
+        assertTrue(reply.checkConsistentSig(processConfig2.getPublicKey()));
+        assertFalse(reply.checkConsistentSig(processConfig1.getPublicKey()));
+
+        Message delivered = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(delivered);
+        assertTrue(((ConsensusMessage) delivered).checkConsistentSig(processConfig1.getPublicKey()));
+    }
+
+    @Test
+    public void testHMACLinkAesGcm() throws GeneralSecurityException, IOException, InterruptedException {
+        String[] privKeyPaths = {"/tmp/node1.priv", "/tmp/node2.priv"};
+        String[] pubKeyPaths = {"/tmp/node1.pub", "/tmp/node2.pub"};
+        for (int i = 0; i < 2; i++) {
+            try {
+                RSAKeyGenerator.read(privKeyPaths[i], "priv");
+                RSAKeyGenerator.read(pubKeyPaths[i], "pub");
+            } catch (Exception e) {
+                RSAKeyGenerator.write(privKeyPaths[i], pubKeyPaths[i]);
+            }
+        }
+
+        // Node 1 encrypts, node 2 only authenticates (both understand both)
+        ProcessConfig processConfig1 = new ProcessConfig("localhost", 1, 8102, -1, 4, pubKeyPaths[0], privKeyPaths[0]);
+        ProcessConfig processConfig2 = new ProcessConfig("localhost", 2, 8103, -1, 4, pubKeyPaths[1], privKeyPaths[1]);
+        processConfig1.setChannelMode(ProcessConfig.ChannelMode.AES_GCM);
+        ProcessConfig[] processConfigs = {processConfig1, processConfig2};
+
+        HMACLink hmacLink1 = new HMACLink(processConfig1, 8102, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec(), true);
+        HMACLink hmacLink2 = new HMACLink(processConfig2, 8103, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec(), true);
+
+        BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        listen(hmacLink1);
+        new Thread(() -> {
+            try {
+                while (true) {
+                    received.add(hmacLink2.receive());
+                }
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+
+        // Small messages (coalesced) and one bigger than a datagram
+        List<String> values = List.of("a", "b", "v".repeat(200 * 1024));
+        for (int i = 0; i < values.size(); i++) {
+            ConsensusMessage message = new ConsensusMessage(processConfig1.getId(), Message.Type.PREPARE);
+            message.setConsensusInstance(i);
+            message.setMessage(new PrepareMessage(values.get(i)));
+            hmacLink1.send(processConfig2.getId(), message);
+        }
+
+        for (int i = 0; i < values.size(); i++) {
+            Message delivered = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(delivered);
+            ConsensusMessage consensusMessage = (ConsensusMessage) delivered;
+            assertEquals(values.get(consensusMessage.getConsensusInstance()),
+                    consensusMessage.getPrepareMessage().getDigest());
+        }
+
+        // Encrypted ACKs come back too
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hmacLink1.pendingAcks() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, hmacLink1.pendingAcks());
+    }
+
+    @Test
+    public void testHMACLinkSelfDelivery() throws GeneralSecurityException, IOException, InterruptedException {
+        String[] privKeyPaths = {"/tmp/node1.priv", "/tmp/node2.priv"};
+        String[] pubKeyPaths = {"/tmp/node1.pub", "/tmp/node2.pub"};
+        for (int i = 0; i < 2; i++) {
+            try {
+                RSAKeyGenerator.read(privKeyPaths[i], "priv");
+                RSAKeyGenerator.read(pubKeyPaths[i], "pub");
+            } catch (Exception e) {
+                RSAKeyGenerator.write(privKeyPaths[i], pubKeyPaths[i]);
+            }
+        }
+
+        // Node 1 is never started, and node 2 (higher id) doesn't propose it
+        // a key: nothing ever arrives from the network
+        ProcessConfig processConfig1 = new ProcessConfig("localhost", 1, 8088, -1, 4, pubKeyPaths[0], privKeyPaths[0]);
+        ProcessConfig processConfig2 = new ProcessConfig("localhost", 2, 8089, -1, 4, pubKeyPaths[1], privKeyPaths[1]);
+        ProcessConfig[] processConfigs = {processConfig1, processConfig2};
+
+        HMACLink hmacLink2 = new HMACLink(processConfig2, 8089, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec());
+
+        BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        new Thread(() -> {
+            try {
+                while (true) {
+                    received.add(hmacLink2.receive());
+                }
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+
+        // The receiver is already blocked waiting for messages
+        Thread.sleep(200);
+        hmacLink2.send(processConfig2.getId(), new ConsensusMessage(processConfig2.getId(), Message.Type.COMMIT));
+
+        Message delivered = received.poll(1, TimeUnit.SECONDS);
+        assertNotNull(delivered);
+        assertEquals(Message.Type.COMMIT, delivered.getType());
+    }
+
+    @Test
+    public void testHMACLinkResumesSessionsAfterRestart(@TempDir Path tickets)
+            throws GeneralSecurityException, IOException, InterruptedException {
+        String[] privKeyPaths = {"/tmp/node1.priv", "/tmp/node2.priv"};
+        String[] pubKeyPaths = {"/tmp/node1.pub", "/tmp/node2.pub"};
+        for (int i = 0; i < 2; i++) {
+            try {
+                RSAKeyGenerator.read(privKeyPaths[i], "priv");
+                RSAKeyGenerator.read(pubKeyPaths[i], "pub");
+            } catch (Exception e) {
+                RSAKeyGenerator.write(privKeyPaths[i], pubKeyPaths[i]);
+            }
+        }
+
+        ProcessConfig processConfig1 = new ProcessConfig("localhost", 1, 8104, -1, 4, pubKeyPaths[0], privKeyPaths[0]);
+        ProcessConfig processConfig2 = new ProcessConfig("localhost", 2, 8105, -1, 4, pubKeyPaths[1], privKeyPaths[1]);
+        processConfig1.setTicketDirectory(tickets.toString());
+        processConfig2.setTicketDirectory(tickets.toString());
+        ProcessConfig[] processConfigs = {processConfig1, processConfig2};
+
+        HMACLink hmacLink1 = new HMACLink(processConfig1, 8104, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec());
+        HMACLink hmacLink2 = new HMACLink(processConfig2, 8105, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec());
+        BlockingQueue<Message> received1 = receiveInto(hmacLink1);
+        BlockingQueue<Message> received2 = receiveInto(hmacLink2);
+
+        // Node 2 waits for the key proposed by node 1, its messages wait too
+        exchange(hmacLink1, hmacLink2, received1, received2, 0);
+
+        // Node 2 restarts: without its ticket, it would never get a key again
+        hmacLink2.close();
+        hmacLink2 = new HMACLink(processConfig2, 8105, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec());
+        received2 = receiveInto(hmacLink2);
+        exchange(hmacLink1, hmacLink2, received1, received2, 10);
+
+        // And then node 1 (ids start over on both sides again)
+        hmacLink1.close();
+        hmacLink1 = new HMACLink(processConfig1, 8104, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec());
+        received1 = receiveInto(hmacLink1);
+        exchange(hmacLink1, hmacLink2, received1, received2, 20);
+
+        // Nothing is left unacknowledged from the sessions before the restarts
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((hmacLink1.pendingAcks() > 0 || hmacLink2.pendingAcks() > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, hmacLink1.pendingAcks());
+        assertEquals(0, hmacLink2.pendingAcks());
+        hmacLink1.close();
+        hmacLink2.close();
+    }
+
+    @Test
+    public void testHMACLinkSurvivesBadKeyProposal() throws GeneralSecurityException, IOException, InterruptedException {
+        String[] privKeyPaths = {"/tmp/node1.priv", "/tmp/node2.priv"};
+        String[] pubKeyPaths = {"/tmp/node1.pub", "/tmp/node2.pub"};
+        for (int i = 0; i < 2; i++) {
+            try {
+                RSAKeyGenerator.read(privKeyPaths[i], "priv");
+                RSAKeyGenerator.read(pubKeyPaths[i], "pub");
+            } catch (Exception e) {
+                RSAKeyGenerator.write(privKeyPaths[i], pubKeyPaths[i]);
+            }
+        }
+
+        ProcessConfig processConfig1 = new ProcessConfig("localhost", 1, 8106, -1, 4, pubKeyPaths[0], privKeyPaths[0]);
+        ProcessConfig processConfig2 = new ProcessConfig("localhost", 2, 8107, -1, 4, pubKeyPaths[1], privKeyPaths[1]);
+        ProcessConfig[] processConfigs = {processConfig1, processConfig2};
+
+        HMACLink hmacLink1 = new HMACLink(processConfig1, 8106, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec());
+        HMACLink hmacLink2 = new HMACLink(processConfig2, 8107, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec());
+        BlockingQueue<Message> received2 = receiveInto(hmacLink2);
+
+        // Anyone can send node 2 a key proposal in the name of node 1,
+        // without a key
+        KeyProposal proposal = new KeyProposal(1, null, "signature");
+        proposal.setReceiver(2);
+        byte[] bytes = new BinaryCodec().encode(proposal);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("localhost"), 8107));
+        }
+        Thread.sleep(200);
+
+        ConsensusMessage message = new ConsensusMessage(1, Message.Type.PREPARE);
+        message.setConsensusInstance(3);
+        hmacLink1.send(2, message);
+
+        Message delivered = received2.poll(5, TimeUnit.SECONDS);
+        assertNotNull(delivered);
+        assertEquals(3, ((ConsensusMessage) delivered).getConsensusInstance());
+        hmacLink1.close();
+        hmacLink2.close();
+    }
+
+    /**
+     * Links of one process share its identity registry, and keys are proposed
+     * and accepted with the resolved identities (only by their sender)
+     */
+    @Test
+    public void testHMACLinkUsesIdentityRegistry() throws GeneralSecurityException, IOException, InterruptedException {
+        String[] privKeyPaths = {"/tmp/node1.priv", "/tmp/node2.priv"};
+        String[] pubKeyPaths = {"/tmp/node1.pub", "/tmp/node2.pub"};
+        for (int i = 0; i < 2; i++) {
+            try {
+                RSAKeyGenerator.read(privKeyPaths[i], "priv");
+                RSAKeyGenerator.read(pubKeyPaths[i], "pub");
+            } catch (Exception e) {
+                RSAKeyGenerator.write(privKeyPaths[i], pubKeyPaths[i]);
+            }
+        }
+
+        ProcessConfig processConfig1 = new ProcessConfig("localhost", 1, 8108, -1, 4, pubKeyPaths[0], privKeyPaths[0]);
+        ProcessConfig processConfig2 = new ProcessConfig("localhost", 2, 8109, -1, 4, pubKeyPaths[1], privKeyPaths[1]);
+        ProcessConfig[] processConfigs = {processConfig1, processConfig2};
+        IdentityRegistry identities = IdentityRegistry.of(processConfigs);
+        PrivateIdentity self1 = identities.self(processConfig1);
+        PrivateIdentity self2 = identities.self(processConfig2);
+
+        Key key = SigningUtils.generateSimKey();
+        KeyProposal proposal = HMACLink.proposeKey(self1, identities.get(2).get(), key);
+        assertArrayEquals(key.getEncoded(), HMACLink.acceptKey(proposal, self2, identities.get(1).get()).getEncoded());
+        assertNull(HMACLink.acceptKey(proposal, self2, identities.get(2).get()));
+        assertNull(HMACLink.acceptKey(proposal, self1, identities.get(1).get()));
+        assertNull(HMACLink.acceptKey(new KeyProposal(1, null, proposal.getSignature()), self2,
+                identities.get(1).get()));
+
+        HMACLink hmacLink1 = new HMACLink(processConfig1, 8108, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec(), false, identities);
+        HMACLink hmacLink2 = new HMACLink(processConfig2, 8109, processConfigs, ConsensusMessage.class, false, 200,
+                false, new BinaryCodec(), false, identities);
+        BlockingQueue<Message> received1 = receiveInto(hmacLink1);
+        BlockingQueue<Message> received2 = receiveInto(hmacLink2);
+
+        exchange(hmacLink1, hmacLink2, received1, received2, 0);
+        hmacLink1.close();
+        hmacLink2.close();
+    }
+
+    // Sends a few messages each way (from node 2 first) and checks they all
+    // arrive once
+    private void exchange(HMACLink link1, HMACLink link2, BlockingQueue<Message> received1,
+                          BlockingQueue<Message> received2, int firstInstance) throws InterruptedException {
+        for (int i = firstInstance; i < firstInstance + 5; i++) {
+            ConsensusMessage message = new ConsensusMessage(2, Message.Type.PREPARE);
+            message.setConsensusInstance(i);
+            link2.send(1, message);
+        }
+        for (int i = firstInstance; i < firstInstance + 5; i++) {
+            ConsensusMessage message = new ConsensusMessage(1, Message.Type.PREPARE);
+            message.setConsensusInstance(i);
+            link1.send(2, message);
+        }
+
+        for (BlockingQueue<Message> received : List.of(received1, received2)) {
+            Set<Integer> instances = new HashSet<>();
+            for (int i = 0; i < 5; i++) {
+                Message delivered = received.poll(5, TimeUnit.SECONDS);
+                assertNotNull(delivered);
+                instances.add(((ConsensusMessage) delivered).getConsensusInstance());
+            }
+            assertEquals(5, instances.size());
+            assertTrue(instances.stream().allMatch(i -> i >= firstInstance && i < firstInstance + 5));
+        }
+    }
+
+    private BlockingQueue<Message> receiveInto(Link link) {
+        BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    received.add(link.receive());
+                }
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return received;
+    }
+
     private void listen(Link link) {
         new Thread(() -> {
             try {
@@ -0,0 +1,330 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import com.google.gson.Gson;
+
+import org.junit.jupiter.api.Test;
+
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.CommitMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrePrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.RoundChangeMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ValueReplyMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ValueRequestMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.AppendMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.BalanceReply;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.BalanceRequest;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.BundleProof;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferBundle;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferReply;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferRequest;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MessageCodecTest {
+
+    // Random messages generated per (class, type)
+    private static final int SAMPLES = 50;
+
+    private final Random random = new Random(42);
+
+    // Gson output is used to compare all fields of two messages
+    private final Gson gson = new Gson();
+
+    private final List<Function<Message.Type, Message>> generators = List.of(
+            this::randomMessage,
+            this::randomConsensusMessage,
+            this::randomLedgerMessage,
+            this::randomAppendMessage,
+            this::randomHMACMessage,
+            this::randomKeyProposal);
+
+    @Test
+    public void binaryRoundTrip() {
+        roundTrip(new BinaryCodec(), new BinaryCodec());
+    }
+
+    @Test
+    public void jsonRoundTrip() {
+        roundTrip(new JsonCodec(), new JsonCodec());
+    }
+
+    @Test
+    public void binaryCodecDecodesJson() {
+        roundTrip(new JsonCodec(), new BinaryCodec());
+    }
+
+    @Test
+    public void binaryIsSmallerThanJson() {
+        ConsensusMessage message = randomConsensusMessage(Message.Type.PREPARE);
+        assertTrue(new BinaryCodec().encode(message).length < new JsonCodec().encode(message).length);
+    }
+
+    @Test
+    public void codecChosenInConfig() {
+        // As read from the config file, with and without the field
+        ProcessConfig absent = gson.fromJson("{\"id\": \"0\"}", ProcessConfig.class);
+        ProcessConfig json = gson.fromJson("{\"id\": \"0\", \"codec\": \"JSON\"}", ProcessConfig.class);
+
+        assertTrue(MessageCodec.of(absent) instanceof BinaryCodec);
+        assertTrue(absent.hasCoalescing());
+        assertTrue(MessageCodec.of(json) instanceof JsonCodec);
+    }
+
+    @Test
+    public void decodesAsTargetClass() {
+        // ACKs are plain messages, but links expect their message class
+        Message ack = randomMessage(Message.Type.ACK);
+
+        Message decoded = new BinaryCodec().decode(new BinaryCodec().encode(ack), ConsensusMessage.class);
+
+        assertTrue(decoded instanceof ConsensusMessage);
+        assertEquals(ack.getMessageId(), decoded.getMessageId());
+        assertEquals(ack.getSenderId(), decoded.getSenderId());
+    }
+
+    @Test
+    public void decodesLinkMessagesAsTheirClass() {
+        // Key proposals (and resumptions) are received by links that expect
+        // HMAC messages
+        for (MessageCodec codec : List.of(new BinaryCodec(), new JsonCodec())) {
+            for (Message.Type type : List.of(Message.Type.KEY_PROPOSAL, Message.Type.KEY_RESUMPTION)) {
+                KeyProposal proposal = randomKeyProposal(type);
+
+                Message decoded = codec.decode(codec.encode(proposal), HMACMessage.class);
+
+                assertTrue(decoded instanceof KeyProposal);
+                assertEquals(gson.toJson(proposal), gson.toJson(decoded));
+            }
+        }
+    }
+
+    @Test
+    public void signedContentSurvivesCodecs() {
+        // Signatures are over the canonical encoding, which must not depend
+        // on the wire format the message went through
+        for (MessageCodec codec : List.of(new BinaryCodec(), new JsonCodec())) {
+            for (int i = 0; i < SAMPLES; i++) {
+                ConsensusMessage message = randomConsensusMessage(Message.Type.ROUND_CHANGE);
+                ConsensusMessage decoded = (ConsensusMessage) codec.decode(codec.encode(message), ConsensusMessage.class);
+
+                assertArrayEquals(canonical(message), canonical(decoded));
+            }
+        }
+    }
+
+    @Test
+    public void roundChangeJustificationIsNotSigned() {
+        for (int i = 0; i < SAMPLES; i++) {
+            ConsensusMessage message = randomConsensusMessage(Message.Type.ROUND_CHANGE);
+            RoundChangeMessage roundChange = message.getRoundChangeMessage();
+            if (roundChange == null) {
+                // Payloads are random, not necessarily a ROUND-CHANGE
+                continue;
+            }
+            byte[] signed = canonical(message);
+
+            RoundChangeMessage stripped = new RoundChangeMessage(roundChange.getPvi(), roundChange.getPri());
+            message.setMessage(stripped);
+
+            assertArrayEquals(signed, canonical(message));
+        }
+    }
+
+    private byte[] canonical(ConsensusMessage message) {
+        BinaryWriter w = new BinaryWriter();
+        message.writeTo(w);
+        return w.toByteArray();
+    }
+
+    private void roundTrip(MessageCodec encoder, MessageCodec decoder) {
+        for (Message.Type type : Message.Type.values()) {
+            for (Function<Message.Type, Message> generator : generators) {
+                for (int i = 0; i < SAMPLES; i++) {
+                    Message message = generator.apply(type);
+                    if (!occurs(message)) {
+                        break;
+                    }
+                    // Only links set acknowledgements (never on messages inside others)
+                    message.setAckFloor(randomInt());
+                    message.setAckBitmap(random.nextLong());
+
+                    Message decoded = decoder.decode(encoder.encode(message), message.getClass());
+
+                    assertEquals(message.getClass(), decoded.getClass());
+                    assertEquals(gson.toJson(message), gson.toJson(decoded));
+                }
+            }
+        }
+    }
+
+    /*
+     * Link messages (key proposals and HMAC) are always sent as their own
+     * class, JSON relies on that to know what to decode them as
+     */
+    private boolean occurs(Message message) {
+        return switch (message.getType()) {
+            case KEY_PROPOSAL, KEY_RESUMPTION -> message instanceof KeyProposal;
+            case HMAC -> message instanceof HMACMessage;
+            default -> true;
+        };
+    }
+
+    private int randomInt() {
+        // Mostly small ids, sometimes anything (including negative)
+        return random.nextBoolean() ? random.nextInt(100) : random.nextInt();
+    }
+
+    private String randomString() {
+        if (random.nextInt(5) == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(64);
+        for (int i = 0; i < length; i++) {
+            // Includes quotes, non ASCII and multi-byte chars
+            sb.append((char) (random.nextBoolean() ? 32 + random.nextInt(95) : 160 + random.nextInt(2000)));
+        }
+        return sb.toString();
+    }
+
+    private byte[] randomBytes() {
+        if (random.nextInt(5) == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[random.nextInt(300)];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private <T extends Message> T withHeader(T message) {
+        message.setReceiver(randomInt());
+        message.setMessageId(randomInt());
+        return message;
+    }
+
+    private Message randomMessage(Message.Type type) {
+        return withHeader(new Message(randomInt(), type));
+    }
+
+    private ConsensusMessage randomConsensusMessage(Message.Type type) {
+        return randomConsensusMessage(type, 2);
+    }
+
+    /*
+     * @param depth how many levels of messages inside justifications
+     */
+    private ConsensusMessage randomConsensusMessage(Message.Type type, int depth) {
+        ConsensusMessage message = withHeader(new ConsensusMessage(randomInt(), type));
+        message.setConsensusInstance(randomInt());
+        message.setRound(randomInt());
+        message.setReplyTo(randomInt());
+        message.setReplyToMessageId(randomInt());
+        switch (random.nextInt(7)) {
+            case 0 -> {}
+            case 1 -> {
+                Optional<List<ConsensusMessage>> prepares = randomJustification(Message.Type.PREPARE, depth);
+                Optional<List<ConsensusMessage>> roundChanges = prepares.isPresent()
+                        ? Optional.of(randomJustification(Message.Type.ROUND_CHANGE, depth).orElse(List.of()))
+                        : Optional.empty();
+                message.setMessage(new PrePrepareMessage(randomString(), prepares, roundChanges));
+            }
+            case 2 -> message.setMessage(new PrepareMessage(randomString()));
+            case 3 -> message.setMessage(new CommitMessage(randomString()));
+            case 4 -> message.setMessage(new ValueRequestMessage(randomString()));
+            case 5 -> message.setMessage(new ValueReplyMessage(randomString()));
+            default -> {
+                RoundChangeMessage roundChange = new RoundChangeMessage(Optional.ofNullable(randomString()),
+                        Optional.of(randomInt()));
+                if (roundChange.getPvi().isPresent()) {
+                    roundChange.setJustification(randomJustification(Message.Type.PREPARE, depth));
+                }
+                message.setMessage(roundChange);
+            }
+        }
+        message.setSignature(randomString());
+        return message;
+    }
+
+    private Optional<List<ConsensusMessage>> randomJustification(Message.Type type, int depth) {
+        if (depth == 0 || random.nextInt(3) == 0) {
+            return Optional.empty();
+        }
+        List<ConsensusMessage> messages = new ArrayList<>();
+        int count = random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            messages.add(randomConsensusMessage(type, depth - 1));
+        }
+        return Optional.of(messages);
+    }
+
+    private LedgerMessage randomLedgerMessage(Message.Type type) {
+        LedgerMessage message = withHeader(new LedgerMessage(randomInt(), type));
+        Optional<Integer> result = random.nextBoolean() ? Optional.of(randomInt()) : Optional.empty();
+        switch (random.nextInt(6)) {
+            case 0 -> {}
+            case 1 -> message.setMessage(new TransferRequest(randomInt(), randomInt(), randomInt()));
+            case 5 -> {
+                List<TransferRequest> transfers = new ArrayList<>();
+                int count = random.nextInt(5);
+                for (int i = 0; i < count; i++) {
+                    transfers.add(new TransferRequest(randomInt(), randomInt(), randomInt()));
+                }
+                message.setMessage(new TransferBundle(transfers));
+            }
+            case 2 -> message.setMessage(new TransferReply(randomInt(), result));
+            case 3 -> message.setMessage(new BalanceRequest(randomInt()));
+            default -> message.setMessage(new BalanceReply(result, randomInt()));
+        }
+        message.setSignature(randomString());
+        message.setReplyTo(randomInt());
+        message.setReplyToMessageId(randomInt());
+        message.setSequenceNumber(randomInt());
+        if (random.nextBoolean()) {
+            List<String> path = new ArrayList<>();
+            int length = random.nextInt(4);
+            for (int i = 0; i < length; i++) {
+                path.add(randomString());
+            }
+            message.setBundleProof(new BundleProof(random.nextInt(100), random.nextInt(100), path));
+        }
+        return message;
+    }
+
+    private AppendMessage randomAppendMessage(Message.Type type) {
+        AppendMessage message = withHeader(new AppendMessage(randomInt(), type, 0));
+        message.setMessage(randomString());
+        message.setSignature(randomString());
+        message.setReplyTo(randomInt());
+        message.setReplyToMessageId(randomInt());
+        return message;
+    }
+
+    private HMACMessage randomHMACMessage(Message.Type type) {
+        HMACMessage message = withHeader(new HMACMessage(randomInt(), type, randomBytes(), randomBytes()));
+        message.setFrame(random.nextBoolean());
+        message.setFragmentCount(random.nextInt(3));
+        message.setFragmentIndex(message.isFragment() ? random.nextInt(message.getFragmentCount()) : 0);
+        message.setReplyTo(randomInt());
+        message.setReplyToMessageId(randomInt());
+        return message;
+    }
+
+    private KeyProposal randomKeyProposal(Message.Type type) {
+        KeyProposal message = withHeader(new KeyProposal(randomInt(), randomBytes(), randomString()));
+        message.setType(type);
+        message.setReplyTo(randomInt());
+        message.setReplyToMessageId(randomInt());
+        return message;
+    }
+}
@@ -0,0 +1,99 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the receive path of PerfectLink over the socket and the channel
+ * transports (packets per second and bytes allocated per packet by the
+ * receiving thread).
+ * Not a unit test, run with:
+ * mvn exec:java -pl Communication -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=pt.ulisboa.tecnico.hdsledger.communication.PerfectLinkBenchmark
+ */
+public class PerfectLinkBenchmark {
+
+    private static final int MESSAGES = 50000;
+    // Stop waiting when no message arrives for this long
+    private static final int IDLE_TIMEOUT = 1000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws InterruptedException {
+        // First round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            run("socket ", 9100 + round * 10, false);
+            run("channel", 9102 + round * 10, true);
+        }
+    }
+
+    private static void run(String name, int basePort, boolean useChannel) throws InterruptedException {
+        ProcessConfig sender = new ProcessConfig("localhost", 1, basePort, -1, 2, null, null);
+        ProcessConfig receiver = new ProcessConfig("localhost", 2, basePort + 1, -1, 2, null, null);
+        ProcessConfig[] configs = {sender, receiver};
+
+        PerfectLink senderLink = new PerfectLink(sender, basePort, configs, Message.class, false, 200, useChannel);
+        PerfectLink receiverLink = new PerfectLink(receiver, basePort + 1, configs, Message.class, false, 200,
+                useChannel);
+
+        // Drain ACKs
+        listen(senderLink, new Stats());
+
+        Stats stats = new Stats();
+        listen(receiverLink, stats);
+
+        for (int i = 0; i < MESSAGES; i++) {
+            senderLink.unreliableSend(receiver.getId(), new Message(sender.getId(), Message.Type.BALANCE_REQUEST));
+        }
+
+        long last = -1;
+        while (stats.received < MESSAGES && stats.received != last) {
+            last = stats.received;
+            Thread.sleep(IDLE_TIMEOUT);
+        }
+
+        synchronized (stats) {
+            double seconds = (stats.lastNanos - stats.firstNanos) / 1e9;
+            System.out.printf("%s: received %d/%d, %.0f packets/s, %d bytes allocated/packet%n",
+                    name, stats.received, MESSAGES, stats.received / seconds,
+                    (stats.lastAllocated - stats.firstAllocated) / Math.max(1, stats.received));
+        }
+    }
+
+    private static void listen(Link link, Stats stats) {
+        Thread listener = new Thread(() -> {
+            try {
+                while (true) {
+                    link.receive();
+                    stats.record(THREADS.getCurrentThreadAllocatedBytes());
+                }
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+            }
+        });
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    private static class Stats {
+        private volatile long received = 0;
+        private long firstNanos;
+        private long lastNanos;
+        private long firstAllocated;
+        private long lastAllocated;
+
+        synchronized void record(long allocated) {
+            long now = System.nanoTime();
+            if (received == 0) {
+                firstNanos = now;
+                firstAllocated = allocated;
+            }
+            lastNanos = now;
+            lastAllocated = allocated;
+            received++;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PerfectLinkTest {
+
+    // Max time to wait for all messages to be acknowledged
+    private static final int DELIVERY_TIMEOUT = 20000;
+
+    @Test
+    public void threadCountDoesNotGrowWithLoad() {
+        threadCountDoesNotGrowWithLoad(8090, false);
+    }
+
+    @Test
+    public void threadCountDoesNotGrowWithLoadOverChannel() {
+        threadCountDoesNotGrowWithLoad(8092, true);
+    }
+
+    private void threadCountDoesNotGrowWithLoad(int basePort, boolean useChannel) {
+        ProcessConfig processConfig1 = new ProcessConfig("localhost", 1, basePort, -1, 2, null, null);
+        ProcessConfig processConfig2 = new ProcessConfig("localhost", 2, basePort + 1, -1, 2, null, null);
+        ProcessConfig[] processConfigs = {processConfig1, processConfig2};
+
+        PerfectLink link1 = new PerfectLink(processConfig1, basePort, processConfigs, Message.class, false, 200,
+                useChannel);
+        PerfectLink link2 = new PerfectLink(processConfig2, basePort + 1, processConfigs, Message.class, false, 200,
+                useChannel);
+
+        // Received messages are only taken from the inbox by the receive loop
+        listen(link1);
+        listen(link2);
+
+        int baseline = Thread.activeCount();
+
+        int peakSmall = burst(link1, processConfig1.getId(), processConfig2.getId(), 50);
+        int peakLarge = burst(link1, processConfig1.getId(), processConfig2.getId(), 1000);
+
+        // 20x the messages must not mean more threads: only the shared
+        // timer and sender pool may have been created
+        assertTrue(peakLarge - baseline <= 8,
+                String.format("thread count grew from %d to %d", baseline, peakLarge));
+        assertTrue(peakLarge <= peakSmall + 4,
+                String.format("thread count grew from %d to %d", peakSmall, peakLarge));
+    }
+
+    @Test
+    public void everyMessageIsAcknowledged() {
+        ProcessConfig processConfig1 = new ProcessConfig("localhost", 1, 8094, -1, 2, null, null);
+        ProcessConfig processConfig2 = new ProcessConfig("localhost", 2, 8095, -1, 2, null, null);
+        ProcessConfig[] processConfigs = {processConfig1, processConfig2};
+
+        PerfectLink link1 = new PerfectLink(processConfig1, 8094, processConfigs, Message.class);
+        PerfectLink link2 = new PerfectLink(processConfig2, 8095, processConfigs, Message.class);
+        listen(link1);
+        listen(link2);
+
+        // Consensus messages used to only be acknowledged by replies
+        for (Message.Type type : List.of(Message.Type.PRE_PREPARE, Message.Type.PREPARE, Message.Type.COMMIT,
+                Message.Type.ROUND_CHANGE)) {
+            link1.send(processConfig2.getId(), new Message(processConfig1.getId(), type));
+        }
+        // Traffic in both directions, so that SACKs are also piggybacked
+        for (int i = 0; i < 100; i++) {
+            link1.send(processConfig2.getId(), new Message(processConfig1.getId(), Message.Type.PREPARE));
+            link2.send(processConfig1.getId(), new Message(processConfig2.getId(), Message.Type.PREPARE));
+        }
+
+        waitForAcks(link1);
+        waitForAcks(link2);
+    }
+
+    @Test
+    public void receiveIsInterruptible() throws InterruptedException {
+        receiveIsInterruptible(8096, false);
+        receiveIsInterruptible(8097, true);
+    }
+
+    private void receiveIsInterruptible(int port, boolean useChannel) throws InterruptedException {
+        ProcessConfig processConfig = new ProcessConfig("localhost", 1, port, -1, 1, null, null);
+        PerfectLink link = new PerfectLink(processConfig, port, new ProcessConfig[] {processConfig}, Message.class,
+                false, 200, useChannel);
+
+        AtomicBoolean interrupted = new AtomicBoolean(false);
+        Thread listener = new Thread(() -> {
+            try {
+                link.receive();
+            } catch (InterruptedIOException e) {
+                interrupted.set(true);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        listener.start();
+
+        Thread.sleep(100);
+        listener.interrupt();
+        listener.join(2000);
+
+        assertFalse(listener.isAlive());
+        assertTrue(interrupted.get());
+    }
+
+    @Test
+    public void messagesToSelfDontWaitForTheNetwork() throws InterruptedException {
+        messagesToSelfDontWaitForTheNetwork(8098, false);
+        messagesToSelfDontWaitForTheNetwork(8099, true);
+    }
+
+    private void messagesToSelfDontWaitForTheNetwork(int port, boolean useChannel) throws InterruptedException {
+        ProcessConfig processConfig = new ProcessConfig("localhost", 1, port, -1, 1, null, null);
+        PerfectLink link = new PerfectLink(processConfig, port, new ProcessConfig[] {processConfig}, Message.class,
+                false, 200, useChannel);
+
+        BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        Thread listener = new Thread(() -> {
+            try {
+                while (true) {
+                    received.add(link.receive());
+                }
+            } catch (IOException e) {
+                // Interrupted
+            }
+        });
+        listener.start();
+
+        // The receiver is already blocked, and no datagram will ever arrive
+        Thread.sleep(200);
+        link.send(processConfig.getId(), new Message(processConfig.getId(), Message.Type.PREPARE));
+
+        Message delivered = received.poll(1, TimeUnit.SECONDS);
+        assertNotNull(delivered);
+        assertEquals(Message.Type.PREPARE, delivered.getType());
+
+        listener.interrupt();
+        listener.join(2000);
+    }
+
+    /*
+     * Sends count messages and waits for all of them to be acknowledged
+     *
+     * @return peak number of live threads while sending
+     */
+    private int burst(PerfectLink link, int sender, int destination, int count) {
+        int peak = Thread.activeCount();
+
+        for (int i = 0; i < count; i++) {
+            link.send(destination, new Message(sender, Message.Type.BALANCE_REQUEST));
+            peak = Math.max(peak, Thread.activeCount());
+        }
+
+        return Math.max(peak, waitForAcks(link));
+    }
+
+    /*
+     * Waits for all messages sent by link to be acknowledged
+     *
+     * @return peak number of live threads while waiting
+     */
+    private int waitForAcks(PerfectLink link) {
+        int peak = Thread.activeCount();
+
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT;
+        while (link.pendingAcks() > 0 && System.currentTimeMillis() < deadline) {
+            peak = Math.max(peak, Thread.activeCount());
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        assertEquals(0, link.pendingAcks());
+        return peak;
+    }
+
+    private void listen(Link link) {
+        Thread listener = new Thread(() -> {
+            try {
+                while (true) {
+                    link.receive();
+                }
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+            }
+        });
+        listener.setDaemon(true);
+        listener.start();
+    }
+}
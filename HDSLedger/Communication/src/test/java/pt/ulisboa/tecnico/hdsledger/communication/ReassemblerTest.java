@@ -0,0 +1,113 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReassemblerTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void splitsOnlyBigMessages() {
+        assertFalse(Reassembler.needsSplit(message(Reassembler.FRAGMENT_SIZE)));
+        assertTrue(Reassembler.needsSplit(message(Reassembler.FRAGMENT_SIZE + 1)));
+
+        List<byte[]> fragments = Reassembler.split(message(2 * Reassembler.FRAGMENT_SIZE + 10));
+        assertEquals(3, fragments.size());
+        assertEquals(10, fragments.get(2).length);
+
+        assertThrows(HDSSException.class, () -> Reassembler.split(message(Reassembler.DEFAULT_MAX_BUFFERED + 1)));
+    }
+
+    @Test
+    public void reassemblesInAnyOrder() {
+        Reassembler reassembler = new Reassembler();
+        byte[] message = message(5 * Reassembler.FRAGMENT_SIZE + 123);
+        List<byte[]> fragments = Reassembler.split(message);
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < fragments.size(); i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, random);
+        // Retransmitted fragments are kept once
+        order.add(order.get(0));
+
+        for (int index : order.subList(0, order.size() - 2)) {
+            assertTrue(reassembler.add(1, 10, index, fragments.size(), fragments.get(index)));
+            assertNull(reassembler.complete(1, 10));
+        }
+        for (int index : order.subList(order.size() - 2, order.size())) {
+            assertTrue(reassembler.add(1, 10, index, fragments.size(), fragments.get(index)));
+        }
+
+        assertArrayEquals(message, reassembler.complete(1, 10));
+        assertEquals(0, reassembler.pendingCount());
+        assertEquals(0, reassembler.reservedBytes(1));
+    }
+
+    @Test
+    public void memoryIsCappedPerSender() {
+        // Room for two messages of two fragments
+        Reassembler reassembler = new Reassembler(4L * Reassembler.FRAGMENT_SIZE, Reassembler.DEFAULT_TIMEOUT);
+        byte[] fragment = message(Reassembler.FRAGMENT_SIZE);
+
+        assertTrue(reassembler.add(1, 0, 0, 2, fragment));
+        assertTrue(reassembler.add(1, 2, 0, 2, fragment));
+        // No room for a third message from the same sender...
+        assertFalse(reassembler.add(1, 4, 0, 2, fragment));
+        // ...but the ones already started can finish
+        assertTrue(reassembler.add(1, 0, 1, 2, fragment));
+        assertEquals(2 * Reassembler.FRAGMENT_SIZE, reassembler.complete(1, 0).length);
+        assertTrue(reassembler.add(1, 4, 0, 2, fragment));
+
+        // Other senders have their own room
+        assertTrue(reassembler.add(2, 0, 0, 2, fragment));
+    }
+
+    @Test
+    public void abandonedMessagesExpire() throws InterruptedException {
+        Reassembler reassembler = new Reassembler(Reassembler.DEFAULT_MAX_BUFFERED, 50);
+        byte[] fragment = message(Reassembler.FRAGMENT_SIZE);
+
+        assertTrue(reassembler.add(1, 0, 0, 2, fragment));
+        Thread.sleep(100);
+        assertTrue(reassembler.add(2, 0, 0, 2, fragment));
+
+        assertEquals(1, reassembler.pendingCount());
+        assertEquals(0, reassembler.reservedBytes(1));
+    }
+
+    @Test
+    public void rejectsMalformedFragments() {
+        Reassembler reassembler = new Reassembler();
+        byte[] fragment = message(10);
+
+        assertFalse(reassembler.add(1, 0, 2, 2, fragment));
+        assertFalse(reassembler.add(1, 0, -1, 2, fragment));
+        assertFalse(reassembler.add(1, 0, 0, 2, message(Reassembler.FRAGMENT_SIZE + 1)));
+        assertFalse(reassembler.add(1, 0, 0, 2, null));
+        // Fragments of the same message must agree on the count
+        assertTrue(reassembler.add(1, 0, 0, 2, fragment));
+        assertFalse(reassembler.add(1, 0, 1, 3, fragment));
+    }
+
+    private byte[] message(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,100 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReceiveWindowTest {
+
+    private final BlockingQueue<Integer> standaloneAcks = new LinkedBlockingQueue<>();
+
+    private final ReceiveWindow window = new ReceiveWindow(List.of(1, 2), standaloneAcks::add);
+
+    @Test
+    public void sackHasFloorAndBitmap() {
+        for (int id : List.of(0, 1, 2, 4, 7)) {
+            assertTrue(window.receive(1, id));
+        }
+
+        Message message = stamp(1);
+
+        assertEquals(2, message.getAckFloor());
+        // 4 and 7 are floor + 1 + 1 and floor + 1 + 4
+        assertEquals((1L << 1) | (1L << 4), message.getAckBitmap());
+    }
+
+    @Test
+    public void sackIsPerNode() {
+        window.receive(1, 0);
+
+        Message message = stamp(2);
+
+        assertEquals(-1, message.getAckFloor());
+        assertEquals(0, message.getAckBitmap());
+    }
+
+    @Test
+    public void duplicatesAreDetected() {
+        assertTrue(window.receive(1, 0));
+        assertTrue(window.receive(1, 5));
+
+        assertFalse(window.receive(1, 0));
+        assertFalse(window.receive(1, 5));
+        assertTrue(window.receive(2, 0));
+    }
+
+    @Test
+    public void standaloneAckWithoutReverseTraffic() throws InterruptedException {
+        window.receive(1, 0);
+        window.receive(1, 1);
+
+        // A single ACK for both messages
+        assertEquals(1, standaloneAcks.poll(5, TimeUnit.SECONDS));
+        assertNull(standaloneAcks.poll(ReceiveWindow.ACK_DELAY * 5, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void piggybackedAckReplacesStandaloneAck() throws InterruptedException {
+        window.receive(1, 0);
+        stamp(1);
+
+        assertNull(standaloneAcks.poll(ReceiveWindow.ACK_DELAY * 5, TimeUnit.MILLISECONDS));
+
+        // Duplicates are acknowledged again
+        window.receive(1, 0);
+        assertNotNull(standaloneAcks.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sackStopsRetransmissions() {
+        RetransmissionScheduler scheduler = new RetransmissionScheduler(id -> false, RttEstimator.MAX_RTO);
+        for (int id = 0; id < 10; id++) {
+            scheduler.schedule(1, id, () -> {});
+            scheduler.schedule(2, id, () -> {});
+        }
+        for (int id : List.of(0, 1, 2, 3, 5, 7)) {
+            window.receive(1, id);
+        }
+
+        Message message = stamp(1);
+        scheduler.acknowledge(1, message.getAckFloor(), message.getAckBitmap());
+
+        // 4, 6, 8 and 9 to node 1, and everything to node 2
+        assertEquals(4 + 10, scheduler.pendingCount());
+    }
+
+    private Message stamp(int nodeId) {
+        Message message = new Message(0, Message.Type.PREPARE);
+        window.stamp(nodeId, message);
+        return message;
+    }
+}
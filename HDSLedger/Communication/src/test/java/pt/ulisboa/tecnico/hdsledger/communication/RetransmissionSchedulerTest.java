@@ -0,0 +1,120 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RetransmissionSchedulerTest {
+
+    // Lossy channel: each datagram (message or ACK) is dropped with
+    // probability LOSS, the others arrive after DELAY milliseconds
+    private static final double LOSS = 0.1;
+    private static final int DELAY = 1;
+
+    // Messages sent through the channel, one every INTERVAL milliseconds
+    private static final int MESSAGES = 400;
+    private static final int INTERVAL = 2;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void adaptiveTimeoutLowersTailLatency() throws InterruptedException {
+        double fixed = p99Latency(new RetransmissionScheduler(id -> false, 200, false));
+        double adaptive = p99Latency(new RetransmissionScheduler(id -> false, 200));
+
+        assertTrue(adaptive < fixed,
+                String.format("p99 delivery latency: adaptive %.1f ms, fixed %.1f ms", adaptive, fixed));
+    }
+
+    @Test
+    public void rtoIsBounded() {
+        RttEstimator estimator = new RttEstimator(200);
+
+        for (int i = 0; i < 100; i++) {
+            estimator.sample(0.1);
+        }
+        assertEquals(RttEstimator.MIN_RTO, estimator.getRto());
+
+        for (int i = 0; i < 100; i++) {
+            estimator.sample(60000);
+        }
+        assertEquals(RttEstimator.MAX_RTO, estimator.getRto());
+    }
+
+    @Test
+    public void rtoFollowsRtt() {
+        RttEstimator estimator = new RttEstimator(RttEstimator.MAX_RTO);
+
+        for (int i = 0; i < 100; i++) {
+            estimator.sample(100);
+        }
+
+        // Steady RTT: no variance left
+        assertEquals(100, estimator.getSrtt(), 1);
+        assertTrue(estimator.getRto() >= 100 && estimator.getRto() < 110);
+    }
+
+    @Test
+    public void retransmittedMessagesAreNotSampled() throws InterruptedException {
+        RetransmissionScheduler scheduler = new RetransmissionScheduler(id -> false, 100);
+        scheduler.schedule(1, 0, () -> {});
+
+        // Retransmitted once, then acknowledged
+        Thread.sleep(150);
+        scheduler.acknowledge(1, 0);
+        assertEquals(100, scheduler.getRto(1));
+
+        // Acknowledged right away
+        scheduler.schedule(1, 1, () -> {});
+        scheduler.acknowledge(1, 1);
+        assertEquals(RttEstimator.MIN_RTO, scheduler.getRto(1));
+    }
+
+    /*
+     * Sends MESSAGES through the lossy channel
+     *
+     * @return 99th percentile of the time until a message (any of its
+     * copies) is delivered, in milliseconds
+     */
+    private double p99Latency(RetransmissionScheduler scheduler) throws InterruptedException {
+        long[] latencies = new long[MESSAGES];
+        CountDownLatch delivered = new CountDownLatch(MESSAGES);
+
+        for (int i = 0; i < MESSAGES; i++) {
+            int messageId = i;
+            long start = System.nanoTime();
+            AtomicBoolean arrived = new AtomicBoolean(false);
+
+            scheduler.schedule(1, messageId, () -> transmit(() -> {
+                if (arrived.compareAndSet(false, true)) {
+                    latencies[messageId] = System.nanoTime() - start;
+                    delivered.countDown();
+                }
+                transmit(() -> scheduler.acknowledge(1, messageId));
+            }));
+            Thread.sleep(INTERVAL);
+        }
+
+        assertTrue(delivered.await(60, TimeUnit.SECONDS));
+        Arrays.sort(latencies);
+        return latencies[(int) (MESSAGES * 0.99)] / 1e6;
+    }
+
+    // Datagram through the lossy channel
+    private void transmit(Runnable arrival) {
+        boolean dropped;
+        synchronized (random) {
+            dropped = random.nextDouble() < LOSS;
+        }
+        if (!dropped) {
+            RetransmissionScheduler.executeLater(arrival, DELAY);
+        }
+    }
+}
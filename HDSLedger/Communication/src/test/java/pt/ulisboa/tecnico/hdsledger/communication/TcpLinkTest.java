@@ -0,0 +1,184 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.pki.RSAKeyGenerator;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TcpLinkTest {
+
+    private static final String[] PRIV_KEY_PATHS = {"/tmp/node1.priv", "/tmp/node2.priv"};
+    private static final String[] PUB_KEY_PATHS = {"/tmp/node1.pub", "/tmp/node2.pub"};
+
+    @BeforeAll
+    public static void generateKeys() throws GeneralSecurityException, IOException {
+        for (int i = 0; i < 2; i++) {
+            try {
+                RSAKeyGenerator.read(PRIV_KEY_PATHS[i], "priv");
+                RSAKeyGenerator.read(PUB_KEY_PATHS[i], "pub");
+            } catch (Exception e) {
+                RSAKeyGenerator.write(PRIV_KEY_PATHS[i], PUB_KEY_PATHS[i]);
+            }
+        }
+    }
+
+    @Test
+    public void deliversInOrder() throws InterruptedException {
+        ProcessConfig[] configs = configs(9080);
+        TcpLink link1 = new TcpLink(configs[0], 9080, configs, ConsensusMessage.class);
+        TcpLink link2 = new TcpLink(configs[1], 9081, configs, ConsensusMessage.class);
+        BlockingQueue<Message> received = listen(link2);
+
+        int count = 200;
+        for (int i = 0; i < count; i++) {
+            link1.send(2, prepare(i, "value"));
+        }
+
+        for (int i = 0; i < count; i++) {
+            Message delivered = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(delivered);
+            assertEquals(i, ((ConsensusMessage) delivered).getConsensusInstance());
+        }
+        waitForAcks(link1);
+    }
+
+    @Test
+    public void reconnectsUntilPeerIsUp() throws InterruptedException {
+        ProcessConfig[] configs = configs(9082);
+        TcpLink link1 = new TcpLink(configs[0], 9082, configs, ConsensusMessage.class);
+
+        // Nobody is listening yet
+        link1.send(2, prepare(1, "value"));
+        Thread.sleep(200);
+
+        TcpLink link2 = new TcpLink(configs[1], 9083, configs, ConsensusMessage.class);
+        BlockingQueue<Message> received = listen(link2);
+
+        Message delivered = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(delivered);
+        assertEquals(1, ((ConsensusMessage) delivered).getConsensusInstance());
+        waitForAcks(link1);
+    }
+
+    @Test
+    public void deliversBigMessages() throws InterruptedException {
+        ProcessConfig[] configs = configs(9084);
+        TcpLink link1 = new TcpLink(configs[0], 9084, configs, ConsensusMessage.class);
+        TcpLink link2 = new TcpLink(configs[1], 9085, configs, ConsensusMessage.class);
+        BlockingQueue<Message> received = listen(link2);
+
+        String value = "v".repeat(1024 * 1024);
+        link1.send(2, prepare(1, value));
+
+        Message delivered = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(delivered);
+        assertEquals(value, ((ConsensusMessage) delivered).getPrepareMessage().getDigest());
+    }
+
+    @Test
+    public void deliversAfterSenderRestarts() throws InterruptedException {
+        ProcessConfig[] configs = configs(9088);
+        TcpLink link1 = new TcpLink(configs[0], 9088, configs, ConsensusMessage.class);
+        TcpLink link2 = new TcpLink(configs[1], 9089, configs, ConsensusMessage.class);
+        BlockingQueue<Message> received2 = listen(link2);
+
+        for (int i = 0; i < 3; i++) {
+            link1.send(2, prepare(i, "value"));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(received2.poll(5, TimeUnit.SECONDS));
+        }
+        waitForAcks(link1);
+
+        // Restarted, its message ids start over
+        link1.close();
+        TcpLink restarted = new TcpLink(configs[0], 9088, configs, ConsensusMessage.class);
+        BlockingQueue<Message> received1 = listen(restarted);
+        restarted.send(2, prepare(10, "value"));
+
+        Message delivered = received2.poll(5, TimeUnit.SECONDS);
+        assertNotNull(delivered);
+        assertEquals(10, ((ConsensusMessage) delivered).getConsensusInstance());
+        waitForAcks(restarted);
+
+        // And the other way around
+        link2.send(1, prepare(11, "value"));
+        delivered = received1.poll(5, TimeUnit.SECONDS);
+        assertNotNull(delivered);
+        assertEquals(11, ((ConsensusMessage) delivered).getConsensusInstance());
+
+        restarted.close();
+        link2.close();
+    }
+
+    @Test
+    public void ignoresUnauthenticatedConnections() throws IOException, InterruptedException {
+        ProcessConfig[] configs = configs(9086);
+        TcpLink link2 = new TcpLink(configs[1], 9087, configs, ConsensusMessage.class);
+        BlockingQueue<Message> received = listen(link2);
+
+        // A message without a key proposal first
+        try (Socket socket = new Socket("localhost", 9087)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] frame = new BinaryCodec().encode(prepare(1, "value"));
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.flush();
+        }
+
+        assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    private ProcessConfig[] configs(int port) {
+        return new ProcessConfig[] {
+            new ProcessConfig("localhost", 1, port, -1, 4, PUB_KEY_PATHS[0], PRIV_KEY_PATHS[0]),
+            new ProcessConfig("localhost", 2, port + 1, -1, 4, PUB_KEY_PATHS[1], PRIV_KEY_PATHS[1])
+        };
+    }
+
+    private ConsensusMessage prepare(int instance, String value) {
+        ConsensusMessage message = new ConsensusMessage(1, Message.Type.PREPARE);
+        message.setConsensusInstance(instance);
+        message.setMessage(new PrepareMessage(value));
+        return message;
+    }
+
+    private BlockingQueue<Message> listen(Link link) {
+        BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    received.add(link.receive());
+                }
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return received;
+    }
+
+    private void waitForAcks(TcpLink link) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (link.pendingAcks() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, link.pendingAcks());
+    }
+}
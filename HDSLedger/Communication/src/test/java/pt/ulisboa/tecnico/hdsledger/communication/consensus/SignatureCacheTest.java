@@ -0,0 +1,87 @@
+package pt.ulisboa.tecnico.hdsledger.communication.consensus;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.hdsledger.pki.RSAKeyGenerator;
+import pt.ulisboa.tecnico.hdsledger.pki.SignatureEngine;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SignatureCacheTest {
+
+    private static final String PUB_KEY_PATH = "/tmp/sigcache.pub";
+    private static final String PRIV_KEY_PATH = "/tmp/sigcache.priv";
+
+    @BeforeAll
+    public static void generateKeys() throws IOException, GeneralSecurityException {
+        RSAKeyGenerator.write(PRIV_KEY_PATH, PUB_KEY_PATH);
+    }
+
+    private static String sign(String data) {
+        return SignatureEngine.signToString(data.getBytes(), PRIV_KEY_PATH);
+    }
+
+    @Test
+    public void verifiesOnlyOnce() {
+        SignatureCache cache = new SignatureCache(16);
+        String signature = sign("prepare");
+
+        assertTrue(cache.verify(0, "prepare".getBytes(), signature, PUB_KEY_PATH));
+        assertTrue(cache.verify(0, "prepare".getBytes(), signature, PUB_KEY_PATH));
+        assertTrue(cache.verify(0, "prepare".getBytes(), signature, PUB_KEY_PATH));
+
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void failuresAreNotRemembered() {
+        SignatureCache cache = new SignatureCache(16);
+        String signature = sign("prepare");
+
+        assertFalse(cache.verify(0, "commit".getBytes(), signature, PUB_KEY_PATH));
+        assertFalse(cache.verify(0, "commit".getBytes(), signature, PUB_KEY_PATH));
+        assertFalse(cache.verify(0, "prepare".getBytes(), null, PUB_KEY_PATH));
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        // A verified signature doesn't vouch for other signers
+        assertTrue(cache.verify(0, "prepare".getBytes(), signature, PUB_KEY_PATH));
+        assertFalse(cache.verify(0, "prepare".getBytes(), signature, "/tmp/missing.pub"));
+    }
+
+    @Test
+    public void decidedInstancesAreForgotten() {
+        SignatureCache cache = new SignatureCache(16);
+        for (int instance = 0; instance < 3; instance++) {
+            String data = "prepare " + instance;
+            cache.verify(instance, data.getBytes(), sign(data), PUB_KEY_PATH);
+        }
+
+        cache.forgetUpTo(1);
+
+        assertEquals(1, cache.size());
+        cache.verify(2, "prepare 2".getBytes(), sign("prepare 2"), PUB_KEY_PATH);
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void oldestInstancesAreEvictedFirst() {
+        SignatureCache cache = new SignatureCache(2);
+        for (int instance = 0; instance < 3; instance++) {
+            String data = "prepare " + instance;
+            cache.verify(instance, data.getBytes(), sign(data), PUB_KEY_PATH);
+        }
+
+        assertEquals(2, cache.size());
+        cache.verify(1, "prepare 1".getBytes(), sign("prepare 1"), PUB_KEY_PATH);
+        cache.verify(2, "prepare 2".getBytes(), sign("prepare 2"), PUB_KEY_PATH);
+        cache.verify(0, "prepare 0".getBytes(), sign("prepare 0"), PUB_KEY_PATH);
+        assertEquals(2, cache.getHits());
+    }
+}
@@ -0,0 +1,94 @@
+package pt.ulisboa.tecnico.hdsledger.consensus;
+
+import java.util.Arrays;
+
+/*
+ * First timeout that follows how long recent instances took to decide: a
+ * multiple of a percentile of the last decisions in the first round,
+ * within bounds, doubled on every later round.
+ * Only decisions in the first round are counted, so the instances stalled
+ * by a crashed leader don't stretch the timeout (which would make the
+ * next ones stall longer).
+ * Until there are enough decisions, the first timeout is the initial one.
+ * Thread-safe.
+ */
+public class AdaptiveTimeout implements TimeoutPolicy {
+
+	// Decisions kept
+	public static final int DEFAULT_WINDOW = 64;
+	// Decisions needed before leaving the initial timeout
+	public static final int DEFAULT_MIN_SAMPLES = 8;
+	public static final double DEFAULT_PERCENTILE = 0.9;
+	// With ReputationLeader: a leader that is slow in the instances it leads
+	// (1/N of them) doesn't stretch the median, so it times out (which is
+	// what ReputationLeader sees)
+	public static final double REPUTATION_PERCENTILE = 0.5;
+	public static final int DEFAULT_MULTIPLIER = 4;
+	// Milliseconds
+	public static final int DEFAULT_MIN_TIMEOUT = 50;
+	public static final int DEFAULT_MAX_TIMEOUT = 10000;
+
+	private final int minSamples;
+	private final double percentile;
+	private final int multiplier;
+	private final int minTimeout;
+	private final int maxTimeout;
+
+	// Latencies of the last decisions (circular)
+	// Guarded by this
+	private final long[] latencies;
+	private int count = 0;
+	private int next = 0;
+
+	// First timeout, updated on every decision
+	// Guarded by this
+	private int first;
+
+	public AdaptiveTimeout(int initial) {
+		this(initial, DEFAULT_PERCENTILE);
+	}
+
+	public AdaptiveTimeout(int initial, double percentile) {
+		this(initial, DEFAULT_WINDOW, DEFAULT_MIN_SAMPLES, percentile, DEFAULT_MULTIPLIER,
+				DEFAULT_MIN_TIMEOUT, DEFAULT_MAX_TIMEOUT);
+	}
+
+	public AdaptiveTimeout(int initial, int window, int minSamples, double percentile, int multiplier,
+			int minTimeout, int maxTimeout) {
+		this.latencies = new long[Math.max(1, window)];
+		this.minSamples = Math.max(1, Math.min(minSamples, this.latencies.length));
+		this.percentile = percentile;
+		this.multiplier = multiplier;
+		this.minTimeout = minTimeout;
+		this.maxTimeout = maxTimeout;
+		this.first = initial;
+	}
+
+	public synchronized int getTimeout(int round) {
+		// Exponential backoff (saturates instead of overflowing)
+		return (int) Math.min(Integer.MAX_VALUE, (long) first << Math.min(round, 32));
+	}
+
+	public synchronized void recordDecision(long latency) {
+		latencies[next] = latency;
+		next = (next + 1) % latencies.length;
+		count = Math.min(count + 1, latencies.length);
+
+		if (count < minSamples) {
+			return;
+		}
+
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		int index = Math.max(0, (int) Math.ceil(percentile * count) - 1);
+		long timeout = sorted[index] * multiplier;
+		first = (int) Math.max(minTimeout, Math.min(maxTimeout, timeout));
+	}
+
+	/**
+	 * Returns the timeout of the first round (for logging)
+	 */
+	public synchronized int getFirstTimeout() {
+		return first;
+	}
+}
@@ -0,0 +1,24 @@
+package pt.ulisboa.tecnico.hdsledger.consensus;
+
+/*
+ * Same first timeout for every instance, doubled on every round
+ * Thread-safe.
+ */
+public class FixedTimeout implements TimeoutPolicy {
+
+	// Milliseconds of the first round
+	private final int initial;
+
+	public FixedTimeout(int initial) {
+		this.initial = initial;
+	}
+
+	public int getTimeout(int round) {
+		// Exponential backoff
+		return (1 << round) * initial;
+	}
+
+	public void recordDecision(long latency) {
+		// nop
+	}
+}
@@ -5,10 +5,16 @@ import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrePrepareMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrepareMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.CommitMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.RoundChangeMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.SignatureCache;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ValueReplyMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ValueRequestMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.Message;
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.builder.ConsensusMessageBuilder;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry;
+import pt.ulisboa.tecnico.hdsledger.pki.PrivateIdentity;
 import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
 import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
+import pt.ulisboa.tecnico.hdsledger.utilities.ParallelVerifier;
 
 import java.text.MessageFormat;
 import java.util.Optional;
@@ -24,6 +30,7 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.stream.Collectors;
 import java.util.function.Consumer;
+import java.util.function.BiPredicate;
 import java.util.function.Predicate;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -54,6 +61,13 @@ public class Istanbul {
 	// Other processes configuration (includes its id)
 	private final List<ProcessConfig> others;
 
+	// Public keys of the other processes, decoded once (by id)
+	private final IdentityRegistry identities;
+
+	// This process, with its private key (resolved once, see
+	// IdentityRegistry.self)
+	private final PrivateIdentity identity;
+
 	// The identifier of the consensus instance
 	private final int lambda;
 
@@ -63,7 +77,7 @@ public class Istanbul {
 	// The round at which the process has prepared
 	private Optional<Integer> pri;
 
-	// The value for which the process has prepared
+	// The value for which the process has prepared (its digest)
 	private Optional<String> pvi;
 
 	// The set of messages that justify my prepared state
@@ -102,6 +116,18 @@ public class Istanbul {
 	// Decided value
 	private Optional<String> decision;
 
+	// Values of this instance by digest (PREPAREs, COMMITs and ROUND-CHANGEs
+	// only carry the digest, the value comes in the PRE-PREPARE)
+	private final Map<String, String> values = new HashMap<>();
+
+	// Digests whose value was asked for with VALUE-REQUEST (only replies to
+	// these are kept)
+	private final Set<String> requestedValues = new HashSet<>();
+
+	// Digest decided on while its value was missing (delivered once a
+	// VALUE-REPLY brings it)
+	private Optional<String> pendingDecision = Optional.empty();
+
 	// PRE-PREPARE messages from future rounds (round -> list of messages)
 	private Map<Integer, List<ConsensusMessage>> stashedPrePrepare = new HashMap<>();
 
@@ -111,6 +137,16 @@ public class Istanbul {
 	// Timer required by IBFT
 	private Optional<Timer> timer = Optional.empty();
 
+	// Timeout of each round
+	private TimeoutPolicy timeoutPolicy = new FixedTimeout(INITIAL_TIMEOUT);
+
+	// When the timer of the first round was started (nanoseconds, to tell
+	// the timeout policy how long deciding took)
+	private Optional<Long> firstRoundStart = Optional.empty();
+
+	// Leader of each round
+	private LeaderPolicy leaderPolicy;
+
 	// Round for which have Pre Prepared
 	private Set<Integer> havePrePrepared = new HashSet<>();
 
@@ -123,10 +159,31 @@ public class Istanbul {
 	//	- if there's an empty entry for r, timer stopped
 	// private Map<Integer, Optional<Integer>> roundTimerId = new HashMap<>();
 
-	// Validity verifying function (should not depend on instance state)
-	private Predicate<String> beta;
+	// Validity verifying function (should not depend on instance state),
+	// given the value and the replica that proposed it, if it's a fresh one
+	// (i.e. the PRE-PREPARE doesn't re-propose a prepared value)
+	private BiPredicate<String, Optional<Integer>> beta;
 
 	public Istanbul(List<ProcessConfig> others, ProcessConfig config, int lambda, Predicate<String> beta) {
+		this(others, IdentityRegistry.of(others), config, lambda, (value, proposer) -> beta.test(value));
+	}
+
+	public Istanbul(List<ProcessConfig> others, ProcessConfig config, int lambda,
+			BiPredicate<String, Optional<Integer>> beta) {
+		this(others, IdentityRegistry.of(others), config, lambda, beta);
+	}
+
+	private Istanbul(List<ProcessConfig> others, IdentityRegistry identities, ProcessConfig config, int lambda,
+			BiPredicate<String, Optional<Integer>> beta) {
+		this(others, identities, identities.self(config), config, lambda, beta);
+	}
+
+	/**
+	 * @param identities identities of others, shared by every instance
+	 * @param identity this process (config), shared by every instance
+	 */
+	public Istanbul(List<ProcessConfig> others, IdentityRegistry identities, PrivateIdentity identity,
+			ProcessConfig config, int lambda, BiPredicate<String, Optional<Integer>> beta) {
 		int n = config.getN();
 		int f = Math.floorDiv(n - 1, 3);
 		this.quorumSize = Math.floorDiv(n + f, 2) + 1; // works because 4f+1 is odd
@@ -135,6 +192,8 @@ public class Istanbul {
 		this.lambda = lambda;
 		this.config = config;
 		this.others = others;
+		this.identities = identities;
+		this.identity = identity;
 		this.beta = beta;
 
 		this.ri = FIRST_ROUND;
@@ -149,6 +208,8 @@ public class Istanbul {
 		this.commitMessages = new MessageBucket(n);
 		this.roundChangeMessages = new MessageBucket(n);
 
+		this.leaderPolicy = new RoundRobinLeader(n);
+
 		this.messageHandler = (m -> this.normalHandleMessage(m));
 
 		LOGGER.log(Level.INFO, MessageFormat.format("{0} - Public key at {1} and private key at {2}",
@@ -166,12 +227,27 @@ public class Istanbul {
 		this.timer = Optional.of(timer);
 	}
 
+	/**
+	 * Sets how long rounds last (fixed INITIAL_TIMEOUT, doubled every round,
+	 * if not set)
+	 */
+	public synchronized void setTimeoutPolicy(TimeoutPolicy timeoutPolicy) {
+		this.timeoutPolicy = timeoutPolicy;
+	}
+
+	/**
+	 * Sets who leads each round (round robin, if not set)
+	 * Must be set before the instance starts or handles any message
+	 */
+	public synchronized void setLeaderPolicy(LeaderPolicy leaderPolicy) {
+		this.leaderPolicy = leaderPolicy;
+	}
+
 	/**
 	 * Encapsulates timer schedule (in paper represented by function t)
 	 */
 	private int getTimeout(int round) {
-		// Exponential backoff
-		return (1 << round) * INITIAL_TIMEOUT;
+		return this.timeoutPolicy.getTimeout(round);
 	}
 
 	/**
@@ -196,6 +272,9 @@ public class Istanbul {
 			LOGGER.log(Level.WARNING, MessageFormat.format("{0} - Starting timer for round {1} that expires in {2} milliseconds",
 						config.getId(), this.lambda, timeout));
 			this.timer.get().setTimerToRunning(this.ri, timeout);
+			if (this.ri == FIRST_ROUND && this.firstRoundStart.isEmpty()) {
+				this.firstRoundStart = Optional.of(System.nanoTime());
+			}
 		} else {
 			LOGGER.log(Level.WARNING, MessageFormat.format("{0} - No timer available - liveness cannot be guaranteed",
 						config.getId(), this.lambda));
@@ -225,7 +304,7 @@ public class Istanbul {
 		ConsensusMessage consensusMessage = new ConsensusMessageBuilder(this.config.getId(), Message.Type.PRE_PREPARE)
 			.setConsensusInstance(instance)
 			.setRound(round)
-			.setMessage(prePrepareMessage.toJson())
+			.setMessage(prePrepareMessage)
 			.setReceiver(receiver)
 			.build();
 
@@ -237,12 +316,12 @@ public class Istanbul {
 	 */
 
 	private ConsensusMessage createPrepareMessage(PrePrepareMessage prePrepareMessage, String value, int instance, int round, int receiver, int senderId, int senderMessageId) {
-		PrepareMessage prepareMessage = new PrepareMessage(prePrepareMessage.getValue());
+		PrepareMessage prepareMessage = new PrepareMessage(prePrepareMessage.getDigest());
 
 		ConsensusMessage consensusMessage = new ConsensusMessageBuilder(this.config.getId(), Message.Type.PREPARE)
 			.setConsensusInstance(instance)
 			.setRound(round)
-			.setMessage(prepareMessage.toJson())
+			.setMessage(prepareMessage)
 			.setReplyTo(senderId)
 			.setReplyToMessageId(senderMessageId)
 			.setReceiver(receiver)
@@ -256,11 +335,11 @@ public class Istanbul {
 	/**
 	 * Utility to create CommitMessages
 	 */
-	private ConsensusMessage createCommitMessage(int instance, int round, int receiver, String commitMessageJson) {
+	private ConsensusMessage createCommitMessage(int instance, int round, int receiver, CommitMessage commitMessage) {
 		return new ConsensusMessageBuilder(this.config.getId(), Message.Type.COMMIT)
 			.setConsensusInstance(instance)
 			.setRound(round)
-			.setMessage(commitMessageJson)
+			.setMessage(commitMessage)
 			.setReceiver(receiver)
 			.build();
 	}
@@ -270,38 +349,55 @@ public class Istanbul {
 	 */
 	private ConsensusMessage createRoundChangeMessage(int instance, int round, int receiver, Optional<String> pvi, Optional<Integer> pri, Optional<List<ConsensusMessage>> justification) {
 
-		// Note: this function is particularly subtle because of awkward
-		// pre-existing message code. I can't sign the message with the
-		// justification on it (because I later want a RC message without
-		// the prepares there). For this reason, I have to create an
-		// entire message, sign it and then add justification. Undoing
-		// this to check signature must be done taking this into account.
-
-		// Create round change message with null justification (to sign)
+		// The justification is carried with the message but isn't signed
+		// (because I later want a RC message without the prepares there,
+		// see copyNoJustificationRoundChangeMessage)
 		RoundChangeMessage roundChangeMessage = new RoundChangeMessage(pvi, pri);
-
-		// I won't sign the message with the justification, but I need to put	
-		// it there so that the one that signs the message can take it out
-		// and put it back in
 		roundChangeMessage.setJustification(justification);
 
 		ConsensusMessage consensusMessage = new ConsensusMessageBuilder(this.config.getId(), Message.Type.ROUND_CHANGE)
 			.setConsensusInstance(instance)
 			.setRound(round)
-			.setMessage(roundChangeMessage.toJson())
+			.setMessage(roundChangeMessage)
 			.setReceiver(receiver)
 			.build();
 
 		return consensusMessage;
 	}
 
+	/**
+	 * Utility to create ValueRequestMessages
+	 */
+	private ConsensusMessage createValueRequestMessage(String digest, int receiver) {
+		return new ConsensusMessageBuilder(this.config.getId(), Message.Type.VALUE_REQUEST)
+			.setConsensusInstance(this.lambda)
+			.setRound(this.ri)
+			.setMessage(new ValueRequestMessage(digest))
+			.setReceiver(receiver)
+			.build();
+	}
+
+	/**
+	 * Utility to create ValueReplyMessages
+	 */
+	private ConsensusMessage createValueReplyMessage(String value, int receiver) {
+		return new ConsensusMessageBuilder(this.config.getId(), Message.Type.VALUE_REPLY)
+			.setConsensusInstance(this.lambda)
+			.setRound(this.ri)
+			.setMessage(new ValueReplyMessage(value))
+			.setReceiver(receiver)
+			.build();
+	}
+
 	/**
 	 * Utility to create get copy of RoundChange message without justification
 	 */
 	private ConsensusMessage copyNoJustificationRoundChangeMessage(ConsensusMessage message) {
 		
-		RoundChangeMessage roundChangeMessage = message.deserializeRoundChangeMessage();
-		roundChangeMessage.clearJustification();
+		// The payload is shared with the original message, which must keep
+		// its justification
+		RoundChangeMessage original = message.getRoundChangeMessage();
+		RoundChangeMessage roundChangeMessage = new RoundChangeMessage(original.getPvi(), original.getPri());
 		Optional<String> sig = message.getSignature();
 
 		if (!sig.isPresent()) {
@@ -311,7 +407,7 @@ public class Istanbul {
 		ConsensusMessage messagePrime = new ConsensusMessageBuilder(message.getSenderId(), Message.Type.ROUND_CHANGE)
 			.setConsensusInstance(message.getConsensusInstance())
 			.setRound(message.getRound())
-			.setMessage(roundChangeMessage.toJson())
+			.setMessage(roundChangeMessage)
 			.setReceiver(message.getReceiver())
 			.build();
 
@@ -323,13 +419,39 @@ public class Istanbul {
 	/**
 	 * Checks signatures in message
 	 */
-	public static boolean checkSignature(ConsensusMessage message, List<ProcessConfig> others, Predicate<String> beta, int quorumSize) {
+	public static boolean checkSignature(ConsensusMessage message, List<ProcessConfig> others,
+			BiPredicate<String, Optional<Integer>> beta, int quorumSize) {
+		return checkSignature(message, IdentityRegistry.of(others), beta, quorumSize);
+	}
+
+	/**
+	 * Whether message is signed by (known) process senderId
+	 */
+	private static boolean signedBy(ConsensusMessage message, IdentityRegistry identities, int senderId) {
+		return identities.get(senderId).map(message::checkConsistentSig).orElse(false);
+	}
+
+	/**
+	 * Checks signatures in message
+	 */
+	public static boolean checkSignature(ConsensusMessage message, IdentityRegistry identities,
+			BiPredicate<String, Optional<Integer>> beta, int quorumSize) {
 		return switch (message.getType()) {
 			case PRE_PREPARE -> {
-				PrePrepareMessage prePrepareMessage = message.deserializePrePrepareMessage();
+				PrePrepareMessage prePrepareMessage = message.getPrePrepareMessage();
+
+				Optional<List<ConsensusMessage>> optQp = prePrepareMessage.getJustificationPrepares();
+				Optional<List<ConsensusMessage>> optQrc = prePrepareMessage.getJustificationRoundChanges();
+
+				// Unless the value was prepared before (by a quorum, which
+				// checked who proposed it then), it's proposed by the sender
+				// (the leader of the round, checked when handling it)
+				Optional<Integer> proposer = optQrc.isEmpty() || highestPrepared(optQrc.get()).isEmpty()
+					? Optional.of(message.getSenderId())
+					: Optional.empty();
 
 				// Verify that proposed message is valid
-				if (!beta.test(prePrepareMessage.getValue())) {
+				if (!beta.test(prePrepareMessage.getValue(), proposer)) {
 					LOGGER.log(Level.INFO,
 							MessageFormat.format(
 								"PRE-PREPARE message from {0} is invalid (i.e. failed beta predicate)",
@@ -340,9 +462,6 @@ public class Istanbul {
 				// Message itself doesn't need to be signed, but the justification
 				// has messages (PREPAREs and ROUND-CHANGEs) that need to be signed
 
-				Optional<List<ConsensusMessage>> optQp = prePrepareMessage.getJustificationPrepares();
-				Optional<List<ConsensusMessage>> optQrc = prePrepareMessage.getJustificationRoundChanges();
-
 				if (!optQrc.isPresent()) {
 					// The ROUND-CHANGE messages are only required if it's not
 					// the first round
@@ -364,10 +483,10 @@ public class Istanbul {
 					yield false;
 				}
 
-				boolean allMatch = Qrc.stream()
-					.allMatch(m -> {
+				boolean allMatch = ParallelVerifier.getDefault()
+					.allMatch(Qrc, m -> {
 						int senderId = m.getSenderId();
-						return m.checkConsistentSig(others.get(senderId).getPublicKey());
+						return signedBy(m, identities, senderId);
 					});
 
 				if (!allMatch) {
@@ -417,10 +536,10 @@ public class Istanbul {
 							MessageFormat.format(
 								"PRE-PREPARE message from {0} check - there are {1} PREPAREs", message.getSenderId(), Qp.size()));
 
-					allMatch = Qp.stream()
-						.allMatch(m -> {
+					allMatch = ParallelVerifier.getDefault()
+						.allMatch(Qp, m -> {
 							int senderId = m.getSenderId();
-							return m.checkConsistentSig(others.get(senderId).getPublicKey());
+							return signedBy(m, identities, senderId);
 						});
 
 					if (!allMatch) {
@@ -444,7 +563,7 @@ public class Istanbul {
 				// Needs to be signed
 
 				int senderId = message.getSenderId();
-				if (!message.checkConsistentSig(others.get(senderId).getPublicKey())) {
+				if (!signedBy(message, identities, senderId)) {
 					LOGGER.log(Level.WARNING,
 							MessageFormat.format(
 								"Received PREPARE message from {0} - BAD SIGNATURE", senderId));
@@ -459,7 +578,7 @@ public class Istanbul {
 				// sending them upon receiving a round change message for an already decided instance,
 				// they're signature needs to be checked
 				int senderId = message.getSenderId();
-				if (!message.checkConsistentSig(others.get(senderId).getPublicKey())) {
+				if (!signedBy(message, identities, senderId)) {
 					LOGGER.log(Level.WARNING,
 							MessageFormat.format(
 									"Received COMMIT message from {0} - BAD SIGNATURE", senderId));
@@ -470,7 +589,7 @@ public class Istanbul {
 
 			case ROUND_CHANGE -> {
 
-				RoundChangeMessage roundChangeMessage = message.deserializeRoundChangeMessage();
+				RoundChangeMessage roundChangeMessage = message.getRoundChangeMessage();
 
 				// BASIC CONSISTENCY CHECKS
 
@@ -499,7 +618,7 @@ public class Istanbul {
 							.stream()
 							.allMatch(m -> {
 								int prepareSenderId = m.getSenderId();
-								return m.checkConsistentSig(others.get(prepareSenderId).getPublicKey());
+								return signedBy(m, identities, prepareSenderId);
 							})) {
 						yield false;
 					}
@@ -510,36 +629,26 @@ public class Istanbul {
 					}
 
 					// Check that all messages pertain to the value
-					String value = roundChangeMessage.getPvi().get();
+					String digest = roundChangeMessage.getPvi().get();
 					if (!roundChangeMessage.getJustification()
 						.get()
 						.stream()
-						.allMatch(m -> m.deserializePrepareMessage().getValue().equals(value))) {
+						.allMatch(m -> m.getPrepareMessage().getDigest().equals(digest))) {
 						yield false;
 					}
 				}
 
 				// MESSAGE CHECK
 
-				// Note: this part is particularly subtle because of awkward
-				// pre-existing message code. I couldn't sign the message with the
-				// justification on it (because I later want a RC message without
-				// the prepares there). For this reason, I had to create an
-				// entire message, sign it and then add justification. Undoing
-				// this to check signature must be done taking this into account.
-				// (refer to method for creating the round message for further
-				// detail)
-
+				// The justification isn't part of the signed content (so the
+				// ROUND-CHANGE can be forwarded without it), its PREPAREs are
+				// checked on their own
 				Optional<List<ConsensusMessage>> justification = roundChangeMessage.getJustification();
 
-				roundChangeMessage.clearJustification();
-				message.setMessage(roundChangeMessage.toJson());
-
-				// Now the message is as it was upon signing (so we can check signature)
 				int senderId = message.getSenderId();
-				boolean result = message.checkConsistentSig(others.get(senderId).getPublicKey());
+				boolean result = signedBy(message, identities, senderId);
 
-				if (justification.isPresent()) {
+				if (result && justification.isPresent()) {
 					// Check each message in justification of round change
 					// Note that is not enough that we check when we receive prepares
 					// because these PREPAREs might not have been received yet
@@ -549,22 +658,22 @@ public class Istanbul {
 					// is byzantine, so I won't do it - all must be correct
 					// then
 
-					boolean allPreparesGood = justification.get().stream()
+					List<ConsensusMessage> prepares = justification.get().stream()
 						.filter(m -> m.getType() == Message.Type.PREPARE)
-						.allMatch(m -> m.checkConsistentSig(others.get(m.getSenderId()).getPublicKey()));
-
-					if (!allPreparesGood) {
-						result = false;
-					}
+						.collect(Collectors.toList());
+					result = ParallelVerifier.getDefault()
+						.allMatch(prepares, m -> signedBy(m, identities, m.getSenderId()));
 				}
 
-				// Undo changes made
-				roundChangeMessage.setJustification(justification);
-				message.setMessage(roundChangeMessage.toJson());
-
 				yield result;
 			}
 
+			case VALUE_REQUEST, VALUE_REPLY -> {
+				// Not signed, a value is only kept if it matches the digest
+				// that was asked for
+				yield true;
+			}
+
 			default -> {
 				LOGGER.log(Level.INFO,
 						MessageFormat.format("Signature checker received unknown message {0}", message.getType()));
@@ -579,6 +688,17 @@ public class Istanbul {
 	 * @return returns signed message
 	 */
 	public static ConsensusMessage sign(ConsensusMessage message, String myPrivateKeyPath) {
+		return sign(message, m -> m.signSelf(myPrivateKeyPath));
+	}
+
+	/**
+	 * Same as sign, as identity
+	 */
+	public static ConsensusMessage sign(ConsensusMessage message, PrivateIdentity identity) {
+		return sign(message, m -> m.signSelf(identity));
+	}
+
+	private static ConsensusMessage sign(ConsensusMessage message, Consumer<ConsensusMessage> signSelf) {
 		return switch (message.getType()) {
 			case PRE_PREPARE -> {
 				// Message itself doesn't need to be signed
@@ -587,7 +707,7 @@ public class Istanbul {
 
 			case PREPARE -> {
 				// Needs to be signed
-				message.signSelf(myPrivateKeyPath);
+				signSelf.accept(message);
 				yield message;
 			}
 
@@ -595,28 +715,20 @@ public class Istanbul {
 				// Commit messages need to be signed since they may be required to send if
 				// replica receives a round-change message for an instance already decided and needs
 				// to send the commit quorum that lead to the decision
-				message.signSelf(myPrivateKeyPath);
+				signSelf.accept(message);
 				yield message;
 			}
 
 			case ROUND_CHANGE -> {
-				// Save justification
-				RoundChangeMessage roundChangeMessage = message.deserializeRoundChangeMessage();
-				Optional<List<ConsensusMessage>> justification = roundChangeMessage.getJustification();
-
-				// Can't sign round change with justification (because I want
-				// to then send ROUND-CHANGE without the justification to get
-				// O(n2) complexity, not O(n3))
-				roundChangeMessage.clearJustification();
-				message.setMessage(roundChangeMessage.toJson());
-				message.signSelf(myPrivateKeyPath);
-				LOGGER.log(Level.INFO,
-						MessageFormat.format("Signing checker is signing ROUND-CHANGE: {0}", roundChangeMessage.toJson()));
-
-				// Now I set the justification and redo the message
-				roundChangeMessage.setJustification(justification);
-				message.setMessage(roundChangeMessage.toJson());
+				// The justification isn't signed (because I want to then send
+				// ROUND-CHANGE without the justification to get O(n2)
+				// complexity, not O(n3))
+				signSelf.accept(message);
+				yield message;
+			}
 
+			case VALUE_REQUEST, VALUE_REPLY -> {
+				// Checked against the digest instead
 				yield message;
 			}
 
@@ -647,6 +759,7 @@ public class Istanbul {
 		if (!this.inputValuei.isPresent()) {
 			this.inputValuei = Optional.of(inputValue);
 		}
+		this.values.putIfAbsent(PrePrepareMessage.digestOf(inputValue), inputValue);
 
 		// Start timer for this round
 		this.startTimer(getTimeout(this.ri));
@@ -701,7 +814,7 @@ public class Istanbul {
 
 		int senderMessageId = message.getMessageId();
 
-		PrePrepareMessage prePrepareMessage = message.deserializePrePrepareMessage();
+		PrePrepareMessage prePrepareMessage = message.getPrePrepareMessage();
 
 		String value = prePrepareMessage.getValue();
 
@@ -733,6 +846,9 @@ public class Istanbul {
 					"{0} - PRE-PREPARE message from {1} Consensus Instance {2}, Round {3} passed justification check",
 					config.getId(), senderId, this.lambda, round));
 
+		// Others may only send its digest from now on
+		this.values.putIfAbsent(prePrepareMessage.getDigest(), value);
+
 
 		if (receivedPrePrepare.put(round, true) != null) {
 			LOGGER.log(Level.INFO,
@@ -773,10 +889,6 @@ public class Istanbul {
 			throw new RuntimeException("Should not be processing PREPARE message in wrong round");
 		}
 
-		PrepareMessage prepareMessage = message.deserializePrepareMessage();
-
-		String value = prepareMessage.getValue();
-
 		LOGGER.log(Level.INFO,
 				MessageFormat.format(
 					"{0} - Received PREPARE message from {1}: Consensus Instance {2}, Round {3}",
@@ -785,8 +897,10 @@ public class Istanbul {
 		// Doesn't add duplicate messages
 		prepareMessages.addMessage(message);
 
-		// If already prepared, won't prepare again
-		if (this.pri.isPresent()) {
+		// If already prepared in this round, won't prepare again (a replica
+		// prepared in an earlier round still prepares, and commits, in later
+		// ones, otherwise those rounds can't get a quorum of COMMITs)
+		if (this.pri.isPresent() && this.pri.get() >= round) {
 			LOGGER.log(Level.INFO,
 					MessageFormat.format(
 						"{0} - Already prepared for Consensus Instance {1}, Round {2}, "
@@ -796,7 +910,7 @@ public class Istanbul {
 			return new ArrayList<>();
 		}
 
-		// Find value with valid quorum
+		// Find value (digest) with valid quorum
 		Optional<String> preparedValue = prepareMessages.hasValidPrepareQuorum(round);
 		
 		if (preparedValue.isPresent()) {
@@ -816,7 +930,7 @@ public class Istanbul {
 
 			return IntStream.range(0, this.config.getN())
 				.mapToObj(receiver -> 
-					createCommitMessage(this.lambda, round, receiver, this.commitMessage.get().toJson()))
+					createCommitMessage(this.lambda, round, receiver, this.commitMessage.get()))
 				.collect(Collectors.toList());
 		}
 
@@ -849,23 +963,30 @@ public class Istanbul {
 				return new ArrayList<>();
 			}
 
-			String value = commitPair.get().getKey();
+			if (this.pendingDecision.isPresent()) {
+				// Still waiting for the value
+				return new ArrayList<>();
+			}
+
+			String digest = commitPair.get().getKey();
 
 			// Note that round might differ from this.ri
 			stopTimer(round);
 
-			decide(value);
+			if (round == FIRST_ROUND && this.firstRoundStart.isPresent()) {
+				this.timeoutPolicy.recordDecision((System.nanoTime() - this.firstRoundStart.get()) / 1000000);
+			}
+
+			// Store quorum of commit messages in case replica receives
+			// a round change message for this instance
+			commitQuorums = Optional.of(commitPair.get().getValue());
 
 			LOGGER.log(Level.INFO,
 					MessageFormat.format(
 						"{0} - Decided on Consensus Instance {1}, Round {2}",
 						config.getId(), this.lambda, round));
 
-			// Store quorum of commit messages in case replica receives
-			// a round change message for this instance
-			commitQuorums = Optional.of(commitPair.get().getValue());
-
-			return new ArrayList<>();
+			return decide(digest);
 		}
 
 		return new ArrayList<>();
@@ -876,23 +997,17 @@ public class Istanbul {
 	 */
 	boolean prepareSignedIsValid(ConsensusMessage message) {
 		int senderId = message.getSenderId();
-		return message.checkConsistentSig(this.others.get(senderId).getPublicKey());
+		return signedBy(message, this.identities, senderId);
 	}
 
 	/**
 	 * Checks that a round-change message is properly signed
 	 */
 	boolean roundChangeMessageIsValidSignedIsValid(ConsensusMessage message) {
-		// Note: this function is particularly subtle because of awkward
-		// pre-existing message code. I couldn't sign the message with the
-		// justification on it (because I later want a RC message without
-		// the prepares there). For this reason, I had to create an
-		// entire message, sign it and then add justification. Undoing
-		// this to check signature must be done taking this into account.
-		// (refer to method for creating the round message for further
-		// detail)
-
-		RoundChangeMessage roundChangeMessage = message.deserializeRoundChangeMessage();
+		// The justification isn't part of the signed content, so the
+		// message can be checked as it is
+
+		RoundChangeMessage roundChangeMessage = message.getRoundChangeMessage();
 		Optional<List<ConsensusMessage>> justification = roundChangeMessage.getJustification();
 
 		// Note that ROUND-MESSAGE might not have any justification
@@ -900,14 +1015,10 @@ public class Istanbul {
 		// change messages is done as a set, what matters is that the
 		// set as a whole as the required PREPARE, and they are all valid)
 
-		roundChangeMessage.clearJustification();
-		message.setMessage(roundChangeMessage.toJson());
-
-		// Now the message is as it was upon signing (so we can check signature)
 		int senderId = message.getSenderId();
-		boolean result = message.checkConsistentSig(this.others.get(senderId).getPublicKey());
+		boolean result = signedBy(message, this.identities, senderId);
 
-		if (justification.isPresent()) {
+		if (result && justification.isPresent()) {
 			// Check each message in justification of round change
 			// Note that is not enough that we check when we receive prepares
 			// because these PREPAREs might not have been received yet
@@ -917,21 +1028,16 @@ public class Istanbul {
 			// is byzantine, so I won't do it - all must be correct
 			// then
 
-			boolean allPreparesGood = justification.get().stream()
+			List<ConsensusMessage> prepares = justification.get().stream()
 				.filter(m -> m.getType() == Message.Type.PREPARE)
-				.allMatch(m -> m.checkConsistentSig(this.others.get(m.getSenderId()).getPublicKey()));
-
-			if (!allPreparesGood) {
-				result = false;
-			}
+				.collect(Collectors.toList());
+			result = ParallelVerifier.getDefault()
+				.allMatch(prepares, m -> signedBy(m, this.identities, m.getSenderId()));
 		}
 
 		// TODO (dsa): as an optimization we could add all PREPARE messages
 		// to be handled by ourselves (future work)
 
-		// Undo changes made
-		roundChangeMessage.setJustification(justification);
-		message.setMessage(roundChangeMessage.toJson());
 		return result;
 	}
 
@@ -952,10 +1058,8 @@ public class Istanbul {
 			return true;
 		}
 
-		return message.getJustification()
-			.get()
-			.stream()
-			.allMatch(m -> prepareSignedIsValid(m));
+		return ParallelVerifier.getDefault()
+			.allMatch(message.getJustification().get(), m -> prepareSignedIsValid(m));
 	}
 
 	/**
@@ -966,17 +1070,17 @@ public class Istanbul {
 
 		// Get all messages that have some prepared value and reverse sort by round
 		Optional<ConsensusMessage> message = Qrc.stream()
-			.filter(m -> m.deserializeRoundChangeMessage().getPvi().isPresent())
+			.filter(m -> m.getRoundChangeMessage().getPvi().isPresent())
 			.sorted((m1, m2) -> 
-				Integer.compare(m2.deserializeRoundChangeMessage().getPri().get(),
-								m1.deserializeRoundChangeMessage().getPri().get()))
+				Integer.compare(m2.getRoundChangeMessage().getPri().get(),
+								m1.getRoundChangeMessage().getPri().get()))
 			.findFirst();
 
 		if (!message.isPresent()) {
 			return Optional.empty();
 		}
 
-		RoundChangeMessage roundChangeMessage = message.get().deserializeRoundChangeMessage();
+		RoundChangeMessage roundChangeMessage = message.get().getRoundChangeMessage();
 
 		return Optional.of(
 				new Pair<>(roundChangeMessage.getPvi().get(),
@@ -1037,15 +1141,24 @@ public class Istanbul {
 			return true;
 		}
 
-		// By now we now that there's the highest prepared value
+		// By now we now that there's the highest prepared value (its digest)
 		String pv = optPair.get().getKey();
 		int pr = optPair.get().getValue();
 
+		// The proposed value must be the highest prepared one
+		if (!PrePrepareMessage.digestOf(value).equals(pv)) {
+			LOGGER.log(Level.INFO,
+					MessageFormat.format("{0} - justification of pre-prepare was asked for a value other than the highest prepared one",
+						config.getId()));
+
+			return false;
+		}
+
 		// Get PREPARES for the highest prepared value and check there's
 		// a quorum 
 		List<ConsensusMessage> preparesDuplicate = Qp.stream()
 			.filter(m -> m.getRound() == pr)
-			.filter(m -> m.deserializePrepareMessage().getValue().equals(pv)).toList();
+			.filter(m -> m.getPrepareMessage().getDigest().equals(pv)).toList();
 
 		sendersChecked = new HashSet<>();
 		List<ConsensusMessage> prepares = new ArrayList<>();
@@ -1105,11 +1218,11 @@ public class Istanbul {
 		//(there can't be any two messages for same sender otherwise
 		// protocol goes O(n3))
 		List<ConsensusMessage> preparesDuplicate = Qrc.stream()
-			.map(m -> m.deserializeRoundChangeMessage().getJustification())
+			.map(m -> m.getRoundChangeMessage().getJustification())
 			.filter(opt -> opt.isPresent())
 			.flatMap(opt -> opt.get().stream())
 			.filter(m -> m.getRound() == pr)
-			.filter(m -> m.deserializePrepareMessage().getValue().equals(pv))
+			.filter(m -> m.getPrepareMessage().getDigest().equals(pv))
 			.collect(Collectors.toList());
 		
 		// Deduplicate messages from same sender (unfortunately Java Stream API
@@ -1177,7 +1290,7 @@ public class Istanbul {
 		List<ConsensusMessage> messages = new ArrayList<>();
 
 		int round = message.getRound();
-		RoundChangeMessage roundChangeMessage = message.deserializeRoundChangeMessage();
+		RoundChangeMessage roundChangeMessage = message.getRoundChangeMessage();
 
 		LOGGER.log(Level.INFO,
 				MessageFormat.format("{0} - Received ROUND-CHANGE message from {1}: Consensus Instance {2}, Round {3}",
@@ -1213,86 +1326,178 @@ public class Istanbul {
 				.collect(Collectors.toList()));
 		}
 
+		messages.addAll(this.proposeIfElected());
+
+		return messages;
+	}
+
+	/*
+	 * Lines 11 - 17 of the protocol: broadcasts PRE-PREPARE if this replica
+	 * leads the current round and has a justified quorum of ROUND-CHANGEs
+	 * (also called when a VALUE-REPLY brings the value to propose)
+	 */
+	private List<ConsensusMessage> proposeIfElected() {
 		// no point in collecting quorum, if I'm not the leader for the next round
 		if (!isLeader(this.ri, this.config.getId())) {
 			LOGGER.log(Level.INFO,
-				MessageFormat.format("{0} - Im not the future leader, done processing ROUND-CHANGE message from {1}: Consensus Instance {2}, Round {3}",
-					config.getId(), message.getSenderId(), this.lambda, this.ri));
+				MessageFormat.format("{0} - Im not the future leader, done processing ROUND-CHANGE messages: Consensus Instance {1}, Round {2}",
+					config.getId(), this.lambda, this.ri));
 
-			return messages;
+			return new ArrayList<>();
 		}
 
 
 		if (this.prePrepared.contains(this.ri)) {
 			LOGGER.log(Level.INFO,
-				MessageFormat.format("{0} - Already broadcast PRE-PREPARE for this round, nothing to do (Consensus Instance {2}, Round {3})",
-					config.getId(), message.getSenderId(), this.lambda, this.ri));
+				MessageFormat.format("{0} - Already broadcast PRE-PREPARE for this round, nothing to do (Consensus Instance {1}, Round {2})",
+					config.getId(), this.lambda, this.ri));
 
-			return messages;
+			return new ArrayList<>();
 		}
 
 		LOGGER.log(Level.INFO,
-			MessageFormat.format("{0} - Checking the existence of a good quorum of ROUND-CHANGE messages - Consensus Instance {2}, Round {3}",
-				config.getId(), message.getSenderId(), this.lambda, this.ri));
+			MessageFormat.format("{0} - Checking the existence of a good quorum of ROUND-CHANGE messages - Consensus Instance {1}, Round {2}",
+				config.getId(), this.lambda, this.ri));
 
 		// Check existence of quorum
 		Optional<List<ConsensusMessage>> optQrc = roundChangeMessages.hasValidRoundChangeQuorum(this.ri);
-		if (optQrc.isPresent()) {
-			Optional<Pair<List<ConsensusMessage>, List<ConsensusMessage>>> optJustification = justifyRoundChange(optQrc.get());
-			if (optJustification.isPresent()) {
+		if (optQrc.isEmpty()) {
+			return new ArrayList<>();
+		}
 
+		Optional<Pair<List<ConsensusMessage>, List<ConsensusMessage>>> optJustification = justifyRoundChange(optQrc.get());
+		if (optJustification.isEmpty()) {
+			return new ArrayList<>();
+		}
+
+		LOGGER.log(Level.INFO,
+				MessageFormat.format("{0} - Justified quorum of ROUND-CHANGE messages found - Consensus Instance {1}, Round {2}",
+					config.getId(), this.lambda, this.ri));
+
+		Optional<Pair<String, Integer>> optPair = highestPrepared(optQrc.get());
+
+		// lines 12 - 16 of protocol
+		Optional<String> v;
+		if (optPair.isPresent()) {
+			// ROUND-CHANGEs only carry the digest, if the PRE-PREPARE of the
+			// prepared value never got here, it's asked for (a quorum
+			// prepared it, so correct replicas have it)
+			String digest = optPair.get().getKey();
+			if (!this.values.containsKey(digest)) {
 				LOGGER.log(Level.INFO,
-						MessageFormat.format("{0} - Justified quorum of ROUND-CHANGE messages found - Consensus Instance {1}, Round {2}",
-							config.getId(), message.getSenderId(), this.lambda, this.ri));
+						MessageFormat.format("{0} - Missing highest prepared value, asking for it: Consensus Instance {1}, Round {2}",
+							config.getId(), this.lambda, this.ri));
 
+				return requestValue(digest);
+			}
+			v = Optional.of(this.values.get(digest));
+		} else {
+			v = inputValuei;
+		}
 
-				Optional<Pair<String, Integer>> optPair = highestPrepared(optQrc.get());
+		if (v.isEmpty()) {
+			// if v is not present, that means that no input has been made
+			// to this replica
+			// if this is the case, it's ok for the replica not to start
+			// the broadcast even though it's the leader (it will just
+			// be round-changed)
 
-				// lines 12 - 16 of protocol
-				Optional<String> v;
-				if (optPair.isPresent()) {
-					v = Optional.of(optPair.get().getKey());
-				} else {
-					v = inputValuei;
-				}
+			LOGGER.log(Level.WARNING,
+					MessageFormat.format("{0} -  I was just \"elected\", but I don't have any input: Consensus Instance {1}, Round {2} - either values are inconsistent or are wrong",
+						config.getId(), this.lambda, this.ri));
 
-				if (v.isPresent()) {
+			return new ArrayList<>();
+		}
 
-					List<ConsensusMessage> justificationRoundChanges = optJustification.get().getKey();
-					List<ConsensusMessage> justificationPrepares = optJustification.get().getValue();
+		List<ConsensusMessage> justificationRoundChanges = optJustification.get().getKey();
+		List<ConsensusMessage> justificationPrepares = optJustification.get().getValue();
 
-					LOGGER.log(Level.WARNING,
-							MessageFormat.format("{0} -  I was just \"elected\", sending a PRE-PREPARE with {3} ROUND-CHANGES and {4} PREPARES for justification: Consensus Instance {1}, Round {2}",
-								config.getId(), this.lambda, round, justificationRoundChanges.size(), justificationPrepares.size()));
+		LOGGER.log(Level.WARNING,
+				MessageFormat.format("{0} -  I was just \"elected\", sending a PRE-PREPARE with {3} ROUND-CHANGES and {4} PREPARES for justification: Consensus Instance {1}, Round {2}",
+					config.getId(), this.lambda, this.ri, justificationRoundChanges.size(), justificationPrepares.size()));
 
-					// Mark that broadcast of PRE-PREPARE was already made for this round
-					this.prePrepared.add(this.ri);
+		// Mark that broadcast of PRE-PREPARE was already made for this round
+		this.prePrepared.add(this.ri);
 
-					// Broadcast message PRE-PREPARE(lambda, ri, inputValue)
-					messages.addAll(IntStream.range(0, this.config.getN())
-						.mapToObj(receiver -> this.createPrePrepareMessage(v.get(), this.lambda, this.ri, receiver, Optional.of(justificationPrepares), Optional.of(justificationRoundChanges)))
-						.collect(Collectors.toList()));
-				} else {
-					// if v is not present, that means that no input has been made
-					// to this replica
-					// if this is the case, it's ok for the replica not to start
-					// the broadcast even though it's the leader (it will just
-					// be round-changed)
+		// Broadcast message PRE-PREPARE(lambda, ri, inputValue)
+		return IntStream.range(0, this.config.getN())
+			.mapToObj(receiver -> this.createPrePrepareMessage(v.get(), this.lambda, this.ri, receiver, Optional.of(justificationPrepares), Optional.of(justificationRoundChanges)))
+			.collect(Collectors.toList());
+	}
 
-					LOGGER.log(Level.WARNING,
-							MessageFormat.format("{0} -  I (replica {1}) was just \"elected\", but I don't have any input: Consensus Instance {2}, Round {3} - either values are inconsistent or are wrong",
-								config.getId(), message.getSenderId(), this.lambda, round));
-				}
-			}
+	/*
+	 * Asks the other replicas for the value with digest (once per digest)
+	 */
+	private List<ConsensusMessage> requestValue(String digest) {
+		if (!this.requestedValues.add(digest)) {
+			return new ArrayList<>();
 		}
 
-		return messages;
+		return IntStream.range(0, this.config.getN())
+			.filter(receiver -> receiver != this.config.getId())
+			.mapToObj(receiver -> this.createValueRequestMessage(digest, receiver))
+			.collect(Collectors.toList());
 	}
 
+	/*
+	 * Handle value request messages, the value is sent back if this replica
+	 * has it (otherwise others will)
+	 */
+	private List<ConsensusMessage> valueRequest(ConsensusMessage message) {
+		String value = this.values.get(message.getValueRequestMessage().getDigest());
+		if (value == null) {
+			return new ArrayList<>();
+		}
+
+		return List.of(createValueReplyMessage(value, message.getSenderId()));
+	}
+
+	/*
+	 * Handle value reply messages: keeps the value if it was asked for and
+	 * resumes what was waiting for it
+	 */
+	private List<ConsensusMessage> valueReply(ConsensusMessage message) {
+		String value = message.getValueReplyMessage().getValue();
+		if (value == null) {
+			return new ArrayList<>();
+		}
+
+		String digest = PrePrepareMessage.digestOf(value);
+		if (!this.requestedValues.contains(digest) || this.values.putIfAbsent(digest, value) != null) {
+			// Not asked for, or already got it
+			return new ArrayList<>();
+		}
+
+		LOGGER.log(Level.INFO,
+				MessageFormat.format("{0} - Received missing value from {1}: Consensus Instance {2}",
+					config.getId(), message.getSenderId(), this.lambda));
+
+		if (this.pendingDecision.isPresent() && this.pendingDecision.get().equals(digest)) {
+			return decide(digest);
+		}
+
+		return proposeIfElected();
+	}
+	/*
+	 * Signs messages to be sent, signing each broadcast once (its copies
+	 * only differ in the receiver, which isn't signed). Messages already
+	 * signed (e.g. a quorum of COMMITs sent again) keep their signatures
+	 */
 	public List<ConsensusMessage> signAll(List<ConsensusMessage> messages) {
-        return messages.stream()
-            .map(m -> Istanbul.sign(m, this.config.getPrivateKey()))
-			.collect(Collectors.toList());
+		List<ConsensusMessage> signed = new ArrayList<>();
+		ConsensusMessage previous = null;
+		for (ConsensusMessage message : messages) {
+			if (message.getSignature().isPresent()) {
+				signed.add(message);
+				continue;
+			}
+			if (previous == null || !message.signLike(previous)) {
+				Istanbul.sign(message, this.identity);
+				previous = message;
+			}
+			signed.add(message);
+		}
+		return signed;
 	}
 
 	/**
@@ -1309,7 +1514,7 @@ public class Istanbul {
 	 * Handles protocol messages and returns messages to be sent over the network
 	 */
 	public List<ConsensusMessage> normalHandleMessage(ConsensusMessage message) {
-        if (!Istanbul.checkSignature(message, this.others, this.beta, this.quorumSize)) {
+        if (!Istanbul.checkSignature(message, this.identities, this.beta, this.quorumSize)) {
             LOGGER.log(Level.INFO,
                     MessageFormat.format(
                         "{0} - Detected message with bad signature from {1} in {2} message, ignoring",
@@ -1356,7 +1561,12 @@ public class Istanbul {
 				if (messageRound == this.ri) {
 					yield prePrepare(message);
 				} else if (message.getRound() < this.ri) {
-					// PRE-PREPARES from previous rounds can be dropped
+					// PRE-PREPARES from previous rounds can be dropped (their
+					// value is kept, it may still be decided on)
+					if (isLeader(messageRound, message.getSenderId())) {
+						PrePrepareMessage prePrepareMessage = message.getPrePrepareMessage();
+						this.values.putIfAbsent(prePrepareMessage.getDigest(), prePrepareMessage.getValue());
+					}
 					LOGGER.log(Level.INFO,
 							MessageFormat.format(
 								"{0} - Ignored PRE-PREPARE at instance {1}, Round {2} (message was for {3}, which I've already moved from)",
@@ -1403,6 +1613,12 @@ public class Istanbul {
 			case ROUND_CHANGE -> 
 				roundChange(message);
 
+			case VALUE_REQUEST ->
+				valueRequest(message);
+
+			case VALUE_REPLY ->
+				valueReply(message);
+
 			default -> {
 				LOGGER.log(Level.INFO,
 						MessageFormat.format("{0} - (Istanbul) Received unknown message from {1}",
@@ -1413,7 +1629,22 @@ public class Istanbul {
 		};
 	}
 
-	private void decide(String value) {
+	/*
+	 * Delivers the value with digest, or asks for it if it's missing (it's
+	 * delivered when it comes, see valueReply)
+	 */
+	private List<ConsensusMessage> decide(String digest) {
+		String value = this.values.get(digest);
+		if (value == null) {
+			LOGGER.log(Level.INFO,
+					MessageFormat.format("{0} - Decided on a value that I don't have, asking for it: Consensus Instance {1}",
+						config.getId(), this.lambda));
+
+			this.pendingDecision = Optional.of(digest);
+			return requestValue(digest);
+		}
+		this.pendingDecision = Optional.empty();
+
 		if (this.decision.isPresent()) {
 
 			if (!this.decision.get().equals(value)) {
@@ -1424,19 +1655,23 @@ public class Istanbul {
 						this.decision.get()));
 			}
 
-			return;
+			return new ArrayList<>();
 		}
 
 		this.decision = Optional.of(value);
 
+		// The instance is over, its verified signatures are no longer needed
+		SignatureCache.getDefault().forgetUpTo(this.lambda);
+
 		for (Consumer obs: observers) {
 			obs.accept(value);
 		}
+
+		return new ArrayList<>();
 	}
 
 	private boolean isLeader(int round, int id) {
-		int leader = (this.lambda + round) % config.getN();
-		return leader == id;
+		return this.leaderPolicy.getLeader(this.lambda, round) == id;
 	}
 
 	/**
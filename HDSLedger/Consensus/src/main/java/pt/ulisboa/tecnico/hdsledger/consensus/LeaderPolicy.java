@@ -0,0 +1,18 @@
+package pt.ulisboa.tecnico.hdsledger.consensus;
+
+/*
+ * Which replica leads each round of an instance. Shared by the instances of
+ * a replica, and must give the same answer on every correct replica.
+ */
+public interface LeaderPolicy {
+	/**
+	 * Id of the leader of round of instance lambda
+	 */
+	int getLeader(int lambda, int round);
+
+	/**
+	 * Called with the decisions of the replica, in order of instance
+	 * @param proposer replica whose proposal instance lambda decided
+	 */
+	void recordDecision(int lambda, int proposer);
+}
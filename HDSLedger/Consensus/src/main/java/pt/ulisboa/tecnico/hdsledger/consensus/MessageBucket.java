@@ -1,21 +1,24 @@
 package pt.ulisboa.tecnico.hdsledger.consensus;
 
+import java.util.BitSet;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.TreeMap;
 import java.util.List;
 import java.util.ArrayList;
 
 import javafx.util.Pair;
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
-import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrepareMessage;
-import pt.ulisboa.tecnico.hdsledger.communication.consensus.CommitMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.Message;
 import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
 
 /**
  * Container for messages. Each replica can only have a single message stored for each round.
+ * Support for each (round, type, value) is counted when a message is added,
+ * so checking for a quorum or weak support doesn't go over the messages.
  * Not thread-safe.
  * Should be used for messages of same type.
  */
@@ -29,8 +32,11 @@ public class MessageBucket {
     // Quorum size (i.e. strong support)
     private final int quorumSize;
 
-    // Round -> Sender ID -> Consensus message
-    private final Map<Integer, Map<Integer, ConsensusMessage>> bucket = new HashMap<>();
+    // Round -> messages of the round
+    private final Map<Integer, RoundMessages> bucket = new HashMap<>();
+
+    // Round -> ROUND-CHANGE messages for that round
+    private final NavigableMap<Integer, Integer> roundChanges = new TreeMap<>();
 
     public MessageBucket(int nodeCount) {
         int f = Math.floorDiv(nodeCount - 1, 3);
@@ -46,69 +52,94 @@ public class MessageBucket {
      */
     public void addMessage(ConsensusMessage message) {
         int round = message.getRound();
-        bucket.putIfAbsent(round, new HashMap<>());
-        bucket.get(round).put(message.getSenderId(), message);
-    }
+        RoundMessages messages = bucket.computeIfAbsent(round, r -> new RoundMessages());
 
-    /**
-     * Returns map with list of consensus message for round and type provided,
-     * indexed by value
-     */
-    private Map<String, List<ConsensusMessage>> groupByValue(int round, Message.Type type) {
-        // Get all messages for this round of the provided type
-        List<ConsensusMessage> messages = this.bucket.getOrDefault(round, new HashMap<>())
-                                                                .entrySet()
-                                                                .stream()
-                                                                .map(e -> e.getValue())
-                                                                .filter(s -> s.getType() == type)
-                                                                .collect(Collectors.toList());
-
-        // Group by value
-        HashMap<String, List<ConsensusMessage>> grouped = new HashMap<>();
-        messages.forEach(message -> {
-            PrepareMessage prepareMessage = message.deserializePrepareMessage();
-            String value = prepareMessage.getValue();
-            List<ConsensusMessage> lst = grouped.getOrDefault(value, new ArrayList<>());
-            lst.add(message);
-            grouped.put(value, lst);
-        });
-
-        return grouped;
+        ConsensusMessage previous = messages.bySender.put(message.getSenderId(), message);
+        if (previous != null) {
+            remove(messages, previous);
+        }
+        add(messages, message);
     }
 
-    /**
-     * Checks the exists a quorum of messages of provided type messages.
-     * Returns the quorum of messages.
-     */
-    private Optional<List<ConsensusMessage>> hasValidQuorum(int round, Message.Type type) {
-        Map<String, List<ConsensusMessage>> grouped = groupByValue(round, type);
+    private void add(RoundMessages messages, ConsensusMessage message) {
+        Message.Type type = message.getType();
+        messages.counts.merge(type, 1, Integer::sum);
+        if (type == Message.Type.ROUND_CHANGE) {
+            roundChanges.merge(message.getRound(), 1, Integer::sum);
+        }
 
-        // Return the list of messages of size quorumSize
-        for (Map.Entry<String, List<ConsensusMessage>> entry: grouped.entrySet()) {
-            if (entry.getValue().size() >= quorumSize) {
-                return Optional.of(entry.getValue());
+        String value = valueOf(message);
+        if (value != null) {
+            Support support = messages.byValue
+                    .computeIfAbsent(type, t -> new HashMap<>())
+                    .computeIfAbsent(value, v -> new Support(value));
+            support.add(message);
+            if (support.messages.size() >= weakSupport) {
+                messages.weak.putIfAbsent(type, support);
+            }
+            if (support.messages.size() >= quorumSize) {
+                messages.quorum.putIfAbsent(type, support);
             }
         }
+    }
 
-        return Optional.empty();
+    // Undoes add (a sender replaced its message for the round)
+    private void remove(RoundMessages messages, ConsensusMessage message) {
+        Message.Type type = message.getType();
+        messages.counts.merge(type, -1, Integer::sum);
+        if (type == Message.Type.ROUND_CHANGE) {
+            roundChanges.computeIfPresent(message.getRound(), (r, count) -> count > 1 ? count - 1 : null);
+        }
+
+        String value = valueOf(message);
+        if (value != null) {
+            Support support = messages.byValue.get(type).get(value);
+            support.remove(message);
+            recheck(messages, messages.weak, type, support, weakSupport);
+            recheck(messages, messages.quorum, type, support, quorumSize);
+        }
     }
 
-    /**
-     * Checks the existence of f+1 messages of provided type with same value
-     * Returns the list that satisfies for one such value
-     */
-    private Optional<List<ConsensusMessage>> hasWeakSupport(int round, Message.Type type) {
-        Map<String, List<ConsensusMessage>> grouped = groupByValue(round, type);
+    // Another value may still have the support the one that lost a message
+    // no longer has
+    private static void recheck(RoundMessages messages, Map<Message.Type, Support> held, Message.Type type,
+            Support changed, int size) {
+        if (held.get(type) == changed && changed.messages.size() < size) {
+            held.remove(type);
+            messages.byValue.get(type).values().stream()
+                    .filter(support -> support.messages.size() >= size)
+                    .findFirst()
+                    .ifPresent(support -> held.put(type, support));
+        }
+    }
 
-        // Return the list of messages of size quorumSize
-        for (Map.Entry<String, List<ConsensusMessage>> entry: grouped.entrySet()) {
-            if (entry.getValue().size() >= weakSupport) {
-                return Optional.of(entry.getValue());
-            }
+    // Value (its digest) of a PREPARE or COMMIT message (null for other types)
+    private static String valueOf(ConsensusMessage message) {
+        if (message.getType() == Message.Type.COMMIT) {
+            return message.getCommitMessage().getDigest();
+        }
+        if (message.getType() == Message.Type.PREPARE) {
+            return message.getPrepareMessage().getDigest();
         }
+        return null;
+    }
 
-        return Optional.empty();
+    /**
+     * Checks the exists a quorum of messages of provided type messages.
+     * Returns the quorum of messages.
+     */
+    private Optional<Support> hasValidQuorum(int round, Message.Type type) {
+        RoundMessages messages = bucket.get(round);
+        return messages == null ? Optional.empty() : Optional.ofNullable(messages.quorum.get(type));
+    }
 
+    /**
+     * Checks the existence of f+1 messages of provided type with same value
+     * Returns the support of one such value
+     */
+    private Optional<Support> hasWeakSupport(int round, Message.Type type) {
+        RoundMessages messages = bucket.get(round);
+        return messages == null ? Optional.empty() : Optional.ofNullable(messages.weak.get(type));
     }
 
     /**
@@ -116,41 +147,23 @@ public class MessageBucket {
      * Returns the value of the prepares.
      */
     public Optional<String> hasValidPrepareQuorum(int round) {
-        Optional<List<ConsensusMessage>> messages = this.hasValidQuorum(round, Message.Type.PREPARE);
-
-        if (messages.isPresent()) {
-            ConsensusMessage message = messages.get().get(0);
-            PrepareMessage prepareMessage = message.deserializePrepareMessage();
-            return Optional.of(prepareMessage.getValue());
-        }
-
-        return Optional.empty();
+        return this.hasValidQuorum(round, Message.Type.PREPARE).map(support -> support.value);
     }
 
-    // TODO(dsa): refactor. call getPrepareQuorumJustification after
-    // hasValidPrepareQuorum are redundant
-    
     /**
      * Checks the existence a quorum of PREPARE messages
      * Returns the list of the prepares.
      */
     public Optional<List<ConsensusMessage>> getPrepareQuorumJustification(int round) {
-        return this.hasValidQuorum(round, Message.Type.PREPARE);
+        return this.hasValidQuorum(round, Message.Type.PREPARE).map(Support::messages);
     }
 
     /**
      * Checks the exists a quorum of COMMIT messages
      */
     public Optional<Pair<String, List<ConsensusMessage>>> hasValidCommitQuorum(int round) {
-        Optional<List<ConsensusMessage>> messages = this.hasValidQuorum(round, Message.Type.COMMIT);
-
-        if (messages.isPresent()) {
-            ConsensusMessage message = messages.get().get(0);
-            CommitMessage commitMessage = message.deserializeCommitMessage();
-            return Optional.of(new Pair<>(commitMessage.getValue(), messages.get()));
-        }
-
-        return Optional.empty();
+        return this.hasValidQuorum(round, Message.Type.COMMIT)
+                .map(support -> new Pair<>(support.value, support.messages()));
     }
 
     /**
@@ -158,14 +171,7 @@ public class MessageBucket {
      * Returns one value of if it's the case or empty if no value satisfies that.
      */
     public Optional<String> hasValidWeakCommitSupport(int round) {
-        Optional<List<ConsensusMessage>> messages = this.hasWeakSupport(round, Message.Type.COMMIT);
-
-        if (messages.isPresent()) {
-            ConsensusMessage message = messages.get().get(0);
-            CommitMessage commitMessage = message.deserializeCommitMessage();
-            return Optional.of(commitMessage.getValue());
-        }
-        return Optional.empty();
+        return this.hasWeakSupport(round, Message.Type.COMMIT).map(support -> support.value);
     }
 
     /**
@@ -177,49 +183,87 @@ public class MessageBucket {
      */
     public Optional<Integer> hasValidWeakRoundChangeSupport(int round) {
         // Consider all messages, not only from round provided
-        List<ConsensusMessage> messages = this.bucket
-            .entrySet()
-            .stream()
-            .flatMap(e ->
-                    e.getValue()
-                        .entrySet()
-                        .stream()
-                        .map(e2 -> e2.getValue()))
-            .filter(s -> s.getType() == Message.Type.ROUND_CHANGE)
-            .filter(m -> m.getRound() > round)
-            .collect(Collectors.toList());
+        NavigableMap<Integer, Integer> later = roundChanges.tailMap(round, false);
 
         // If there's not f+1 good ROUND-CHANGE messages, give up
-        if (messages.size() < weakSupport) {
-            return Optional.empty();
+        int count = 0;
+        for (int roundCount : later.values()) {
+            count += roundCount;
+            if (count >= weakSupport) {
+                return Optional.of(later.firstKey());
+            }
         }
 
-        int rmin = messages.stream().map(m -> m.getRound()).min(Integer::compare).get();
-
-        return Optional.of(rmin);
+        return Optional.empty();
     }
 
     /**
      * Checks the exists a quorum of messages ROUND-CHANGE messages
      */
     public Optional<List<ConsensusMessage>> hasValidRoundChangeQuorum(int round) {
-        // Get all messages for this round
-        List<ConsensusMessage> messages = this.bucket.getOrDefault(round, new HashMap<>())
-                                                                .entrySet()
-                                                                .stream()
-                                                                .map(e -> e.getValue())
-                                                                .filter(s -> s.getType() == Message.Type.ROUND_CHANGE)
-                                                                .filter(s -> s.getRound() == round)
-                                                                .collect(Collectors.toList());
-
-        if (messages.size() < quorumSize) {
+        RoundMessages messages = bucket.get(round);
+        if (messages == null || messages.counts.getOrDefault(Message.Type.ROUND_CHANGE, 0) < quorumSize) {
             return Optional.empty();
         }
 
-        return Optional.of(messages);
+        // Get all messages for this round
+        List<ConsensusMessage> roundChange = new ArrayList<>();
+        for (ConsensusMessage message : messages.bySender.values()) {
+            if (message.getType() == Message.Type.ROUND_CHANGE) {
+                roundChange.add(message);
+            }
+        }
+        return Optional.of(roundChange);
     }
 
     public Map<Integer, ConsensusMessage> getMessages(int round) {
-        return bucket.get(round);
+        RoundMessages messages = bucket.get(round);
+        return messages == null ? null : messages.bySender;
+    }
+
+    /**
+     * Messages of a round
+     */
+    private static class RoundMessages {
+        // Sender ID -> Consensus message
+        private final Map<Integer, ConsensusMessage> bySender = new HashMap<>();
+        // Type -> messages of the type
+        private final Map<Message.Type, Integer> counts = new EnumMap<>(Message.Type.class);
+        // Type -> value -> messages of the type with the value
+        private final Map<Message.Type, Map<String, Support>> byValue = new EnumMap<>(Message.Type.class);
+        // Type -> first value to get weak support (resp. a quorum)
+        private final Map<Message.Type, Support> weak = new EnumMap<>(Message.Type.class);
+        private final Map<Message.Type, Support> quorum = new EnumMap<>(Message.Type.class);
+    }
+
+    /**
+     * Messages (of a round and type) with the same value, at most one per
+     * sender
+     */
+    private static class Support {
+        private final String value;
+        private final BitSet senders = new BitSet();
+        private final List<ConsensusMessage> messages = new ArrayList<>();
+
+        Support(String value) {
+            this.value = value;
+        }
+
+        void add(ConsensusMessage message) {
+            senders.set(message.getSenderId());
+            messages.add(message);
+        }
+
+        void remove(ConsensusMessage message) {
+            if (senders.get(message.getSenderId())) {
+                senders.clear(message.getSenderId());
+                messages.removeIf(m -> m.getSenderId() == message.getSenderId());
+            }
+        }
+
+        // Copy, so the support can keep growing
+        List<ConsensusMessage> messages() {
+            return new ArrayList<>(messages);
+        }
     }
 }
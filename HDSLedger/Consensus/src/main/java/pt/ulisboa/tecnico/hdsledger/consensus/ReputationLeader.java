@@ -0,0 +1,109 @@
+package pt.ulisboa.tecnico.hdsledger.consensus;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/*
+ * Round robin, except that replicas whose proposals keep failing are left
+ * out of the first round for a while.
+ * An instance fails its first round leader if what it decided isn't that
+ * leader's proposal (i.e. the leader was slow or crashed, and another one
+ * proposed after a round change). A replica with threshold failures in the
+ * history instances before lambda - lag isn't the first leader of lambda
+ * (at most f replicas, the ones with most failures, then lowest ids). Later
+ * rounds go to the next replicas, all of them in turn.
+ * Only decisions are used, so every correct replica has the same leaders,
+ * as long as it recorded every decision up to lambda - lag before asking
+ * for the leaders of lambda (lag is at least the instances running at
+ * once). A demoted replica leads the first round again once its failures
+ * leave the history.
+ * Thread-safe.
+ */
+public class ReputationLeader implements LeaderPolicy {
+
+	// Instances whose failures are counted
+	public static final int DEFAULT_HISTORY = 64;
+	// Failures in the history that demote a replica
+	public static final int DEFAULT_THRESHOLD = 2;
+
+	private final int n;
+	private final int f;
+	private final int lag;
+	private final int history;
+	private final int threshold;
+
+	// Leader of the first round of each instance asked for (so it never
+	// changes), except for the instances decided before the history of the
+	// last decision
+	// Guarded by this
+	private final Map<Integer, Integer> firstLeaders = new HashMap<>();
+
+	// Instance -> first leader whose proposal wasn't decided (only the
+	// instances still in some history)
+	// Guarded by this
+	private final Map<Integer, Integer> failures = new HashMap<>();
+
+	public ReputationLeader(int n, int lag) {
+		this(n, lag, DEFAULT_HISTORY, DEFAULT_THRESHOLD);
+	}
+
+	public ReputationLeader(int n, int lag, int history, int threshold) {
+		this.n = n;
+		this.f = Math.floorDiv(n - 1, 3);
+		this.lag = Math.max(1, lag);
+		this.history = Math.max(1, history);
+		this.threshold = Math.max(1, threshold);
+	}
+
+	public synchronized int getLeader(int lambda, int round) {
+		return (getFirstLeader(lambda) + round) % n;
+	}
+
+	public synchronized void recordDecision(int lambda, int proposer) {
+		int leader = getFirstLeader(lambda);
+		if (proposer != leader) {
+			failures.put(lambda, leader);
+		}
+
+		// Later instances only count failures after this (and instances
+		// before it were decided long ago)
+		failures.keySet().removeIf(l -> l <= lambda - lag - history);
+		firstLeaders.keySet().removeIf(l -> l <= lambda - lag - history);
+	}
+
+	/**
+	 * Replicas left out of the first round of instance lambda
+	 */
+	public synchronized Set<Integer> getDemoted(int lambda) {
+		int last = lambda - lag;
+		Map<Integer, Long> counts = failures.entrySet().stream()
+				.filter(e -> e.getKey() > last - history && e.getKey() <= last)
+				.collect(Collectors.groupingBy(Map.Entry::getValue, Collectors.counting()));
+
+		return counts.entrySet().stream()
+				.filter(e -> e.getValue() >= threshold)
+				.sorted(Comparator.comparing((Map.Entry<Integer, Long> e) -> -e.getValue())
+						.thenComparing(Map.Entry::getKey))
+				.limit(f)
+				.map(Map.Entry::getKey)
+				.collect(Collectors.toCollection(HashSet::new));
+	}
+
+	private int getFirstLeader(int lambda) {
+		return firstLeaders.computeIfAbsent(lambda, l -> {
+			Set<Integer> demoted = getDemoted(l);
+			List<Integer> candidates = IntStream.range(0, n)
+					.filter(id -> !demoted.contains(id))
+					.boxed()
+					.collect(Collectors.toCollection(ArrayList::new));
+			return candidates.get(Math.floorMod(l, candidates.size()));
+		});
+	}
+}
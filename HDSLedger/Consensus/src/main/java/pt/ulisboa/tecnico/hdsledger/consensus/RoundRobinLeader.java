@@ -0,0 +1,22 @@
+package pt.ulisboa.tecnico.hdsledger.consensus;
+
+/*
+ * Leadership rotates with every instance and every round
+ * Thread-safe.
+ */
+public class RoundRobinLeader implements LeaderPolicy {
+
+	private final int n;
+
+	public RoundRobinLeader(int n) {
+		this.n = n;
+	}
+
+	public int getLeader(int lambda, int round) {
+		return (lambda + round) % n;
+	}
+
+	public void recordDecision(int lambda, int proposer) {
+		// nop
+	}
+}
@@ -5,61 +5,115 @@ import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
 import java.text.MessageFormat;
 import java.util.logging.Level;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 /*
  * Starts timeout and notifies when it ends
+ * Timers of every instance share a single scheduler thread (stopped timers
+ * are removed from it right away), and callbacks run in a shared pool, so
+ * a callback that takes long (e.g. signing ROUND-CHANGEs) doesn't delay
+ * other timers.
+ * A timer id is only started once (starting it again, or after it was
+ * stopped, does nothing).
  * Thread-safe.
  */
 public class SimpleTimer implements Timer {
 
 	private static final CustomLogger LOGGER = new CustomLogger(SimpleTimer.class.getName());
 
-	private AtomicInteger id = new AtomicInteger(0);
+	// Scheduler of the timers of all instances
+	private static final ScheduledThreadPoolExecutor SCHEDULER = newScheduler();
 
-	private Set<Integer> used = ConcurrentHashMap.newKeySet();
+	// Threads running the callbacks of expired timers
+	private static final ExecutorService CALLBACKS = Executors.newCachedThreadPool(daemonFactory("timer-callback"));
 
-	private Set<Integer> running = ConcurrentHashMap.newKeySet();
+	// Ids started or stopped at some point (at most one per round)
+	// Guarded by this
+	private final Set<Integer> used = new HashSet<>();
 
-	private Queue<Consumer<Integer>> callbacks = new ConcurrentLinkedQueue<>();
+	// Id -> timer that is running (the entry is what tells whether it was
+	// stopped when it expires)
+	// Guarded by this
+	private final Map<Integer, ScheduledFuture<?>> running = new HashMap<>();
+
+	private final Queue<Consumer<Integer>> callbacks = new ConcurrentLinkedQueue<>();
 
 	public SimpleTimer() {
 
 	}
 
-	public void setTimerToRunning(int timerId, int timeout) {
-		boolean isNew = used.add(timerId);
-		running.add(timerId);
-
-		if (isNew) {
-			Thread t = new Thread(() -> {
-				try {
-					Thread.sleep(timeout);
-					LOGGER.log(Level.INFO, MessageFormat.format("Timer fired after {0} millis", timeout));
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-
-				// If timer was not cancelled, notify callbacks
-				if (this.running.contains(timerId)) {
-					this.callbacks.forEach(c -> c.accept(timerId));
-				}
-			});
-
-			t.start();
+	private static ScheduledThreadPoolExecutor newScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, daemonFactory("timer"));
+		// Stopped timers are dropped right away instead of lingering in the
+		// queue until their deadline
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
+	private static ThreadFactory daemonFactory(String prefix) {
+		AtomicInteger count = new AtomicInteger(0);
+		return runnable -> {
+			Thread t = new Thread(runnable, prefix + "-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Returns number of timers running in the process (of all instances)
+	 */
+	public static int activeTimers() {
+		return SCHEDULER.getQueue().size();
+	}
+
+	/**
+	 * Returns number of timers of this instance that are running
+	 */
+	public synchronized int activeCount() {
+		return running.size();
+	}
+
+	public synchronized void setTimerToRunning(int timerId, int timeout) {
+		if (!used.add(timerId)) {
+			return;
 		}
+
+		running.put(timerId, SCHEDULER.schedule(() -> expire(timerId, timeout), timeout, TimeUnit.MILLISECONDS));
 	}
 
-	public void setTimerToStopped(int id) {
+	public synchronized void setTimerToStopped(int id) {
 		used.add(id);
-		running.remove(id);
+		ScheduledFuture<?> timer = running.remove(id);
+		if (timer != null) {
+			timer.cancel(false);
+		}
 	}
 
 	public void registeTimeoutCallback(Consumer<Integer> callback) {
 		this.callbacks.add(callback);
 	}
+
+	private void expire(int timerId, int timeout) {
+		synchronized (this) {
+			// If timer was cancelled, don't notify callbacks
+			if (running.remove(timerId) == null) {
+				return;
+			}
+		}
+
+		LOGGER.log(Level.INFO, MessageFormat.format("Timer fired after {0} millis", timeout));
+		CALLBACKS.execute(() -> this.callbacks.forEach(c -> c.accept(timerId)));
+	}
 }
@@ -0,0 +1,18 @@
+package pt.ulisboa.tecnico.hdsledger.consensus;
+
+/*
+ * How long each round of an instance lasts before the replica moves to the
+ * next one (function t in the paper). Shared by the instances of a replica.
+ */
+public interface TimeoutPolicy {
+	/**
+	 * Milliseconds before round times out
+	 */
+	int getTimeout(int round);
+
+	/**
+	 * Called when an instance decides in its first round
+	 * @param latency milliseconds since the instance started its first round
+	 */
+	void recordDecision(long latency);
+}
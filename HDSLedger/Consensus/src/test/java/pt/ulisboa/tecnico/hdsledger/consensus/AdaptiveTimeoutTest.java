@@ -0,0 +1,71 @@
+package pt.ulisboa.tecnico.hdsledger.consensus;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AdaptiveTimeoutTest {
+
+    // Window of 10 decisions, 4 needed, 4 times the 90th percentile,
+    // between 50 and 2000 milliseconds
+    private AdaptiveTimeout policy() {
+        return new AdaptiveTimeout(500, 10, 4, 0.9, 4, 50, 2000);
+    }
+
+    /**
+     * Initial timeout (with backoff) until there are enough decisions
+     */
+    @Test
+    public void initialUntilEnoughSamplesTest() {
+        AdaptiveTimeout policy = policy();
+        for (int i = 0; i < 3; i++) {
+            policy.recordDecision(10);
+        }
+
+        assertEquals(500, policy.getTimeout(0));
+        assertEquals(1000, policy.getTimeout(1));
+        assertEquals(4000, policy.getTimeout(3));
+
+        policy.recordDecision(10);
+        assertEquals(50, policy.getTimeout(0));
+        assertEquals(100, policy.getTimeout(1));
+    }
+
+    /**
+     * First timeout is a multiple of the percentile of the latest decisions
+     */
+    @Test
+    public void followsPercentileOfWindowTest() {
+        AdaptiveTimeout policy = policy();
+        // 90th percentile of 1..10 is 9
+        for (int latency = 1; latency <= 10; latency++) {
+            policy.recordDecision(latency * 10);
+        }
+        assertEquals(360, policy.getTimeout(0));
+
+        // Older decisions leave the window
+        for (int i = 0; i < 10; i++) {
+            policy.recordDecision(100);
+        }
+        assertEquals(400, policy.getTimeout(0));
+        assertEquals(800, policy.getTimeout(1));
+    }
+
+    /**
+     * First timeout stays within bounds, and backoff doesn't overflow
+     */
+    @Test
+    public void boundsTest() {
+        AdaptiveTimeout policy = policy();
+        for (int i = 0; i < 10; i++) {
+            policy.recordDecision(1);
+        }
+        assertEquals(50, policy.getTimeout(0));
+
+        for (int i = 0; i < 10; i++) {
+            policy.recordDecision(100000);
+        }
+        assertEquals(2000, policy.getTimeout(0));
+        assertEquals(Integer.MAX_VALUE, policy.getTimeout(40));
+    }
+}
@@ -8,6 +8,7 @@ import pt.ulisboa.tecnico.hdsledger.communication.Message;
 import pt.ulisboa.tecnico.hdsledger.communication.MessageCreator;
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.RoundChangeMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.SignatureCache;
 import pt.ulisboa.tecnico.hdsledger.pki.RSAKeyGenerator;
 import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.builder.ConsensusMessageBuilder;
@@ -18,12 +19,14 @@ import java.lang.reflect.Method;
 import java.security.GeneralSecurityException;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class IstanbulTest {
 
@@ -204,6 +207,61 @@ public class IstanbulTest {
 		}	
 	}
 
+	/**
+	 * Runs an instance of consensus with 4 nodes where one replica never gets
+	 * the PRE-PREPARE (nor has input), so it only sees the digest of the
+	 * value in PREPAREs and COMMITs and has to ask for the value
+	 */
+	@Test
+	public void missingPrePrepareValueIsFetchedN4() {
+		int n = 4;
+		int lambda = 0;
+		int missing = 3;
+		String value = "a";
+
+		// Stores the values confirmed by each replica
+		Map<Integer, List<String>> confirmed = new HashMap<>();
+
+		// Backlog of messages
+		Deque<ConsensusMessage> messages = new ConcurrentLinkedDeque();
+
+		// Consensus instances
+		List<Istanbul> instances = defaultInstances(n, confirmed, lambda, messages);
+
+		// Start every replica but the one missing the value
+		instances.stream().filter(instance -> instance.getId() != missing).forEach(instance -> {
+			List<ConsensusMessage> output = instance.start(value);
+
+			// Store all messages to be processed
+			output.forEach(m -> messages.addLast(m));
+		});
+
+		int requests = 0;
+		while (messages.size() > 0) {
+			ConsensusMessage message = messages.pollFirst();
+			int receiver = message.getReceiver();
+
+			// Drop the PRE-PREPARE to the replica missing the value
+			if (message.getType() == Message.Type.PRE_PREPARE && receiver == missing) {
+				continue;
+			}
+			if (message.getType() == Message.Type.VALUE_REQUEST) {
+				requests++;
+			}
+
+			List<ConsensusMessage> output = instances.get(receiver).handleMessage(message);
+			output.forEach(m -> messages.addLast(m));
+		}
+
+		// Asked each other replica once
+		assertEquals(n - 1, requests);
+
+		// Check that everyone delivered the same and once only
+		if (!checkConfirmed(confirmed).equals(value)) {
+			throw new RuntimeException("ERROR: agreed to wrong value");
+		}
+	}
+
 	/**
 	 * Runs an instance of consensus with 4 nodes where all, but one agree on
 	 * value
@@ -455,6 +513,51 @@ public class IstanbulTest {
 		checkConfirmed(confirmed); // ignore output value for simplicity
 	}
 
+	/**
+	 * Same as leaderCrashesN4, checking that the view change reuses
+	 * signatures already verified (the PREPAREs and ROUND-CHANGEs in
+	 * justifications) instead of verifying them again
+	 */
+	@Test
+	public void leaderCrashReusesVerifiedSignaturesN4() {
+		int n = 4;
+		int lambda = 0;
+
+		Map<Integer, List<String>> confirmed = new HashMap<>();
+		Deque<ConsensusMessage> messages = new ConcurrentLinkedDeque();
+		List<Istanbul> instances = defaultInstances(n, confirmed, lambda, messages);
+
+		SignatureCache cache = SignatureCache.getDefault();
+		long hits = cache.getHits();
+		long misses = cache.getMisses();
+
+		instances.forEach(instance -> {
+			if (instance.getId() != 0) {
+				String value = String.format("a%d", instance.getId());
+				instance.start(value).forEach(m -> messages.addLast(m));
+			}
+		});
+
+		long startTime = System.currentTimeMillis();
+		while (System.currentTimeMillis() - startTime < 5000) {
+			while (messages.size() > 0) {
+				ConsensusMessage message = messages.pollFirst();
+				int receiver = message.getReceiver();
+				if (receiver == 0) continue;
+				instances.get(receiver).handleMessage(message).forEach(m -> messages.addLast(m));
+			}
+		}
+
+		confirmed.remove(0);
+		checkConfirmed(confirmed);
+
+		long verified = cache.getMisses() - misses;
+		long reused = cache.getHits() - hits;
+		System.out.printf("[test] Signatures verified: %d, reused: %d\n", verified, reused);
+		// Every reused signature is an RSA verification saved
+		assertTrue(reused > 0);
+	}
+
 	/**
 	 * Runs an instance of consensus with 4 nodes where one node that is
 	 * the first leader crashes and later comes back to life (as if network
@@ -593,6 +696,192 @@ public class IstanbulTest {
 		checkConfirmed(confirmed); // ignore output value for simplicity
 	}
 
+	/**
+	 * Runs an instance of consensus with 4 nodes where every replica prepares
+	 * in the first round but no COMMIT of that round goes through, so the
+	 * instance can only decide in the second round (with replicas that were
+	 * already prepared)
+	 */
+	@Test
+	public void preparedReplicasCommitInLaterRoundN4() {
+		int n = 4;
+		int lambda = 0;
+
+		// Stores the values confirmed by each replica
+		Map<Integer, List<String>> confirmed = new HashMap<>();
+
+		// Backlog of messages
+		Deque<ConsensusMessage> messages = new ConcurrentLinkedDeque();
+
+		// Consensus instances, without timers (timeouts are triggered below)
+		List<ProcessConfig> configs = defaultConfigs(n);
+		List<Istanbul> instances = configs.stream()
+			.map(config -> {
+				Istanbul i = new Istanbul(configs, config, lambda, value -> true);
+				List<String> delivered = new ArrayList<>();
+				confirmed.put(config.getId(), delivered);
+				i.registerObserver(s -> delivered.add(s));
+				return i;
+			}).collect(Collectors.toList());
+
+		// Start every replica
+		instances.forEach(instance -> {
+			String value = String.format("a%d", instance.getId());
+			instance.start(value).forEach(m -> messages.addLast(m));
+		});
+
+		// First round, without its COMMITs
+		deliverDroppingFirstRoundCommits(instances, messages);
+		checkNoOneConfirmed(confirmed);
+
+		// Every replica times out and moves to the second round
+		instances.forEach(instance -> instance.handleTimeout(0).forEach(m -> messages.addLast(m)));
+		deliverDroppingFirstRoundCommits(instances, messages);
+
+		// The value prepared in the first round is decided in the second
+		assertEquals("a0", checkConfirmed(confirmed));
+	}
+
+	private void deliverDroppingFirstRoundCommits(List<Istanbul> instances, Deque<ConsensusMessage> messages) {
+		while (messages.size() > 0) {
+			ConsensusMessage message = messages.pollFirst();
+			if (message.getType() == Message.Type.COMMIT && message.getRound() == 0) {
+				continue;
+			}
+			instances.get(message.getReceiver()).handleMessage(message)
+				.forEach(m -> messages.addLast(m));
+		}
+	}
+
+	/**
+	 * Values that start with the id of the replica that proposed them, as
+	 * CommandBatch carries it
+	 */
+	private static final BiPredicate<String, Optional<Integer>> PROPOSER_IN_VALUE =
+		(value, proposer) -> proposer.map(id -> value.startsWith(id + " ")).orElse(true);
+
+	/*
+	 * Instances with beta and without timers (timeouts are triggered by the
+	 * test)
+	 */
+	private List<Istanbul> instancesWithoutTimers(int n, Map<Integer, List<String>> confirmed, int lambda,
+			BiPredicate<String, Optional<Integer>> beta) {
+		List<ProcessConfig> configs = defaultConfigs(n);
+		return configs.stream()
+			.map(config -> {
+				Istanbul i = new Istanbul(configs, config, lambda, beta);
+				List<String> delivered = new ArrayList<>();
+				confirmed.put(config.getId(), delivered);
+				i.registerObserver(s -> delivered.add(s));
+				return i;
+			}).collect(Collectors.toList());
+	}
+
+	/**
+	 * Runs an instance of consensus with 4 nodes where the first leader
+	 * crashes and the leader of the second round proposes a value in the
+	 * name of the first one, so the value is rejected and the instance only
+	 * decides in the third round
+	 */
+	@Test
+	public void forgedProposerIsRejectedN4() {
+		int n = 4;
+		int lambda = 0;
+
+		// Stores the values confirmed by each replica
+		Map<Integer, List<String>> confirmed = new HashMap<>();
+
+		// Backlog of messages
+		Deque<ConsensusMessage> messages = new ConcurrentLinkedDeque();
+
+		List<Istanbul> instances = instancesWithoutTimers(n, confirmed, lambda, PROPOSER_IN_VALUE);
+
+		// Replica 0 is crashed, replica 1 claims its value was proposed by 0
+		instances.forEach(instance -> {
+			int id = instance.getId();
+			if (id != 0) {
+				String value = id == 1 ? "0 forged" : String.format("%d a%d", id, id);
+				instance.start(value).forEach(m -> messages.addLast(m));
+			}
+		});
+		deliverDroppingCrashed(instances, messages, 0);
+
+		// Second round, led by 1
+		instances.stream().filter(instance -> instance.getId() != 0)
+			.forEach(instance -> instance.handleTimeout(0).forEach(m -> messages.addLast(m)));
+		deliverDroppingCrashed(instances, messages, 0);
+		checkNoOneConfirmed(confirmed);
+
+		// Third round, led by 2
+		instances.stream().filter(instance -> instance.getId() != 0)
+			.forEach(instance -> instance.handleTimeout(1).forEach(m -> messages.addLast(m)));
+		deliverDroppingCrashed(instances, messages, 0);
+
+		confirmed.remove(0);
+		assertEquals("2 a2", checkConfirmed(confirmed));
+	}
+
+	/**
+	 * Same as preparedReplicasCommitInLaterRoundN4, with values that carry
+	 * who proposed them: the value prepared in the first round keeps its
+	 * proposer when the leader of the second round proposes it again
+	 */
+	@Test
+	public void preparedValueKeepsProposerN4() {
+		int n = 4;
+		int lambda = 0;
+
+		// Stores the values confirmed by each replica
+		Map<Integer, List<String>> confirmed = new HashMap<>();
+
+		// Backlog of messages
+		Deque<ConsensusMessage> messages = new ConcurrentLinkedDeque();
+
+		List<Istanbul> instances = instancesWithoutTimers(n, confirmed, lambda, PROPOSER_IN_VALUE);
+
+		instances.forEach(instance -> {
+			int id = instance.getId();
+			instance.start(String.format("%d a%d", id, id)).forEach(m -> messages.addLast(m));
+		});
+		deliverDroppingFirstRoundCommits(instances, messages);
+		checkNoOneConfirmed(confirmed);
+
+		instances.forEach(instance -> instance.handleTimeout(0).forEach(m -> messages.addLast(m)));
+		deliverDroppingFirstRoundCommits(instances, messages);
+
+		assertEquals("0 a0", checkConfirmed(confirmed));
+	}
+
+	private void deliverDroppingCrashed(List<Istanbul> instances, Deque<ConsensusMessage> messages, int crashed) {
+		while (messages.size() > 0) {
+			ConsensusMessage message = messages.pollFirst();
+			if (message.getReceiver() == crashed) {
+				continue;
+			}
+			instances.get(message.getReceiver()).handleMessage(message)
+				.forEach(m -> messages.addLast(m));
+		}
+	}
+
+	/**
+	 * Messages already signed (e.g. other replicas' COMMITs sent again) keep
+	 * their signatures when a replica signs what it sends
+	 */
+	@Test
+	public void signAllKeepsOtherSignaturesN4() {
+		int n = 4;
+		List<ProcessConfig> configs = defaultConfigs(n);
+		Istanbul instance = new Istanbul(configs, configs.get(0), 0, value -> true);
+
+		ConsensusMessage commit = MessageCreator.createCommitMessage(1, "a1", 0, 0, 0);
+		commit.signSelf(configs.get(1).getPrivateKey());
+
+		List<ConsensusMessage> signed = instance.signAll(List.of(commit));
+
+		assertEquals(1, signed.size());
+		assertTrue(signed.get(0).checkConsistentSig(configs.get(1).getPublicKey()));
+	}
+
 	/**
 	 * Runs an instance of consensus with 4 nodes where network partitions
 	 * for some seconds
@@ -754,9 +1043,9 @@ public class IstanbulTest {
 
 				if (message.getType() == Message.Type.ROUND_CHANGE) {
 					System.out.println("Tampering with ROUND-CHANGE justification");
-					RoundChangeMessage roundChangeMessage = message.deserializeRoundChangeMessage();
+					RoundChangeMessage roundChangeMessage = message.getRoundChangeMessage();
 					roundChangeMessage.clearJustification();
-					message.setMessage(roundChangeMessage.toJson());
+					message.setMessage(roundChangeMessage);
 				}
 
 				Istanbul instance = instances.get(receiver);
@@ -1172,7 +1461,8 @@ public class IstanbulTest {
 			quorumSize.setAccessible(true);
 
 			List<ProcessConfig> othersValue = (List<ProcessConfig>) othersField.get(instance);
-			Predicate<String> betaValue = (Predicate<String>) betaField.get(instance);
+			BiPredicate<String, Optional<Integer>> betaValue =
+				(BiPredicate<String, Optional<Integer>>) betaField.get(instance);
 			int quorumSizeValue = (int) quorumSize.get(instance);
 
 			// do nasty things to messages here
@@ -1200,7 +1490,8 @@ public class IstanbulTest {
 			configField.setAccessible(true);
 
 			List<ProcessConfig> othersValue = (List<ProcessConfig>) othersField.get(instance);
-			Predicate<String> betaValue = (Predicate<String>) betaField.get(instance);
+			BiPredicate<String, Optional<Integer>> betaValue =
+				(BiPredicate<String, Optional<Integer>>) betaField.get(instance);
 			int quorumSizeValue = (int) quorumSize.get(instance);
 			ProcessConfig config = (ProcessConfig) configField.get(instance);
 
@@ -1220,13 +1511,13 @@ public class IstanbulTest {
 				// high prepared round. Of course, because it's
 				// a lie, this won't be properly justified
 					
-				RoundChangeMessage roundChange = message.deserializeRoundChangeMessage();
+				RoundChangeMessage roundChange = message.getRoundChangeMessage();
 				RoundChangeMessage fakeRoundChange = new RoundChangeMessage(Optional.of("dsfasdfa"), Optional.of(10000000), roundChange.getJustification());
 				
 				return new ConsensusMessageBuilder(message.getMessageId(), Message.Type.ROUND_CHANGE)
 					.setConsensusInstance(message.getConsensusInstance())
 					.setRound(message.getRound())
-					.setMessage(fakeRoundChange.toJson())
+					.setMessage(fakeRoundChange)
 					.setReceiver(message.getReceiver())
 					.build();
 
@@ -0,0 +1,155 @@
+package pt.ulisboa.tecnico.hdsledger.consensus;
+
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
+import pt.ulisboa.tecnico.hdsledger.pki.RSAKeyGenerator;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.SignatureScheme;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Instances decided per second by 4 replicas (in process, messages
+ * delivered right away), one instance after the other, without faults and
+ * with replica 3 delaying the start of every instance by
+ * Istanbul.INITIAL_TIMEOUT / 2 (as NodeService does with FaultType.DELAY),
+ * with round robin leaders and with ReputationLeader, with fixed timeouts
+ * and with adaptive ones (the default percentile and the one NodeService
+ * uses with reputation, AdaptiveTimeout.REPUTATION_PERCENTILE).
+ * Values carry the id of the replica that proposed them (as CommandBatch
+ * does).
+ * With fixed timeouts the delay is shorter than the first round, so the
+ * delayed replica's proposals are decided and its reputation doesn't drop.
+ * The same happens with the default percentile, once the delayed instances
+ * are among the ones it covers.
+ * Not a unit test, run with:
+ * mvn exec:java -pl Consensus -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=pt.ulisboa.tecnico.hdsledger.consensus.LeaderPolicyBenchmark
+ */
+public class LeaderPolicyBenchmark {
+
+    private static final int N = 4;
+    private static final int DELAYED = 3;
+    private static final int INSTANCES = 200;
+
+    private static final ScheduledExecutorService DELAYS = Executors.newSingleThreadScheduledExecutor();
+
+    public static void main(String[] args) throws Exception {
+        List<ProcessConfig> configs = configs();
+
+        Supplier<LeaderPolicy> roundRobin = () -> new RoundRobinLeader(N);
+        Supplier<LeaderPolicy> reputation = () -> new ReputationLeader(N, 1);
+
+        // Warm up, so that the first policy measured isn't slower
+        run(configs, () -> new FixedTimeout(Istanbul.INITIAL_TIMEOUT), roundRobin, -1);
+
+        System.out.printf("%d instances, N = %d, replica %d delayed%n", INSTANCES, N, DELAYED);
+        for (String timeouts : List.of("fixed", "adaptive", "median")) {
+            Supplier<TimeoutPolicy> timeoutPolicy = switch (timeouts) {
+                case "fixed" -> () -> new FixedTimeout(Istanbul.INITIAL_TIMEOUT);
+                case "adaptive" -> () -> new AdaptiveTimeout(Istanbul.INITIAL_TIMEOUT);
+                default -> () -> new AdaptiveTimeout(Istanbul.INITIAL_TIMEOUT, AdaptiveTimeout.REPUTATION_PERCENTILE);
+            };
+
+            double baseline = run(configs, timeoutPolicy, roundRobin, -1);
+            double delayed = run(configs, timeoutPolicy, roundRobin, DELAYED);
+            double demoted = run(configs, timeoutPolicy, reputation, DELAYED);
+            System.out.printf("  %-8s timeouts: %6.1f instances/s without faults, with delay %6.1f round robin"
+                    + " (%.0f%% lost), %6.1f reputation (%.0f%% lost)%n",
+                    timeouts, baseline, delayed, 100 * (1 - delayed / baseline),
+                    demoted, 100 * (1 - demoted / baseline));
+        }
+        System.exit(0);
+    }
+
+    /*
+     * Instances decided per second (delayed is -1 if there are no faults)
+     */
+    private static double run(List<ProcessConfig> configs, Supplier<TimeoutPolicy> timeoutPolicy,
+            Supplier<LeaderPolicy> leaderPolicy, int delayed) throws InterruptedException {
+        // One policy of each per replica, shared by its instances (as in
+        // NodeService)
+        List<TimeoutPolicy> timeoutPolicies = IntStream.range(0, N)
+                .mapToObj(i -> timeoutPolicy.get())
+                .collect(Collectors.toList());
+        List<LeaderPolicy> leaderPolicies = IntStream.range(0, N)
+                .mapToObj(i -> leaderPolicy.get())
+                .collect(Collectors.toList());
+
+        long start = System.nanoTime();
+        for (int lambda = 1; lambda <= INSTANCES; lambda++) {
+            decide(configs, timeoutPolicies, leaderPolicies, lambda, delayed);
+        }
+        return INSTANCES / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void decide(List<ProcessConfig> configs, List<TimeoutPolicy> timeoutPolicies,
+            List<LeaderPolicy> leaderPolicies, int lambda, int delayed) throws InterruptedException {
+        BlockingQueue<ConsensusMessage> messages = new LinkedBlockingQueue<>();
+        AtomicInteger decided = new AtomicInteger(0);
+
+        List<Istanbul> instances = new ArrayList<>();
+        for (int i = 0; i < N; i++) {
+            LeaderPolicy leaders = leaderPolicies.get(i);
+            Istanbul instance = new Istanbul(configs, configs.get(i), lambda, value -> true);
+            instance.setTimeoutPolicy(timeoutPolicies.get(i));
+            instance.setLeaderPolicy(leaders);
+            instance.registerObserver(value -> {
+                leaders.recordDecision(lambda, proposer(value));
+                decided.incrementAndGet();
+            });
+
+            Timer timer = new SimpleTimer();
+            timer.registeTimeoutCallback(round -> messages.addAll(instance.handleTimeout(round)));
+            instance.setTimer(timer);
+            instances.add(instance);
+        }
+
+        for (int i = 0; i < N; i++) {
+            Istanbul instance = instances.get(i);
+            String value = i + " " + lambda;
+            if (i == delayed) {
+                DELAYS.schedule(() -> messages.addAll(instance.start(value)),
+                        Istanbul.INITIAL_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+            } else {
+                messages.addAll(instance.start(value));
+            }
+        }
+
+        // Every replica records the decision before the next instance
+        while (decided.get() < N) {
+            ConsensusMessage message = messages.poll(1, TimeUnit.MILLISECONDS);
+            if (message != null) {
+                messages.addAll(instances.get(message.getReceiver()).handleMessage(message));
+            }
+        }
+    }
+
+    private static int proposer(String value) {
+        return Integer.parseInt(value.split(" ")[0]);
+    }
+
+    private static List<ProcessConfig> configs() throws Exception {
+        List<ProcessConfig> configs = new ArrayList<>();
+        for (int i = 0; i < N; i++) {
+            String privateKey = String.format("/tmp/priv_leader_bench_%d.key", i);
+            String publicKey = String.format("/tmp/pub_leader_bench_%d.key", i);
+            // Ed25519, so that signing doesn't hide the cost of delays
+            RSAKeyGenerator.write(privateKey, publicKey, SignatureScheme.ED25519);
+
+            ProcessConfig config = new ProcessConfig("localhost", i, 20000 + i, 30000 + i, N, publicKey, privateKey);
+            config.setSignatureScheme(SignatureScheme.ED25519);
+            configs.add(config);
+        }
+        return configs;
+    }
+}
@@ -0,0 +1,115 @@
+package pt.ulisboa.tecnico.hdsledger.consensus;
+
+import pt.ulisboa.tecnico.hdsledger.communication.Message;
+import pt.ulisboa.tecnico.hdsledger.communication.MessageCreator;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Time to collect the PREPAREs and COMMITs of a round, checking for a
+ * quorum after each one (as Istanbul does), for N = 4 to 64.
+ * "regrouping" is the previous MessageBucket, which grouped all messages
+ * of the round by value on every check. It's rebuilt here.
+ * Not a unit test, run with:
+ * mvn exec:java -pl Consensus -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=pt.ulisboa.tecnico.hdsledger.consensus.MessageBucketBenchmark
+ */
+public class MessageBucketBenchmark {
+
+    private static final int WARMUP = 2000;
+    private static final int ROUNDS = 5000;
+    // Size of a batch of transfers (the value of the messages)
+    private static final int VALUE_SIZE = 4096;
+
+    public static void main(String[] args) {
+        String value = "v".repeat(VALUE_SIZE);
+
+        System.out.printf("%4s %16s %16s%n", "N", "regrouping (us)", "incremental (us)");
+        for (int n : new int[] { 4, 7, 16, 31, 64 }) {
+            List<ConsensusMessage> messages = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                // Every message has its own copy of the value, as if received
+                messages.add(MessageCreator.createPrepareMessage(i, new String(value), 1, 1, 0));
+            }
+            for (int i = 0; i < n; i++) {
+                messages.add(MessageCreator.createCommitMessage(i, new String(value), 1, 1, 0));
+            }
+
+            run(messages, n, WARMUP, false);
+            double regrouping = run(messages, n, ROUNDS, false);
+            run(messages, n, WARMUP, true);
+            double incremental = run(messages, n, ROUNDS, true);
+
+            System.out.printf("%4d %16.2f %16.2f%n", n, regrouping, incremental);
+        }
+    }
+
+    // Microseconds per round
+    private static double run(List<ConsensusMessage> messages, int n, int rounds, boolean incremental) {
+        int found = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            if (incremental) {
+                MessageBucket prepares = new MessageBucket(n);
+                MessageBucket commits = new MessageBucket(n);
+                for (ConsensusMessage message : messages) {
+                    if (message.getType() == Message.Type.PREPARE) {
+                        prepares.addMessage(message);
+                        found += prepares.hasValidPrepareQuorum(1).isPresent() ? 1 : 0;
+                    } else {
+                        commits.addMessage(message);
+                        found += commits.hasValidCommitQuorum(1).isPresent() ? 1 : 0;
+                    }
+                }
+            } else {
+                RegroupingBucket prepares = new RegroupingBucket(n);
+                RegroupingBucket commits = new RegroupingBucket(n);
+                for (ConsensusMessage message : messages) {
+                    RegroupingBucket bucket = message.getType() == Message.Type.PREPARE ? prepares : commits;
+                    bucket.addMessage(message);
+                    found += bucket.hasValidQuorum(message.getType()) ? 1 : 0;
+                }
+            }
+        }
+        if (found == 0) {
+            throw new IllegalStateException("no quorum");
+        }
+        return (System.nanoTime() - start) / 1000.0 / rounds;
+    }
+
+    /*
+     * Previous MessageBucket (for one round)
+     */
+    private static class RegroupingBucket {
+        private final int quorumSize;
+        private final Map<Integer, ConsensusMessage> bySender = new HashMap<>();
+
+        RegroupingBucket(int n) {
+            int f = Math.floorDiv(n - 1, 3);
+            quorumSize = Math.floorDiv(n + f, 2) + 1;
+        }
+
+        void addMessage(ConsensusMessage message) {
+            bySender.put(message.getSenderId(), message);
+        }
+
+        boolean hasValidQuorum(Message.Type type) {
+            Map<String, List<ConsensusMessage>> grouped = new HashMap<>();
+            bySender.values().stream()
+                    .filter(message -> message.getType() == type)
+                    .forEach(message -> grouped.computeIfAbsent(valueOf(message), v -> new ArrayList<>())
+                            .add(message));
+            return grouped.values().stream().anyMatch(lst -> lst.size() >= quorumSize);
+        }
+
+        private static String valueOf(ConsensusMessage message) {
+            return message.getType() == Message.Type.COMMIT
+                    ? message.getCommitMessage().getDigest()
+                    : message.getPrepareMessage().getDigest();
+        }
+    }
+}
@@ -382,5 +382,33 @@ public class MessageBucketTest {
 		assert(optLst.isPresent());
 	}
 
+	/**
+	 * Checks that a replica that sends another message for the same round
+	 * only counts for the value of the last one
+	 */
+	@Test
+	public void replacedPrepareBucketTest() {
+		int n = 4;
+		String good = "a";
+		String bad = "b";
+		int instance = 0;
+		int round = 0;
+		int receiver = 0; // irrelevant
+		MessageBucket bucket = new MessageBucket(n);
+
+		// Quorum for 'a'
+		IntStream.range(0, 3)
+					.mapToObj(i -> MessageCreator.createPrepareMessage(i, good, instance, round, receiver))
+					.forEach(m -> bucket.addMessage(m));
+		assertEquals(Optional.of(good), bucket.hasValidPrepareQuorum(round));
+
+		// Replica 2 changes to 'b': no quorum, until replica 3 sends 'a'
+		bucket.addMessage(MessageCreator.createPrepareMessage(2, bad, instance, round, receiver));
+		assert(!bucket.hasValidPrepareQuorum(round).isPresent());
+		bucket.addMessage(MessageCreator.createPrepareMessage(3, good, instance, round, receiver));
+		assertEquals(Optional.of(good), bucket.hasValidPrepareQuorum(round));
+		assertEquals(3, bucket.getPrepareQuorumJustification(round).get().size());
+	}
+
 	// TODO (dsa): add tests for hasValidRoundChangeQuorum
 }
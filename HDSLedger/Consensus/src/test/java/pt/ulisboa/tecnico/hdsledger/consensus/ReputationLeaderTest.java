@@ -0,0 +1,143 @@
+package pt.ulisboa.tecnico.hdsledger.consensus;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReputationLeaderTest {
+
+    private static final int N = 4;
+
+    // One instance at once, history of 8 instances, 2 failures demote
+    private ReputationLeader policy() {
+        return new ReputationLeader(N, 1, 8, 2);
+    }
+
+    /*
+     * Records instances from to to (inclusive), with the first leader of
+     * each instance proposing, except for the slow ones, whose instances are
+     * decided with the proposal of the next leader
+     */
+    private void decide(LeaderPolicy policy, int from, int to, Set<Integer> slow) {
+        for (int lambda = from; lambda <= to; lambda++) {
+            int leader = policy.getLeader(lambda, 0);
+            int proposer = slow.contains(leader) ? policy.getLeader(lambda, 1) : leader;
+            policy.recordDecision(lambda, proposer);
+        }
+    }
+
+    /**
+     * Without failures, leaders are the same as round robin
+     */
+    @Test
+    public void roundRobinWithoutFailuresTest() {
+        ReputationLeader policy = policy();
+        RoundRobinLeader roundRobin = new RoundRobinLeader(N);
+
+        decide(policy, 1, 40, Set.of());
+        for (int lambda = 1; lambda <= 40; lambda++) {
+            for (int round = 0; round < 2 * N; round++) {
+                assertEquals(roundRobin.getLeader(lambda, round), policy.getLeader(lambda, round));
+            }
+        }
+    }
+
+    /**
+     * Slow replica stops leading the first round after enough failures, and
+     * leads it again once they leave the history
+     */
+    @Test
+    public void slowLeaderDemotedTest() {
+        ReputationLeader policy = policy();
+
+        // Replica 3 leads instances 3 and 7 (and fails both)
+        decide(policy, 1, 7, Set.of(3));
+        assertEquals(Set.of(), policy.getDemoted(7));
+        assertEquals(Set.of(3), policy.getDemoted(8));
+
+        // Not the first leader of any instance in the history after that,
+        // but still leads later rounds
+        for (int lambda = 8; lambda <= 11; lambda++) {
+            assertNotEquals(3, policy.getLeader(lambda, 0));
+            policy.recordDecision(lambda, policy.getLeader(lambda, 0));
+        }
+        assertEquals(2, policy.getLeader(8, 0));
+        assertEquals(3, policy.getLeader(8, 1));
+
+        // Failure of instance 3 left the history (instances 4 to 11)
+        assertEquals(Set.of(), policy.getDemoted(12));
+    }
+
+    /**
+     * At most f replicas are demoted (the ones with most failures, then the
+     * lowest ids)
+     */
+    @Test
+    public void demotesAtMostFTest() {
+        ReputationLeader policy = policy();
+
+        // 2 fails instances 2 and 6 and is demoted, 3 fails 3 and 8
+        decide(policy, 1, 8, Set.of(2, 3));
+        assertEquals(Set.of(2), policy.getDemoted(9));
+
+        // Failure of 2 in instance 2 left the history (instances 3 to 10)
+        decide(policy, 9, 10, Set.of(2, 3));
+        assertEquals(Set.of(3), policy.getDemoted(11));
+    }
+
+    /**
+     * Leaders of instances decided before the history aren't kept, the ones
+     * of instances that can still run are
+     */
+    @Test
+    public void forgetsOldInstancesTest() throws ReflectiveOperationException {
+        ReputationLeader policy = policy();
+        Field field = ReputationLeader.class.getDeclaredField("firstLeaders");
+        field.setAccessible(true);
+        Map<Integer, Integer> firstLeaders = (Map<Integer, Integer>) field.get(policy);
+
+        decide(policy, 1, 1000, Set.of(3));
+        int next = policy.getLeader(1001, 0);
+
+        // Instances 992 to 1000 (history of 8 before the last decision) and
+        // the one running
+        assertEquals(10, firstLeaders.size());
+        assertTrue(firstLeaders.keySet().stream().allMatch(l -> l > 991 && l <= 1001));
+
+        decide(policy, 1001, 1001, Set.of(3));
+        assertEquals(next, firstLeaders.get(1001));
+    }
+
+    /**
+     * Replicas that recorded the same decisions have the same leaders,
+     * whenever they ask
+     */
+    @Test
+    public void deterministicTest() {
+        ReputationLeader early = new ReputationLeader(N, 2, 8, 2);
+        ReputationLeader late = new ReputationLeader(N, 2, 8, 2);
+
+        for (int lambda = 1; lambda <= 30; lambda++) {
+            // Only the early one asks ahead (with 2 instances running)
+            early.getLeader(lambda + 1, 0);
+
+            // 1 always fails
+            int leader = early.getLeader(lambda, 0);
+            int proposer = leader == 1 ? early.getLeader(lambda, 1) : leader;
+            early.recordDecision(lambda, proposer);
+            late.recordDecision(lambda, proposer);
+        }
+
+        for (int lambda = 1; lambda <= 32; lambda++) {
+            for (int round = 0; round < N; round++) {
+                assertEquals(early.getLeader(lambda, round), late.getLeader(lambda, round));
+            }
+        }
+    }
+}
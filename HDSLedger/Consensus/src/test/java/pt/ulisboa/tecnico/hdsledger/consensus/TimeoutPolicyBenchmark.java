@@ -0,0 +1,119 @@
+package pt.ulisboa.tecnico.hdsledger.consensus;
+
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
+import pt.ulisboa.tecnico.hdsledger.pki.RSAKeyGenerator;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.SignatureScheme;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Instances decided per second by 4 replicas (in process, messages
+ * delivered right away), one instance after the other, with every replica
+ * up and with replica 3 crashed (so every 4th instance starts with a
+ * crashed leader and only decides after a ROUND-CHANGE), with the fixed
+ * first timeout (Istanbul.INITIAL_TIMEOUT) and with AdaptiveTimeout.
+ * Not a unit test, run with:
+ * mvn exec:java -pl Consensus -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=pt.ulisboa.tecnico.hdsledger.consensus.TimeoutPolicyBenchmark
+ */
+public class TimeoutPolicyBenchmark {
+
+    private static final int N = 4;
+    private static final int CRASHED = 3;
+    private static final int INSTANCES = 80;
+
+    public static void main(String[] args) throws Exception {
+        List<ProcessConfig> configs = configs();
+
+        // Warm up, so that the first policy measured isn't slower
+        run(configs, () -> new FixedTimeout(Istanbul.INITIAL_TIMEOUT), -1);
+
+        System.out.printf("%d instances, N = %d%n", INSTANCES, N);
+        for (String name : List.of("fixed", "adaptive")) {
+            Supplier<TimeoutPolicy> policy = name.equals("fixed")
+                    ? () -> new FixedTimeout(Istanbul.INITIAL_TIMEOUT)
+                    : () -> new AdaptiveTimeout(Istanbul.INITIAL_TIMEOUT);
+
+            double up = run(configs, policy, -1);
+            double crashed = run(configs, policy, CRASHED);
+            System.out.printf("  %-8s %6.1f instances/s all up, %6.1f with replica %d crashed"
+                    + " (%.0f%% lost, %.0f ms more per instance)%n",
+                    name, up, crashed, CRASHED, 100 * (1 - crashed / up), 1000 / crashed - 1000 / up);
+        }
+        System.exit(0);
+    }
+
+    /*
+     * Instances decided per second (crashed is -1 if every replica is up)
+     */
+    private static double run(List<ProcessConfig> configs, Supplier<TimeoutPolicy> policy, int crashed)
+            throws InterruptedException {
+        // One policy per replica, shared by its instances (as in NodeService)
+        List<TimeoutPolicy> policies = IntStream.range(0, N)
+                .mapToObj(i -> policy.get())
+                .collect(Collectors.toList());
+
+        long start = System.nanoTime();
+        for (int lambda = 0; lambda < INSTANCES; lambda++) {
+            decide(configs, policies, lambda, crashed);
+        }
+        return INSTANCES / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void decide(List<ProcessConfig> configs, List<TimeoutPolicy> policies, int lambda, int crashed)
+            throws InterruptedException {
+        BlockingQueue<ConsensusMessage> messages = new LinkedBlockingQueue<>();
+        AtomicInteger decided = new AtomicInteger(0);
+        int live = crashed < 0 ? N : N - 1;
+
+        List<Istanbul> instances = new ArrayList<>();
+        for (int i = 0; i < N; i++) {
+            Istanbul instance = new Istanbul(configs, configs.get(i), lambda, value -> true);
+            instance.setTimeoutPolicy(policies.get(i));
+            instance.registerObserver(value -> decided.incrementAndGet());
+
+            Timer timer = new SimpleTimer();
+            timer.registeTimeoutCallback(round -> messages.addAll(instance.handleTimeout(round)));
+            instance.setTimer(timer);
+            instances.add(instance);
+        }
+
+        for (int i = 0; i < N; i++) {
+            if (i != crashed) {
+                messages.addAll(instances.get(i).start("value " + lambda));
+            }
+        }
+
+        while (decided.get() < live) {
+            ConsensusMessage message = messages.poll(1, TimeUnit.MILLISECONDS);
+            if (message == null || message.getReceiver() == crashed) {
+                continue;
+            }
+            messages.addAll(instances.get(message.getReceiver()).handleMessage(message));
+        }
+    }
+
+    private static List<ProcessConfig> configs() throws Exception {
+        List<ProcessConfig> configs = new ArrayList<>();
+        for (int i = 0; i < N; i++) {
+            String privateKey = String.format("/tmp/priv_timeout_bench_%d.key", i);
+            String publicKey = String.format("/tmp/pub_timeout_bench_%d.key", i);
+            // Ed25519, so that signing doesn't hide the cost of timeouts
+            RSAKeyGenerator.write(privateKey, publicKey, SignatureScheme.ED25519);
+
+            ProcessConfig config = new ProcessConfig("localhost", i, 20000 + i, 30000 + i, N, publicKey, privateKey);
+            config.setSignatureScheme(SignatureScheme.ED25519);
+            configs.add(config);
+        }
+        return configs;
+    }
+}
@@ -137,4 +137,29 @@ public class TimerTest {
 
         assertEquals(triggered.get(), 1);
     }
+
+    /**
+     * Test that stopped timers are dropped from the shared scheduler
+     */
+    @Test
+    public void stopFreesTimersTest() {
+        SimpleTimer timer = new SimpleTimer();
+        int timers = 1000;
+        int timeout = 60000;
+
+        for (int round = 0; round < timers; round++) {
+            timer.setTimerToRunning(round, timeout);
+        }
+
+        assertEquals(timers, timer.activeCount());
+        // Timers of other instances may be running too
+        Assertions.assertTrue(SimpleTimer.activeTimers() >= timers);
+
+        for (int round = 0; round < timers; round++) {
+            timer.setTimerToStopped(round);
+        }
+
+        assertEquals(0, timer.activeCount());
+        Assertions.assertTrue(SimpleTimer.activeTimers() < timers);
+    }
 }
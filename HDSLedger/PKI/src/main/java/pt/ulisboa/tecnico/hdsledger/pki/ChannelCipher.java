@@ -0,0 +1,71 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+
+/**
+ * AES-GCM with the AES keys shared between processes: encrypts messages
+ * and authenticates them together with associated data (e.g. a header
+ * sent in the clear).
+ * Nonces are never reused with the same key by the callers (e.g. id of
+ * the sender followed by a counter), so they're 12 bytes chosen by them.
+ * Every thread reuses its own Cipher. Thread-safe.
+ */
+public class ChannelCipher {
+
+    public static final int NONCE_SIZE = 12;
+    public static final int TAG_BITS = 128;
+
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private ChannelCipher() {
+    }
+
+    /**
+     * Encrypts plaintext and authenticates it with associatedData
+     *
+     * @return the ciphertext followed by the tag
+     */
+    public static byte[] seal(Key key, byte[] nonce, byte[] associatedData, byte[] plaintext) {
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+            cipher.updateAAD(associatedData);
+            return cipher.doFinal(plaintext);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decrypts what seal returned
+     *
+     * @return the plaintext, or null if the ciphertext or associatedData
+     * were changed (or weren't sealed with key and nonce)
+     */
+    public static byte[] open(Key key, byte[] nonce, byte[] associatedData, byte[] sealed) {
+        if (nonce == null || nonce.length != NONCE_SIZE || sealed == null || sealed.length < TAG_BITS / 8) {
+            return null;
+        }
+        Cipher cipher = CIPHERS.get();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+            cipher.updateAAD(associatedData);
+            return cipher.doFinal(sealed);
+        } catch (GeneralSecurityException | ProviderException e) {
+            // Mostly AEADBadTagException
+            return null;
+        }
+    }
+}
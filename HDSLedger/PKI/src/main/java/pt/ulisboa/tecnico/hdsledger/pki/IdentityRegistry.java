@@ -0,0 +1,168 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.SignatureScheme;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Public identities of the processes (nodes and clients), by id: decoded
+ * public key, its signature scheme and its hash (the account id in the
+ * ledger, see SigningUtils.publicKeyHash).
+ * Key files are read once, when the registry is built (at startup), so
+ * looking up or verifying with an identity never touches the filesystem or
+ * a map keyed by path. The same goes for the private key of the process
+ * itself, resolved once with self.
+ * Immutable (thread-safe).
+ */
+public class IdentityRegistry {
+
+    /**
+     * Public identity of a process
+     */
+    public static final class Identity {
+        private final int id;
+        private final PublicKey publicKey;
+        private final SignatureScheme scheme;
+        private final String keyHash;
+        // Identities are used as keys of caches (see SignatureCache)
+        private final int hash;
+
+        private Identity(int id, PublicKey publicKey) {
+            this.id = id;
+            this.publicKey = publicKey;
+            this.scheme = RSAKeyGenerator.schemeOf(publicKey);
+            this.keyHash = SigningUtils.publicKeyHash(publicKey);
+            this.hash = 31 * id + publicKey.hashCode();
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+
+        public SignatureScheme getScheme() {
+            return scheme;
+        }
+
+        public String getKeyHash() {
+            return keyHash;
+        }
+
+        /**
+         * Whether signature (Base64) is a signature of data by this process
+         */
+        public boolean verify(byte[] data, String signature) {
+            return SignatureEngine.verify(data, signature, publicKey);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Identity)) {
+                return false;
+            }
+            Identity other = (Identity) o;
+            return id == other.id && publicKey.equals(other.publicKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "Identity{id=" + id + ", scheme=" + scheme + ", keyHash='" + keyHash + "'}";
+        }
+    }
+
+    private final Identity[] identities;
+
+    /**
+     * Reads the public keys of the processes
+     *
+     * @param publicKeyPaths key file of each process, indexed by id (null
+     * for ids no process has)
+     */
+    public IdentityRegistry(List<String> publicKeyPaths) {
+        this.identities = new Identity[publicKeyPaths.size()];
+        for (int id = 0; id < identities.length; id++) {
+            if (publicKeyPaths.get(id) == null) {
+                continue;
+            }
+            try {
+                PublicKey key = (PublicKey) RSAKeyGenerator.read(publicKeyPaths.get(id), "pub");
+                identities[id] = new Identity(id, key);
+            } catch (GeneralSecurityException | IOException e) {
+                throw new HDSSException(ErrorMessage.ReadingKeyError);
+            }
+        }
+    }
+
+    /**
+     * Registry of the processes in configs
+     */
+    public static IdentityRegistry of(List<ProcessConfig> configs) {
+        int size = configs.stream().mapToInt(config -> config.getId() + 1).max().orElse(0);
+        String[] paths = new String[size];
+        configs.forEach(config -> paths[config.getId()] = config.getPublicKey());
+        return new IdentityRegistry(Arrays.asList(paths));
+    }
+
+    public static IdentityRegistry of(ProcessConfig[] configs) {
+        return of(Arrays.asList(configs));
+    }
+
+    public int size() {
+        return identities.length;
+    }
+
+    public Optional<Identity> get(int id) {
+        if (id < 0 || id >= identities.length) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(identities[id]);
+    }
+
+    /**
+     * Identity of the process of config, with its private key (read from
+     * its key file, so resolve it once and keep it)
+     */
+    public PrivateIdentity self(ProcessConfig config) {
+        Identity identity = get(config.getId()).orElseThrow(() -> new HDSSException(ErrorMessage.NoSuchNode));
+        try {
+            return new PrivateIdentity(identity, (PrivateKey) RSAKeyGenerator.read(config.getPrivateKey(), "priv"));
+        } catch (GeneralSecurityException | IOException e) {
+            throw new HDSSException(ErrorMessage.ReadingKeyError);
+        }
+    }
+
+    /**
+     * Whether signature (Base64) is a signature of data by process id
+     * (false for unknown ids)
+     */
+    public boolean verify(int id, byte[] data, String signature) {
+        return get(id).map(identity -> identity.verify(data, signature)).orElse(false);
+    }
+
+    /**
+     * Hash of the public key of process id (see SigningUtils.publicKeyHash)
+     */
+    public String keyHash(int id) {
+        return identities[id].getKeyHash();
+    }
+}
@@ -0,0 +1,110 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Merkle tree (SHA-256) over a list of items, so that one signature over
+ * the root covers all of them, and each item can still be checked on its
+ * own with its path (about log2(n) hashes).
+ * Leaves and inner nodes are hashed with different prefixes (so a leaf
+ * can't pass for an inner node), and the last node of a level with an odd
+ * number of nodes moves up to the next level unchanged.
+ * Immutable (thread-safe).
+ */
+public class MerkleTree {
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    // levels.get(0) are the hashes of the items, the last level is the root
+    private final List<byte[][]> levels = new ArrayList<>();
+
+    public MerkleTree(List<byte[]> items) {
+        if (items.isEmpty()) {
+            throw new IllegalArgumentException("Merkle tree of no items");
+        }
+
+        byte[][] level = new byte[items.size()][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = hash(LEAF, items.get(i), null);
+        }
+        levels.add(level);
+
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                next[i] = 2 * i + 1 < level.length
+                        ? hash(NODE, level[2 * i], level[2 * i + 1])
+                        : level[2 * i];
+            }
+            levels.add(next);
+            level = next;
+        }
+    }
+
+    public int size() {
+        return levels.get(0).length;
+    }
+
+    public byte[] getRoot() {
+        return levels.get(levels.size() - 1)[0].clone();
+    }
+
+    /**
+     * Siblings of the item at index, from its leaf up to the root
+     */
+    public List<byte[]> pathOf(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException(index);
+        }
+
+        List<byte[]> path = new ArrayList<>();
+        for (int l = 0; l < levels.size() - 1; l++) {
+            byte[][] level = levels.get(l);
+            int sibling = index ^ 1;
+            if (sibling < level.length) {
+                path.add(level[sibling].clone());
+            }
+            index /= 2;
+        }
+        return path;
+    }
+
+    /**
+     * Root of the tree of count items where item is at index and path is
+     * its path (empty if the path doesn't fit index and count)
+     */
+    public static Optional<byte[]> rootOf(byte[] item, int index, int count, List<byte[]> path) {
+        if (index < 0 || index >= count) {
+            return Optional.empty();
+        }
+
+        byte[] node = hash(LEAF, item, null);
+        int used = 0;
+        for (int size = count; size > 1; size = (size + 1) / 2) {
+            int sibling = index ^ 1;
+            if (sibling < size) {
+                if (used == path.size()) {
+                    return Optional.empty();
+                }
+                byte[] other = path.get(used++);
+                node = sibling > index ? hash(NODE, node, other) : hash(NODE, other, node);
+            }
+            index /= 2;
+        }
+        return used == path.size() ? Optional.of(node) : Optional.empty();
+    }
+
+    private static byte[] hash(byte prefix, byte[] left, byte[] right) {
+        int length = left.length + (right == null ? 0 : right.length);
+        byte[] data = new byte[1 + length];
+        data[0] = prefix;
+        System.arraycopy(left, 0, data, 1, left.length);
+        if (right != null) {
+            System.arraycopy(right, 0, data, 1 + left.length, right.length);
+        }
+        return SignatureEngine.digest(data);
+    }
+}
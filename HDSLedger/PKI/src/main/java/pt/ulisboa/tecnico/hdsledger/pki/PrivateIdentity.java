@@ -0,0 +1,64 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry.Identity;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+
+/**
+ * Identity of the process itself, with its decoded private key (see
+ * IdentityRegistry.self). Resolved once, when the process starts, so
+ * signing and unwrapping the keys proposed to it never read its key file.
+ * Immutable (thread-safe).
+ */
+public final class PrivateIdentity {
+
+    private final Identity identity;
+    private final PrivateKey privateKey;
+
+    PrivateIdentity(Identity identity, PrivateKey privateKey) {
+        this.identity = identity;
+        this.privateKey = privateKey;
+    }
+
+    public Identity getIdentity() {
+        return identity;
+    }
+
+    public int getId() {
+        return identity.getId();
+    }
+
+    public PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    /**
+     * Signs data as this process
+     *
+     * @return the signature in Base64 (as kept in messages)
+     */
+    public String sign(byte[] data) {
+        return SignatureEngine.signToString(data, privateKey);
+    }
+
+    /**
+     * Encrypts key to this process (e.g. to keep it on disk)
+     */
+    public byte[] wrap(Key key) throws GeneralSecurityException {
+        return SigningUtils.encryptWithPublic(key, identity.getPublicKey());
+    }
+
+    /**
+     * Returns the encoding of a key encrypted to this process
+     */
+    public byte[] unwrap(byte[] wrapped) throws GeneralSecurityException {
+        return SigningUtils.decryptWithPrivate(wrapped, privateKey);
+    }
+
+    @Override
+    public String toString() {
+        return "PrivateIdentity{" + identity + "}";
+    }
+}
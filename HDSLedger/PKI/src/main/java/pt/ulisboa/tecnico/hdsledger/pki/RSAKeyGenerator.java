@@ -1,10 +1,12 @@
 package pt.ulisboa.tecnico.hdsledger.pki;
 
 import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.SignatureScheme;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.*;
+import java.security.interfaces.EdECKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
@@ -12,6 +14,13 @@ import java.util.logging.Level;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Generates and reads the key pairs of processes, RSA by default or of any
+ * other signature scheme (see ProcessConfig).
+ * Keys are written in the same formats whatever the scheme (PKCS#8 and
+ * X.509), which record the key's algorithm, so reading them doesn't need
+ * the scheme.
+ */
 public class RSAKeyGenerator {
 
     private static final CustomLogger LOGGER = new CustomLogger(RSAKeyGenerator.class.getName());
@@ -21,14 +30,16 @@ public class RSAKeyGenerator {
     public static void main(String[] args) throws Exception {
 
         // check args
-        if (args.length != 3) {
-            System.err.println("Usage: [r|w] <path-to-priv-key-id>.priv <path-to-pub-key-id>.pub");
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("Usage: [r|w] <path-to-priv-key-id>.priv <path-to-pub-key-id>.pub [RSA|ED25519]");
             return;
         }
 
         final String mode = args[0];
         final String privkeyPath = args[1];
         final String pubkeyPath = args[2];
+        final SignatureScheme scheme = args.length == 4 ? SignatureScheme.valueOf(args[3].toUpperCase())
+                : SignatureScheme.RSA;
 
         switch (mode.toLowerCase()) {
             case "r":
@@ -38,18 +49,24 @@ public class RSAKeyGenerator {
                 break;
             case "w":
                 LOGGER.log(Level.INFO, "Writing keys");
-                write(privkeyPath, pubkeyPath);
+                write(privkeyPath, pubkeyPath, scheme);
                 break;
             default:
-                throw new IllegalArgumentException("Invalid mode. Usage: [r|w] <path-to-priv-key-id>.priv <path-to-pub-key-id>.pub");
+                throw new IllegalArgumentException("Invalid mode. Usage: [r|w] <path-to-priv-key-id>.priv <path-to-pub-key-id>.pub [RSA|ED25519]");
         }
     }
 
     public static void write(String privKeyPath, String pubKeyPath) throws GeneralSecurityException, IOException {
-        // get an RSA private key
-        LOGGER.log(Level.INFO, "Generating RSA keys");
-        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-        keyGen.initialize(4096);
+        write(privKeyPath, pubKeyPath, SignatureScheme.RSA);
+    }
+
+    public static void write(String privKeyPath, String pubKeyPath, SignatureScheme scheme)
+            throws GeneralSecurityException, IOException {
+        LOGGER.log(Level.INFO, "Generating " + scheme + " keys");
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance(scheme.getKeyAlgorithm());
+        if (scheme == SignatureScheme.RSA) {
+            keyGen.initialize(4096);
+        }
         KeyPair keys = keyGen.generateKeyPair();
         LOGGER.log(Level.INFO, "Keys generated");
 
@@ -88,18 +105,36 @@ public class RSAKeyGenerator {
             encoded = new byte[fis.available()];
             fis.read(encoded);
         }
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        if (type.equals("pub") ){
-            X509EncodedKeySpec keySpec = new X509EncodedKeySpec(encoded);
-            Key key = keyFactory.generatePublic(keySpec);
-            memoizedKeys.put(keyPath, key);
-            return key;
-        }
-
-        PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(encoded);
-        Key key = keyFactory.generatePrivate(keySpec);
+        Key key = decode(encoded, type);
         memoizedKeys.put(keyPath, key);
 
         return key;
     }
+
+    /*
+     * Decodes a key of any scheme
+     */
+    private static Key decode(byte[] encoded, String type) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        InvalidKeySpecException error = null;
+        for (SignatureScheme scheme : SignatureScheme.values()) {
+            KeyFactory keyFactory = KeyFactory.getInstance(scheme.getKeyAlgorithm());
+            try {
+                if (type.equals("pub")) {
+                    return keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+                }
+                return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(encoded));
+            } catch (InvalidKeySpecException e) {
+                // Key of another scheme
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    /*
+     * Scheme of a key read by this class
+     */
+    public static SignatureScheme schemeOf(Key key) {
+        return key instanceof EdECKey ? SignatureScheme.ED25519 : SignatureScheme.RSA;
+    }
 }
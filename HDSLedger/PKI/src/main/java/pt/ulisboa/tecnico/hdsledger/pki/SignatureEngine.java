@@ -0,0 +1,190 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.SignatureScheme;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Signs and verifies raw bytes, with the signature scheme of the key
+ * (SHA256withRSA or Ed25519, see ProcessConfig.SignatureScheme).
+ * The keys of each process are read from its key files (the ones in its
+ * ProcessConfig) and decoded only once, and every thread reuses its own
+ * Signature and MessageDigest instead of creating them on every call.
+ * Thread-safe.
+ */
+public class SignatureEngine {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    // scheme -> Signature of each thread
+    private static final Map<SignatureScheme, ThreadLocal<Signature>> SIGNATURES = newSignatures();
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // key file -> decoded key
+    private static final Map<String, PrivateKey> privateKeys = new ConcurrentHashMap<>();
+    private static final Map<String, PublicKey> publicKeys = new ConcurrentHashMap<>();
+
+    private SignatureEngine() {
+    }
+
+    private static Map<SignatureScheme, ThreadLocal<Signature>> newSignatures() {
+        Map<SignatureScheme, ThreadLocal<Signature>> signatures = new EnumMap<>(SignatureScheme.class);
+        for (SignatureScheme scheme : SignatureScheme.values()) {
+            signatures.put(scheme, ThreadLocal.withInitial(() -> {
+                try {
+                    return Signature.getInstance(scheme.getSignatureAlgorithm());
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        return signatures;
+    }
+
+    private static Signature signatureFor(Key key) {
+        return SIGNATURES.get(RSAKeyGenerator.schemeOf(key)).get();
+    }
+
+    /**
+     * Signs data with the private key in pathToPrivateKey
+     */
+    public static byte[] sign(byte[] data, String pathToPrivateKey) {
+        try {
+            return sign(data, privateKey(pathToPrivateKey));
+        } catch (GeneralSecurityException | IOException e) {
+            throw new HDSSException(ErrorMessage.SigningError);
+        }
+    }
+
+    /**
+     * Signs data with key
+     */
+    public static byte[] sign(byte[] data, PrivateKey key) {
+        try {
+            Signature signature = signatureFor(key);
+            signature.initSign(key);
+            signature.update(data);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new HDSSException(ErrorMessage.SigningError);
+        }
+    }
+
+    /**
+     * Signs data with the private key in pathToPrivateKey
+     *
+     * @return the signature in Base64 (as kept in messages)
+     */
+    public static String signToString(byte[] data, String pathToPrivateKey) {
+        return Base64.getEncoder().encodeToString(sign(data, pathToPrivateKey));
+    }
+
+    /**
+     * Signs data with key
+     *
+     * @return the signature in Base64 (as kept in messages)
+     */
+    public static String signToString(byte[] data, PrivateKey key) {
+        return Base64.getEncoder().encodeToString(sign(data, key));
+    }
+
+    /**
+     * Whether signature is a signature of data by the owner of the public
+     * key in pathToPublicKey (false if anything about it is malformed)
+     */
+    public static boolean verify(byte[] data, byte[] signature, String pathToPublicKey) {
+        try {
+            return verify(data, signature, publicKey(pathToPublicKey));
+        } catch (GeneralSecurityException | IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether signature is a signature of data by the owner of key (false if
+     * anything about it is malformed)
+     */
+    public static boolean verify(byte[] data, byte[] signature, PublicKey key) {
+        try {
+            Signature verifier = signatureFor(key);
+            verifier.initVerify(key);
+            verifier.update(data);
+            return verifier.verify(signature);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Same as verify, for a signature in Base64 (as kept in messages)
+     */
+    public static boolean verify(byte[] data, String signature, PublicKey key) {
+        if (signature == null) {
+            return false;
+        }
+        try {
+            return verify(data, Base64.getDecoder().decode(signature), key);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Same as verify, for a signature in Base64 (as kept in messages)
+     */
+    public static boolean verify(byte[] data, String signature, String pathToPublicKey) {
+        if (signature == null) {
+            return false;
+        }
+        try {
+            return verify(data, Base64.getDecoder().decode(signature), pathToPublicKey);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * SHA-256 digest of data
+     */
+    public static byte[] digest(byte[] data) {
+        return DIGESTS.get().digest(data);
+    }
+
+    private static PrivateKey privateKey(String path) throws GeneralSecurityException, IOException {
+        PrivateKey key = privateKeys.get(path);
+        if (key == null) {
+            key = (PrivateKey) RSAKeyGenerator.read(path, "priv");
+            privateKeys.put(path, key);
+        }
+        return key;
+    }
+
+    private static PublicKey publicKey(String path) throws GeneralSecurityException, IOException {
+        PublicKey key = publicKeys.get(path);
+        if (key == null) {
+            key = (PublicKey) RSAKeyGenerator.read(path, "pub");
+            publicKeys.put(path, key);
+        }
+        return key;
+    }
+}
@@ -2,6 +2,8 @@ package pt.ulisboa.tecnico.hdsledger.pki;
 
 import java.io.IOException;
 import java.security.*;
+import java.security.interfaces.EdECPrivateKey;
+import java.security.interfaces.EdECPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Base64;
 import java.util.Map;
@@ -12,48 +14,49 @@ import javax.crypto.*;
 public class SigningUtils {
     private static Map<String, String> memoizedHashes = new ConcurrentHashMap<>();
 
-    private static final boolean DUMMY = false;
-
-    public static String encrypt(byte[] data, String pathToPrivateKey)
-        throws NoSuchAlgorithmException, InvalidKeySpecException, IOException,
-        NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-
-        PrivateKey privateKey = (PrivateKey) RSAKeyGenerator.read(pathToPrivateKey, "priv");
-        Cipher encryptCipher = Cipher.getInstance("RSA");
-        encryptCipher.init(Cipher.ENCRYPT_MODE, privateKey);
-        byte[] encryptedData = encryptCipher.doFinal(data);
-
-        return Base64.getEncoder().encodeToString(encryptedData);
-    }
+    // HMAC-SHA256 of each thread
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
 
     public static byte[] encryptWithPublic(Key key, String pathToPublicKey)
             throws NoSuchAlgorithmException, InvalidKeySpecException, IOException,
             NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, NoSuchProviderException {
 
-        PublicKey publicKey = (PublicKey) RSAKeyGenerator.read(pathToPublicKey, "pub");
+        return encryptWithPublic(key, (PublicKey) RSAKeyGenerator.read(pathToPublicKey, "pub"));
+    }
+
+    public static byte[] encryptWithPublic(Key key, PublicKey publicKey)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, NoSuchPaddingException,
+            InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+
+        if (publicKey instanceof EdECPublicKey) {
+            return X25519KeyWrap.wrap(key, (EdECPublicKey) publicKey);
+        }
         Cipher encryptCipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
         encryptCipher.init(Cipher.WRAP_MODE, publicKey);
 
         return encryptCipher.wrap(key);
     }
 
-    public static String decrypt(byte[] data, String pathToPublicKey)
+    public static byte[] decryptWithPrivate(byte[] data, String pathToPrivateKey)
             throws NoSuchAlgorithmException, InvalidKeySpecException, IOException,
-            NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-
-        PublicKey publicKey = (PublicKey) RSAKeyGenerator.read(pathToPublicKey, "pub");
-        Cipher decryptCipher = Cipher.getInstance("RSA");
-        decryptCipher.init(Cipher.DECRYPT_MODE, publicKey);
-        byte[] decryptedData = decryptCipher.doFinal(data);
+            NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
 
-        return new String(decryptedData);
+        return decryptWithPrivate(data, (PrivateKey) RSAKeyGenerator.read(pathToPrivateKey, "priv"));
     }
 
-    public static byte[] decryptWithPrivate(byte[] data, String pathToPrivateKey)
-            throws NoSuchAlgorithmException, InvalidKeySpecException, IOException,
-            NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    public static byte[] decryptWithPrivate(byte[] data, PrivateKey privateKey)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, NoSuchPaddingException,
+            InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
 
-        PrivateKey privateKey = (PrivateKey) RSAKeyGenerator.read(pathToPrivateKey, "priv");
+        if (privateKey instanceof EdECPrivateKey) {
+            return X25519KeyWrap.unwrap(data, (EdECPrivateKey) privateKey);
+        }
         Cipher decryptCipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
         decryptCipher.init(Cipher.UNWRAP_MODE, privateKey);
         Key sessionKey = decryptCipher.unwrap(data, "AES", Cipher.SECRET_KEY);
@@ -63,7 +66,7 @@ public class SigningUtils {
 
     public static byte[] generateHMAC(byte[] data, Key key) {
         try {
-            Mac sha256_HMAC = Mac.getInstance("HmacSHA256");
+            Mac sha256_HMAC = MACS.get();
             sha256_HMAC.init(key);
             return sha256_HMAC.doFinal(data);
         } catch (Exception e) {
@@ -72,52 +75,58 @@ public class SigningUtils {
     }
 
     public static String digest(String data) throws NoSuchAlgorithmException {
-        byte[] dataBytes = data.getBytes();
-        final String DIGEST_ALGO = "SHA-256";
-        MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGO);
-        messageDigest.update(dataBytes);
-        byte[] digestBytes = messageDigest.digest();
-
-        return Base64.getEncoder().encodeToString(digestBytes);
+        return digest(data.getBytes());
     }
 
-    public static String sign(String data, String pathToPrivateKey)
-            throws NoSuchAlgorithmException, InvalidKeyException, InvalidKeySpecException,
-            NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, IOException {
-
-        if (DUMMY) return "dummy";
+    public static String digest(byte[] dataBytes) throws NoSuchAlgorithmException {
+        return Base64.getEncoder().encodeToString(SignatureEngine.digest(dataBytes));
+    }
 
-        String digest = digest(data);
+    /*
+     * Base64 signature of data (see SignatureEngine)
+     */
+    public static String sign(String data, String pathToPrivateKey) {
+        return sign(data.getBytes(), pathToPrivateKey);
+    }
 
-        return encrypt(digest.getBytes(), pathToPrivateKey);
+    public static String sign(byte[] data, String pathToPrivateKey) {
+        return SignatureEngine.signToString(data, pathToPrivateKey);
     }
 
     public static String publicKeyHash(String publicKeyPath) {
-        if (memoizedHashes.containsKey(publicKeyPath)) {
-            return memoizedHashes.get(publicKeyPath); 
+        String hash = memoizedHashes.get(publicKeyPath);
+        if (hash != null) {
+            return hash;
         }
 
         try {
-            PublicKey publicKey = (PublicKey) RSAKeyGenerator.read(publicKeyPath, "pub");
-            return digest(new String(publicKey.getEncoded()));
+            hash = publicKeyHash((PublicKey) RSAKeyGenerator.read(publicKeyPath, "pub"));
         } catch (IOException | NoSuchAlgorithmException | InvalidKeySpecException e) {
             throw new RuntimeException(e);
         }
+        memoizedHashes.put(publicKeyPath, hash);
+        return hash;
     }
 
-    public static boolean verifySignature(String data, String signature, String pathToPublicKey) {
+    /*
+     * Identifier of the owner of publicKey in the ledger (see IdentityRegistry)
+     */
+    public static String publicKeyHash(PublicKey publicKey) {
         try {
-            if (DUMMY) return true;
-            String hash = digest(data);
-            byte[] signatureBytes = Base64.getDecoder().decode(signature);
-            String decryptedHash = decrypt(signatureBytes, pathToPublicKey);
-            return hash.equals(decryptedHash);
-
-        } catch (Exception e) {
-            return false;
+            return digest(new String(publicKey.getEncoded()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
     }
 
+    public static boolean verifySignature(String data, String signature, String pathToPublicKey) {
+        return verifySignature(data.getBytes(), signature, pathToPublicKey);
+    }
+
+    public static boolean verifySignature(byte[] data, String signature, String pathToPublicKey) {
+        return SignatureEngine.verify(data, signature, pathToPublicKey);
+    }
+
     public static Key generateSimKey() {
         try {
             return AESKeyGenerator.generateSimKey();
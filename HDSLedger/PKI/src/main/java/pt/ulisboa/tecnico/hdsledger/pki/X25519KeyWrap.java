@@ -0,0 +1,170 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyAgreement;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.EdECPrivateKey;
+import java.security.interfaces.EdECPublicKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPrivateKeySpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.Arrays;
+
+/**
+ * Encrypts (session) keys to Ed25519 identities, which can only sign.
+ * The identity's key is converted to its X25519 counterpart (same curve,
+ * as in libsodium's crypto_sign_ed25519_pk_to_curve25519), an ephemeral
+ * X25519 key agrees on a secret with it, and the key is encrypted with
+ * AES-GCM under a hash of that secret.
+ * Wrapped key: ephemeral public key (32 bytes) followed by the ciphertext.
+ */
+public class X25519KeyWrap {
+
+    private static final int KEY_SIZE = 32;
+    private static final int TAG_BITS = 128;
+
+    // Prime of Curve25519
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+
+    private X25519KeyWrap() {
+    }
+
+    /**
+     * Encrypts key to the owner of recipient
+     */
+    public static byte[] wrap(Key key, EdECPublicKey recipient)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException,
+            IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException {
+
+        PublicKey recipientKey = toX25519(recipient);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("X25519");
+        KeyPair ephemeral = generator.generateKeyPair();
+        byte[] ephemeralKey = encode(((XECPublicKey) ephemeral.getPublic()).getU());
+
+        Cipher cipher = cipher(Cipher.ENCRYPT_MODE, ephemeral.getPrivate(), recipientKey, ephemeralKey,
+                encode(((XECPublicKey) recipientKey).getU()));
+        byte[] encrypted = cipher.doFinal(key.getEncoded());
+
+        byte[] wrapped = Arrays.copyOf(ephemeralKey, KEY_SIZE + encrypted.length);
+        System.arraycopy(encrypted, 0, wrapped, KEY_SIZE, encrypted.length);
+        return wrapped;
+    }
+
+    /**
+     * Returns the encoding of the key wrapped to the owner of recipient
+     */
+    public static byte[] unwrap(byte[] wrapped, EdECPrivateKey recipient)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException,
+            IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException {
+
+        if (wrapped == null || wrapped.length <= KEY_SIZE) {
+            throw new IllegalBlockSizeException("Wrapped key is too short");
+        }
+        byte[] ephemeralKey = Arrays.copyOf(wrapped, KEY_SIZE);
+        PublicKey ephemeral = KeyFactory.getInstance("X25519")
+                .generatePublic(new XECPublicKeySpec(NamedParameterSpec.X25519, decode(ephemeralKey)));
+
+        PrivateKey recipientKey = toX25519(recipient);
+        byte[] recipientPublicKey = encode(publicU(recipient));
+
+        Cipher cipher = cipher(Cipher.DECRYPT_MODE, recipientKey, ephemeral, ephemeralKey, recipientPublicKey);
+        return cipher.doFinal(wrapped, KEY_SIZE, wrapped.length - KEY_SIZE);
+    }
+
+    /*
+     * AES-GCM cipher keyed by the secret agreed between privateKey and
+     * publicKey (hashed with both public keys, so it's bound to them).
+     * Every ephemeral key is used once, so a fixed nonce is enough.
+     */
+    private static Cipher cipher(int mode, PrivateKey privateKey, PublicKey publicKey, byte[] ephemeralKey,
+                                 byte[] recipientKey)
+            throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException {
+
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(privateKey);
+        agreement.doPhase(publicKey, true);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(agreement.generateSecret());
+        digest.update(ephemeralKey);
+        digest.update(recipientKey);
+        SecretKeySpec wrappingKey = new SecretKeySpec(digest.digest(), "AES");
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        try {
+            cipher.init(mode, wrappingKey, new GCMParameterSpec(TAG_BITS, new byte[12]));
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new IllegalStateException(e);
+        }
+        return cipher;
+    }
+
+    // Montgomery u = (1 + y) / (1 - y) of the Edwards point
+    private static BigInteger toU(BigInteger y) {
+        return BigInteger.ONE.add(y).multiply(BigInteger.ONE.subtract(y).mod(P).modInverse(P)).mod(P);
+    }
+
+    private static PublicKey toX25519(EdECPublicKey key) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return KeyFactory.getInstance("X25519")
+                .generatePublic(new XECPublicKeySpec(NamedParameterSpec.X25519, toU(key.getPoint().getY())));
+    }
+
+    // The X25519 scalar is the first half of the hash of the Ed25519 seed
+    // (the X25519 implementation clamps it, as Ed25519 does)
+    private static PrivateKey toX25519(EdECPrivateKey key) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        byte[] seed = key.getBytes().orElseThrow(() -> new InvalidKeySpecException("Key can't be exported"));
+        byte[] scalar = Arrays.copyOf(MessageDigest.getInstance("SHA-512").digest(seed), KEY_SIZE);
+        return KeyFactory.getInstance("X25519")
+                .generatePrivate(new XECPrivateKeySpec(NamedParameterSpec.X25519, scalar));
+    }
+
+    // u of the public key of an Ed25519 private key
+    private static BigInteger publicU(EdECPrivateKey key) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        try {
+            KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+            PrivateKey x25519 = toX25519(key);
+            // u = scalar * base point (u = 9)
+            agreement.init(x25519);
+            agreement.doPhase(KeyFactory.getInstance("X25519")
+                    .generatePublic(new XECPublicKeySpec(NamedParameterSpec.X25519, BigInteger.valueOf(9))), true);
+            return decode(agreement.generateSecret());
+        } catch (InvalidKeyException e) {
+            throw new InvalidKeySpecException(e);
+        }
+    }
+
+    // 32 bytes, little-endian (RFC 7748)
+    private static byte[] encode(BigInteger u) {
+        byte[] bigEndian = u.toByteArray();
+        byte[] encoded = new byte[KEY_SIZE];
+        for (int i = 0; i < KEY_SIZE && i < bigEndian.length; i++) {
+            encoded[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return encoded;
+    }
+
+    private static BigInteger decode(byte[] encoded) {
+        byte[] bigEndian = new byte[KEY_SIZE + 1];
+        for (int i = 0; i < KEY_SIZE; i++) {
+            bigEndian[KEY_SIZE - i] = encoded[i];
+        }
+        return new BigInteger(bigEndian);
+    }
+}
@@ -0,0 +1,61 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import java.nio.ByteBuffer;
+import java.security.Key;
+import java.util.Random;
+
+/**
+ * Throughput of protecting a link message with the key shared by two
+ * processes: HMAC-SHA256 (HMAC channel mode) and AES-GCM encryption
+ * (AES_GCM channel mode), for messages from an ACK to a fragment.
+ * Not a unit test, run with:
+ * mvn exec:java -pl PKI -Dexec.classpathScope=test \
+ *     -DmainClass=pt.ulisboa.tecnico.hdsledger.pki.ChannelBenchmark
+ */
+public class ChannelBenchmark {
+
+    private static final int[] SIZES = {64, 512, 4096, 60000};
+
+    // Milliseconds spent on each measurement
+    private static final int DURATION = 2000;
+
+    private interface Operation {
+        void run(long i);
+    }
+
+    public static void main(String[] args) {
+        Key key = SigningUtils.generateSimKey();
+        byte[] header = new byte[16];
+
+        for (int size : SIZES) {
+            byte[] data = new byte[size];
+            new Random(42).nextBytes(data);
+
+            double hmac = measure(i -> SigningUtils.generateHMAC(data, key));
+            double gcm = measure(i -> ChannelCipher.seal(key, nonce(i), header, data));
+            System.out.printf("%6d bytes: HMAC %7.1f MB/s, AES-GCM %7.1f MB/s%n",
+                    size, hmac * size / 1e6, gcm * size / 1e6);
+        }
+    }
+
+    private static byte[] nonce(long counter) {
+        return ByteBuffer.allocate(ChannelCipher.NONCE_SIZE).putInt(1).putLong(counter).array();
+    }
+
+    // Warms up, then returns operations per second
+    private static double measure(Operation operation) {
+        long i = 0;
+        for (long end = System.currentTimeMillis() + DURATION / 4; System.currentTimeMillis() < end; ) {
+            operation.run(i++);
+        }
+
+        long count = 0;
+        long start = System.nanoTime();
+        long end = start + DURATION * 1000000L;
+        while (System.nanoTime() < end) {
+            operation.run(i++);
+            count++;
+        }
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+}
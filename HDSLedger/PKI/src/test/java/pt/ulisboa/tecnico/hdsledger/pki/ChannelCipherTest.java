@@ -0,0 +1,44 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.Key;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ChannelCipherTest {
+
+    private final Key key = SigningUtils.generateSimKey();
+
+    private final byte[] nonce = new byte[ChannelCipher.NONCE_SIZE];
+
+    @Test
+    public void opensWhatWasSealed() {
+        byte[] sealed = ChannelCipher.seal(key, nonce, "header".getBytes(), "balance: 10".getBytes());
+
+        assertFalse(new String(sealed).contains("balance"));
+        assertArrayEquals("balance: 10".getBytes(), ChannelCipher.open(key, nonce, "header".getBytes(), sealed));
+        // Nothing to encrypt (only the header is authenticated)
+        byte[] otherNonce = nonce.clone();
+        otherNonce[0] = 1;
+        assertArrayEquals(new byte[0], ChannelCipher.open(key, otherNonce, "header".getBytes(),
+                ChannelCipher.seal(key, otherNonce, "header".getBytes(), new byte[0])));
+    }
+
+    @Test
+    public void rejectsAnythingChanged() {
+        byte[] sealed = ChannelCipher.seal(key, nonce, "header".getBytes(), "balance: 10".getBytes());
+
+        assertNull(ChannelCipher.open(key, nonce, "headed".getBytes(), sealed));
+        assertNull(ChannelCipher.open(SigningUtils.generateSimKey(), nonce, "header".getBytes(), sealed));
+        byte[] otherNonce = nonce.clone();
+        otherNonce[11] = 1;
+        assertNull(ChannelCipher.open(key, otherNonce, "header".getBytes(), sealed));
+        sealed[0] ^= 1;
+        assertNull(ChannelCipher.open(key, nonce, "header".getBytes(), sealed));
+        assertNull(ChannelCipher.open(key, new byte[4], "header".getBytes(), sealed));
+        assertNull(ChannelCipher.open(key, nonce, "header".getBytes(), new byte[3]));
+    }
+}
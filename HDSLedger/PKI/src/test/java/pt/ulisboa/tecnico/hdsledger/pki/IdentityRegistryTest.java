@@ -0,0 +1,99 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.HDSSException;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.SignatureScheme;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IdentityRegistryTest {
+
+    private static final String PUB_KEY_PATH = "/tmp/registry.pub";
+    private static final String PRIV_KEY_PATH = "/tmp/registry.priv";
+    private static final String ED_PUB_KEY_PATH = "/tmp/registry_ed25519.pub";
+    private static final String ED_PRIV_KEY_PATH = "/tmp/registry_ed25519.priv";
+
+    @BeforeAll
+    public static void generateKeys() throws IOException, GeneralSecurityException {
+        RSAKeyGenerator.write(PRIV_KEY_PATH, PUB_KEY_PATH);
+        RSAKeyGenerator.write(ED_PRIV_KEY_PATH, ED_PUB_KEY_PATH, SignatureScheme.ED25519);
+    }
+
+    @Test
+    public void identitiesMatchKeyFiles() {
+        IdentityRegistry registry = new IdentityRegistry(List.of(PUB_KEY_PATH, ED_PUB_KEY_PATH));
+
+        assertEquals(2, registry.size());
+        assertEquals(SignatureScheme.RSA, registry.get(0).get().getScheme());
+        assertEquals(SignatureScheme.ED25519, registry.get(1).get().getScheme());
+        // Same account ids as before
+        assertEquals(SigningUtils.publicKeyHash(PUB_KEY_PATH), registry.keyHash(0));
+        assertEquals(SigningUtils.publicKeyHash(ED_PUB_KEY_PATH), registry.keyHash(1));
+        assertTrue(registry.get(-1).isEmpty());
+        assertTrue(registry.get(2).isEmpty());
+        // Identities are told apart by id too (keys can be shared in tests)
+        assertNotEquals(registry.get(0).get(), new IdentityRegistry(List.of(ED_PUB_KEY_PATH, PUB_KEY_PATH)).get(1).get());
+        assertEquals(registry.get(0).get(), new IdentityRegistry(List.of(PUB_KEY_PATH)).get(0).get());
+    }
+
+    @Test
+    public void verifiesById() {
+        IdentityRegistry registry = new IdentityRegistry(List.of(PUB_KEY_PATH, ED_PUB_KEY_PATH));
+        byte[] data = "data".getBytes();
+        String signature = SignatureEngine.signToString(data, ED_PRIV_KEY_PATH);
+
+        assertTrue(registry.verify(1, data, signature));
+        assertFalse(registry.verify(0, data, signature));
+        assertFalse(registry.verify(1, "date".getBytes(), signature));
+        assertFalse(registry.verify(2, data, signature));
+        assertFalse(registry.verify(1, data, "not base64!"));
+        assertFalse(registry.verify(1, data, null));
+    }
+
+    /**
+     * Processes are registered by id (ids no process has are empty), and
+     * the private key of self is only read when it's resolved
+     */
+    @Test
+    public void selfSignsAndUnwrapsWithoutKeyFiles() throws IOException, GeneralSecurityException {
+        Path privateKey = Path.of("/tmp/registry_self.priv");
+        Files.copy(Path.of(ED_PRIV_KEY_PATH), privateKey, StandardCopyOption.REPLACE_EXISTING);
+        ProcessConfig rsa = new ProcessConfig("localhost", 0, 8000, -1, 4, PUB_KEY_PATH, PRIV_KEY_PATH);
+        ProcessConfig ed = new ProcessConfig("localhost", 2, 8002, -1, 4, ED_PUB_KEY_PATH, privateKey.toString());
+        IdentityRegistry registry = IdentityRegistry.of(List.of(ed, rsa));
+
+        assertEquals(3, registry.size());
+        assertTrue(registry.get(1).isEmpty());
+        assertFalse(registry.verify(1, "data".getBytes(), "c2lnbmF0dXJl"));
+
+        PrivateIdentity self = registry.self(ed);
+        Files.delete(privateKey);
+
+        assertEquals(registry.get(2).get(), self.getIdentity());
+        byte[] data = "data".getBytes();
+        assertTrue(registry.verify(2, data, self.sign(data)));
+        Key key = SigningUtils.generateSimKey();
+        assertArrayEquals(key.getEncoded(), self.unwrap(self.wrap(key)));
+    }
+
+    @Test
+    public void missingKeyFileFails() {
+        assertThrows(HDSSException.class, () -> new IdentityRegistry(List.of("/tmp/registry_missing.pub")));
+    }
+}
@@ -0,0 +1,79 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MerkleTreeTest {
+
+    private static List<byte[]> items(int count) {
+        List<byte[]> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(("transfer " + i).getBytes());
+        }
+        return items;
+    }
+
+    @Test
+    public void everyItemLeadsToTheRoot() {
+        // Includes sizes with odd levels (nodes moved up unchanged)
+        for (int count = 1; count <= 33; count++) {
+            List<byte[]> items = items(count);
+            MerkleTree tree = new MerkleTree(items);
+
+            for (int i = 0; i < count; i++) {
+                Optional<byte[]> root = MerkleTree.rootOf(items.get(i), i, count, tree.pathOf(i));
+                assertTrue(root.isPresent());
+                assertArrayEquals(tree.getRoot(), root.get());
+            }
+        }
+    }
+
+    @Test
+    public void rejectsWrongItemsAndPositions() {
+        List<byte[]> items = items(7);
+        MerkleTree tree = new MerkleTree(items);
+        byte[] root = tree.getRoot();
+        List<byte[]> path = tree.pathOf(2);
+
+        assertTrue(MerkleTree.rootOf(items.get(2), 2, 7, path).isPresent());
+        // Another item or another position (the number of items is signed
+        // along with the root, see LedgerMessage)
+        assertFalse(matches(root, MerkleTree.rootOf(items.get(3), 2, 7, path)));
+        assertFalse(matches(root, MerkleTree.rootOf(items.get(2), 3, 7, path)));
+        assertFalse(MerkleTree.rootOf(items.get(2), 2, 4, path).isPresent());
+        // Paths too short or too long, positions out of range
+        assertFalse(MerkleTree.rootOf(items.get(2), 2, 7, path.subList(1, path.size())).isPresent());
+        List<byte[]> longer = new ArrayList<>(path);
+        longer.add(root);
+        assertFalse(MerkleTree.rootOf(items.get(2), 2, 7, longer).isPresent());
+        assertFalse(MerkleTree.rootOf(items.get(2), 7, 7, path).isPresent());
+        assertFalse(MerkleTree.rootOf(items.get(2), -1, 7, path).isPresent());
+    }
+
+    @Test
+    public void leafCantPassForInnerNode() {
+        List<byte[]> items = items(4);
+        MerkleTree tree = new MerkleTree(items);
+
+        // The two children of the root, concatenated, as a single item
+        byte[] left = MerkleTree.rootOf(items.get(0), 0, 2, new MerkleTree(items.subList(0, 2)).pathOf(0)).get();
+        byte[] right = MerkleTree.rootOf(items.get(2), 0, 2, new MerkleTree(items.subList(2, 4)).pathOf(0)).get();
+        byte[] forged = new byte[left.length + right.length];
+        System.arraycopy(left, 0, forged, 0, left.length);
+        System.arraycopy(right, 0, forged, left.length, right.length);
+
+        assertFalse(matches(tree.getRoot(), MerkleTree.rootOf(forged, 0, 1, List.of())));
+    }
+
+    private static boolean matches(byte[] root, Optional<byte[]> computed) {
+        return computed.isPresent() && Arrays.equals(root, computed.get());
+    }
+}
@@ -0,0 +1,111 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import javax.crypto.Cipher;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.SignatureScheme;
+
+/**
+ * Sign and verify throughput (and latency) of SignatureEngine with RSA and
+ * Ed25519 keys, next to the previous way of signing (RSA "encryption" of a
+ * Base64 SHA-256 digest, with a new Cipher and MessageDigest on every
+ * call), over messages the size of a signed consensus message.
+ * Verifying with the key file path (SignatureEngine) and with the decoded
+ * key (IdentityRegistry) are measured side by side.
+ * Not a unit test, run with:
+ * mvn exec:java -pl PKI -Dexec.classpathScope=test \
+ *     -DmainClass=pt.ulisboa.tecnico.hdsledger.pki.SignatureBenchmark
+ */
+public class SignatureBenchmark {
+
+    private static final String PRIVATE_KEY = "/tmp/priv_sigbench.key";
+    private static final String PUBLIC_KEY = "/tmp/pub_sigbench.key";
+    private static final String ED_PRIVATE_KEY = "/tmp/priv_sigbench_ed25519.key";
+    private static final String ED_PUBLIC_KEY = "/tmp/pub_sigbench_ed25519.key";
+
+    // Milliseconds spent on each measurement
+    private static final int DURATION = 5000;
+
+    private static final int MESSAGE_SIZE = 300;
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        RSAKeyGenerator.write(PRIVATE_KEY, PUBLIC_KEY);
+        RSAKeyGenerator.write(ED_PRIVATE_KEY, ED_PUBLIC_KEY, SignatureScheme.ED25519);
+
+        byte[] data = new byte[MESSAGE_SIZE];
+        new Random(42).nextBytes(data);
+
+        String legacySignature = legacySign(data);
+        byte[] signature = SignatureEngine.sign(data, PRIVATE_KEY);
+        if (!legacyVerify(data, legacySignature) || !SignatureEngine.verify(data, signature, PUBLIC_KEY)) {
+            throw new IllegalStateException("Signature doesn't verify");
+        }
+
+        byte[] edSignature = SignatureEngine.sign(data, ED_PRIVATE_KEY);
+
+        report("sign,   RSA, Cipher (before)", measure(() -> legacySign(data)));
+        report("sign,   RSA, SignatureEngine", measure(() -> SignatureEngine.sign(data, PRIVATE_KEY)));
+        report("sign,   Ed25519, SignatureEngine", measure(() -> SignatureEngine.sign(data, ED_PRIVATE_KEY)));
+        report("verify, RSA, Cipher (before)", measure(() -> legacyVerify(data, legacySignature)));
+        report("verify, RSA, SignatureEngine", measure(() -> SignatureEngine.verify(data, signature, PUBLIC_KEY)));
+        report("verify, Ed25519, SignatureEngine",
+                measure(() -> SignatureEngine.verify(data, edSignature, ED_PUBLIC_KEY)));
+
+        IdentityRegistry registry = new IdentityRegistry(List.of(PUBLIC_KEY, ED_PUBLIC_KEY));
+        String encoded = Base64.getEncoder().encodeToString(signature);
+        String edEncoded = Base64.getEncoder().encodeToString(edSignature);
+        report("verify, RSA, by path", measure(() -> SignatureEngine.verify(data, encoded, PUBLIC_KEY)));
+        report("verify, RSA, IdentityRegistry", measure(() -> registry.verify(0, data, encoded)));
+        report("verify, Ed25519, by path", measure(() -> SignatureEngine.verify(data, edEncoded, ED_PUBLIC_KEY)));
+        report("verify, Ed25519, IdentityRegistry", measure(() -> registry.verify(1, data, edEncoded)));
+    }
+
+    private static void report(String name, double opsPerSecond) {
+        System.out.printf("%-34s %8.0f ops/s %10.1f us/op%n", name, opsPerSecond, 1e6 / opsPerSecond);
+    }
+
+    // Warms up, then returns operations per second
+    private static double measure(Operation operation) throws Exception {
+        for (long end = System.currentTimeMillis() + DURATION / 5; System.currentTimeMillis() < end; ) {
+            operation.run();
+        }
+
+        long count = 0;
+        long start = System.nanoTime();
+        long end = start + DURATION * 1000000L;
+        while (System.nanoTime() < end) {
+            operation.run();
+            count++;
+        }
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static String legacyDigest(byte[] data) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        return Base64.getEncoder().encodeToString(messageDigest.digest(data));
+    }
+
+    private static String legacySign(byte[] data) throws Exception {
+        PrivateKey privateKey = (PrivateKey) RSAKeyGenerator.read(PRIVATE_KEY, "priv");
+        Cipher cipher = Cipher.getInstance("RSA");
+        cipher.init(Cipher.ENCRYPT_MODE, privateKey);
+        return Base64.getEncoder().encodeToString(cipher.doFinal(legacyDigest(data).getBytes()));
+    }
+
+    private static boolean legacyVerify(byte[] data, String signature) throws Exception {
+        PublicKey publicKey = (PublicKey) RSAKeyGenerator.read(PUBLIC_KEY, "pub");
+        Cipher cipher = Cipher.getInstance("RSA");
+        cipher.init(Cipher.DECRYPT_MODE, publicKey);
+        String decrypted = new String(cipher.doFinal(Base64.getDecoder().decode(signature)));
+        return legacyDigest(data).equals(decrypted);
+    }
+}
@@ -0,0 +1,81 @@
+package pt.ulisboa.tecnico.hdsledger.pki;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.SignatureScheme;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SignatureEngineTest {
+
+    private static final String PUB_KEY_PATH = "/tmp/engine.pub";
+    private static final String PRIV_KEY_PATH = "/tmp/engine.priv";
+    private static final String ED_PUB_KEY_PATH = "/tmp/engine_ed25519.pub";
+    private static final String ED_PRIV_KEY_PATH = "/tmp/engine_ed25519.priv";
+
+    @BeforeAll
+    public static void generateKeys() throws IOException, GeneralSecurityException {
+        RSAKeyGenerator.write(PRIV_KEY_PATH, PUB_KEY_PATH);
+        RSAKeyGenerator.write(ED_PRIV_KEY_PATH, ED_PUB_KEY_PATH, SignatureScheme.ED25519);
+    }
+
+    @Test
+    public void signsWithTheSchemeOfTheKey() throws IOException, GeneralSecurityException {
+        byte[] data = "data".getBytes();
+
+        byte[] signature = SignatureEngine.sign(data, ED_PRIV_KEY_PATH);
+
+        assertEquals(SignatureScheme.ED25519, RSAKeyGenerator.schemeOf(RSAKeyGenerator.read(ED_PUB_KEY_PATH, "pub")));
+        assertEquals(64, signature.length);
+        assertTrue(SignatureEngine.verify(data, signature, ED_PUB_KEY_PATH));
+        assertFalse(SignatureEngine.verify("date".getBytes(), signature, ED_PUB_KEY_PATH));
+        // Signatures of one scheme are never valid in the other
+        assertFalse(SignatureEngine.verify(data, signature, PUB_KEY_PATH));
+        assertFalse(SignatureEngine.verify(data, SignatureEngine.sign(data, PRIV_KEY_PATH), ED_PUB_KEY_PATH));
+    }
+
+    @Test
+    public void rejectsMalformedSignatures() {
+        byte[] data = "data".getBytes();
+        byte[] signature = SignatureEngine.sign(data, PRIV_KEY_PATH);
+        signature[0] ^= 1;
+
+        assertFalse(SignatureEngine.verify(data, signature, PUB_KEY_PATH));
+        assertFalse(SignatureEngine.verify(data, new byte[0], PUB_KEY_PATH));
+        assertFalse(SignatureEngine.verify(data, "not base64!", PUB_KEY_PATH));
+        assertFalse(SignatureEngine.verify(data, (String) null, PUB_KEY_PATH));
+        // Keys that can't be read
+        assertFalse(SignatureEngine.verify(data, SignatureEngine.sign(data, PRIV_KEY_PATH), "/tmp/missing.pub"));
+    }
+
+    @Test
+    public void canBeUsedByManyThreads() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            byte[] data = ("data " + i).getBytes();
+            byte[] other = ("data " + (i + 1)).getBytes();
+            results.add(pool.submit(() -> {
+                String signature = SignatureEngine.signToString(data, PRIV_KEY_PATH);
+                return SignatureEngine.verify(data, signature, PUB_KEY_PATH)
+                        && !SignatureEngine.verify(other, signature, PUB_KEY_PATH);
+            }));
+        }
+
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        pool.shutdown();
+    }
+}
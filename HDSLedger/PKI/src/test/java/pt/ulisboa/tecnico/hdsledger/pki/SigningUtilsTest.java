@@ -7,8 +7,12 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.Arrays;
 
+import javax.crypto.BadPaddingException;
+
 import org.junit.jupiter.api.Test;
 
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
 public class SigningUtilsTest {
 
     @Test
@@ -124,6 +128,29 @@ public class SigningUtilsTest {
         }
     }
 
+    @Test
+    public void wrapKeyToEd25519Identity() throws IOException, GeneralSecurityException {
+        String pubKeyPath = "/tmp/key_ed25519.pub";
+        String privKeyPath = "/tmp/key_ed25519.priv";
+        RSAKeyGenerator.write(privKeyPath, pubKeyPath, ProcessConfig.SignatureScheme.ED25519);
+
+        Key key = AESKeyGenerator.generateSimKey();
+        byte[] wrapped = SigningUtils.encryptWithPublic(key, pubKeyPath);
+
+        if (!Arrays.equals(key.getEncoded(), SigningUtils.decryptWithPrivate(wrapped, privKeyPath))) {
+            throw new RuntimeException("Unwrapped key doesn't match");
+        }
+
+        // Tampered keys are rejected
+        wrapped[wrapped.length - 1] ^= 1;
+        try {
+            SigningUtils.decryptWithPrivate(wrapped, privKeyPath);
+            throw new RuntimeException("Tampered key was unwrapped");
+        } catch (BadPaddingException e) {
+            // Expected
+        }
+    }
+
     @Test
     public void testHMAC() {
         String data = "data";
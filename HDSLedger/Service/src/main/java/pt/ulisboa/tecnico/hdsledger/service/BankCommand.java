@@ -26,7 +26,7 @@ public class BankCommand implements Command {
     private int miner;
     private int fee;
 
-    private String serializedProof;
+    private LedgerMessage proof;
 
     /**
      * @param seq Sequence number sent by client that uniquely identifies transaction
@@ -40,7 +40,7 @@ public class BankCommand implements Command {
      */
     public BankCommand(int clientId, int seq, int source, int destination, int amount, int miner, int fee, LedgerMessage proof) {
 
-        TransferRequest transferRequest = proof.deserializeTransferRequest();
+        TransferRequest transferRequest = proof.getTransferRequest();
         int messageSource = transferRequest.getSource();
         int messageDestination = transferRequest.getDestination();
 
@@ -58,7 +58,7 @@ public class BankCommand implements Command {
         this.amount = amount;
         this.miner = miner;
         this.fee = fee;
-        this.serializedProof = new Gson().toJson(proof);
+        this.proof = proof;
     }
 
     public String serialize() {
@@ -87,7 +87,7 @@ public class BankCommand implements Command {
     public int getFee() { return this.fee; }
 
     public LedgerMessage getProof() {
-        return new Gson().fromJson(this.serializedProof, LedgerMessage.class);
+        return this.proof;
     }
 
     /* Default method for equality */ 
@@ -106,8 +106,9 @@ public class BankCommand implements Command {
     }
 
     public boolean equalsWithProof(BankCommand other) {
+        // The signature covers the whole proof
         return this.equalsWithoutProof(other) &&
-            this.serializedProof.equals(other.serializedProof);
+            this.proof.getSignature().equals(other.proof.getSignature());
     }
 
     /*
@@ -145,7 +146,7 @@ public class BankCommand implements Command {
                 ", amount=" + amount +
                 ", miner='" + miner + '\'' +
                 ", fee=" + fee +
-                ", serializedProof='" + serializedProof + '\'' +
+                ", proof=" + proof.getSignature().orElse(null) +
                 '}';
     }
 
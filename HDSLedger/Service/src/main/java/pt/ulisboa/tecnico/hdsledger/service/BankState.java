@@ -96,6 +96,19 @@ public class BankState implements State<BankCommand> {
      * transactions
      **/
     public Pair<List<BankCommand>, List<BankCommand>> getValidFromBatch(List<BankCommand> cmds) {
+        return getValidFromBatch(List.of(), cmds);
+    }
+
+    /*
+     * Same as getValidFromBatch, on the state the batches in before would
+     * lead to (each one played as a whole, as update does, or skipped if it
+     * can't be). Transactions already in before (or twice in cmds) are
+     * invalid, they'd be executed twice.
+     * Used to check batches of consensus instances that run while earlier
+     * ones (before) aren't decided yet
+     **/
+    public Pair<List<BankCommand>, List<BankCommand>> getValidFromBatch(List<CommandBatch> before,
+            List<BankCommand> cmds) {
         // Validity is checked by trying to play the transfers in a copy of the
         // state
         
@@ -103,23 +116,46 @@ public class BankState implements State<BankCommand> {
         List<BankCommand> invalid = new ArrayList<>();
 
         // Deep copy of balances and executed
-        Map<Integer, Integer> balancesClone = (HashMap<Integer, Integer>) this.balances.clone();
+        HashMap<Integer, Integer> balancesClone = (HashMap<Integer, Integer>) this.balances.clone();
         Map<Integer, HashSet<Integer>> executedClone = new HashMap<>();
         for (int client: executed.keySet()) {
             executedClone.put(client, (HashSet<Integer>) executed.get(client).clone());
         }
 
+        Set<BankCommand> played = new HashSet<>();
+        for (CommandBatch batch: before) {
+            // Only balances and played change while playing
+            HashMap<Integer, Integer> balancesBefore = (HashMap<Integer, Integer>) balancesClone.clone();
+            List<BankCommand> playedBatch = new ArrayList<>();
+            if (!play(balancesClone, executedClone, played, batch.getCommands(), playedBatch, new ArrayList<>())) {
+                balancesClone = balancesBefore;
+                played.removeAll(playedBatch);
+            }
+        }
+
+        play(balancesClone, executedClone, played, cmds, valid, invalid);
+
+        return new Pair<>(valid, invalid);
+    }
+
+    // Plays the commands that can be executed on record (and weren't played
+    // before), returns whether all of them could
+    private static boolean play(Map<Integer, Integer> record, Map<Integer, HashSet<Integer>> executed,
+            Set<BankCommand> played, List<BankCommand> cmds, List<BankCommand> valid, List<BankCommand> invalid) {
+        boolean all = true;
         for (BankCommand cmd: cmds) {
-            if (canExecute(balancesClone, executedClone, cmd.getSeq(), cmd.getSource(), cmd.getAmount() + cmd.getFee())) {
-                transfer(balancesClone, cmd.getSource(), cmd.getDestination(), cmd.getAmount());
-                transfer(balancesClone, cmd.getSource(), cmd.getMiner(), cmd.getFee());
+            if (!played.contains(cmd)
+                    && canExecute(record, executed, cmd.getSeq(), cmd.getSource(), cmd.getAmount() + cmd.getFee())) {
+                transfer(record, cmd.getSource(), cmd.getDestination(), cmd.getAmount());
+                transfer(record, cmd.getSource(), cmd.getMiner(), cmd.getFee());
+                played.add(cmd);
                 valid.add(cmd);
             } else {
                 invalid.add(cmd);
+                all = false;
             }
         }
-
-        return new Pair<>(valid, invalid);
+        return all;
     }
 
     /*
@@ -129,6 +165,14 @@ public class BankState implements State<BankCommand> {
         return getValidFromBatch(cmds.getCommands()).getValue().size() == 0;
     }
 
+    /*
+     * Returns whether all transctions in the batch can be executed after the
+     * batches in before (see getValidFromBatch)
+     **/
+    public boolean allTransactionsValid(List<CommandBatch> before, CommandBatch cmds) {
+        return getValidFromBatch(before, cmds.getCommands()).getValue().size() == 0;
+    }
+
     public Optional<Integer> update(CommandBatch cmds) {
         if (!this.allTransactionsValid(cmds)) {
             return Optional.empty();
@@ -1,16 +1,38 @@
 package pt.ulisboa.tecnico.hdsledger.service;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 import com.google.gson.Gson;
 
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry.Identity;
+import pt.ulisboa.tecnico.hdsledger.utilities.ParallelVerifier;
+
 public class CommandBatch implements Command {
 
     List<BankCommand> commands;
 
+    // Replica that proposed the batch (decisions tell leaders' reputation,
+    // see ReputationLeader)
+    int proposer;
+
+    // Signature to check: transfers of the same bundle share one
+    private record Signed(Identity signer, ByteBuffer content, String signature) {
+    }
+
     public CommandBatch(List<BankCommand> commands) {
+        this(commands, 0);
+    }
+
+    public CommandBatch(List<BankCommand> commands, int proposer) {
         this.commands = commands;
+        this.proposer = proposer;
     }
 
     public String serialize() {
@@ -21,6 +43,10 @@ public class CommandBatch implements Command {
         return this.commands;
     }
 
+    public int getProposer() {
+        return this.proposer;
+    }
+
     public static Optional<CommandBatch> deserialize(String blob) {
         // TODO: check if successful
         // TODO: check that serialized proof actually deserializes into correct
@@ -30,10 +56,32 @@ public class CommandBatch implements Command {
 
     /*
      * Check validity of signatures and fees
+     * (fees first, as they're cheap, then signatures in parallel, each
+     * distinct one once)
      **/
-    public boolean check(List<String> keys, int expectedFee) {
-        return this.commands.stream().allMatch(cmd ->
-                cmd.checkSig(keys.get(cmd.getClientId())) &&
-                    cmd.getFee() == expectedFee);
+    public boolean check(IdentityRegistry identities, int expectedFee) {
+        return check(identities, expectedFee, ParallelVerifier.getDefault());
+    }
+
+    public boolean check(IdentityRegistry identities, int expectedFee, ParallelVerifier verifier) {
+        if (!this.commands.stream().allMatch(cmd -> cmd.getFee() == expectedFee)) {
+            return false;
+        }
+
+        // Bundle proofs are only hashes, so they're checked here
+        Set<Signed> signed = new LinkedHashSet<>();
+        for (BankCommand cmd : this.commands) {
+            LedgerMessage proof = cmd.getProof();
+            Optional<byte[]> content = proof.getSignedContent();
+            Optional<Identity> signer = identities.get(cmd.getClientId());
+            if (content.isEmpty() || proof.getSignature().isEmpty() || signer.isEmpty()) {
+                return false;
+            }
+            signed.add(new Signed(signer.get(), ByteBuffer.wrap(content.get()),
+                    proof.getSignature().get()));
+        }
+
+        return verifier.allMatch(new ArrayList<>(signed),
+                s -> s.signer().verify(s.content().array(), s.signature()));
     }
 }
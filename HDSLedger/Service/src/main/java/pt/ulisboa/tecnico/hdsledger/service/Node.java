@@ -4,6 +4,9 @@ import pt.ulisboa.tecnico.hdsledger.communication.Link;
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.HMACLink;
+import pt.ulisboa.tecnico.hdsledger.communication.MessageCodec;
+import pt.ulisboa.tecnico.hdsledger.communication.TcpLink;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry;
 import pt.ulisboa.tecnico.hdsledger.service.services.HDSLedgerService;
 import pt.ulisboa.tecnico.hdsledger.service.services.NodeService;
 import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
@@ -72,15 +75,26 @@ public class Node {
             LOGGER.log(Level.INFO, MessageFormat.format("{0} - Ledger running at {1}:{2};",
                     ledgerConfig.getId(), ledgerConfig.getHostname(), ledgerConfig.getPort()));
 
+            // Public keys of everyone, read once and shared by the links and
+            // the services
+            IdentityRegistry identities = IdentityRegistry.of(ledgerConfigs);
+
             // Get a link that has the nodes (for the node service)
-            Link nodeLink = new HMACLink(nodeConfig, nodeConfig.getPort(), nodesConfigs,
-                    ConsensusMessage.class);
+            Link nodeLink = nodeConfig.getTransport() == ProcessConfig.Transport.TCP
+                    ? new TcpLink(nodeConfig, nodeConfig.getPort(), nodesConfigs, ConsensusMessage.class,
+                            false, MessageCodec.of(nodeConfig), identities)
+                    : new HMACLink(nodeConfig, nodeConfig.getPort(), nodesConfigs, ConsensusMessage.class,
+                            false, 200, false, MessageCodec.of(nodeConfig), nodeConfig.hasCoalescing(), identities);
 
             // Get a link that has all parties in the system
-            Link ledgerLink = new HMACLink(ledgerConfig, ledgerConfig.getPort(), ledgerConfigs,
-                    LedgerMessage.class);
-
-            NodeService nodeService = new NodeService(nodeLink, nodeConfig, nodesConfigs, clientPks, faultType);
+            Link ledgerLink = ledgerConfig.getTransport() == ProcessConfig.Transport.TCP
+                    ? new TcpLink(ledgerConfig, ledgerConfig.getPort(), ledgerConfigs, LedgerMessage.class,
+                            false, MessageCodec.of(ledgerConfig), identities)
+                    : new HMACLink(ledgerConfig, ledgerConfig.getPort(), ledgerConfigs, LedgerMessage.class,
+                            false, 200, false, MessageCodec.of(ledgerConfig), ledgerConfig.hasCoalescing(),
+                            identities);
+
+            NodeService nodeService = new NodeService(nodeLink, nodeConfig, nodesConfigs, clientPks, identities, faultType);
             HDSLedgerService hdsLedgerService = new HDSLedgerService(ledgerConfigs, ledgerLink, ledgerConfig, nodeService);
             
             nodeService.listen();
@@ -10,16 +10,16 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 
-import com.google.gson.Gson;
-
 import pt.ulisboa.tecnico.hdsledger.communication.Link;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.BalanceReply;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.BalanceRequest;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferBundle;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferReply;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferRequest;
 import pt.ulisboa.tecnico.hdsledger.communication.Message;
 import pt.ulisboa.tecnico.hdsledger.communication.MessageCreator;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry;
 import pt.ulisboa.tecnico.hdsledger.service.ObserverAck;
 import pt.ulisboa.tecnico.hdsledger.service.Slot;
 import pt.ulisboa.tecnico.hdsledger.service.StringCommand;
@@ -33,6 +33,10 @@ public class HDSLedgerService implements UDPService {
     // Other participants configurations configurations
     private final ProcessConfig[] others;
 
+    // Keys the signatures of clients are checked with (the ones their
+    // commands are checked with in consensus)
+    private final IdentityRegistry identities;
+
     // Current node config
     private final ProcessConfig config;
 
@@ -52,24 +56,29 @@ public class HDSLedgerService implements UDPService {
         this.link = link;   
         this.config = config;
         this.nodeService = nodeService;
+        this.identities = nodeService.getIdentities();
         nodeService.registerObserver(this::decided);
     }
 
+    private boolean isSignedBy(LedgerMessage message, int clientId) {
+        return this.identities.get(clientId).map(message::checkConsistentSig).orElse(false);
+    }
+
     public void registerObserver(ObserverAck observer) {
         this.observers.add(observer);
     }
 
 
-    private LedgerMessage createLedgerMessage(int id, Message.Type type, String serializedMessage) {
+    private LedgerMessage createLedgerMessage(int id, Message.Type type, BalanceReply balanceReply) {
        LedgerMessage message = new LedgerMessage(id, type);
 
-       message.setMessage(serializedMessage);
+       message.setMessage(balanceReply);
 
        return message;
     }
 
     public void transfer(LedgerMessage message) {
-        TransferRequest request = message.deserializeTransferRequest();
+        TransferRequest request = message.getTransferRequest();
         int clientId = message.getSenderId();
         int sequenceNumber = message.getSequenceNumber();
 
@@ -89,7 +98,7 @@ public class HDSLedgerService implements UDPService {
         }
         
         // check if the signature is consistent
-        else if (!message.checkConsistentSig(others[clientId].getPublicKey())) {
+        else if (!isSignedBy(message, clientId)) {
             LOGGER.log(Level.INFO,
                     MessageFormat.format(
                         "{0} - Bad signature from client {1}",
@@ -102,8 +111,57 @@ public class HDSLedgerService implements UDPService {
         sendTransferReply(link, config.getId(), clientId, sequenceNumber, Optional.empty());
     }
 
+    /*
+     * Same checks as transfer, for every transfer of the bundle, with a
+     * single signature verification. Each transfer then goes through
+     * consensus (and is replied to) on its own, with the signature of the
+     * bundle and its proof as the proof of the command.
+     * The bundle is taken or rejected as a whole.
+     */
+    public void transferBundle(LedgerMessage message) {
+        TransferBundle bundle = message.getTransferBundle();
+        int clientId = message.getSenderId();
+        int firstSequenceNumber = message.getSequenceNumber();
+
+        if (bundle == null || bundle.getTransfers() == null || bundle.size() == 0) {
+            LOGGER.log(Level.INFO,
+                    MessageFormat.format(
+                        "{0} - Empty bundle from client {1}",
+                        config.getId(), clientId));
+            return;
+        }
+
+        if (bundle.getTransfers().stream().anyMatch(request -> request.getAmount() <= 0)) {
+            LOGGER.log(Level.INFO,
+                    MessageFormat.format(
+                        "{0} - Invalid amount in bundle from client {1}",
+                        config.getId(), clientId));
+        } else if (bundle.getTransfers().stream().anyMatch(request -> request.getSource() != clientId)) {
+            LOGGER.log(Level.INFO,
+                    MessageFormat.format(
+                        "{0} - Source public key does not match client id {1} in bundle",
+                        config.getId(), clientId));
+        } else if (!isSignedBy(message, clientId)) {
+            LOGGER.log(Level.INFO,
+                    MessageFormat.format(
+                        "{0} - Bad signature from client {1}",
+                        config.getId(), clientId));
+        } else {
+            for (LedgerMessage proof : message.unbundle()) {
+                TransferRequest request = proof.getTransferRequest();
+                nodeService.startConsensus(clientId, proof.getSequenceNumber(), request.getSource(),
+                        request.getDestination(), request.getAmount(), proof);
+            }
+            return;
+        }
+
+        for (int i = 0; i < bundle.size(); i++) {
+            sendTransferReply(link, config.getId(), clientId, firstSequenceNumber + i, Optional.empty());
+        }
+    }
+
     public void checkBalance(LedgerMessage message) {
-        BalanceRequest balanceRequest = message.deserializeBalanceRequest();
+        BalanceRequest balanceRequest = message.getBalanceRequest();
         Optional<Integer> balance;
         int clientId = message.getSenderId();
 
@@ -156,7 +214,7 @@ public class HDSLedgerService implements UDPService {
 
     private void sendBalanceReply (Link link, int senderId, int clientId, int seq, Optional<Integer> balance) {
         BalanceReply balanceReply = new BalanceReply(balance, seq);
-        LedgerMessage reply = createLedgerMessage(config.getId(), Message.Type.BALANCE_REPLY, new Gson().toJson(balanceReply));
+        LedgerMessage reply = createLedgerMessage(config.getId(), Message.Type.BALANCE_REPLY, balanceReply);
         link.send(clientId, reply);
         for (ObserverAck obs: this.observers) {
             obs.ack(config.getId(), seq, balance);
@@ -181,6 +239,12 @@ public class HDSLedgerService implements UDPService {
                                             config.getId(), message.getSenderId()));
                                     transfer((LedgerMessage) message);
                                 }
+                                case TRANSFER_BUNDLE -> {
+                                    LOGGER.log(Level.INFO,
+                                        MessageFormat.format("{0} (HDSLedgerService) - Received transfer bundle from {1}",
+                                            config.getId(), message.getSenderId()));
+                                    transferBundle((LedgerMessage) message);
+                                }
                                 case BALANCE_REQUEST -> {
                                     LOGGER.log(Level.INFO,
                                         MessageFormat.format("{0} (HDSLedgerService) - Received balance request from {1}",
@@ -1,6 +1,7 @@
 package pt.ulisboa.tecnico.hdsledger.service.services;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -32,9 +33,15 @@ import javafx.util.Pair;
 
 import pt.ulisboa.tecnico.hdsledger.communication.Message;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferRequest;
+import pt.ulisboa.tecnico.hdsledger.consensus.AdaptiveTimeout;
+import pt.ulisboa.tecnico.hdsledger.consensus.FixedTimeout;
 import pt.ulisboa.tecnico.hdsledger.consensus.Istanbul;
+import pt.ulisboa.tecnico.hdsledger.consensus.LeaderPolicy;
+import pt.ulisboa.tecnico.hdsledger.consensus.ReputationLeader;
+import pt.ulisboa.tecnico.hdsledger.consensus.RoundRobinLeader;
 import pt.ulisboa.tecnico.hdsledger.consensus.Timer;
 import pt.ulisboa.tecnico.hdsledger.consensus.SimpleTimer;
+import pt.ulisboa.tecnico.hdsledger.consensus.TimeoutPolicy;
 import pt.ulisboa.tecnico.hdsledger.communication.Link;
 import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.AppendMessage;
@@ -50,7 +57,8 @@ import pt.ulisboa.tecnico.hdsledger.service.CommandBatch;
 import pt.ulisboa.tecnico.hdsledger.service.Command;
 import pt.ulisboa.tecnico.hdsledger.service.ObserverAck;
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
-import pt.ulisboa.tecnico.hdsledger.pki.SigningUtils;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry;
+import pt.ulisboa.tecnico.hdsledger.pki.PrivateIdentity;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
@@ -108,9 +116,33 @@ public class NodeService implements UDPService {
     // Whether listen has been called
     private AtomicBoolean listening = new AtomicBoolean(false);
 
-    // Current consensus instance
+    // Current consensus instance (the last one started)
     private AtomicInteger currentLambda = new AtomicInteger(0);
 
+    // Last instance whose decision was applied to the ledger (decisions are
+    // applied in order, so instances decidedLambda + 1 to currentLambda are
+    // the ones running)
+    private AtomicInteger decidedLambda = new AtomicInteger(0);
+
+    // Instances that can run at once (see ProcessConfig.getPipelineWindow)
+    private final int window;
+
+    // Timeouts of the rounds of every instance (adaptive ones learn from
+    // the decisions of earlier instances)
+    private final TimeoutPolicy timeoutPolicy;
+
+    // Leaders of the rounds of every instance (with reputation, they
+    // depend on the decisions of the instances at least window before)
+    private final LeaderPolicy leaderPolicy;
+
+    // Batches of running instances (lambda -> batch): the one this replica
+    // proposed, the one it accepted from the leader and the decision (not
+    // yet applied). Later instances are checked against the state they lead
+    // to (see inFlightBefore)
+    private final Map<Integer, CommandBatch> proposedBatches = new ConcurrentHashMap<>();
+    private final Map<Integer, CommandBatch> acceptedBatches = new ConcurrentHashMap<>();
+    private final Map<Integer, CommandBatch> decidedBatches = new ConcurrentHashMap<>();
+
     // Stashed messages for future rounds (does not need to be thread-safe, because
     // it'll have synchronization around it)
     private Map<Integer, List<ConsensusMessage>> stashed = new HashMap<>();
@@ -125,6 +157,13 @@ public class NodeService implements UDPService {
     // List of paths to client public keys
     private List<String> clientPks;
 
+    // Decoded public keys of everyone in allKeys (same ids), read once
+    private final IdentityRegistry identities;
+
+    // This replica, with its private key (resolved once, see
+    // IdentityRegistry.self)
+    private final PrivateIdentity identity;
+
     // Fee to propose in batches
     private int fee = DEFAULT_FEE;
 
@@ -141,11 +180,38 @@ public class NodeService implements UDPService {
 
     public NodeService(Link link, ProcessConfig config,
                        ProcessConfig[] nodesConfig, List<String> clientPks, String genesisFilePath, FaultType type) {
+        this(link, config, nodesConfig, clientPks, new IdentityRegistry(allKeysOf(nodesConfig, clientPks)),
+                genesisFilePath, type);
+    }
+
+    /**
+     * @param identities identities of the nodes and then the clients (e.g.
+     * the ones the links of the process use)
+     */
+    public NodeService(Link link, ProcessConfig config, ProcessConfig[] nodesConfig, List<String> clientPks,
+                       IdentityRegistry identities, String genesisFilePath, FaultType type) {
         this.link = link;
         this.config = config;
         this.others = Arrays.asList(nodesConfig);
         this.clientPks = clientPks;
-        this.allKeys = getAllKeys(nodesConfig, clientPks);
+        this.allKeys = allKeysOf(nodesConfig, clientPks);
+        this.identities = identities;
+        this.identity = identities.self(config);
+        this.window = config.getPipelineWindow();
+        if (!config.hasAdaptiveTimeouts()) {
+            this.timeoutPolicy = new FixedTimeout(Istanbul.INITIAL_TIMEOUT);
+        } else if (config.hasLeaderReputation()) {
+            this.timeoutPolicy = new AdaptiveTimeout(Istanbul.INITIAL_TIMEOUT, AdaptiveTimeout.REPUTATION_PERCENTILE);
+        } else {
+            this.timeoutPolicy = new AdaptiveTimeout(Istanbul.INITIAL_TIMEOUT);
+        }
+        if (config.hasLeaderReputation() && !config.hasAdaptiveTimeouts()) {
+            LOGGER.log(Level.WARNING, MessageFormat.format("{0} - leader reputation without adaptive timeouts only"
+                    + " demotes leaders slower than the fixed timeout (e.g. crashed ones)", config.getId()));
+        }
+        this.leaderPolicy = config.hasLeaderReputation()
+                ? new ReputationLeader(config.getN(), this.window)
+                : new RoundRobinLeader(config.getN());
         this.faultType = type;
 
         Map<Integer, Integer> initalBalances = loadGenesisFromFile(genesisFilePath);
@@ -162,13 +228,29 @@ public class NodeService implements UDPService {
         this(link, config, nodesConfig, clientPks, DEFAULT_GENESIS_FILE, type);
     }
 
+    public NodeService(Link link, ProcessConfig config, ProcessConfig[] nodesConfig, List<String> clientPks,
+                       IdentityRegistry identities, FaultType type) {
+        this(link, config, nodesConfig, clientPks, identities, DEFAULT_GENESIS_FILE, type);
+    }
+
     public List<String> getAllKeys(ProcessConfig[] nodesConfig, List<String> clientPks) {
+        return allKeysOf(nodesConfig, clientPks);
+    }
+
+    private static List<String> allKeysOf(ProcessConfig[] nodesConfig, List<String> clientPks) {
         return Stream.concat(
             Arrays.stream(nodesConfig).map(config -> config.getPublicKey()),
             clientPks.stream()
         ).collect(Collectors.toList());
     }
 
+    /*
+     * Identities of nodes and clients, by id (shared with the ledger service)
+     */
+    public IdentityRegistry getIdentities() {
+        return this.identities;
+    }
+
     public ProcessConfig getConfig() {
         return this.config;
     }
@@ -205,8 +287,10 @@ public class NodeService implements UDPService {
 
     /**
      * Check that value is valid
+     * @param proposer replica that proposed value, if it's a fresh proposal
+     * (see Istanbul)
      */
-    private boolean checkIsValidValue(int lambda, String value) {
+    private boolean checkIsValidValue(int lambda, String value, Optional<Integer> proposer) {
         Optional<CommandBatch> cmdOpt = CommandBatch.deserialize(value);
         if (!cmdOpt.isPresent()) {
             return false;
@@ -214,23 +298,70 @@ public class NodeService implements UDPService {
 
         CommandBatch cmd = cmdOpt.get();
 
-        if (lambda != this.currentLambda.get()) {
-            LOGGER.log(Level.WARNING, MessageFormat.format("{0} - asking to determine validity of transaction in the past/future. can't to that, so saying it's invalid",
-                    config.getId()));
+        // Leaders' reputation depends on it, so leaders can't propose in
+        // the name of others
+        if (cmd.getProposer() < 0 || cmd.getProposer() >= config.getN()) {
+            return false;
+        }
+        if (proposer.isPresent() && cmd.getProposer() != proposer.get()) {
+            LOGGER.log(Level.WARNING, MessageFormat.format("{0} - batch proposed by {1} claims to be proposed by {2}, rejecting",
+                    config.getId(), proposer.get(), cmd.getProposer()));
 
             return false;
         }
 
-        // Check that it can be applied on the current state
-        if (!this.ledger.allTransactionsValid(cmd)) {
-            LOGGER.log(Level.WARNING, MessageFormat.format("{0} - some transaction in the batch is invalid, rejecting",
-                    config.getId()));
+        synchronized (this) {
+            if (lambda <= this.decidedLambda.get() || lambda > this.currentLambda.get()) {
+                LOGGER.log(Level.WARNING, MessageFormat.format("{0} - asking to determine validity of transaction in the past/future. can't to that, so saying it's invalid",
+                        config.getId()));
 
-            return false;
+                return false;
+            }
+
+            // Check that it can be applied on the state after the instances
+            // before it
+            if (!this.ledger.allTransactionsValid(inFlightBefore(lambda), cmd)) {
+                LOGGER.log(Level.WARNING, MessageFormat.format("{0} - some transaction in the batch is invalid, rejecting",
+                        config.getId()));
+
+                return false;
+            }
         }
 
         // Check that everything in command is properly signed
-        return cmd.check(this.allKeys, DEFAULT_FEE);
+        if (!cmd.check(this.identities, DEFAULT_FEE)) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (lambda > this.decidedLambda.get()) {
+                this.acceptedBatches.put(lambda, cmd);
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Batches of the running instances before lambda, in order: the decision
+     * if there's one already, otherwise the batch accepted from the leader,
+     * otherwise the one this replica proposed
+     * Must hold the lock of this (so that no decision is applied meanwhile)
+     */
+    private List<CommandBatch> inFlightBefore(int lambda) {
+        List<CommandBatch> before = new ArrayList<>();
+        for (int l = this.decidedLambda.get() + 1; l < lambda; l++) {
+            CommandBatch batch = this.decidedBatches.get(l);
+            if (batch == null) {
+                batch = this.acceptedBatches.get(l);
+            }
+            if (batch == null) {
+                batch = this.proposedBatches.get(l);
+            }
+            if (batch != null) {
+                before.add(batch);
+            }
+        }
+        return before;
     }
 
     /**
@@ -254,7 +385,7 @@ public class NodeService implements UDPService {
                 throw new RuntimeException("Trying to create new instance for past instance. This should not happen. Probably shouldn't have moved to current instance");
             }
 
-            Istanbul instance = new Istanbul(this.others, this.config, l, value -> this.checkIsValidValue(l, value));
+            Istanbul instance = new Istanbul(this.others, this.identities, this.identity, this.config, l, (value, proposer) -> this.checkIsValidValue(l, value, proposer));
             Timer timer = new SimpleTimer();
             Consumer<String> observer = s -> {
                 decided(l, s);
@@ -265,6 +396,8 @@ public class NodeService implements UDPService {
                 output.stream().forEach(m -> link.send(m.getReceiver(), m));
             });
             instance.registerObserver(observer);
+            instance.setTimeoutPolicy(this.timeoutPolicy);
+            instance.setLeaderPolicy(this.leaderPolicy);
             instance.setTimer(timer);
             return instance;
         });
@@ -352,8 +485,8 @@ public class NodeService implements UDPService {
         TransferRequest transferRequest = new TransferRequest(source, destination, amount);
         LedgerMessage ledgerMessage = new LedgerMessage(clientId, Message.Type.TRANSFER_REQUEST);
         ledgerMessage.setSequenceNumber(seq);
-        ledgerMessage.setMessage(new Gson().toJson(transferRequest));
-        ledgerMessage.signSelf(this.config.getPrivateKey());
+        ledgerMessage.setMessage(transferRequest);
+        ledgerMessage.signSelf(this.identity);
         return ledgerMessage;
     }
 
@@ -411,6 +544,7 @@ public class NodeService implements UDPService {
             return;
         }
 
+        this.decidedBatches.put(lambda, cmdOpt.get());
         Decision<CommandBatch> d = new Decision<>(lambda, cmdOpt.get());
         decisions.add(d);
     }
@@ -426,7 +560,7 @@ public class NodeService implements UDPService {
 
     public Map<String, Integer> getLedger() {
         Map<String, Integer> map = new HashMap<>();
-        this.ledger.getState().forEach((id, bal) -> map.put(SigningUtils.publicKeyHash(this.allKeys.get(id)), bal));
+        this.ledger.getState().forEach((id, bal) -> map.put(this.identities.keyHash(id), bal));
         return map;
     }
 
@@ -457,6 +591,34 @@ public class NodeService implements UDPService {
         return slotIdOpt;
     }
 
+    /*
+     * Applies the decision of instance decidedLambda + 1 and adds its
+     * commands to the history
+     * Commands an earlier instance already decided (the batch was accepted
+     * before that decision was known) are skipped, the same on every replica.
+     * Only called by the driver, in order.
+     */
+    private synchronized void applyDecision(Decision<CommandBatch> d) {
+        List<BankCommand> fresh = d.getValue().getCommands().stream()
+            .filter(cmd -> !history.containsKey(cmd))
+            .collect(Collectors.toList());
+
+        if (!fresh.isEmpty()) {
+            Optional<Integer> slotIdOpt = updateState(new CommandBatch(fresh));
+            for (BankCommand cmd: fresh) {
+                history.put(cmd, new Slot<>(slotIdOpt, cmd));
+            }
+        }
+
+        // Before the instances that depend on it can start
+        this.leaderPolicy.recordDecision(d.getLambda(), d.getValue().getProposer());
+
+        this.decidedLambda.set(d.getLambda());
+        this.proposedBatches.remove(d.getLambda());
+        this.acceptedBatches.remove(d.getLambda());
+        this.decidedBatches.remove(d.getLambda());
+    }
+
     @Override
     public void listen() {
         if (this.listening.getAndSet(true)) {
@@ -488,7 +650,7 @@ public class NodeService implements UDPService {
                         // in creating a new thread to handle each message
                         switch (message.getType()) {
 
-                            case PRE_PREPARE, PREPARE, COMMIT, ROUND_CHANGE -> {
+                            case PRE_PREPARE, PREPARE, COMMIT, ROUND_CHANGE, VALUE_REQUEST, VALUE_REPLY -> {
                                 ConsensusMessage comessage = (ConsensusMessage) message;
                                 int lambda = comessage.getConsensusInstance();
 
@@ -538,12 +700,15 @@ public class NodeService implements UDPService {
                         }
                     }
 
+                } catch (InterruptedIOException e) {
+                    // interrupt is used to stop thread
                 } catch (IOException | ClassNotFoundException e) {
                     e.printStackTrace();
                 }
             });
 
             // Thread to take pending inputs from clients and input them into consensus
+            // (up to window instances at once) and to apply their decisions
             Thread driver = new Thread(() -> {
                 try {
                     DecisionBucket<CommandBatch> bucket = new DecisionBucket<>();
@@ -557,10 +722,13 @@ public class NodeService implements UDPService {
 
                     Pair<List<BankCommand>, List<BankCommand>> parsedInputs;
 
-                    List<BankCommand> valid, invalid, proposed;
+                    List<BankCommand> valid, proposed;
+
+                    Set<BankCommand> inFlight;
+
+                    Decision<CommandBatch> d;
 
                     valid = new ArrayList<>();
-                    invalid = new ArrayList<>();
 
                     LOGGER.log(Level.INFO,
                             MessageFormat.format("{0} Driver - Waiting for input",
@@ -582,6 +750,21 @@ public class NodeService implements UDPService {
                                 config.getId(), pendingInputs.size()));
 
                     while (this.running.get()) {
+                        // Apply the decisions that are next in order (later
+                        // ones wait in the bucket for the ones before them)
+                        while ((d = decisions.poll()) != null) {
+                            bucket.save(d);
+                        }
+                        while (bucket.contains(this.decidedLambda.get() + 1)) {
+                            d = bucket.remove(this.decidedLambda.get() + 1);
+
+                            LOGGER.log(Level.INFO,
+                                    MessageFormat.format("{0} Driver - Updating state with decision of instance {1}",
+                                        config.getId(), d.getLambda()));
+
+                            applyDecision(d);
+                        }
+
                         // if input was already processed after agreement, there's
                         // nothing to do besides getting a new value
                         // TODO (dsa): probably no longer need this (because beta
@@ -622,10 +805,37 @@ public class NodeService implements UDPService {
                             }
                         }
 
-                        parsedInputs = this.ledger.getValidFromBatch(notConfirmed);
+                        // Valid on the state after the running instances (their
+                        // own commands are kept until they're decided, but not
+                        // proposed again)
+                        synchronized (this) {
+                            List<CommandBatch> before = inFlightBefore(this.currentLambda.get() + 1);
+                            parsedInputs = this.ledger.getValidFromBatch(before, notConfirmed);
+                            inFlight = before.stream()
+                                .flatMap(batch -> batch.getCommands().stream())
+                                .collect(Collectors.toSet());
+                        }
                         valid = parsedInputs.getKey();
 
-                        pendingInputs = valid;
+                        pendingInputs = new ArrayList<>(valid);
+                        for (BankCommand input: notConfirmed) {
+                            if (inFlight.contains(input)) {
+                                pendingInputs.add(input);
+                            }
+                        }
+
+                        boolean idle = this.currentLambda.get() == this.decidedLambda.get();
+
+                        // If the window is full, wait for the oldest instance
+                        if (this.currentLambda.get() - this.decidedLambda.get() >= this.window) {
+                            LOGGER.log(Level.INFO,
+                                    MessageFormat.format("{0} Driver - Decision for instance {1} has not yet been reached",
+                                        config.getId(), this.decidedLambda.get() + 1));
+
+                            // take must be used instead of remove because it's blocking
+                            bucket.save(decisions.take());
+                            continue;
+                        }
 
                         // If there are not enough valid request, then get more inputs
                         if (valid.size() < BATCH_SIZE) {
@@ -633,12 +843,29 @@ public class NodeService implements UDPService {
                                     MessageFormat.format("{0} Driver - Waiting for input",
                                         config.getId()));
 
+                            if (!idle) {
+                                // Instances are running, so their decisions
+                                // can't wait for inputs (and inputs are taken
+                                // at least every BATCH_TIMEOUT)
+                                d = decisions.poll(BATCH_TIMEOUT, TimeUnit.MILLISECONDS);
+                                this.inputs.drainTo(pendingInputs);
+                                if (d != null) {
+                                    bucket.save(d);
+                                    continue;
+                                }
+                                if (valid.size() == 0) {
+                                    continue;
+                                }
+                                LOGGER.log(Level.INFO,
+                                        MessageFormat.format("{0} Driver - Timed out waiting for inputs",
+                                            config.getId(), inputs.size(), valid.size()));
+                            }
 
                             // If really there's nothing valid to propose, we
                             // need to wait until a new input comes in. If there's
                             // something, we'll wait for a timeout only to ensure
                             // liveness
-                            if (valid.size() == 0) {
+                            else if (valid.size() == 0) {
                                 pendingInputs.add(this.inputs.take());
                                 this.inputs.drainTo(pendingInputs);
                                 LOGGER.log(Level.INFO,
@@ -664,60 +891,24 @@ public class NodeService implements UDPService {
 
                         // start new instance (can't be after take, because 
                         // take's value might already be finalized as well)
-                        currentLambda.incrementAndGet();
+                        int lambda = this.currentLambda.get() + 1;
                         LOGGER.log(Level.INFO,
                                 MessageFormat.format("{0} Driver - Inputting {2} values into consensus {1}",
-                                    config.getId(), currentLambda.get(), valid.size()));
+                                    config.getId(), lambda, valid.size()));
 
                         // Remove first BATCH_SIZE from valid list
                         proposed = valid.subList(0, Math.min(valid.size(), BATCH_SIZE));
 
-                        CommandBatch input = new CommandBatch(proposed);
-                        actuallyInput(currentLambda.get(), input.serialize());
-
-                        LOGGER.log(Level.INFO,
-                                MessageFormat.format("{0} Driver - Inputted, now I wait for decision",
-                                    config.getId()));
-
-                        // check if this instance was already decided upon. if it
-                        // was, then no need to wait, otherwise wait for more
-                        // decisions
-                        Decision<CommandBatch> d;
-                        while (!bucket.contains(currentLambda.get())) {
-                            LOGGER.log(Level.INFO,
-                                    MessageFormat.format("{0} Driver - Decision for instance {1} has not yet been reached",
-                                        config.getId(), currentLambda.get()));
-
-                            // take must be used instead of remove because it's blocking
-                            d = decisions.take();
-                            bucket.save(d);
-
-                            LOGGER.log(Level.INFO,
-                                    MessageFormat.format("{0} Driver - Decision for instance {1} was reached",
-                                        config.getId(), d.getLambda()));
-
-                        }
+                        CommandBatch input = new CommandBatch(new ArrayList<>(proposed), this.config.getId());
+                        // Known before the instance starts, so later ones are
+                        // checked against it
+                        this.proposedBatches.put(lambda, input);
+                        this.currentLambda.set(lambda);
+                        actuallyInput(lambda, input.serialize());
 
                         LOGGER.log(Level.INFO,
-                                MessageFormat.format("{0} Driver - Finally decision for my instance ({1}) was reached",
-                                    config.getId(), currentLambda.get()));
-                        d = bucket.get(currentLambda.get());
-
-
-                        // at this point, we have decision for instance currentLambda,
-                        // we just need to process it
-
-                        CommandBatch cmds = d.getValue();
-
-                        LOGGER.log(Level.INFO,
-                                MessageFormat.format("{0} Driver - Updating state",
-                                    config.getId(), currentLambda.get()));
-
-                        Optional<Integer> slotIdOpt = updateState(cmds);
-
-                        for (BankCommand cmd: cmds.getCommands()) {
-                            history.put(cmd, new Slot<>(slotIdOpt, cmd));
-                        }
+                                MessageFormat.format("{0} Driver - Inputted, {1} instances running",
+                                    config.getId(), lambda - this.decidedLambda.get()));
                     }
 
 
@@ -827,6 +1018,13 @@ public class NodeService implements UDPService {
         Decision<C> get(int lambda) {
             return bucket.get(lambda);
         }
+
+        /**
+         * Returns and forgets instance lambda's decision
+         */
+        Decision<C> remove(int lambda) {
+            return bucket.remove(lambda);
+        }
     }
 
     // Mostly for testing purposes
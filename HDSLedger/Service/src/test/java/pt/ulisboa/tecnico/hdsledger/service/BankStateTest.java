@@ -4,6 +4,8 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeAll;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
 import pt.ulisboa.tecnico.hdsledger.communication.MessageCreator;
@@ -18,6 +20,8 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.Optional;
 
+import javafx.util.Pair;
+
 public class BankStateTest {
 
 	// no real encryption is tested, only one client key is generated to be used
@@ -196,4 +200,37 @@ public class BankStateTest {
 		assertEquals(4, balances.get(A));
 		assertEquals(6, balances.get(B));
 	}
+
+	@Test
+	public void validAfterRunningBatches() {
+		BankState state = new BankState();
+
+		int A = 4;
+
+		int B = 3;
+
+		state.spawnMoney(A, 10);
+
+		BankCommand cmd1 = new BankCommand(A, 1, A, B, 5, A, 0, MessageCreator.createTransferRequest(1, A, B, 5));
+		BankCommand cmd2 = new BankCommand(A, 2, A, B, 4, A, 0, MessageCreator.createTransferRequest(2, A, B, 4));
+		BankCommand cmd3 = new BankCommand(A, 3, A, B, 2, A, 0, MessageCreator.createTransferRequest(3, A, B, 2));
+		BankCommand tooMuch = new BankCommand(A, 4, A, B, 20, A, 0, MessageCreator.createTransferRequest(4, A, B, 20));
+
+		// Batches of instances still running: the second one can't be applied
+		// (as a whole), so it doesn't count
+		List<CommandBatch> before = List.of(new CommandBatch(List.of(cmd1)),
+				new CommandBatch(List.of(cmd2, tooMuch)));
+
+		Pair<List<BankCommand>, List<BankCommand>> parsed = state.getValidFromBatch(before, List.of(cmd1, cmd2, cmd3));
+
+		// cmd1 would be executed twice, cmd3 only fits after cmd2
+		assertEquals(List.of(cmd2), parsed.getKey());
+		assertEquals(List.of(cmd1, cmd3), parsed.getValue());
+		assertTrue(state.allTransactionsValid(before.subList(0, 1), new CommandBatch(List.of(cmd2))));
+		assertFalse(state.allTransactionsValid(before.subList(0, 1), new CommandBatch(List.of(cmd2, cmd3))));
+
+		// The state itself doesn't change
+		assertEquals(10, state.getState().get(A));
+		assertEquals(Optional.of(1), state.update(new CommandBatch(List.of(cmd1, cmd2))));
+	}
 }
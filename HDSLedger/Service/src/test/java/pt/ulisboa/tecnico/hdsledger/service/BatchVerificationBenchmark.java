@@ -0,0 +1,118 @@
+package pt.ulisboa.tecnico.hdsledger.service;
+
+import pt.ulisboa.tecnico.hdsledger.communication.Message;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferBundle;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferRequest;
+import pt.ulisboa.tecnico.hdsledger.pki.IdentityRegistry;
+import pt.ulisboa.tecnico.hdsledger.pki.RSAKeyGenerator;
+import pt.ulisboa.tecnico.hdsledger.utilities.ParallelVerifier;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Time to check a CommandBatch (client signatures and fees, as done by the
+ * beta predicate of every PRE-PREPARE) one command at a time and with the
+ * default ParallelVerifier (one thread per core), for batches of 5, 50 and
+ * 500 transfers, and for the same batches when each client sent its
+ * transfers in one bundle (one signature per client, see TransferBundle).
+ * Not a unit test, run with:
+ * mvn exec:java -pl Service -Dexec.classpathScope=test \
+ *     -DmainClass=pt.ulisboa.tecnico.hdsledger.service.BatchVerificationBenchmark
+ */
+public class BatchVerificationBenchmark {
+
+    private static final int[] BATCH_SIZES = {5, 50, 500};
+
+    // Milliseconds spent on each measurement
+    private static final int DURATION = 3000;
+
+    private static final int CLIENTS = 4;
+
+    private static final String PRIVATE_KEY = "/tmp/priv_bench.key";
+    private static final String PUBLIC_KEY = "/tmp/pub_bench.key";
+
+    public static void main(String[] args) throws GeneralSecurityException, IOException {
+        RSAKeyGenerator.write(PRIVATE_KEY, PUBLIC_KEY);
+        IdentityRegistry keys = new IdentityRegistry(Collections.nCopies(CLIENTS, PUBLIC_KEY));
+
+        ParallelVerifier sequential = new ParallelVerifier(1);
+        ParallelVerifier parallel = ParallelVerifier.getDefault();
+
+        System.out.printf("%d cores%n", parallel.getThreads());
+        for (int size : BATCH_SIZES) {
+            CommandBatch batch = batch(size);
+            double before = measure(() -> batch.check(keys, 1, sequential));
+            double after = measure(() -> batch.check(keys, 1, parallel));
+            CommandBatch bundled = bundledBatch(size);
+            double bundles = measure(() -> bundled.check(keys, 1, parallel));
+            System.out.printf("batch of %3d: %8.2f ms sequential, %8.2f ms parallel (%.1fx), %8.2f ms bundled (%.1fx)%n",
+                    size, before, after, before / after, bundles, before / bundles);
+        }
+        System.exit(0);
+    }
+
+    private static CommandBatch batch(int size) {
+        List<BankCommand> commands = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            LedgerMessage proof = new LedgerMessage(i % CLIENTS, Message.Type.TRANSFER_REQUEST);
+            proof.setSequenceNumber(i);
+            proof.setMessage(new TransferRequest(proof.getSenderId(), (i + 1) % CLIENTS, 10 + i));
+            proof.signSelf(PRIVATE_KEY);
+            commands.add(new BankCommand(proof.getSenderId(), i, proof.getSenderId(), (i + 1) % CLIENTS, 10 + i,
+                    0, 1, proof));
+        }
+        return new CommandBatch(commands);
+    }
+
+    // Same transfers, each client sending all of its own in one bundle
+    private static CommandBatch bundledBatch(int size) {
+        List<BankCommand> commands = new ArrayList<>();
+        for (int client = 0; client < CLIENTS; client++) {
+            List<TransferRequest> transfers = new ArrayList<>();
+            for (int i = client; i < size; i += CLIENTS) {
+                transfers.add(new TransferRequest(client, (i + 1) % CLIENTS, 10 + i));
+            }
+            if (transfers.isEmpty()) {
+                continue;
+            }
+
+            LedgerMessage bundle = new LedgerMessage(client, Message.Type.TRANSFER_BUNDLE);
+            bundle.setSequenceNumber(0);
+            bundle.setMessage(new TransferBundle(transfers));
+            bundle.signSelf(PRIVATE_KEY);
+            for (LedgerMessage proof : bundle.unbundle()) {
+                TransferRequest transfer = proof.getTransferRequest();
+                commands.add(new BankCommand(client, proof.getSequenceNumber(), client, transfer.getDestination(),
+                        transfer.getAmount(), 0, 1, proof));
+            }
+        }
+        return new CommandBatch(commands);
+    }
+
+    private interface Check {
+        boolean run();
+    }
+
+    // Warms up, then returns milliseconds per check
+    private static double measure(Check check) {
+        for (long end = System.currentTimeMillis() + DURATION / 5; System.currentTimeMillis() < end; ) {
+            check.run();
+        }
+
+        long count = 0;
+        long start = System.nanoTime();
+        long end = start + DURATION * 1000000L;
+        while (System.nanoTime() < end) {
+            if (!check.run()) {
+                throw new IllegalStateException("Batch doesn't check");
+            }
+            count++;
+        }
+        return (System.nanoTime() - start) / 1e6 / count;
+    }
+}
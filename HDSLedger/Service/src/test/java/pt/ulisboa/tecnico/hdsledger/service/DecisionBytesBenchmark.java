@@ -0,0 +1,110 @@
+package pt.ulisboa.tecnico.hdsledger.service;
+
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryCodec;
+import pt.ulisboa.tecnico.hdsledger.communication.HMACMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.Message;
+import pt.ulisboa.tecnico.hdsledger.communication.MessageCodec;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.CommitMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrePrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferRequest;
+import pt.ulisboa.tecnico.hdsledger.pki.RSAKeyGenerator;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Bytes sent by HMACLink to decide a batch in the normal case (N PRE-PREPAREs,
+ * N^2 PREPAREs and N^2 COMMITs), with PREPAREs and COMMITs carrying the value
+ * (before) or its digest (after), for batches of several sizes.
+ * Not a unit test, run with:
+ * mvn exec:java -pl Service -Dexec.classpathScope=test \
+ *     -DmainClass=pt.ulisboa.tecnico.hdsledger.service.DecisionBytesBenchmark
+ */
+public class DecisionBytesBenchmark {
+
+    private static final int[] REPLICAS = { 4, 7 };
+    private static final int[] TRANSACTIONS = { 1, 10, 50, 200 };
+
+    private static final String PRIVATE_KEY = "/tmp/priv_bench.key";
+    private static final String PUBLIC_KEY = "/tmp/pub_bench.key";
+
+    private static final MessageCodec CODEC = new BinaryCodec();
+
+    public static void main(String[] args) throws GeneralSecurityException, IOException {
+        RSAKeyGenerator.write(PRIVATE_KEY, PUBLIC_KEY);
+
+        // Every PREPARE and COMMIT is signed, the size of the signature
+        // doesn't depend on the content
+        ConsensusMessage signed = new ConsensusMessage(0, Message.Type.PREPARE);
+        signed.setMessage(new PrepareMessage("value"));
+        signed.signSelf(PRIVATE_KEY);
+        String signature = signed.getSignature().get();
+
+        for (int n : REPLICAS) {
+            System.out.printf("N = %d%n", n);
+            for (int transactions : TRANSACTIONS) {
+                String value = batch(transactions).serialize();
+                long before = decisionBytes(n, value, value, signature);
+                long after = decisionBytes(n, value, PrePrepareMessage.digestOf(value), signature);
+
+                System.out.printf("  %3d transactions: %9d bytes with values, %8d bytes with digests (%.1fx smaller)%n",
+                        transactions, before, after, (double) before / after);
+            }
+        }
+    }
+
+    /*
+     * @param carried what PREPAREs and COMMITs carry (the value or its digest)
+     */
+    private static long decisionBytes(int n, String value, String carried, String signature) {
+        ConsensusMessage prePrepare = consensusMessage(Message.Type.PRE_PREPARE);
+        prePrepare.setMessage(new PrePrepareMessage(value, Optional.empty(), Optional.empty()));
+
+        ConsensusMessage prepare = consensusMessage(Message.Type.PREPARE);
+        prepare.setMessage(new PrepareMessage(carried));
+        prepare.setSignature(signature);
+
+        ConsensusMessage commit = consensusMessage(Message.Type.COMMIT);
+        commit.setMessage(new CommitMessage(carried));
+        commit.setSignature(signature);
+
+        return (long) n * hmacMessageSize(prePrepare)
+                + (long) n * n * hmacMessageSize(prepare)
+                + (long) n * n * hmacMessageSize(commit);
+    }
+
+    private static ConsensusMessage consensusMessage(Message.Type type) {
+        ConsensusMessage message = new ConsensusMessage(0, type);
+        message.setConsensusInstance(1);
+        message.setRound(1);
+        message.setReceiver(1);
+        message.setMessageId(42);
+        return message;
+    }
+
+    private static int hmacMessageSize(ConsensusMessage message) {
+        // Only the size of the HMAC matters
+        HMACMessage hmacMessage = new HMACMessage(0, Message.Type.HMAC, new byte[32], CODEC.encode(message));
+        hmacMessage.setReceiver(1);
+        hmacMessage.setMessageId(42);
+        return CODEC.encode(hmacMessage).length;
+    }
+
+    private static CommandBatch batch(int transactions) {
+        List<BankCommand> commands = new ArrayList<>();
+        for (int i = 0; i < transactions; i++) {
+            LedgerMessage proof = new LedgerMessage(5 + i % 4, Message.Type.TRANSFER_REQUEST);
+            proof.setSequenceNumber(i);
+            proof.setMessage(new TransferRequest(proof.getSenderId(), i % 4, 10 + i));
+            proof.signSelf(PRIVATE_KEY);
+            commands.add(new BankCommand(proof.getSenderId(), i, proof.getSenderId(), i % 4, 10 + i, 0, 1, proof));
+        }
+        return new CommandBatch(commands);
+    }
+}
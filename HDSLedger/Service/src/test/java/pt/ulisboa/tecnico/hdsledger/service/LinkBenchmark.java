@@ -0,0 +1,152 @@
+package pt.ulisboa.tecnico.hdsledger.service;
+
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryCodec;
+import pt.ulisboa.tecnico.hdsledger.communication.HMACLink;
+import pt.ulisboa.tecnico.hdsledger.communication.Link;
+import pt.ulisboa.tecnico.hdsledger.communication.Message;
+import pt.ulisboa.tecnico.hdsledger.communication.TcpLink;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferReply;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferRequest;
+import pt.ulisboa.tecnico.hdsledger.pki.RSAKeyGenerator;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UDP link (HMACLink over PerfectLink, with HMAC and with AES-GCM) side by
+ * side with TcpLink, on the LoaderClient pattern: a client sends a signed
+ * transfer request and waits for the reply before sending the next one
+ * (here a single replica echoes the replies, so only the links are
+ * measured). Then the same requests are
+ * sent in a burst, without waiting, to measure throughput.
+ * For the whole system, see benchmarks/link-benchmark.sh.
+ * Not a unit test, run with:
+ * mvn exec:java -pl Service -Dexec.classpathScope=test \
+ *     -DmainClass=pt.ulisboa.tecnico.hdsledger.service.LinkBenchmark
+ */
+public class LinkBenchmark {
+
+    private static final int WARMUP = 500;
+    private static final int REQUESTS = 3000;
+
+    private static final String[] PRIVATE_KEYS = {"/tmp/priv_bench0.key", "/tmp/priv_bench1.key"};
+    private static final String[] PUBLIC_KEYS = {"/tmp/pub_bench0.key", "/tmp/pub_bench1.key"};
+
+    private interface LinkFactory {
+        Link create(ProcessConfig self, ProcessConfig[] nodes);
+    }
+
+    public static void main(String[] args) throws GeneralSecurityException, IOException, InterruptedException {
+        for (int i = 0; i < 2; i++) {
+            RSAKeyGenerator.write(PRIVATE_KEYS[i], PUBLIC_KEYS[i]);
+        }
+
+        LinkFactory udp = (self, nodes) -> new HMACLink(self, self.getPort(), nodes,
+                LedgerMessage.class, false, 200, false, new BinaryCodec(), true);
+        run("UDP (HMACLink)", 7100, ProcessConfig.ChannelMode.HMAC, udp);
+        run("UDP (HMACLink, AES-GCM)", 7300, ProcessConfig.ChannelMode.AES_GCM, udp);
+        run("TCP (TcpLink)", 7200, ProcessConfig.ChannelMode.HMAC, (self, nodes) -> new TcpLink(self,
+                self.getPort(), nodes, LedgerMessage.class));
+
+        System.exit(0);
+    }
+
+    private static void run(String name, int port, ProcessConfig.ChannelMode mode, LinkFactory factory)
+            throws InterruptedException {
+        ProcessConfig[] nodes = {
+            new ProcessConfig("localhost", 0, port, -1, 1, PUBLIC_KEYS[0], PRIVATE_KEYS[0]),
+            new ProcessConfig("localhost", 1, port + 1, -1, 1, PUBLIC_KEYS[1], PRIVATE_KEYS[1])
+        };
+        for (ProcessConfig node : nodes) {
+            node.setChannelMode(mode);
+        }
+        Link replica = factory.create(nodes[0], nodes);
+        Link client = factory.create(nodes[1], nodes);
+
+        // Replica: replies to every request
+        startThread(() -> {
+            while (true) {
+                LedgerMessage request = (LedgerMessage) replica.receive();
+                LedgerMessage reply = new LedgerMessage(0, Message.Type.TRANSFER_REPLY);
+                reply.setSequenceNumber(request.getSequenceNumber());
+                reply.setMessage(new TransferReply(request.getSequenceNumber(), Optional.of(1)));
+                replica.send(1, reply);
+            }
+        });
+
+        BlockingQueue<Message> replies = new LinkedBlockingQueue<>();
+        startThread(() -> {
+            while (true) {
+                replies.add(client.receive());
+            }
+        });
+
+        LedgerMessage[] requests = new LedgerMessage[WARMUP + 2 * REQUESTS];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new LedgerMessage(1, Message.Type.TRANSFER_REQUEST);
+            requests[i].setSequenceNumber(i);
+            requests[i].setMessage(new TransferRequest(1, 0, 1));
+            requests[i].signSelf(PRIVATE_KEYS[1]);
+        }
+
+        // One request at a time
+        long[] latencies = new long[REQUESTS];
+        long start = 0;
+        for (int i = 0; i < WARMUP + REQUESTS; i++) {
+            if (i == WARMUP) {
+                start = System.nanoTime();
+            }
+            long sent = System.nanoTime();
+            client.send(0, requests[i]);
+            if (replies.poll(10, TimeUnit.SECONDS) == null) {
+                throw new IllegalStateException("No reply to request " + i);
+            }
+            if (i >= WARMUP) {
+                latencies[i - WARMUP] = System.nanoTime() - sent;
+            }
+        }
+        double closedLoop = REQUESTS / ((System.nanoTime() - start) / 1e9);
+
+        // Burst
+        start = System.nanoTime();
+        for (int i = WARMUP + REQUESTS; i < requests.length; i++) {
+            client.send(0, requests[i]);
+        }
+        for (int i = 0; i < REQUESTS; i++) {
+            if (replies.poll(10, TimeUnit.SECONDS) == null) {
+                throw new IllegalStateException("Missing replies to the burst");
+            }
+        }
+        double burst = REQUESTS / ((System.nanoTime() - start) / 1e9);
+
+        Arrays.sort(latencies);
+        System.out.printf("%s:%n", name);
+        System.out.printf("  one at a time: mean %.3f ms, p99 %.3f ms, %.0f requests/s%n",
+                Arrays.stream(latencies).average().orElse(0) / 1e6,
+                latencies[(int) (REQUESTS * 0.99)] / 1e6, closedLoop);
+        System.out.printf("  burst:         %.0f requests/s%n", burst);
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static void startThread(Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,115 @@
+package pt.ulisboa.tecnico.hdsledger.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import pt.ulisboa.tecnico.hdsledger.communication.BinaryCodec;
+import pt.ulisboa.tecnico.hdsledger.communication.HMACMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.JsonCodec;
+import pt.ulisboa.tecnico.hdsledger.communication.Message;
+import pt.ulisboa.tecnico.hdsledger.communication.MessageCodec;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.ConsensusMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.consensus.PrePrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.LedgerMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.ledger.TransferRequest;
+import pt.ulisboa.tecnico.hdsledger.pki.RSAKeyGenerator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Size on the wire of a PRE-PREPARE carrying a batch of 50 transfers, as
+ * sent by HMACLink.
+ * "nested JSON" is the previous format, where every level (HMAC, consensus
+ * message, PRE-PREPARE, batch proofs, transfer request) was a JSON string
+ * escaped inside the level above. It's rebuilt here from the typed messages.
+ * Not a unit test, run with:
+ * mvn exec:java -pl Service -Dexec.classpathScope=test \
+ *     -DmainClass=pt.ulisboa.tecnico.hdsledger.service.PrePrepareSizeBenchmark
+ */
+public class PrePrepareSizeBenchmark {
+
+    private static final int TRANSACTIONS = 50;
+
+    private static final String PRIVATE_KEY = "/tmp/priv_bench.key";
+    private static final String PUBLIC_KEY = "/tmp/pub_bench.key";
+
+    private static final Gson GSON = new Gson();
+
+    public static void main(String[] args) throws GeneralSecurityException, IOException {
+        RSAKeyGenerator.write(PRIVATE_KEY, PUBLIC_KEY);
+
+        List<BankCommand> commands = new ArrayList<>();
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            LedgerMessage proof = new LedgerMessage(5 + i % 4, Message.Type.TRANSFER_REQUEST);
+            proof.setSequenceNumber(i);
+            proof.setMessage(new TransferRequest(proof.getSenderId(), i % 4, 10 + i));
+            proof.signSelf(PRIVATE_KEY);
+            commands.add(new BankCommand(proof.getSenderId(), i, proof.getSenderId(), i % 4, 10 + i, 0, 1, proof));
+        }
+        CommandBatch batch = new CommandBatch(commands);
+
+        ConsensusMessage prePrepare = new ConsensusMessage(0, Message.Type.PRE_PREPARE);
+        prePrepare.setConsensusInstance(1);
+        prePrepare.setRound(1);
+        prePrepare.setReceiver(1);
+        prePrepare.setMessageId(42);
+        prePrepare.setMessage(new PrePrepareMessage(batch.serialize(), Optional.empty(), Optional.empty()));
+
+        int nested = legacyHMACMessage(prePrepare, batch).getBytes(StandardCharsets.UTF_8).length;
+        int json = hmacMessageSize(prePrepare, new JsonCodec());
+        int binary = hmacMessageSize(prePrepare, new BinaryCodec());
+
+        System.out.printf("PRE-PREPARE with %d transactions:%n", TRANSACTIONS);
+        System.out.printf("  nested JSON (before): %7d bytes%n", nested);
+        System.out.printf("  typed JSON:           %7d bytes (%.1fx smaller)%n", json, (double) nested / json);
+        System.out.printf("  typed binary (after): %7d bytes (%.1fx smaller)%n", binary, (double) nested / binary);
+    }
+
+    private static int hmacMessageSize(ConsensusMessage message, MessageCodec codec) {
+        return codec.encode(hmacMessage(codec.encode(message))).length;
+    }
+
+    private static HMACMessage hmacMessage(byte[] inner) {
+        // Only the size of the HMAC matters
+        HMACMessage hmacMessage = new HMACMessage(0, Message.Type.HMAC, new byte[32], inner);
+        hmacMessage.setReceiver(1);
+        hmacMessage.setMessageId(42);
+        return hmacMessage;
+    }
+
+    /*
+     * Previous format: each payload replaced by its JSON string
+     */
+    private static String legacyHMACMessage(ConsensusMessage message, CommandBatch batch) {
+        JsonArray legacyCommands = new JsonArray();
+        for (BankCommand command : batch.getCommands()) {
+            JsonObject legacyProof = GSON.toJsonTree(command.getProof()).getAsJsonObject();
+            legacyProof.remove("transferRequest");
+            legacyProof.addProperty("message", GSON.toJson(command.getProof().getTransferRequest()));
+
+            JsonObject legacyCommand = GSON.toJsonTree(command).getAsJsonObject();
+            legacyCommand.remove("proof");
+            legacyCommand.addProperty("serializedProof", GSON.toJson(legacyProof));
+            legacyCommands.add(legacyCommand);
+        }
+        JsonObject legacyBatch = new JsonObject();
+        legacyBatch.add("commands", legacyCommands);
+
+        JsonObject legacyPrePrepare = new JsonObject();
+        legacyPrePrepare.addProperty("value", GSON.toJson(legacyBatch));
+
+        JsonObject legacyMessage = GSON.toJsonTree(message).getAsJsonObject();
+        legacyMessage.remove("prePrepareMessage");
+        legacyMessage.addProperty("message", GSON.toJson(legacyPrePrepare));
+
+        JsonObject legacyHMAC = GSON.toJsonTree(hmacMessage(null)).getAsJsonObject();
+        legacyHMAC.addProperty("message", GSON.toJson(legacyMessage));
+        return GSON.toJson(legacyHMAC);
+    }
+}
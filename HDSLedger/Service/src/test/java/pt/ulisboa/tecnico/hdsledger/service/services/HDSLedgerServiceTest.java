@@ -32,6 +32,7 @@ import org.junit.jupiter.api.Test;
 import java.nio.file.Path;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.google.gson.Gson;
 
@@ -176,7 +177,7 @@ public class HDSLedgerServiceTest {
         // TODO: make this consistent with the way this was done before
         TransferRequest transferRequest = new TransferRequest(source, destination, amount);
         LedgerMessage ledgerMessage = new LedgerMessage(source, Message.Type.TRANSFER_REQUEST);
-        ledgerMessage.setMessage(new Gson().toJson(transferRequest));
+        ledgerMessage.setMessage(transferRequest);
         ledgerMessage.setSequenceNumber(requestId);
         //ledgerMessage.signSelf(String.format("/tmp/priv_%d.key", source));
 
@@ -188,7 +189,7 @@ public class HDSLedgerServiceTest {
         TransferRequest transferRequest = new TransferRequest(source, destination, amount);
 
         LedgerMessage ledgerMessage = new LedgerMessage(clientId, Message.Type.TRANSFER_REQUEST);
-        ledgerMessage.setMessage(new Gson().toJson(transferRequest));
+        ledgerMessage.setMessage(transferRequest);
         ledgerMessage.setSequenceNumber(requestId);
         //ledgerMessage.signSelf(String.format("/tmp/priv_%d.key", source));
 
@@ -200,7 +201,7 @@ public class HDSLedgerServiceTest {
         TransferRequest transferRequest = new TransferRequest(source, destination, amount);
 
         LedgerMessage ledgerMessage = new LedgerMessage(source, Message.Type.TRANSFER_REQUEST);
-        ledgerMessage.setMessage(new Gson().toJson(transferRequest));
+        ledgerMessage.setMessage(transferRequest);
         ledgerMessage.setSequenceNumber(requestId);
         ledgerMessage.signSelf(String.format("/tmp/priv_%d.key", signature));
 
@@ -212,7 +213,7 @@ public class HDSLedgerServiceTest {
         BalanceRequest balanceRequest = new BalanceRequest(fakeSource);
 
         LedgerMessage ledgerMessage = new LedgerMessage(realSource, Message.Type.TRANSFER_REQUEST);
-        ledgerMessage.setMessage(new Gson().toJson(balanceRequest));
+        ledgerMessage.setMessage(balanceRequest);
         ledgerMessage.setSequenceNumber(requestId);
         ledgerMessage.signSelf(String.format("/tmp/priv_%d.key", realSource));
 
@@ -298,6 +299,185 @@ public class HDSLedgerServiceTest {
 		}
 	}
 
+	@Test
+	void HDSLedgerBundleTest(@TempDir Path tempDir) {
+		int n_Nodes = 4;
+		int basePortNode = 20800;
+		int n_Clients = 2;
+		int basePortHDS = 40800;
+		int clientId = n_Nodes; // must be greater than n-1
+		int clientId2 = n_Nodes+1; // must be greater than n-1
+		String clientHashPk = numberToId(clientId);
+		String clientHashPk2 = numberToId(clientId2);
+		int seq = 0;
+		List<Integer> amounts = List.of(2, 3, 4);
+		int initial = 15;
+
+		List<TransferRequest> transfers = amounts.stream()
+			.map(amount -> new TransferRequest(clientId, clientId2, amount))
+			.collect(Collectors.toList());
+		LedgerMessage bundle = MessageCreator.createTransferBundle(seq, clientId, transfers);
+
+		// Every transfer checks on its own against the signature of the bundle,
+		// and only as it was signed
+		String clientPk = String.format("/tmp/pub_%d.key", clientId);
+		assertTrue(bundle.checkConsistentSig(clientPk));
+		List<LedgerMessage> unbundled = bundle.unbundle();
+		assertEquals(amounts.size(), unbundled.size());
+		for (LedgerMessage transfer: unbundled) {
+			assertTrue(transfer.checkConsistentSig(clientPk));
+		}
+		LedgerMessage tampered = bundle.unbundle().get(1);
+		tampered.getTransferRequest().setAmount(1);
+		assertFalse(tampered.checkConsistentSig(clientPk));
+		tampered = bundle.unbundle().get(1);
+		tampered.setSequenceNumber(seq + 2);
+		assertFalse(tampered.checkConsistentSig(clientPk));
+
+		String genesisFilePath = tempDir.resolve("genesis.json").toString();
+		defaultGenesisFile(genesisFilePath, n_Nodes, n_Clients, initial);
+		Map<Integer, Deque<Confirmation>> confirmedSlots = genSlotMap(n_Nodes);
+
+		// Setup node service
+		List<ProcessConfig> nodeConfigs = defaultConfigs(n_Nodes, basePortNode);
+		List<Link> nodeLinks = linksFromConfigs(nodeConfigs, ConsensusMessage.class);
+		List<String> clientPks = defaultClientKeys(n_Nodes, n_Clients);
+		List<NodeService> nodeServices = setupNodeServices(nodeConfigs, nodeLinks, clientPks, genesisFilePath);
+
+		// Setup ledger service and client links
+		List<ProcessConfig> ledgerConfigs = defaultConfigs(n_Nodes + n_Clients, basePortHDS);
+		List<Link> ledgerLinks = linksFromConfigs(ledgerConfigs, LedgerMessage.class);
+		List<HDSLedgerService> HDSLedgerServices = setupHDSLedgerServices(n_Nodes, ledgerConfigs, ledgerLinks, nodeServices);
+
+		Link clientLink = ledgerLinks.get(clientId);
+
+		nodeServices.forEach(service -> service.listen());
+		HDSLedgerServices.forEach(service -> service.listen());
+		nodeServices.forEach(service -> {
+			final int id = service.getId();
+			ObserverAck observer = (cidOpt, seqNOpt, slotIdOpt) ->
+				confirmedSlots.get(id).add(new Confirmation(cidOpt, seqNOpt, slotIdOpt.get()));
+			service.registerObserver(observer);
+		});
+
+		for (int i = 0; i < n_Nodes; i++) {
+			clientLink.send(i, bundle);
+		}
+
+		try {
+			Thread.sleep(5000);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		nodeServices.forEach(service -> service.stopAndWait());
+
+		printSlotMap(confirmedSlots);
+
+		// Every transfer of the bundle is confirmed on its own
+		for (int i = 0; i < n_Nodes; i++) {
+			assertEquals(amounts.size(), confirmedSlots.get(i).size());
+			List<Integer> seqs = confirmedSlots.get(i).stream()
+				.map(s -> s.seq)
+				.sorted()
+				.collect(Collectors.toList());
+			assertEquals(List.of(seq, seq + 1, seq + 2), seqs);
+			confirmedSlots.get(i).forEach(s -> assertEquals(clientId, s.clientId));
+		}
+
+		// Check state is what was expected
+		int total = amounts.stream().mapToInt(Integer::intValue).sum();
+		for (NodeService service: nodeServices) {
+			Map<String, Integer> ledger = service.getLedger();
+			assertEquals(initial - total - amounts.size() * NodeService.DEFAULT_FEE, ledger.get(clientHashPk));
+			assertEquals(initial + total, ledger.get(clientHashPk2));
+		}
+	}
+
+	@Test
+	void HDSLedgerPipelineTest(@TempDir Path tempDir) {
+		int n_Nodes = 4;
+		int basePortNode = 20900;
+		int n_Clients = 2;
+		int basePortHDS = 40900;
+		int clientId = n_Nodes; // must be greater than n-1
+		int clientId2 = n_Nodes+1; // must be greater than n-1
+		String clientHashPk = numberToId(clientId);
+		String clientHashPk2 = numberToId(clientId2);
+		int transfers = 12;
+		int amount = 1;
+		int initial = 100;
+		int window = 4;
+
+		String genesisFilePath = tempDir.resolve("genesis.json").toString();
+		defaultGenesisFile(genesisFilePath, n_Nodes, n_Clients, initial);
+		Map<Integer, Deque<Confirmation>> confirmedSlots = genSlotMap(n_Nodes);
+
+		// Setup node service, with several instances running at once
+		List<ProcessConfig> nodeConfigs = defaultConfigs(n_Nodes, basePortNode);
+		nodeConfigs.forEach(config -> config.setPipelineWindow(window));
+		List<Link> nodeLinks = linksFromConfigs(nodeConfigs, ConsensusMessage.class);
+		List<String> clientPks = defaultClientKeys(n_Nodes, n_Clients);
+		List<NodeService> nodeServices = setupNodeServices(nodeConfigs, nodeLinks, clientPks, genesisFilePath);
+
+		// Setup ledger service and client links
+		List<ProcessConfig> ledgerConfigs = defaultConfigs(n_Nodes + n_Clients, basePortHDS);
+		List<Link> ledgerLinks = linksFromConfigs(ledgerConfigs, LedgerMessage.class);
+		List<HDSLedgerService> HDSLedgerServices = setupHDSLedgerServices(n_Nodes, ledgerConfigs, ledgerLinks, nodeServices);
+
+		Link clientLink = ledgerLinks.get(clientId);
+
+		nodeServices.forEach(service -> service.listen());
+		HDSLedgerServices.forEach(service -> service.listen());
+		nodeServices.forEach(service -> {
+			final int id = service.getId();
+			ObserverAck observer = (cidOpt, seqNOpt, slotIdOpt) ->
+				confirmedSlots.get(id).add(new Confirmation(cidOpt, seqNOpt, slotIdOpt.get()));
+			service.registerObserver(observer);
+		});
+
+		// More transfers than fit in one batch, all at once
+		for (int seq = 0; seq < transfers; seq++) {
+			LedgerMessage request = MessageCreator.createTransferRequest(seq, clientId, clientId2, amount);
+			for (int i = 0; i < n_Nodes; i++) {
+				clientLink.send(i, request);
+			}
+		}
+
+		try {
+			for (int waited = 0; waited < 40000
+					&& confirmedSlots.values().stream().anyMatch(c -> c.size() < transfers); waited += 500) {
+				Thread.sleep(500);
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		nodeServices.forEach(service -> service.stopAndWait());
+
+		printSlotMap(confirmedSlots);
+
+		// Every transfer is confirmed once, in the same slot by every replica
+		// (decisions are applied in order)
+		Map<Integer, Integer> slots = new HashMap<>();
+		confirmedSlots.get(0).forEach(c -> slots.put(c.seq, c.slotId));
+		assertEquals(transfers, slots.size());
+		for (int i = 0; i < n_Nodes; i++) {
+			assertEquals(transfers, confirmedSlots.get(i).size());
+			for (Confirmation c: confirmedSlots.get(i)) {
+				assertEquals(clientId, c.clientId);
+				assertEquals(slots.get(c.seq), c.slotId);
+			}
+		}
+
+		// Check state is what was expected
+		for (NodeService service: nodeServices) {
+			Map<String, Integer> ledger = service.getLedger();
+			assertEquals(initial - transfers * (amount + NodeService.DEFAULT_FEE), ledger.get(clientHashPk));
+			assertEquals(initial + transfers * amount, ledger.get(clientHashPk2));
+		}
+	}
+
 	@Test
 	void HDSLedgerNoSignedClientTest(@TempDir Path tempDir) {
 		int n_Nodes = 4;
@@ -16,6 +16,15 @@ public class CollapsingSet implements Set<Integer> {
         this.set = new HashSet<>();
     }
 
+    /*
+     * Every integer up to the floor is in the set
+     */
+    public int getFloor() {
+        synchronized (this.set) {
+            return this.floor;
+        }
+    }
+
     @Override
     public int size() {
         synchronized (this.set) {
@@ -5,6 +5,7 @@ public enum ErrorMessage {
     ConfigFileFormat("The configuration file has wrong syntax"),
     NoSuchNode("Can't send a message to a non existing node"),
     SocketSendingError("Error while sending message"),
+    MessageTooLarge("Message is too large to be sent"),
     CannotOpenSocket("Error while opening socket"),
     BadClientId("Bad client id provided. Must be greater or equal to the number of replicas"),
 
@@ -12,6 +13,8 @@ public enum ErrorMessage {
 
     GeneratingKeyError("Error while generating key"),
 
+    ReadingKeyError("Error while reading key"),
+
     EncryptionError("Error while encrypting message"),
 
     SigningError("Error while signing message");
@@ -0,0 +1,133 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Runs independent checks (e.g. signatures of the messages in a quorum or
+ * of the commands in a batch) on a fixed pool of threads.
+ * The calling thread takes part in the work, so a call finishes even if
+ * the pool is busy with other calls, and it returns as soon as a check
+ * fails (checks not yet started are skipped).
+ * Checks must be thread-safe. Thread-safe.
+ */
+public class ParallelVerifier {
+
+    // Verifier used by the consensus and the ledger, one thread per core
+    private static final ParallelVerifier DEFAULT =
+            new ParallelVerifier(Runtime.getRuntime().availableProcessors());
+
+    private final int threads;
+
+    // Helpers of the calling thread (null if it works alone)
+    private final ExecutorService pool;
+
+    public ParallelVerifier(int threads) {
+        this.threads = Math.max(1, threads);
+        this.pool = this.threads == 1 ? null : Executors.newFixedThreadPool(this.threads - 1, runnable -> {
+            Thread thread = new Thread(runnable, "verifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static ParallelVerifier getDefault() {
+        return DEFAULT;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Whether check holds for every item
+     * (exceptions thrown by check are rethrown)
+     */
+    public <T> boolean allMatch(List<T> items, Predicate<? super T> check) {
+        if (pool == null || items.size() < 2) {
+            return items.stream().allMatch(check);
+        }
+
+        Job<T> job = new Job<>(items, check);
+        for (int i = 1; i < Math.min(threads, items.size()); i++) {
+            pool.execute(job::work);
+        }
+        job.work();
+        return job.await();
+    }
+
+    private static class Job<T> {
+
+        private final List<T> items;
+        private final Predicate<? super T> check;
+
+        // Next item to check
+        private final AtomicInteger next = new AtomicInteger();
+
+        // Guarded by this
+        private int checked = 0;
+        private boolean failed = false;
+        private RuntimeException error;
+
+        Job(List<T> items, Predicate<? super T> check) {
+            this.items = items;
+            this.check = check;
+        }
+
+        void work() {
+            int i;
+            while (!hasFailed() && (i = next.getAndIncrement()) < items.size()) {
+                boolean result;
+                try {
+                    result = check.test(items.get(i));
+                } catch (RuntimeException e) {
+                    fail(e);
+                    return;
+                }
+                done(result);
+            }
+        }
+
+        private synchronized boolean hasFailed() {
+            return failed;
+        }
+
+        private synchronized void done(boolean result) {
+            checked++;
+            failed |= !result;
+            if (failed || checked == items.size()) {
+                notifyAll();
+            }
+        }
+
+        private synchronized void fail(RuntimeException e) {
+            if (error == null) {
+                error = e;
+            }
+            failed = true;
+            notifyAll();
+        }
+
+        // Waits for the checks taken by other threads
+        synchronized boolean await() {
+            boolean interrupted = false;
+            while (!failed && checked < items.size()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+            return !failed;
+        }
+    }
+}
@@ -30,6 +30,74 @@ public class ProcessConfig {
 
     private String privateKeyPath;
 
+    // Link used to talk to the other processes (UDP if absent)
+    private Transport transport;
+
+    public enum Transport {
+        UDP, TCP
+    }
+
+    // How UDP links protect messages to other processes (HMAC if absent)
+    private ChannelMode channelMode;
+
+    public enum ChannelMode {
+        // HMAC-SHA256, messages in the clear
+        HMAC,
+        // AES-GCM, messages encrypted (and authenticated)
+        AES_GCM
+    }
+
+    // Encoding of the messages links send (BINARY if absent). Links using
+    // BINARY still read JSON, so JSON is for peers that only know JSON
+    private Codec codec;
+
+    public enum Codec {
+        BINARY, JSON
+    }
+
+    // Whether UDP links pack messages to the same process into one frame
+    // (true if absent)
+    private Boolean coalescing;
+
+    // Where UDP links keep the session keys they share with other processes,
+    // so they can resume the sessions after a restart (not kept if absent)
+    private String ticketDirectory;
+
+    // Consensus instances a node runs at once, i.e. batches proposed before
+    // the earlier ones are decided (1 if absent)
+    private Integer pipelineWindow;
+
+    // Whether the first timeout of consensus instances follows the latency
+    // of recent decisions (fixed if absent)
+    private Boolean adaptiveTimeouts;
+
+    // Whether replicas whose proposals keep failing are left out of the
+    // first round of consensus instances (round robin if absent). Only
+    // proposals that time out fail, so without adaptive timeouts slow
+    // replicas are seldom left out
+    private Boolean leaderReputation;
+
+    // Scheme of the keys (and signatures) of the process (RSA if absent)
+    private SignatureScheme signatureScheme;
+
+    public enum SignatureScheme {
+        RSA("RSA", "SHA256withRSA"),
+        ED25519("Ed25519", "Ed25519");
+
+        // JCA names of the key pairs and of the signature algorithm
+        private final String keyAlgorithm;
+        private final String signatureAlgorithm;
+
+        SignatureScheme(String keyAlgorithm, String signatureAlgorithm) {
+            this.keyAlgorithm = keyAlgorithm;
+            this.signatureAlgorithm = signatureAlgorithm;
+        }
+
+        public String getKeyAlgorithm() { return keyAlgorithm; }
+
+        public String getSignatureAlgorithm() { return signatureAlgorithm; }
+    }
+
     public int getPort() {
         return port;
     }
@@ -57,4 +125,42 @@ public class ProcessConfig {
     public String getPublicKey() { return publicKeyPath; }
 
     public String getPrivateKey() { return privateKeyPath; }
+
+    public Transport getTransport() { return transport == null ? Transport.UDP : transport; }
+
+    public void setTransport(Transport transport) { this.transport = transport; }
+
+    public ChannelMode getChannelMode() { return channelMode == null ? ChannelMode.HMAC : channelMode; }
+
+    public void setChannelMode(ChannelMode channelMode) { this.channelMode = channelMode; }
+
+    public Codec getCodec() { return codec == null ? Codec.BINARY : codec; }
+
+    public void setCodec(Codec codec) { this.codec = codec; }
+
+    public boolean hasCoalescing() { return coalescing == null || coalescing; }
+
+    public void setCoalescing(boolean coalescing) { this.coalescing = coalescing; }
+
+    public Optional<String> getTicketDirectory() { return Optional.ofNullable(ticketDirectory); }
+
+    public void setTicketDirectory(String ticketDirectory) { this.ticketDirectory = ticketDirectory; }
+
+    public int getPipelineWindow() { return pipelineWindow == null ? 1 : Math.max(1, pipelineWindow); }
+
+    public void setPipelineWindow(int pipelineWindow) { this.pipelineWindow = pipelineWindow; }
+
+    public boolean hasAdaptiveTimeouts() { return adaptiveTimeouts != null && adaptiveTimeouts; }
+
+    public void setAdaptiveTimeouts(boolean adaptiveTimeouts) { this.adaptiveTimeouts = adaptiveTimeouts; }
+
+    public boolean hasLeaderReputation() { return leaderReputation != null && leaderReputation; }
+
+    public void setLeaderReputation(boolean leaderReputation) { this.leaderReputation = leaderReputation; }
+
+    public SignatureScheme getSignatureScheme() {
+        return signatureScheme == null ? SignatureScheme.RSA : signatureScheme;
+    }
+
+    public void setSignatureScheme(SignatureScheme signatureScheme) { this.signatureScheme = signatureScheme; }
 }
@@ -31,7 +31,19 @@ public class ProcessConfigBuilder {
             // Config for node service
             List<ProcessConfig> nodesConfig = Arrays.stream(ledgerConfig)
                 .filter(config -> config.getPort2().isPresent())
-                .map(p -> new ProcessConfig(p.getHostname(), p.getId(), p.getPort2().get(), -1, p.getN(), p.getPublicKey(), p.getPrivateKey()))
+                .map(p -> {
+                    ProcessConfig node = new ProcessConfig(p.getHostname(), p.getId(), p.getPort2().get(), -1, p.getN(), p.getPublicKey(), p.getPrivateKey());
+                    node.setTransport(p.getTransport());
+                    node.setSignatureScheme(p.getSignatureScheme());
+                    node.setChannelMode(p.getChannelMode());
+                    node.setCodec(p.getCodec());
+                    node.setCoalescing(p.hasCoalescing());
+                    node.setTicketDirectory(p.getTicketDirectory().orElse(null));
+                    node.setPipelineWindow(p.getPipelineWindow());
+                    node.setAdaptiveTimeouts(p.hasAdaptiveTimeouts());
+                    node.setLeaderReputation(p.hasLeaderReputation());
+                    return node;
+                })
                 .collect(Collectors.toList());
 
             // Config for ledger service (can be original one)
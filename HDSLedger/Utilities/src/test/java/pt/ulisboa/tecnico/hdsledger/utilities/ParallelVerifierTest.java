@@ -0,0 +1,73 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ParallelVerifierTest {
+
+    private final ParallelVerifier verifier = new ParallelVerifier(4);
+
+    private static List<Integer> range(int n) {
+        return IntStream.range(0, n).boxed().collect(Collectors.toList());
+    }
+
+    @Test
+    public void checksEveryItemOnManyThreads() {
+        Set<Integer> checked = ConcurrentHashMap.newKeySet();
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        assertTrue(verifier.allMatch(range(200), i -> {
+            threads.add(Thread.currentThread());
+            sleep(1);
+            return checked.add(i);
+        }));
+
+        assertEquals(200, checked.size());
+        assertTrue(threads.size() > 1);
+    }
+
+    @Test
+    public void stopsOnFirstFailure() {
+        AtomicInteger checked = new AtomicInteger();
+
+        assertFalse(verifier.allMatch(range(1000), i -> {
+            checked.incrementAndGet();
+            sleep(1);
+            return i != 10;
+        }));
+
+        assertTrue(checked.get() < 1000);
+    }
+
+    @Test
+    public void emptyAndSingleBatches() {
+        assertTrue(verifier.allMatch(List.of(), i -> false));
+        assertFalse(verifier.allMatch(List.of(1), i -> false));
+        assertTrue(new ParallelVerifier(1).allMatch(range(10), i -> i < 10));
+    }
+
+    @Test
+    public void exceptionsReachTheCaller() {
+        assertThrows(IndexOutOfBoundsException.class,
+                () -> verifier.allMatch(range(10), i -> List.of(1, 2).get(i) > 0));
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+#!/bin/bash
+#
+# Runs the same LoaderClient workload with each replica running 1, 2, 4 and
+# 8 consensus instances at once (pipelineWindow, see NodeService), and
+# prints the mean latency and total throughput of each window size
+#
+# Must be run from the HDSLedger directory, after mvn install. Overwrites
+# Service/src/main/resources/regular_config.json (see setup.sh)
+
+if [ "$#" -lt 3 ] || [ "$#" -gt 4 ]; then
+    echo "Usage: $0 <n_replicas> <n_clients> <txs_per_client> [windows]"
+    exit 1
+fi
+
+n_replicas=$1
+n_clients=$2
+txs=$3
+windows=${4:-"1 2 4 8"}
+first_client=$n_replicas
+last_client=$((n_replicas + n_clients - 1))
+
+for window in $windows; do
+    bash setup.sh "$n_replicas" "$n_clients" 1000000 UDP RSA "" "$window" > /dev/null
+
+    # Start the replicas
+    pids=()
+    for ((i=0; i<n_replicas; i++)); do
+        (cd Service && mvn -q exec:java -Dexec.args="$i" > /dev/null 2>&1) &
+        pids+=($!)
+    done
+    sleep 10
+
+    (cd Client && bash multiple-clients.sh "$first_client" "$last_client" "$txs")
+
+    echo "# Window $window"
+    bash benchmarks/benchmark-script.sh "$first_client" "$last_client"
+
+    for pid in "${pids[@]}"; do
+        pkill -P "$pid"
+        kill "$pid" 2> /dev/null
+    done
+    pkill -f "pt.ulisboa.tecnico.hdsledger.service.Node"
+    sleep 2
+done
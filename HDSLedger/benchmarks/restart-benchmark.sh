@@ -0,0 +1,44 @@
+#!/bin/bash
+#
+# Time from the start of a client to its first committed transfer, the
+# first time it starts (the replicas propose it keys) and after a restart
+# (it resumes its sessions from its tickets, see SessionTickets)
+#
+# Must be run from the HDSLedger directory, after mvn install. Overwrites
+# Service/src/main/resources/regular_config.json (see setup.sh)
+
+if [ "$#" -ne 1 ]; then
+    echo "Usage: $0 <n_replicas>"
+    exit 1
+fi
+
+n_replicas=$1
+client=$n_replicas
+# LoaderClient needs more than its warmup and cooldown
+txs=401
+tickets=/tmp/hds-tickets
+
+bash setup.sh "$n_replicas" 1 1000000 UDP RSA "$tickets" > /dev/null
+
+# Start the replicas
+pids=()
+for ((i=0; i<n_replicas; i++)); do
+    (cd Service && mvn -q exec:java -Dexec.args="$i" > /dev/null 2>&1) &
+    pids+=($!)
+done
+sleep 10
+
+echo "# Client, first start"
+(cd Client && mvn -q exec:java -DmainClass=pt.ulisboa.tecnico.hdsledger.client.loader.LoaderClient \
+    -Dexec.args="$client $txs" | grep "First Transfer")
+
+# Request ids carry on from the first run (see ClientStub)
+echo "# Client, restart"
+(cd Client && mvn -q exec:java -DmainClass=pt.ulisboa.tecnico.hdsledger.client.loader.LoaderClient \
+    -Dexec.args="$client $txs $txs" | grep "First Transfer")
+
+for pid in "${pids[@]}"; do
+    pkill -P "$pid"
+    kill "$pid" 2> /dev/null
+done
+pkill -f "pt.ulisboa.tecnico.hdsledger.service.Node"
@@ -1,14 +1,53 @@
 #!/bin/bash
 
 # Check if correct number of arguments are provided
-if [ "$#" -ne 3 ]; then
-    echo "Usage: $0 <n_replicas> <n_clients> <initial_balance_for_all>"
+if [ "$#" -lt 3 ] || [ "$#" -gt 10 ]; then
+    echo "Usage: $0 <n_replicas> <n_clients> <initial_balance_for_all> [UDP|TCP] [RSA|ED25519] [ticket_dir] [pipeline_window] [FIXED|ADAPTIVE] [ROUND_ROBIN|REPUTATION] [BINARY|JSON]"
     exit 1
 fi
 
 n_replicas=$1
 n_clients=$2
 initial_balance=$3
+# Link used by every process (see ProcessConfig)
+transport=${4:-UDP}
+# Signature scheme of every process' keys (see ProcessConfig)
+scheme=${5:-RSA}
+# Where processes keep their session keys, to resume them after a restart
+# (see SessionTickets; not kept if absent)
+ticket_dir=$6
+ticket_field=""
+if [ -n "$ticket_dir" ]; then
+    # Tickets of previous runs were encrypted with the keys being replaced
+    rm -rf "$ticket_dir"
+    ticket_field=",\"ticketDirectory\": \"$ticket_dir\""
+fi
+# Consensus instances each replica runs at once (see NodeService; 1 if
+# absent)
+pipeline_window=$7
+pipeline_field=""
+if [ -n "$pipeline_window" ]; then
+    pipeline_field=",\"pipelineWindow\": $pipeline_window"
+fi
+# Round timeouts of consensus instances (see AdaptiveTimeout; FIXED if
+# absent)
+timeouts=${8:-FIXED}
+timeouts_field=""
+if [ "$timeouts" = "ADAPTIVE" ]; then
+    timeouts_field=",\"adaptiveTimeouts\": true"
+fi
+# Leaders of consensus rounds (see ReputationLeader; ROUND_ROBIN if absent)
+leaders=${9:-ROUND_ROBIN}
+leaders_field=""
+if [ "$leaders" = "REPUTATION" ]; then
+    leaders_field=",\"leaderReputation\": true"
+    if [ "$timeouts" != "ADAPTIVE" ]; then
+        echo "Warning: with FIXED timeouts, REPUTATION only leaves out leaders slower than the timeout (e.g. crashed ones)"
+    fi
+fi
+# Encoding of the messages every process sends (see MessageCodec; BINARY if
+# absent)
+codec=${10:-BINARY}
 
 # Function to generate JSON objects for replicas
 generate_replica_config() {
@@ -20,7 +59,14 @@ generate_replica_config() {
     json+="\"port2\": $((4000+i)),"
     json+="\"N\": $n_replicas,"
     json+="\"publicKeyPath\": \"/tmp/node$i.pub\","
-    json+="\"privateKeyPath\": \"/tmp/node$i.priv\""
+    json+="\"privateKeyPath\": \"/tmp/node$i.priv\","
+    json+="\"transport\": \"$transport\","
+    json+="\"signatureScheme\": \"$scheme\","
+    json+="\"codec\": \"$codec\""
+    json+="$ticket_field"
+    json+="$pipeline_field"
+    json+="$timeouts_field"
+    json+="$leaders_field"
     json+="}"
     echo "$json"
 }
@@ -35,7 +81,11 @@ generate_client_config() {
     json+="\"port2\": -1,"
     json+="\"N\": $n_replicas,"
     json+="\"publicKeyPath\": \"/tmp/client$j.pub\","
-    json+="\"privateKeyPath\": \"/tmp/client$j.priv\""
+    json+="\"privateKeyPath\": \"/tmp/client$j.priv\","
+    json+="\"transport\": \"$transport\","
+    json+="\"signatureScheme\": \"$scheme\","
+    json+="\"codec\": \"$codec\""
+    json+="$ticket_field"
     json+="}"
     echo "$json"
 }
@@ -46,14 +96,14 @@ cd PKI || exit
 # Generate configs for replicas
 config="["
 for ((i=0; i<n_replicas; i++)); do
-    mvn exec:java -Dexec.args="w /tmp/node$i.priv /tmp/node$i.pub"
+    mvn exec:java -Dexec.args="w /tmp/node$i.priv /tmp/node$i.pub $scheme"
     config+=$(generate_replica_config "$i")
     config+=","
 done
 
 # Generate configs for clients
 for ((j=n_replicas; j<n_replicas+n_clients; j++)); do
-    mvn exec:java -Dexec.args="w /tmp/client$j.priv /tmp/client$j.pub"
+    mvn exec:java -Dexec.args="w /tmp/client$j.priv /tmp/client$j.pub $scheme"
     config+=$(generate_client_config "$j")
     if [ "$j" -ne "$((n_replicas + n_clients - 1))" ]; then
         config+=","